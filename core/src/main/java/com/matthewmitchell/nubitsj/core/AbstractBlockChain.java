@@ -19,6 +19,7 @@ package com.matthewmitchell.nubitsj.core;
 
 import com.matthewmitchell.nubitsj.store.BlockStore;
 import com.matthewmitchell.nubitsj.store.BlockStoreException;
+import com.matthewmitchell.nubitsj.store.HeaderBatchStore;
 import com.matthewmitchell.nubitsj.store.ValidHashStore;
 import com.matthewmitchell.nubitsj.utils.ListenerRegistration;
 import com.matthewmitchell.nubitsj.utils.Threading;
@@ -111,23 +112,9 @@ public abstract class AbstractBlockChain {
     protected final AbstractNubitsNetParams params;
     private final CopyOnWriteArrayList<ListenerRegistration<BlockChainListener>> listeners;
 
-    // Holds a block header and, optionally, a list of tx hashes or block's transactions
-    class OrphanBlock {
-        final Block block;
-        final List<Sha256Hash> filteredTxHashes;
-        final Map<Sha256Hash, Transaction> filteredTxn;
-        OrphanBlock(Block block, @Nullable List<Sha256Hash> filteredTxHashes, @Nullable Map<Sha256Hash, Transaction> filteredTxn) {
-            final boolean filtered = filteredTxHashes != null && filteredTxn != null;
-            Preconditions.checkArgument((block.transactions == null && filtered)
-                                        || (block.transactions != null && !filtered));
-            this.block = block;
-            this.filteredTxHashes = filteredTxHashes;
-            this.filteredTxn = filteredTxn;
-        }
-    }
     // Holds blocks that we have received but can't plug into the chain yet, eg because they were created whilst we
     // were downloading the block chain.
-    private final LinkedHashMap<Sha256Hash, OrphanBlock> orphanBlocks = new LinkedHashMap<Sha256Hash, OrphanBlock>();
+    private final OrphanBlockPool orphanBlocks = new OrphanBlockPool();
 
     /** False positive estimation uses a double exponential moving average. */
     public static final double FP_ESTIMATOR_ALPHA = 0.0001;
@@ -278,8 +265,16 @@ public abstract class AbstractBlockChain {
      * Accessing block's transactions in another thread while this method runs may result in undefined behavior.
      */
     public boolean add(Block block) throws VerificationException, PrunedException {
+        return add(block, null);
+    }
+
+    /**
+     * Like {@link #add(Block)}, for a block received from the given peer. If the block can't be connected yet, the
+     * peer is charged for the room it takes in the orphan pool, see {@link OrphanBlockPool}.
+     */
+    public boolean add(Block block, @Nullable PeerAddress source) throws VerificationException, PrunedException {
         try {
-            return add(block, true, null, null);
+            return add(block, true, null, null, source);
         } catch (BlockStoreException e) {
             // TODO: Figure out a better way to propagate this exception to the user.
             throw new RuntimeException(e);
@@ -300,6 +295,14 @@ public abstract class AbstractBlockChain {
      * If the block can be connected to the chain, returns true.
      */
     public boolean add(FilteredBlock block) throws VerificationException, PrunedException {
+        return add(block, null);
+    }
+
+    /**
+     * Like {@link #add(FilteredBlock)}, for a block received from the given peer. If the block can't be connected yet,
+     * the peer is charged for the room it takes in the orphan pool, see {@link OrphanBlockPool}.
+     */
+    public boolean add(FilteredBlock block, @Nullable PeerAddress source) throws VerificationException, PrunedException {
         try {
             // The block has a list of hashes of transactions that matched the Bloom filter, and a list of associated
             // Transaction objects. There may be fewer Transaction objects than hashes, this is expected. It can happen
@@ -308,7 +311,8 @@ public abstract class AbstractBlockChain {
             // a false positive, as expected in any Bloom filtering scheme). The filteredTxn list here will usually
             // only be full of data when we are catching up to the head of the chain and thus haven't witnessed any
             // of the transactions.
-            return add(block.getBlockHeader(), true, block.getTransactionHashes(), block.getAssociatedTransactions());
+            return add(block.getBlockHeader(), true, block.getTransactionHashes(), block.getAssociatedTransactions(),
+                    source);
         } catch (BlockStoreException e) {
             // TODO: Figure out a better way to propagate this exception to the user.
             throw new RuntimeException(e);
@@ -323,6 +327,91 @@ public abstract class AbstractBlockChain {
         }
     }
     
+    /**
+     * <p>Adds headers [from, from + count) of the batch to the top of the best chain, as done during headers-only
+     * chain sync. Unlike {@link #add(Block)} no {@link Block} is created for each header: they are linked, checked
+     * against checkpoints and the trusted hash server and then written to the block store straight from the batch.
+     * Listeners implementing {@link HeaderBatchListener} are told about them in one call.</p>
+     *
+     * <p>Only headers that extend the current chain head and pass these checks are handled here. Returns how many
+     * headers from the start of the range were added, which may be zero, for example when the first header is
+     * already known or connects elsewhere in the chain. The header after them should be passed to
+     * {@link #add(Block)}, which deals with forks, orphans and invalid headers.</p>
+     */
+    public int add(HeaderBatch batch, int from, int count) throws VerificationException, PrunedException {
+        lock.lock();
+        try {
+            if (count == 0 || shouldVerifyTransactions())
+                return 0;
+            StoredBlock storedPrev = getChainHead();
+            if (!batch.prevHashEquals(from, storedPrev.getHeader().getHash()))
+                return 0;
+            int end = batch.findLinkBreak(from, count);
+
+            // Same checks as Block.verifyHeader(), whose proof of work check is a no-op for this chain, and
+            // connectBlock(). Stop at the first header that fails any of them and let add(Block) reject it.
+            long now = Utils.currentTimeSeconds();
+            long lastTarget = -1;
+            for (int i = from; i < end; i++) {
+                long target = batch.getDifficultyTarget(i);
+                if (target != lastTarget && Utils.decodeCompactBits(target).signum() <= 0) {
+                    end = i;
+                    break;
+                }
+                lastTarget = target;
+                int height = storedPrev.getHeight() + 1 + (i - from);
+                if (batch.getTimeSeconds(i) > now + Block.ALLOWED_TIME_DRIFT ||
+                        (params.isCheckpoint(height) && !params.passesCheckpoint(height, batch.getHash(i)))) {
+                    end = i;
+                    break;
+                }
+            }
+            if (validHashStore != null && end > from) {
+                informHashDownload(true);
+                try {
+                    for (int i = from; i < end; i++) {
+                        // Wait a while for the server if the block is less than an hour old.
+                        boolean waitForPropagation = batch.getTimeSeconds(i) > now - 60*60;
+                        if (!validHashStore.isValidHash(batch.getHash(i), this, waitForPropagation)) {
+                            end = i;
+                            break;
+                        }
+                    }
+                } catch (IOException e) {
+                    log.error("IO Error when determining valid hashes: ", e);
+                    return 0;
+                } finally {
+                    informHashDownload(false);
+                }
+            }
+            if (end == from)
+                return 0;
+
+            int added = end - from;
+            HeaderBatch connected = batch.connect(from, added, storedPrev);
+            StoredBlock newHead = connected.toStoredBlock(end - 1);
+            if (blockStore instanceof HeaderBatchStore) {
+                ((HeaderBatchStore) blockStore).putHeaders(connected, from, added);
+            } else {
+                for (int i = from; i < end - 1; i++)
+                    blockStore.put(connected.toStoredBlock(i));
+                blockStore.put(newHead);
+            }
+            setChainHead(newHead);
+            log.debug("Chain is now {} blocks high after {} headers, running listeners", newHead.getHeight(), added);
+            informListenersForNewHeaders(connected, from, added, newHead);
+
+            if (!orphanBlocks.isEmpty())
+                tryConnectingOrphans();
+            return added;
+        } catch (BlockStoreException e) {
+            // TODO: Figure out a better way to propagate this exception to the user.
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Whether or not we are maintaining a set of unspent outputs and are verifying all transactions.
      * Also indicates that all calls to add() should provide a block containing transactions
@@ -353,7 +442,8 @@ public abstract class AbstractBlockChain {
 
     // filteredTxHashList contains all transactions, filteredTxn just a subset
     private boolean add(Block block, boolean tryConnecting,
-                        @Nullable List<Sha256Hash> filteredTxHashList, @Nullable Map<Sha256Hash, Transaction> filteredTxn)
+                        @Nullable List<Sha256Hash> filteredTxHashList, @Nullable Map<Sha256Hash, Transaction> filteredTxn,
+                        @Nullable PeerAddress source)
             throws BlockStoreException, VerificationException, PrunedException {
         // TODO: Use read/write locks to ensure that during chain download properties are still low latency.
         lock.lock();
@@ -363,7 +453,7 @@ public abstract class AbstractBlockChain {
             if (block.equals(getChainHead().getHeader())) {
                 return true;
             }
-            if (tryConnecting && orphanBlocks.containsKey(block.getHash())) {
+            if (tryConnecting && orphanBlocks.contains(block.getHash())) {
                 return false;
             }
 
@@ -408,7 +498,7 @@ public abstract class AbstractBlockChain {
                 // have more blocks.
                 checkState(tryConnecting, "bug in tryConnectingOrphans");
                 log.warn("Block does not connect: {} prev {}", block.getHashAsString(), block.getPrevBlockHash());
-                orphanBlocks.put(block.getHash(), new OrphanBlock(block, filteredTxHashList, filteredTxn));
+                orphanBlocks.add(new OrphanBlockPool.OrphanBlock(block, filteredTxHashList, filteredTxn, source));
                 return false;
             } else {
                 checkState(lock.isHeldByCurrentThread());
@@ -434,8 +524,8 @@ public abstract class AbstractBlockChain {
                 connectBlock(block, storedPrev, shouldVerifyTransactions(), filteredTxHashList, filteredTxn);
             }
 
-            if (tryConnecting)
-                tryConnectingOrphans();
+            if (tryConnecting && !orphanBlocks.isEmpty())
+                connectOrphansOf(block.getHash());
 
             return true;
         } finally {
@@ -451,9 +541,7 @@ public abstract class AbstractBlockChain {
     public Set<Sha256Hash> drainOrphanBlocks() {
         lock.lock();
         try {
-            Set<Sha256Hash> hashes = new HashSet<Sha256Hash>(orphanBlocks.keySet());
-            orphanBlocks.clear();
-            return hashes;
+            return orphanBlocks.drain();
         } finally {
             lock.unlock();
         }
@@ -586,13 +674,62 @@ public abstract class AbstractBlockChain {
         trackFalsePositives(falsePositives.size());
     }
 
+    private void informListenersForNewHeaders(final HeaderBatch batch, final int from, final int count,
+                                              final StoredBlock newHead) throws VerificationException {
+        List<StoredBlock> storedBlocks = null;
+        for (final ListenerRegistration<BlockChainListener> registration : listeners) {
+            final List<StoredBlock> blocks;
+            if (registration.listener instanceof HeaderBatchListener) {
+                blocks = null;
+            } else {
+                // Other listeners are told about every header, so the blocks have to be created for them after all.
+                if (storedBlocks == null) {
+                    storedBlocks = new ArrayList<StoredBlock>(count);
+                    for (int i = from; i < from + count - 1; i++)
+                        storedBlocks.add(batch.toStoredBlock(i));
+                    storedBlocks.add(newHead);
+                }
+                blocks = storedBlocks;
+            }
+            if (registration.executor == Threading.SAME_THREAD) {
+                informListenerForNewHeaders(registration.listener, batch, from, count, newHead, blocks);
+            } else {
+                // Listener wants to be run on some other thread, so marshal it across here.
+                registration.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            informListenerForNewHeaders(registration.listener, batch, from, count, newHead, blocks);
+                        } catch (VerificationException e) {
+                            log.error("Block chain listener threw exception: ", e);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private static void informListenerForNewHeaders(BlockChainListener listener, HeaderBatch batch, int from,
+                                                    int count, StoredBlock newHead,
+                                                    @Nullable List<StoredBlock> blocks) throws VerificationException {
+        if (blocks == null) {
+            ((HeaderBatchListener) listener).notifyNewBestHeaders(batch, from, count, newHead);
+        } else {
+            for (StoredBlock block : blocks)
+                listener.notifyNewBestBlock(block);
+        }
+    }
+
     private static void informListenerForNewTransactions(Block block, NewBlockType newBlockType,
                                                          @Nullable List<Sha256Hash> filteredTxHashList,
                                                          @Nullable Map<Sha256Hash, Transaction> filteredTxn,
                                                          StoredBlock newStoredBlock, boolean first,
                                                          BlockChainListener listener,
                                                          Set<Sha256Hash> falsePositives) throws VerificationException {
-        if (block.transactions != null) {
+        if (listener instanceof BlockTransactionsListener) {
+            informListenerForBlockTransactions(block, newBlockType, filteredTxHashList, filteredTxn, newStoredBlock,
+                    first, listener, falsePositives);
+        } else if (block.transactions != null) {
             // If this is not the first wallet, ask for the transactions to be duplicated before being given
             // to the wallet when relevant. This ensures that if we have two connected wallets and a tx that
             // is relevant to both of them, they don't end up accidentally sharing the same object (which can
@@ -621,6 +758,37 @@ public abstract class AbstractBlockChain {
         }
     }
 
+    // Gives all the transactions of the block to the listener at once, keeping the block order.
+    private static void informListenerForBlockTransactions(Block block, NewBlockType newBlockType,
+                                                           @Nullable List<Sha256Hash> filteredTxHashList,
+                                                           @Nullable Map<Sha256Hash, Transaction> filteredTxn,
+                                                           StoredBlock newStoredBlock, boolean first,
+                                                           BlockChainListener listener,
+                                                           Set<Sha256Hash> falsePositives) throws VerificationException {
+        List<Sha256Hash> hashes;
+        Map<Sha256Hash, Transaction> transactions;
+        if (block.transactions != null) {
+            hashes = new ArrayList<Sha256Hash>(block.transactions.size());
+            transactions = new HashMap<Sha256Hash, Transaction>();
+            for (Transaction tx : block.transactions) {
+                hashes.add(tx.getHash());
+                transactions.put(tx.getHash(), tx);
+            }
+        } else if (filteredTxHashList != null) {
+            hashes = filteredTxHashList;
+            transactions = checkNotNull(filteredTxn);
+        } else {
+            return;
+        }
+        if (hashes.isEmpty())
+            return;
+        // Relevance is checked by the listener, so that a transaction spending an output of an earlier one in the
+        // block is checked after that one was taken in.
+        Set<Sha256Hash> relevant = ((BlockTransactionsListener) listener).receiveBlockTransactions(newStoredBlock,
+                newBlockType, hashes, transactions, !first);
+        falsePositives.removeAll(relevant);
+    }
+
     /**
      * Gets the median timestamp of the last 11 blocks
      */
@@ -810,42 +978,45 @@ public abstract class AbstractBlockChain {
     }
 
     /**
-     * For each block in orphanBlocks, see if we can now fit it on top of the chain and if so, do so.
+     * For each block that orphans build on, see if it is now in the chain and if so connect the orphans that build on
+     * it.
      */
     private void tryConnectingOrphans() throws VerificationException, BlockStoreException, PrunedException {
         checkState(lock.isHeldByCurrentThread());
-        // For each block in our orphan list, try and fit it onto the head of the chain. If we succeed remove it
-        // from the list and keep going. If we changed the head of the list at the end of the round try again until
-        // we can't fit anything else on the top.
-        //
-        // This algorithm is kind of crappy, we should do a topo-sort then just connect them in order, but for small
-        // numbers of orphan blocks it does OK.
-        int blocksConnectedThisRound;
-        do {
-            blocksConnectedThisRound = 0;
-            Iterator<OrphanBlock> iter = orphanBlocks.values().iterator();
-            while (iter.hasNext()) {
-                OrphanBlock orphanBlock = iter.next();
-
-                // Look up the blocks previous.
-                StoredBlock prev = getStoredBlockInCurrentScope(orphanBlock.block.getPrevBlockHash());
-                if (prev == null) {
-                    // This is still an unconnected/orphan block.
-                    log.debug("Orphan block {} is not connectable right now", orphanBlock.block.getHash());
-                    continue;
-                }
+        for (Sha256Hash prevHash : orphanBlocks.getMissingParents()) {
+            if (getStoredBlockInCurrentScope(prevHash) != null)
+                connectOrphansOf(prevHash);
+        }
+    }
 
-                // Otherwise we can connect it now.
-                // False here ensures we don't recurse infinitely downwards when connecting huge chains.
+    /**
+     * Connects the orphans that build on the given block, which was just connected, then the orphans that build on
+     * those and so on. Only the descendants of the block are looked at.
+     */
+    private void connectOrphansOf(Sha256Hash connectedHash)
+            throws VerificationException, BlockStoreException, PrunedException {
+        checkState(lock.isHeldByCurrentThread());
+        int blocksConnected = 0;
+        ArrayDeque<Sha256Hash> parents = new ArrayDeque<Sha256Hash>();
+        parents.add(connectedHash);
+        while (!parents.isEmpty()) {
+            Sha256Hash parent = parents.poll();
+            // Each block is only removed once added, so if one fails to connect the others stay in the pool.
+            OrphanBlockPool.OrphanBlock orphanBlock;
+            while ((orphanBlock = orphanBlocks.getFirstChild(parent)) != null) {
+                // False here ensures we don't recurse downwards when connecting huge chains.
                 log.info("Connected orphan {}", orphanBlock.block.getHash());
-                add(orphanBlock.block, false, orphanBlock.filteredTxHashes, orphanBlock.filteredTxn);
-                iter.remove();
-                blocksConnectedThisRound++;
-            }
-            if (blocksConnectedThisRound > 0) {
-                log.info("Connected {} orphan blocks.", blocksConnectedThisRound);
+                boolean connected = add(orphanBlock.block, false, orphanBlock.filteredTxHashes, orphanBlock.filteredTxn,
+                        null);
+                orphanBlocks.removeConnected(orphanBlock.block.getHash());
+                if (connected) {
+                    parents.add(orphanBlock.block.getHash());
+                    blocksConnected++;
+                }
             }
-        } while (blocksConnectedThisRound > 0);
+        }
+        if (blocksConnected > 0)
+            log.info("Connected {} orphan blocks, {}", blocksConnected, orphanBlocks);
     }
 
     private void informHashDownload(boolean isDownloading) {
@@ -897,10 +1068,10 @@ public abstract class AbstractBlockChain {
     public Block getOrphanRoot(Sha256Hash from) {
         lock.lock();
         try {
-            OrphanBlock cursor = orphanBlocks.get(from);
+            OrphanBlockPool.OrphanBlock cursor = orphanBlocks.get(from);
             if (cursor == null)
                 return null;
-            OrphanBlock tmp;
+            OrphanBlockPool.OrphanBlock tmp;
             while ((tmp = orphanBlocks.get(cursor.block.getPrevBlockHash())) != null) {
                 cursor = tmp;
             }
@@ -910,11 +1081,16 @@ public abstract class AbstractBlockChain {
         }
     }
 
+    /** Returns the pool of orphan blocks, to change its limits or read its counts. */
+    public OrphanBlockPool getOrphanBlockPool() {
+        return orphanBlocks;
+    }
+
     /** Returns true if the given block is currently in the orphan blocks list. */
     public boolean isOrphan(Sha256Hash block) {
         lock.lock();
         try {
-            return orphanBlocks.containsKey(block);
+            return orphanBlocks.contains(block);
         } finally {
             lock.unlock();
         }
@@ -941,7 +1117,7 @@ public abstract class AbstractBlockChain {
      */
     public ListenableFuture<StoredBlock> getHeightFuture(final int height) {
         final SettableFuture<StoredBlock> result = SettableFuture.create();
-        addListener(new AbstractBlockChainListener() {
+        class HeightListener extends AbstractBlockChainListener implements HeaderBatchListener {
             @Override
             public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
                 if (block.getHeight() >= height) {
@@ -949,7 +1125,17 @@ public abstract class AbstractBlockChain {
                     result.set(block);
                 }
             }
-        }, Threading.SAME_THREAD);
+
+            @Override
+            public void notifyNewBestHeaders(HeaderBatch batch, int from, int count, StoredBlock newHead) {
+                if (newHead.getHeight() >= height) {
+                    removeListener(this);
+                    int first = newHead.getHeight() - count + 1;
+                    result.set(height <= first ? batch.toStoredBlock(from) : batch.toStoredBlock(from + height - first));
+                }
+            }
+        }
+        addListener(new HeightListener(), Threading.SAME_THREAD);
         return result;
     }
 
@@ -0,0 +1,28 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.core;
+
+import java.util.List;
+
+/**
+ * A {@link TransactionBroadcaster} that can also broadcast many transactions together, see
+ * {@link TransactionBatchBroadcast}. This is implemented by {@link com.matthewmitchell.nubitsj.core.PeerGroup}. The
+ * wallet uses it when it has several transactions to send at once, and broadcasts them one by one, parents first, with
+ * broadcasters that don't implement it.
+ */
+public interface BatchTransactionBroadcaster extends TransactionBroadcaster {
+    /** Broadcast the given transactions on the network together, parents before the transactions spending them */
+    TransactionBatchBroadcast broadcastTransactions(List<Transaction> txns);
+}
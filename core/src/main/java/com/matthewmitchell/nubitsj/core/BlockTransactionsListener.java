@@ -0,0 +1,47 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.core;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Can be implemented by a {@link BlockChainListener} to be given the transactions of a new block in one call, rather
+ * than one {@link BlockChainListener#receiveFromBlock(Transaction, StoredBlock, AbstractBlockChain.NewBlockType, int)}
+ * or {@link BlockChainListener#notifyTransactionIsInBlock(Sha256Hash, StoredBlock, AbstractBlockChain.NewBlockType, int)}
+ * call for each of them. This lets a wallet update itself and notify its own listeners once per block, which matters
+ * when rescanning the chain with many relevant transactions.
+ */
+public interface BlockTransactionsListener {
+    /**
+     * Called instead of receiveFromBlock and notifyTransactionIsInBlock with the transactions of the given block,
+     * before {@link BlockChainListener#notifyNewBestBlock(StoredBlock)}. The hashes are those of all the transactions
+     * of the block, or of the filtered block, in block order, and the relativity offset of each is its index in the
+     * list. The transactions map holds those that were received in full; the rest are only known by hash, as from a
+     * {@link FilteredBlock} for transactions the listener was sent earlier.
+     *
+     * <p>The listener checks each transaction received in full with
+     * {@link BlockChainListener#isTransactionRelevant(Transaction)} after taking in the ones before it, as it may
+     * spend their outputs. If duplicate is true, the same objects may be given to another listener, so the listener
+     * must keep copies of the transactions it takes in.</p>
+     *
+     * @return the hashes of the transactions that were relevant to the listener, so that the others can be counted
+     * as Bloom filter false positives.
+     */
+    Set<Sha256Hash> receiveBlockTransactions(StoredBlock block, AbstractBlockChain.NewBlockType blockType,
+                                             List<Sha256Hash> hashes, Map<Sha256Hash, Transaction> transactions,
+                                             boolean duplicate) throws VerificationException;
+}
@@ -24,20 +24,34 @@ import com.google.common.hash.HashCode;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -65,16 +79,32 @@ import static com.google.common.base.Preconditions.*;
  * <p>After the signatures come an int32 containing the number of checkpoints in the file. Then each checkpoint follows
  * one after the other. A checkpoint is 12 bytes for the total work done field, 4 bytes for the height, 80 bytes
  * for the block header and then 1 zero byte at the end (i.e. number of transactions in the block: always zero).</p>
+ *
+ * <p>The indexed format, "CHECKPOINTS 2", can be used in place without parsing it first, which makes start up faster
+ * for short lived processes. Given a file it is memory mapped. The signatures are as above, then come an int32 with
+ * the number of checkpoints and the 32 byte data hash, which is the hash the first format would have for the same
+ * checkpoints, so it needn't be worked out again. The checkpoints follow sorted by time, each as a uint32 block time
+ * followed by the checkpoint as above. Last comes an index of the block hashes, each 32 bytes followed by an int32
+ * position among the checkpoints, sorted by hash. See {@link #writeIndexed(Collection, OutputStream)}. The data hash
+ * is checked when the file is loaded, over the checkpoints taken in the order of their heights, and a file it doesn't
+ * match is rejected.</p>
  */
 public class CheckpointManager {
     private static final Logger log = LoggerFactory.getLogger(CheckpointManager.class);
 
     private static final String BINARY_MAGIC = "CHECKPOINTS 1";
+    private static final String INDEXED_MAGIC = "CHECKPOINTS 2";
+    private static final int INDEXED_RECORD_SIZE = 4 + StoredBlock.COMPACT_SERIALIZED_SIZE;
+    private static final int INDEX_ENTRY_SIZE = 32 + 4;
     private static final String TEXTUAL_MAGIC = "TXT CHECKPOINTS 1";
     private static final int MAX_SIGNATURES = 256;
 
-    // Map of block header time to data.
+    // Map of block header time to data. Empty for the indexed format, which is used in place.
     protected final TreeMap<Long, StoredBlock> checkpoints = new TreeMap<Long, StoredBlock>();
+    // The checkpoints and hash index of the indexed format. Only read through duplicates, so it's thread safe.
+    @Nullable private final ByteBuffer indexed;
+    private final int numIndexed;
+    private final int hashIndexOffset;
 
     protected final NetworkParameters params;
     protected final Sha256Hash dataHash;
@@ -82,18 +112,104 @@ public class CheckpointManager {
     public static final BaseEncoding BASE64 = BaseEncoding.base64().omitPadding();
 
     public CheckpointManager(NetworkParameters params, InputStream inputStream) throws IOException {
+        this(params, inputStream, null);
+    }
+
+    /**
+     * Reads checkpoints from the given file. A file in the indexed format is memory mapped and used in place, others
+     * are read as by {@link #CheckpointManager(NetworkParameters, InputStream)}.
+     */
+    public CheckpointManager(NetworkParameters params, File file) throws IOException {
+        this(params, new FileInputStream(file), file);
+    }
+
+    // The file is mapped rather than read from the stream if it turns out to be in the indexed format.
+    private CheckpointManager(NetworkParameters params, InputStream inputStream, @Nullable File file)
+            throws IOException {
         this.params = checkNotNull(params);
         checkNotNull(inputStream);
         inputStream = new BufferedInputStream(inputStream);
-        inputStream.mark(1);
-        int first = inputStream.read();
+        inputStream.mark(INDEXED_MAGIC.length());
+        byte[] start = new byte[INDEXED_MAGIC.length()];
+        int read = 0;
+        for (int n; read < start.length && (n = inputStream.read(start, read, start.length - read)) > 0; )
+            read += n;
         inputStream.reset();
-        if (first == BINARY_MAGIC.charAt(0))
-            dataHash = readBinary(inputStream);
-        else if (first == TEXTUAL_MAGIC.charAt(0))
-            dataHash = readTextual(inputStream);
-        else
-            throw new IOException("Unsupported format.");
+        if (Arrays.equals(start, INDEXED_MAGIC.getBytes("US-ASCII"))) {
+            try {
+                if (file != null) {
+                    // The mapping stays valid after the file is closed.
+                    RandomAccessFile raf = new RandomAccessFile(file, "r");
+                    try {
+                        indexed = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                    } finally {
+                        raf.close();
+                    }
+                } else {
+                    indexed = ByteBuffer.wrap(ByteStreams.toByteArray(inputStream));
+                }
+            } finally {
+                inputStream.close();
+            }
+            numIndexed = readIndexedHeader(indexed);
+            hashIndexOffset = indexed.position() + numIndexed * INDEXED_RECORD_SIZE;
+            byte[] hash = new byte[32];
+            indexed.position(indexed.position() - 32);
+            indexed.get(hash);
+            dataHash = Sha256Hash.wrap(hash);
+            Sha256Hash actual = hashIndexed();
+            if (!actual.equals(dataHash))
+                throw new IOException("Checkpoints data hash mismatch: file has " + dataHash + ", data hashes to "
+                        + actual);
+            log.info("Using {} indexed checkpoints, hash is {}", numIndexed, dataHash);
+        } else {
+            indexed = null;
+            numIndexed = 0;
+            hashIndexOffset = 0;
+            if (start[0] == BINARY_MAGIC.charAt(0))
+                dataHash = readBinary(inputStream);
+            else if (start[0] == TEXTUAL_MAGIC.charAt(0))
+                dataHash = readTextual(inputStream);
+            else
+                throw new IOException("Unsupported format.");
+        }
+    }
+
+    // Checks the magic and the length, returning the number of checkpoints and leaving the buffer after the data hash.
+    private static int readIndexedHeader(ByteBuffer buffer) throws IOException {
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        byte[] header = new byte[INDEXED_MAGIC.length()];
+        buffer.get(header);
+        if (!Arrays.equals(header, INDEXED_MAGIC.getBytes("US-ASCII")))
+            throw new IOException("Header bytes did not match expected version");
+        int numSignatures = checkPositionIndex(buffer.getInt(), MAX_SIGNATURES, "Num signatures out of range");
+        buffer.position(buffer.position() + numSignatures * 65);
+        int numCheckpoints = buffer.getInt();
+        checkState(numCheckpoints > 0);
+        int expected = buffer.position() + 32 + numCheckpoints * (INDEXED_RECORD_SIZE + INDEX_ENTRY_SIZE);
+        if (buffer.limit() < expected)
+            throw new IOException("Checkpoints file is truncated");
+        buffer.position(buffer.position() + 32);
+        return numCheckpoints;
+    }
+
+    // Works out the data hash of the indexed checkpoints like the first binary format has it, over the records sorted
+    // by height, without parsing them.
+    private Sha256Hash hashIndexed() {
+        long[] byHeight = new long[numIndexed];
+        for (int i = 0; i < numIndexed; i++)
+            byHeight[i] = ((long) indexed.getInt(recordOffset(i) + 4 + StoredBlock.CHAIN_WORK_BYTES) << 32) | i;
+        Arrays.sort(byHeight);
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(ByteBuffer.allocate(4).putInt(numIndexed).array());
+        byte[] record = new byte[StoredBlock.COMPACT_SERIALIZED_SIZE];
+        ByteBuffer buffer = indexed.duplicate();
+        for (long entry : byHeight) {
+            buffer.position(recordOffset((int) entry) + 4);
+            buffer.get(record);
+            digest.update(record);
+        }
+        return Sha256Hash.wrap(digest.digest());
     }
 
     private Sha256Hash readBinary(InputStream inputStream) throws IOException {
@@ -177,9 +293,24 @@ public class CheckpointManager {
     public StoredBlock getCheckpointBefore(long time) {
         try {
             checkArgument(time > params.getGenesisBlock().getTimeSeconds());
-            // This is thread safe because the map never changes after creation.
-            Map.Entry<Long, StoredBlock> entry = checkpoints.floorEntry(time);
-            if (entry != null) return entry.getValue();
+            if (indexed != null) {
+                // Binary search for the last checkpoint at or before the time.
+                int low = 0, high = numIndexed - 1, found = -1;
+                while (low <= high) {
+                    int mid = (low + high) >>> 1;
+                    if ((indexed.getInt(recordOffset(mid)) & 0xFFFFFFFFL) <= time) {
+                        found = mid;
+                        low = mid + 1;
+                    } else {
+                        high = mid - 1;
+                    }
+                }
+                if (found >= 0) return readIndexed(found);
+            } else {
+                // This is thread safe because the map never changes after creation.
+                Map.Entry<Long, StoredBlock> entry = checkpoints.floorEntry(time);
+                if (entry != null) return entry.getValue();
+            }
             Block genesis = params.getGenesisBlock().cloneAsHeader();
             return new StoredBlock(genesis, genesis.getWork(), 0);
         } catch (VerificationException e) {
@@ -187,9 +318,63 @@ public class CheckpointManager {
         }
     }
 
+    /**
+     * Returns the checkpoint with the given block hash, or null if there is none. Only the indexed format can look
+     * checkpoints up without going through all of them.
+     */
+    @Nullable
+    public StoredBlock getCheckpoint(Sha256Hash hash) {
+        try {
+            if (indexed == null) {
+                for (StoredBlock block : checkpoints.values())
+                    if (block.getHeader().getHash().equals(hash))
+                        return block;
+                return null;
+            }
+            byte[] key = hash.getBytes();
+            byte[] candidate = new byte[32];
+            int low = 0, high = numIndexed - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                ByteBuffer entry = indexed.duplicate();
+                entry.position(hashIndexOffset + mid * INDEX_ENTRY_SIZE);
+                entry.get(candidate);
+                int cmp = compareUnsigned(candidate, key);
+                if (cmp == 0)
+                    return readIndexed(entry.getInt());
+                if (cmp < 0)
+                    low = mid + 1;
+                else
+                    high = mid - 1;
+            }
+            return null;
+        } catch (ProtocolException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    private int recordOffset(int i) {
+        return hashIndexOffset - (numIndexed - i) * INDEXED_RECORD_SIZE;
+    }
+
+    private StoredBlock readIndexed(int i) throws ProtocolException {
+        ByteBuffer record = indexed.duplicate();
+        record.position(recordOffset(i) + 4);
+        return StoredBlock.deserializeCompact(params, record);
+    }
+
+    private static int compareUnsigned(byte[] a, byte[] b) {
+        for (int i = 0; i < a.length; i++) {
+            int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (cmp != 0)
+                return cmp;
+        }
+        return 0;
+    }
+
     /** Returns the number of checkpoints that were loaded. */
     public int numCheckpoints() {
-        return checkpoints.size();
+        return indexed != null ? numIndexed : checkpoints.size();
     }
 
     /** Returns a hash of the concatenated checkpoint data. */
@@ -220,4 +405,83 @@ public class CheckpointManager {
         store.put(checkpoint);
         store.setChainHead(checkpoint);
     }
+
+    /** Like {@link #checkpoint(NetworkParameters, InputStream, BlockStore, long)}, reading a checkpoints file. */
+    public static void checkpoint(NetworkParameters params, File checkpoints, BlockStore store, long time)
+            throws IOException, BlockStoreException {
+        InputStream stream = new FileInputStream(checkpoints);
+        try {
+            checkpoint(params, stream, store, time);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Writes the given checkpoints in the indexed format, without signatures. The data hash is worked out here as for
+     * the first binary format, over the checkpoints sorted by height.
+     */
+    public static Sha256Hash writeIndexed(Collection<StoredBlock> blocks, OutputStream out) throws IOException {
+        checkArgument(!blocks.isEmpty());
+        ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        MessageDigest digest = Sha256Hash.newDigest();
+        DataOutputStream hashed = new DataOutputStream(new DigestOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }, digest));
+        List<StoredBlock> byHeight = new ArrayList<StoredBlock>(blocks);
+        Collections.sort(byHeight, new Comparator<StoredBlock>() {
+            @Override
+            public int compare(StoredBlock a, StoredBlock b) {
+                return a.getHeight() < b.getHeight() ? -1 : (a.getHeight() == b.getHeight() ? 0 : 1);
+            }
+        });
+        hashed.writeInt(blocks.size());
+        for (StoredBlock block : byHeight) {
+            buffer.position(0);
+            block.serializeCompact(buffer);
+            hashed.write(buffer.array());
+        }
+        Sha256Hash dataHash = Sha256Hash.wrap(digest.digest());
+
+        List<StoredBlock> byTime = new ArrayList<StoredBlock>(blocks);
+        Collections.sort(byTime, new Comparator<StoredBlock>() {
+            @Override
+            public int compare(StoredBlock a, StoredBlock b) {
+                long ta = a.getHeader().getTimeSeconds(), tb = b.getHeader().getTimeSeconds();
+                return ta < tb ? -1 : (ta == tb ? 0 : 1);
+            }
+        });
+        final List<byte[]> hashes = new ArrayList<byte[]>(byTime.size());
+        List<Integer> positions = new ArrayList<Integer>(byTime.size());
+        for (int i = 0; i < byTime.size(); i++) {
+            hashes.add(byTime.get(i).getHeader().getHash().getBytes());
+            positions.add(i);
+        }
+        Collections.sort(positions, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return compareUnsigned(hashes.get(a), hashes.get(b));
+            }
+        });
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeBytes(INDEXED_MAGIC);
+        data.writeInt(0);  // Number of signatures.
+        data.writeInt(byTime.size());
+        data.write(dataHash.getBytes());
+        for (StoredBlock block : byTime) {
+            data.writeInt((int) block.getHeader().getTimeSeconds());
+            buffer.position(0);
+            block.serializeCompact(buffer);
+            data.write(buffer.array());
+        }
+        for (int position : positions) {
+            data.write(hashes.get(position));
+            data.writeInt(position);
+        }
+        data.flush();
+        return dataHash;
+    }
 }
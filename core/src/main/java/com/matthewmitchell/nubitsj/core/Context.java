@@ -57,6 +57,19 @@ public class Context {
         this.eventHorizon = eventHorizon;
     }
 
+    /**
+     * Creates a new context object with a confidence table of the given size. A bigger table lets confidence be tracked
+     * for more announced but not (yet) downloaded transactions, at the cost of memory.
+     *
+     * @param params The network parameters that will be associated with this context.
+     * @param eventHorizon Number of blocks after which the library will delete data and be unable to always process reorgs (see {@link #getEventHorizon()}.
+     * @param confidenceTableSize Max number of transactions tracked by the {@link TxConfidenceTable}.
+     */
+    public Context(NetworkParameters params, int eventHorizon, int confidenceTableSize) {
+        this(params, eventHorizon);
+        this.confidenceTable = new TxConfidenceTable(confidenceTableSize);
+    }
+
     private static volatile Context lastConstructed;
     private static final ThreadLocal<Context> slot = new ThreadLocal<Context>();
 
@@ -0,0 +1,61 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.core;
+
+import com.matthewmitchell.nubitsj.script.Script;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The "filteradd" message inserts one element into the Bloom filter loaded on the connection, as described in
+ * BIP 37. It lets a client start watching a new key or outpoint without sending its whole filter again.
+ */
+public class FilterAddMessage extends Message {
+    private byte[] data;
+
+    public FilterAddMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    /** Creates a message adding the given element, which is usually a public key, its hash or an outpoint. */
+    public FilterAddMessage(byte[] data) {
+        this.data = data;
+        length = new VarInt(data.length).getSizeInBytes() + data.length;
+    }
+
+    @Override
+    void parse() throws ProtocolException {
+        data = readByteArray();
+        if (data.length > Script.MAX_SCRIPT_ELEMENT_SIZE)
+            throw new ProtocolException("filteradd element is too large: " + data.length + " bytes");
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void parseLite() throws ProtocolException {
+    }
+
+    @Override
+    void nubitsSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(new VarInt(data.length).encode());
+        stream.write(data);
+    }
+
+    /** Returns the element to insert into the filter. */
+    public byte[] getData() {
+        return data;
+    }
+}
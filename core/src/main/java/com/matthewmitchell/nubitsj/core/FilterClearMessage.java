@@ -0,0 +1,31 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.core;
+
+/**
+ * The "filterclear" message removes the Bloom filter loaded on the connection, so that all transactions are relayed
+ * again, as described in BIP 37. It has no fields.
+ */
+public class FilterClearMessage extends EmptyMessage {
+    private static final long serialVersionUID = 2652183815340402316L;
+
+    public FilterClearMessage(NetworkParameters params) {
+        super(params);
+    }
+
+    public FilterClearMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.core;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * <p>A run of block headers as received in a {@link HeadersMessage}, kept in their serialized form with the fields
+ * needed for connecting them parsed out into flat arrays. During headers-only chain sync this lets
+ * {@link AbstractBlockChain#add(HeaderBatch, int, int)} validate and store thousands of headers without creating a
+ * {@link Block} for each of them.</p>
+ *
+ * <p>Each entry is the 80 byte header followed by the empty transaction count and block signature, see
+ * {@link #ENTRY_SIZE}. The hashes of all headers are calculated up front. Once the batch has been connected to a
+ * block with {@link #connect(int, int, StoredBlock)} the height and total chain work of the connected headers are known
+ * as well, so they can be written in the compact {@link StoredBlock} format straight from the batch.</p>
+ *
+ * <p>Instances are immutable and can be passed to other threads.</p>
+ */
+public class HeaderBatch {
+    /** Size of each header in a headers message: the header, a zero transaction count and an empty signature. */
+    public static final int ENTRY_SIZE = Block.HEADER_SIZE + 2;
+
+    private static final BigInteger LARGEST_HASH = BigInteger.ONE.shiftLeft(256);
+    private static final int PREV_HASH_OFFSET = 4;
+    private static final int TIME_OFFSET = 68;
+    private static final int BITS_OFFSET = 72;
+
+    private final NetworkParameters params;
+    private final byte[] payload;
+    private final int offset;
+    private final int size;
+
+    // Hashes of all headers, 32 bytes each in the byte order of Sha256Hash.getBytes().
+    private final byte[] hashes;
+    private final long[] times;
+    private final long[] difficultyTargets;
+
+    // Set in batches returned by connect(), for the range that was connected to the chain.
+    private final int connectedFrom, connectedCount;
+    private final int startHeight;
+    @Nullable private final byte[] chainWork;
+
+    /**
+     * Wraps count headers of ENTRY_SIZE bytes each starting at the given offset into the payload. The payload is not
+     * copied and must not be modified afterwards.
+     */
+    public HeaderBatch(NetworkParameters params, byte[] payload, int offset, int count) throws ProtocolException {
+        this.params = checkNotNull(params);
+        checkArgument(count >= 0 && offset >= 0);
+        if (payload.length < offset + (long) count * ENTRY_SIZE)
+            throw new ProtocolException("Headers message is too short for " + count + " headers");
+        this.payload = payload;
+        this.offset = offset;
+        this.size = count;
+        this.hashes = new byte[count * 32];
+        this.times = new long[count];
+        this.difficultyTargets = new long[count];
+        this.connectedFrom = this.connectedCount = this.startHeight = 0;
+        this.chainWork = null;
+
+        MessageDigest digest = Sha256Hash.newDigest();
+        byte[] firstRound = new byte[32];
+        try {
+            for (int i = 0; i < count; i++) {
+                int entry = offset + i * ENTRY_SIZE;
+                if (payload[entry + Block.HEADER_SIZE] != 0 || payload[entry + Block.HEADER_SIZE + 1] != 0)
+                    throw new ProtocolException("Block header does not end with a null byte");
+                times[i] = Utils.readUint32(payload, entry + TIME_OFFSET);
+                difficultyTargets[i] = Utils.readUint32(payload, entry + BITS_OFFSET);
+                digest.update(payload, entry, Block.HEADER_SIZE);
+                digest.digest(firstRound, 0, 32);
+                digest.update(firstRound);
+                digest.digest(hashes, i * 32, 32);
+                reverse(hashes, i * 32);
+            }
+        } catch (DigestException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    private HeaderBatch(HeaderBatch batch, int connectedFrom, int connectedCount, int startHeight, byte[] chainWork) {
+        this.params = batch.params;
+        this.payload = batch.payload;
+        this.offset = batch.offset;
+        this.size = batch.size;
+        this.hashes = batch.hashes;
+        this.times = batch.times;
+        this.difficultyTargets = batch.difficultyTargets;
+        this.connectedFrom = connectedFrom;
+        this.connectedCount = connectedCount;
+        this.startHeight = startHeight;
+        this.chainWork = chainWork;
+    }
+
+    /** Serializes the given headers into a batch, for headers messages that were constructed rather than received. */
+    public static HeaderBatch of(NetworkParameters params, Iterable<Block> headers) {
+        UnsafeByteArrayOutputStream bos = new UnsafeByteArrayOutputStream();
+        int count = 0;
+        for (Block header : headers) {
+            byte[] bytes = header.cloneAsHeader().nubitsSerialize();
+            bos.write(bytes, 0, Block.HEADER_SIZE);
+            bos.write(0);
+            bos.write(0);
+            count++;
+        }
+        try {
+            return new HeaderBatch(params, bos.toByteArray(), 0, count);
+        } catch (ProtocolException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    private static void reverse(byte[] bytes, int offset) {
+        for (int i = 0, j = 31; i < j; i++, j--) {
+            byte b = bytes[offset + i];
+            bytes[offset + i] = bytes[offset + j];
+            bytes[offset + j] = b;
+        }
+    }
+
+    /** Returns the number of headers in the batch. */
+    public int size() {
+        return size;
+    }
+
+    public Sha256Hash getHash(int i) {
+        checkElementIndex(i, size);
+        return Sha256Hash.wrap(Arrays.copyOfRange(hashes, i * 32, i * 32 + 32));
+    }
+
+    public Sha256Hash getPrevBlockHash(int i) {
+        checkElementIndex(i, size);
+        int start = offset + i * ENTRY_SIZE + PREV_HASH_OFFSET;
+        return Sha256Hash.wrapReversed(Arrays.copyOfRange(payload, start, start + 32));
+    }
+
+    /** Returns true if the header at index i has the given hash. */
+    public boolean hashEquals(int i, Sha256Hash hash) {
+        checkElementIndex(i, size);
+        byte[] bytes = hash.getBytes();
+        for (int j = 0; j < 32; j++)
+            if (hashes[i * 32 + j] != bytes[j])
+                return false;
+        return true;
+    }
+
+    /** Returns true if the header at index i builds on the block with the given hash. */
+    public boolean prevHashEquals(int i, Sha256Hash hash) {
+        checkElementIndex(i, size);
+        byte[] bytes = hash.getBytes();
+        int start = offset + i * ENTRY_SIZE + PREV_HASH_OFFSET;
+        // The header holds the hash in reversed byte order.
+        for (int j = 0; j < 32; j++)
+            if (payload[start + j] != bytes[31 - j])
+                return false;
+        return true;
+    }
+
+    /**
+     * Returns the index of the first header in [from, from + count) that doesn't build on the header before it, or
+     * from + count if they all link up.
+     */
+    public int findLinkBreak(int from, int count) {
+        checkPositionIndexes(from, from + count, size);
+        for (int i = from + 1; i < from + count; i++) {
+            int prev = offset + i * ENTRY_SIZE + PREV_HASH_OFFSET;
+            int hash = (i - 1) * 32;
+            for (int j = 0; j < 32; j++) {
+                if (payload[prev + j] != hashes[hash + 31 - j])
+                    return i;
+            }
+        }
+        return from + count;
+    }
+
+    /** Returns the header's time field, see {@link Block#getTimeSeconds()}. */
+    public long getTimeSeconds(int i) {
+        return times[i];
+    }
+
+    /** Returns the header's difficulty target in compact form, see {@link Block#getDifficultyTarget()}. */
+    public long getDifficultyTarget(int i) {
+        return difficultyTargets[i];
+    }
+
+    /**
+     * Returns a copy of this batch recording that headers [from, from + count) follow on from prev, with their heights
+     * and total chain work calculated. The headers must already have been checked to link up with each other and with
+     * prev.
+     */
+    public HeaderBatch connect(int from, int count, StoredBlock prev) throws VerificationException {
+        checkPositionIndexes(from, from + count, size);
+        byte[] work = new byte[count * StoredBlock.CHAIN_WORK_BYTES];
+        BigInteger total = prev.getChainWork();
+        // Targets only change every so often, so cache the work of the last one seen.
+        long lastTarget = -1;
+        BigInteger lastWork = null;
+        for (int i = 0; i < count; i++) {
+            long target = difficultyTargets[from + i];
+            if (target != lastTarget) {
+                BigInteger decoded = Utils.decodeCompactBits(target);
+                if (decoded.signum() <= 0)
+                    throw new VerificationException("Difficulty target is bad: " + decoded.toString());
+                lastWork = LARGEST_HASH.divide(decoded.add(BigInteger.ONE));
+                lastTarget = target;
+            }
+            total = total.add(lastWork);
+            byte[] totalBytes = total.toByteArray();
+            checkState(totalBytes.length <= StoredBlock.CHAIN_WORK_BYTES, "Ran out of space to store chain work!");
+            System.arraycopy(totalBytes, 0, work, (i + 1) * StoredBlock.CHAIN_WORK_BYTES - totalBytes.length,
+                    totalBytes.length);
+        }
+        return new HeaderBatch(this, from, count, prev.getHeight() + 1, work);
+    }
+
+    private int checkConnected(int i) {
+        checkState(chainWork != null, "Batch is not connected");
+        checkElementIndex(i - connectedFrom, connectedCount);
+        return i - connectedFrom;
+    }
+
+    /** Returns the height of a header in the connected range. */
+    public int getHeight(int i) {
+        return startHeight + checkConnected(i);
+    }
+
+    /** Returns the total chain work up to and including a header in the connected range. */
+    public BigInteger getChainWork(int i) {
+        int index = checkConnected(i);
+        return new BigInteger(1, Arrays.copyOfRange(chainWork, index * StoredBlock.CHAIN_WORK_BYTES,
+                (index + 1) * StoredBlock.CHAIN_WORK_BYTES));
+    }
+
+    /** Writes the 32 byte hash of the header, as {@link Sha256Hash#getBytes()} would return it. */
+    public void writeHash(int i, ByteBuffer buffer) {
+        checkElementIndex(i, size);
+        buffer.put(hashes, i * 32, 32);
+    }
+
+    /**
+     * Writes a header in the connected range in the same format as {@link StoredBlock#serializeCompact(ByteBuffer)},
+     * so block stores can save it without a StoredBlock.
+     */
+    public void serializeCompact(int i, ByteBuffer buffer) {
+        int index = checkConnected(i);
+        buffer.put(chainWork, index * StoredBlock.CHAIN_WORK_BYTES, StoredBlock.CHAIN_WORK_BYTES);
+        buffer.putInt(startHeight + index);
+        buffer.put(payload, offset + i * ENTRY_SIZE, Block.HEADER_SIZE);
+    }
+
+    /** Copies the 80 byte header at index i into the given array. */
+    public void copyHeader(int i, byte[] dest, int destOffset) {
+        checkElementIndex(i, size);
+        System.arraycopy(payload, offset + i * ENTRY_SIZE, dest, destOffset, Block.HEADER_SIZE);
+    }
+
+    /** Writes the headers as they appear in a headers message, without the leading count. */
+    public void writeEntries(OutputStream stream) throws IOException {
+        stream.write(payload, offset, size * ENTRY_SIZE);
+    }
+
+    /** Creates a {@link Block} for the header at index i. */
+    public Block toBlock(int i) {
+        checkElementIndex(i, size);
+        int entry = offset + i * ENTRY_SIZE;
+        try {
+            return new Block(params, Arrays.copyOfRange(payload, entry, entry + ENTRY_SIZE), true, true, ENTRY_SIZE);
+        } catch (ProtocolException e) {
+            throw new RuntimeException(e);  // Cannot happen, the header was already parsed.
+        }
+    }
+
+    /** Creates a {@link StoredBlock} for a header in the connected range. */
+    public StoredBlock toStoredBlock(int i) {
+        return new StoredBlock(toBlock(i), getChainWork(i), getHeight(i));
+    }
+}
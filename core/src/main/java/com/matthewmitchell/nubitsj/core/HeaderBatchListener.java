@@ -0,0 +1,30 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.core;
+
+/**
+ * Can be implemented by a {@link BlockChainListener} to be told about headers that were added to the top of the best
+ * chain in one go by {@link AbstractBlockChain#add(HeaderBatch, int, int)}. Listeners that don't implement it get a
+ * {@link BlockChainListener#notifyNewBestBlock(StoredBlock)} call for every header instead, which means creating a
+ * {@link Block} for each of them.
+ */
+public interface HeaderBatchListener {
+    /**
+     * Called instead of {@link BlockChainListener#notifyNewBestBlock(StoredBlock)} when headers [from, from + count)
+     * of the batch became the new top of the best chain. The batch is connected, so the heights and chain work of
+     * those headers can be read from it. newHead is the last of the headers.
+     */
+    void notifyNewBestHeaders(HeaderBatch batch, int from, int count, StoredBlock newHead) throws VerificationException;
+}
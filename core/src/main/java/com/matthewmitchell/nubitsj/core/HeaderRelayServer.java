@@ -0,0 +1,685 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.core;
+
+import com.matthewmitchell.nubitsj.net.NioServer;
+import com.matthewmitchell.nubitsj.net.StreamParser;
+import com.matthewmitchell.nubitsj.net.StreamParserFactory;
+import com.matthewmitchell.nubitsj.store.BlockStore;
+import com.matthewmitchell.nubitsj.store.BlockStoreException;
+import com.matthewmitchell.nubitsj.utils.ContextPropagatingThreadFactory;
+import com.matthewmitchell.nubitsj.utils.Threading;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Serves headers, filtered blocks and memory pool transactions to other SPV clients, so that one well connected
+ * node can sync from the network once and feed many local clients. It answers getheaders, getblocks, getdata for
+ * blocks, filtered blocks and transactions, and mempool, using the given chain's {@link BlockStore} (for instance an
+ * {@link com.matthewmitchell.nubitsj.store.SPVBlockStore} or a
+ * {@link com.matthewmitchell.nubitsj.store.LevelDBBlockStore}). New best blocks are announced to every client.</p>
+ *
+ * <p>The main chain is indexed by height in memory with every header kept pre-serialized in the form used by headers
+ * messages, so replies are assembled straight into the outgoing packet. Complete batches of headers are cached as
+ * finished packets and the same array is written to every client asking for that range. Clients can only be served
+ * headers the block store still has, so an SPVBlockStore limits how far back they can start.</p>
+ *
+ * <p>Full blocks are needed to answer filtered block requests. Blocks downloaded in full by the upstream
+ * {@link PeerGroup} are cached, and on a miss the block is fetched once from an upstream peer and shared by all
+ * clients asking for it. Without an upstream group, blocks must be given to {@link #addBlock(Block)}. Transactions
+ * announced upstream are kept too, and offered to clients in response to mempool according to their bloom
+ * filters. Filters are set with filterload and filteradd and removed with filterclear, as in BIP 37.</p>
+ */
+public class HeaderRelayServer extends AbstractIdleService {
+    private static final Logger log = LoggerFactory.getLogger(HeaderRelayServer.class);
+
+    /** The most block hashes announced in reply to a getblocks, as with the reference client. */
+    public static final int MAX_BLOCKS_PER_INV = 500;
+    /** How many full blocks are kept to answer (filtered) block requests. */
+    public static final int BLOCK_CACHE_SIZE = 50;
+    /** How many transactions are kept to answer mempool and transaction requests. */
+    public static final int TX_CACHE_SIZE = 5000;
+    // Each header is followed by two zero bytes in a headers message, see HeadersMessage.
+    private static final int HEADER_ENTRY_SIZE = Block.HEADER_SIZE + 2;
+    private static final int HEADERS_PACKET_CACHE_SIZE = 64;
+    private static final long UPSTREAM_TIMEOUT_SECS = 30;
+
+    private final NetworkParameters params;
+    private final AbstractBlockChain chain;
+    @Nullable private final PeerGroup upstream;
+    private final NubitsSerializer serializer;
+    private final NioServer server;
+    // Messages from clients are handled here rather than on the network thread, in order for each client.
+    private final ExecutorService executor;
+    private final CopyOnWriteArrayList<Connection> connections = new CopyOnWriteArrayList<Connection>();
+    private final byte[] emptyHeadersPacket;
+
+    private final ReentrantLock lock = Threading.lock("headerrelay");
+    // The main chain from baseHeight to the tip: hashes by height, heights by hash and the serialized headers.
+    @GuardedBy("lock") private int baseHeight;
+    @GuardedBy("lock") private final ArrayList<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+    @GuardedBy("lock") private final HashMap<Sha256Hash, Integer> heights = new HashMap<Sha256Hash, Integer>();
+    @GuardedBy("lock") private byte[] headerBytes = new byte[HEADER_ENTRY_SIZE * 1024];
+    // Bumped whenever headers are removed from the index, so packets built from older data aren't cached.
+    @GuardedBy("lock") private int reorgGeneration;
+    // Finished headers packets for full batches, keyed by the height of their first header.
+    @GuardedBy("lock") private final LinkedHashMap<Integer, byte[]> headersPacketCache = lruMap(HEADERS_PACKET_CACHE_SIZE);
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, Block> blockCache = lruMap(BLOCK_CACHE_SIZE);
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, Transaction> txCache = lruMap(TX_CACHE_SIZE);
+    @GuardedBy("lock") private final HashMap<Sha256Hash, SettableFuture<Block>> blockFetches = new HashMap<Sha256Hash, SettableFuture<Block>>();
+
+    private class ChainListener extends AbstractBlockChainListener implements HeaderBatchListener {
+        @Override
+        public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
+            syncTo(block);
+        }
+
+        @Override
+        public void notifyNewBestHeaders(HeaderBatch batch, int from, int count, StoredBlock newHead) {
+            syncTo(batch, from, count, newHead);
+        }
+
+        @Override
+        public void reorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks) throws VerificationException {
+            // The new head is first, and the chain head hasn't been updated yet when this is called.
+            syncTo(newBlocks.get(0));
+        }
+    }
+    private final ChainListener chainListener = new ChainListener();
+
+    private final AbstractPeerEventListener upstreamListener = new AbstractPeerEventListener() {
+        @Override
+        public void onBlocksDownloaded(Peer peer, Block block, @Nullable FilteredBlock filteredBlock, int blocksLeft) {
+            // Filtered blocks only carry our own transactions, which is no use to clients with other filters.
+            if (filteredBlock == null && block.getTransactions() != null)
+                addBlock(block);
+        }
+
+        @Override
+        public void onTransaction(Peer peer, Transaction t) {
+            addTransaction(t);
+        }
+    };
+
+    private static <K, V> LinkedHashMap<K, V> lruMap(final int maxSize) {
+        return new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Creates a server listening on the given address. Call {@link #startAsync()} to index the chain and begin
+     * accepting clients.
+     *
+     * @param chain the chain to serve, which should be kept in sync by a {@link PeerGroup}
+     * @param upstream the group blocks and transactions are taken from, or null to only use what is given to
+     *                 {@link #addBlock(Block)} and {@link #addTransaction(Transaction)}
+     * @throws IOException if the server socket could not be bound
+     */
+    public HeaderRelayServer(NetworkParameters params, AbstractBlockChain chain, @Nullable PeerGroup upstream,
+                             InetSocketAddress bindAddress) throws IOException {
+        this.params = checkNotNull(params);
+        this.chain = checkNotNull(chain);
+        this.upstream = upstream;
+        this.serializer = new NubitsSerializer(params);
+        this.executor = Executors.newCachedThreadPool(new ContextPropagatingThreadFactory("Header relay"));
+        this.emptyHeadersPacket = new byte[NubitsSerializer.PACKET_HEADER_LENGTH + 1];
+        serializer.serializeHeaderInPlace("headers", emptyHeadersPacket);
+        final Context context = Context.get();
+        this.server = new NioServer(new StreamParserFactory() {
+            @Nullable
+            @Override
+            public StreamParser getNewParser(InetAddress inetAddress, int port) {
+                // Called on the server thread, which wasn't started with a context.
+                Context.propagate(context);
+                return new Connection(new InetSocketAddress(inetAddress, port));
+            }
+        }, bindAddress);
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+        // Listen first so no block is missed, syncTo copes with being called before the index was built.
+        chain.addListener(chainListener, Threading.SAME_THREAD);
+        if (upstream != null)
+            upstream.addEventListener(upstreamListener, Threading.SAME_THREAD);
+        syncTo(chain.getChainHead());
+        server.startAsync().awaitRunning();
+        lock.lock();
+        try {
+            log.info("Serving {} headers from height {}", hashes.size(), baseHeight);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+        chain.removeListener(chainListener);
+        if (upstream != null)
+            upstream.removeEventListener(upstreamListener);
+        server.stopAsync().awaitTerminated();
+        executor.shutdownNow();
+    }
+
+    /** Adds a full block that can be served to clients, filtered by their bloom filters. */
+    public void addBlock(Block block) {
+        checkNotNull(block.getTransactions());
+        lock.lock();
+        try {
+            blockCache.put(block.getHash(), block);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Adds a transaction that can be served to clients, and announces it to those whose filter matches it. */
+    public void addTransaction(Transaction tx) {
+        lock.lock();
+        try {
+            if (txCache.put(tx.getHash(), tx) != null)
+                return;
+        } finally {
+            lock.unlock();
+        }
+        byte[] packet = null;
+        for (Connection connection : connections) {
+            if (!connection.vHandshakeDone || !connection.isRelevant(tx))
+                continue;
+            if (packet == null)
+                packet = packetFor(InventoryMessage.with(tx));
+            connection.sendPacket(packet);
+        }
+    }
+
+    /** Returns the number of connected clients. */
+    public int numConnections() {
+        return connections.size();
+    }
+
+    /** Returns the height of the best block that can be served, or -1 if nothing has been indexed yet. */
+    public int getBestHeight() {
+        lock.lock();
+        try {
+            return baseHeight + hashes.size() - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Brings the index in line with a new chain head, reading back from the store until the head connects to what's
+    // indexed. Re-orgs are handled by truncating the index at the fork point.
+    private void syncTo(StoredBlock head) {
+        Sha256Hash announce = null;
+        lock.lock();
+        try {
+            if (!hashes.isEmpty() && head.getHeader().getPrevBlockHash().equals(hashes.get(hashes.size() - 1))) {
+                // The common case of a block building on our tip, no need to go to the store.
+                appendLocked(head.getHeader());
+            } else {
+                BlockStore store = chain.getBlockStore();
+                List<Block> newHeaders = new ArrayList<Block>();
+                StoredBlock cursor = head;
+                while (cursor != null && !isIndexedLocked(cursor)) {
+                    newHeaders.add(cursor.getHeader());
+                    cursor = cursor.getPrev(store);
+                }
+                if (newHeaders.isEmpty())
+                    return;
+                Collections.reverse(newHeaders);
+                if (cursor == null) {
+                    // Didn't connect, either this is the first sync or the re-org went beyond what the store holds.
+                    truncateLocked(0);
+                    baseHeight = head.getHeight() - newHeaders.size() + 1;
+                } else {
+                    truncateLocked(cursor.getHeight() + 1);
+                }
+                for (Block header : newHeaders)
+                    appendLocked(header);
+            }
+            announce = head.getHeader().getHash();
+        } catch (BlockStoreException e) {
+            log.error("Failed to read the block store, clients may be served a stale chain", e);
+        } finally {
+            lock.unlock();
+        }
+        if (announce != null)
+            announceBlock(announce);
+    }
+
+    // Headers [from, from + count) of the batch were added on top of the chain during headers-only sync.
+    private void syncTo(HeaderBatch batch, int from, int count, StoredBlock newHead) {
+        boolean onTip;
+        lock.lock();
+        try {
+            onTip = !hashes.isEmpty() && batch.prevHashEquals(from, hashes.get(hashes.size() - 1));
+            if (onTip) {
+                for (int i = from; i < from + count; i++) {
+                    int offset = appendEntryLocked(batch.getHash(i));
+                    batch.copyHeader(i, headerBytes, offset);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (onTip) {
+            announceBlock(newHead.getHeader().getHash());
+        } else {
+            // Not on top of our tip, so catch up through the store. Done after unlocking, as that announces the block
+            // to clients, which mustn't happen with the lock held.
+            syncTo(newHead);
+        }
+    }
+
+    private void announceBlock(Sha256Hash hash) {
+        if (!isRunning())
+            return;
+        InventoryMessage inv = new InventoryMessage(params);
+        inv.addItem(new InventoryItem(InventoryItem.Type.Block, hash));
+        byte[] packet = packetFor(inv);
+        for (Connection connection : connections)
+            if (connection.vHandshakeDone)
+                connection.sendPacket(packet);
+    }
+
+    @GuardedBy("lock")
+    private boolean isIndexedLocked(StoredBlock block) {
+        Integer height = heights.get(block.getHeader().getHash());
+        return height != null && height == block.getHeight();
+    }
+
+    @GuardedBy("lock")
+    private void appendLocked(Block header) {
+        byte[] bytes = header.cloneAsHeader().nubitsSerialize();
+        checkState(bytes.length >= Block.HEADER_SIZE);
+        int offset = appendEntryLocked(header.getHash());
+        System.arraycopy(bytes, 0, headerBytes, offset, Block.HEADER_SIZE);
+    }
+
+    // Adds an entry for the given hash and returns the offset in headerBytes its header must be copied to.
+    @GuardedBy("lock")
+    private int appendEntryLocked(Sha256Hash hash) {
+        int index = hashes.size();
+        if ((index + 1) * HEADER_ENTRY_SIZE > headerBytes.length)
+            headerBytes = Arrays.copyOf(headerBytes, headerBytes.length * 2);
+        // The two trailing bytes of each entry are always zero.
+        Arrays.fill(headerBytes, index * HEADER_ENTRY_SIZE + Block.HEADER_SIZE, (index + 1) * HEADER_ENTRY_SIZE, (byte) 0);
+        hashes.add(hash);
+        heights.put(hash, baseHeight + index);
+        return index * HEADER_ENTRY_SIZE;
+    }
+
+    @GuardedBy("lock")
+    private void truncateLocked(int height) {
+        int from = Math.max(0, height - baseHeight);
+        if (from >= hashes.size())
+            return;
+        List<Sha256Hash> removed = hashes.subList(from, hashes.size());
+        for (Sha256Hash hash : removed)
+            heights.remove(hash);
+        removed.clear();
+        reorgGeneration++;
+        Iterator<Integer> it = headersPacketCache.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next() + HeadersMessage.MAX_HEADERS > height)
+                it.remove();
+        }
+    }
+
+    @GuardedBy("lock")
+    private int findStartLocked(List<Sha256Hash> locator) {
+        for (Sha256Hash hash : locator) {
+            Integer height = heights.get(hash);
+            if (height != null)
+                return height + 1;
+        }
+        return -1;
+    }
+
+    // Returns how many blocks from start to send, stopping at stopHash or after max blocks.
+    @GuardedBy("lock")
+    private int countFromLocked(int start, Sha256Hash stopHash, int max) {
+        int count = Math.min(max, baseHeight + hashes.size() - start);
+        Integer stopHeight = heights.get(stopHash);
+        if (stopHeight != null && stopHeight >= start)
+            count = Math.min(count, stopHeight - start + 1);
+        return count;
+    }
+
+    /** Returns the complete headers packet answering a getheaders with the given locator and stop hash. */
+    @VisibleForTesting
+    byte[] getHeadersPacket(List<Sha256Hash> locator, Sha256Hash stopHash) {
+        byte[] packet;
+        int start, count, generation;
+        lock.lock();
+        try {
+            start = findStartLocked(locator);
+            if (start < 0)
+                return emptyHeadersPacket;
+            count = countFromLocked(start, stopHash, HeadersMessage.MAX_HEADERS);
+            if (count <= 0)
+                return emptyHeadersPacket;
+            if (count == HeadersMessage.MAX_HEADERS) {
+                packet = headersPacketCache.get(start);
+                if (packet != null)
+                    return packet;
+            }
+            byte[] countBytes = new VarInt(count).encode();
+            int offset = NubitsSerializer.PACKET_HEADER_LENGTH;
+            packet = new byte[offset + countBytes.length + count * HEADER_ENTRY_SIZE];
+            System.arraycopy(countBytes, 0, packet, offset, countBytes.length);
+            System.arraycopy(headerBytes, (start - baseHeight) * HEADER_ENTRY_SIZE, packet, offset + countBytes.length,
+                    count * HEADER_ENTRY_SIZE);
+            generation = reorgGeneration;
+        } finally {
+            lock.unlock();
+        }
+        // Hash the payload for the checksum without holding the lock.
+        serializer.serializeHeaderInPlace("headers", packet);
+        if (count == HeadersMessage.MAX_HEADERS) {
+            lock.lock();
+            try {
+                if (generation == reorgGeneration)
+                    headersPacketCache.put(start, packet);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return packet;
+    }
+
+    /** Returns the inv answering a getblocks with the given locator and stop hash, which may be empty. */
+    @VisibleForTesting
+    InventoryMessage getBlocksInv(List<Sha256Hash> locator, Sha256Hash stopHash) {
+        InventoryMessage inv = new InventoryMessage(params);
+        lock.lock();
+        try {
+            int start = findStartLocked(locator);
+            if (start < 0)
+                return inv;
+            int count = countFromLocked(start, stopHash, MAX_BLOCKS_PER_INV);
+            for (int i = 0; i < count; i++)
+                inv.addItem(new InventoryItem(InventoryItem.Type.Block, hashes.get(start - baseHeight + i)));
+        } finally {
+            lock.unlock();
+        }
+        return inv;
+    }
+
+    @Nullable
+    private Transaction getTransaction(Sha256Hash hash) {
+        lock.lock();
+        try {
+            return txCache.get(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<Transaction> getTransactions() {
+        lock.lock();
+        try {
+            return new ArrayList<Transaction>(txCache.values());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns the full block from the cache, or fetches it from upstream once no matter how many clients ask for it.
+    @Nullable
+    private Block getBlock(final Sha256Hash hash) {
+        SettableFuture<Block> future;
+        boolean fetch = false;
+        lock.lock();
+        try {
+            Block block = blockCache.get(hash);
+            if (block != null)
+                return block;
+            if (upstream == null)
+                return null;
+            future = blockFetches.get(hash);
+            if (future == null) {
+                future = SettableFuture.create();
+                blockFetches.put(hash, future);
+                fetch = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (fetch)
+            fetchFromUpstream(hash, future);
+        try {
+            return future.get(UPSTREAM_TIMEOUT_SECS, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            log.info("Could not get block {} from upstream: {}", hash, e.toString());
+            return null;
+        }
+    }
+
+    private void fetchFromUpstream(final Sha256Hash hash, final SettableFuture<Block> result) {
+        checkNotNull(upstream);
+        Peer peer = upstream.getDownloadPeer();
+        if (peer == null) {
+            List<Peer> peers = upstream.getConnectedPeers();
+            peer = peers.isEmpty() ? null : peers.get(0);
+        }
+        if (peer == null) {
+            finishFetch(hash, result, null, new IllegalStateException("No upstream peers"));
+            return;
+        }
+        Futures.addCallback(peer.getBlock(hash), new FutureCallback<Block>() {
+            @Override
+            public void onSuccess(Block block) {
+                addBlock(block);
+                finishFetch(hash, result, block, null);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                finishFetch(hash, result, null, t);
+            }
+        });
+    }
+
+    private void finishFetch(Sha256Hash hash, SettableFuture<Block> result, @Nullable Block block, @Nullable Throwable t) {
+        lock.lock();
+        try {
+            if (blockFetches.get(hash) == result)
+                blockFetches.remove(hash);
+        } finally {
+            lock.unlock();
+        }
+        if (t != null)
+            result.setException(t);
+        else
+            result.set(block);
+    }
+
+    private byte[] packetFor(Message message) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            serializer.serialize(message, out);
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        return out.toByteArray();
+    }
+
+    private class Connection extends PeerSocketHandler {
+        private volatile boolean vHandshakeDone;
+        @Nullable private volatile BloomFilter vFilter;
+        // Messages waiting to be handled, and whether a thread is currently working through them.
+        @GuardedBy("this") private final LinkedList<Message> queue = new LinkedList<Message>();
+        @GuardedBy("this") private boolean draining;
+
+        Connection(InetSocketAddress address) {
+            super(params, address);
+        }
+
+        @Override
+        public void connectionOpened() {
+            connections.add(this);
+            log.info("{}: Client connected", getAddress());
+        }
+
+        @Override
+        public void connectionClosed() {
+            connections.remove(this);
+            log.info("{}: Client disconnected", getAddress());
+        }
+
+        @Override
+        protected void processMessage(Message m) throws Exception {
+            synchronized (this) {
+                queue.add(m);
+                if (draining)
+                    return;
+                draining = true;
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        }
+
+        // Handles queued messages in order. Requests may block whilst a block is fetched from upstream, which only
+        // holds up this client.
+        private void drain() {
+            while (true) {
+                Message m;
+                synchronized (this) {
+                    m = queue.poll();
+                    if (m == null) {
+                        draining = false;
+                        return;
+                    }
+                }
+                try {
+                    handle(m);
+                } catch (Exception e) {
+                    log.warn("{}: Error handling {}, closing connection", getAddress(), m.getClass().getSimpleName(), e);
+                    close();
+                }
+            }
+        }
+
+        private void handle(Message m) {
+            if (m instanceof VersionMessage) {
+                VersionMessage ver = new VersionMessage(params, getBestHeight());
+                ver.localServices = VersionMessage.NODE_NETWORK;
+                sendMessage(ver);
+                sendMessage(new VersionAck());
+                vHandshakeDone = true;
+            } else if (m instanceof Ping) {
+                if (((Ping) m).hasNonce())
+                    sendMessage(new Pong(((Ping) m).getNonce()));
+            } else if (m instanceof BloomFilter) {
+                vFilter = (BloomFilter) m;
+            } else if (m instanceof FilterAddMessage) {
+                BloomFilter filter = vFilter;
+                if (filter == null) {
+                    // Like the reference client, which treats this as misbehaviour.
+                    log.warn("{}: Got filteradd without a filter loaded, closing connection", getAddress());
+                    close();
+                    return;
+                }
+                filter.insert(((FilterAddMessage) m).getData());
+            } else if (m instanceof FilterClearMessage) {
+                vFilter = null;
+            } else if (m instanceof GetHeadersMessage) {
+                GetHeadersMessage getheaders = (GetHeadersMessage) m;
+                sendPacket(getHeadersPacket(getheaders.getLocator(), getheaders.getStopHash()));
+            } else if (m instanceof GetBlocksMessage) {
+                GetBlocksMessage getblocks = (GetBlocksMessage) m;
+                InventoryMessage inv = getBlocksInv(getblocks.getLocator(), getblocks.getStopHash());
+                if (!inv.getItems().isEmpty())
+                    sendMessage(inv);
+            } else if (m instanceof GetDataMessage) {
+                processGetData((GetDataMessage) m);
+            } else if (m instanceof MemoryPoolMessage) {
+                InventoryMessage inv = new InventoryMessage(params);
+                for (Transaction tx : getTransactions())
+                    if (isRelevant(tx))
+                        inv.addTransaction(tx);
+                if (!inv.getItems().isEmpty())
+                    sendMessage(inv);
+            } else {
+                log.debug("{}: Ignoring {}", getAddress(), m.getClass().getSimpleName());
+            }
+        }
+
+        private void processGetData(GetDataMessage getdata) {
+            List<InventoryItem> notFound = new ArrayList<InventoryItem>();
+            for (InventoryItem item : getdata.getItems()) {
+                if (item.type == InventoryItem.Type.Transaction) {
+                    Transaction tx = getTransaction(item.hash);
+                    if (tx != null)
+                        sendMessage(tx);
+                    else
+                        notFound.add(item);
+                } else if (item.type == InventoryItem.Type.Block || item.type == InventoryItem.Type.FilteredBlock) {
+                    Block block = getBlock(item.hash);
+                    if (block == null) {
+                        notFound.add(item);
+                    } else if (item.type == InventoryItem.Type.Block) {
+                        sendMessage(block);
+                    } else {
+                        // Like the reference client, filtered blocks are only sent once a filter was loaded.
+                        BloomFilter filter = vFilter;
+                        if (filter == null)
+                            continue;
+                        FilteredBlock filteredBlock = filter.applyAndUpdate(block);
+                        sendMessage(filteredBlock);
+                        for (Transaction tx : filteredBlock.getAssociatedTransactions().values())
+                            sendMessage(tx);
+                    }
+                }
+            }
+            if (!notFound.isEmpty())
+                sendMessage(new NotFoundMessage(params, notFound));
+        }
+
+        boolean isRelevant(Transaction tx) {
+            BloomFilter filter = vFilter;
+            return filter == null || filter.applyAndUpdate(tx);
+        }
+    }
+}
@@ -36,6 +36,8 @@ public class HeadersMessage extends Message {
     // The main client will never send us more than this number of headers.
     public static final int MAX_HEADERS = 2000;
 
+    // Received messages only keep the raw headers, Block objects are created on demand by getBlockHeaders().
+    private HeaderBatch headerBatch;
     private List<Block> blockHeaders;
 
     public HeadersMessage(NetworkParameters params, byte[] payload) throws ProtocolException {
@@ -53,6 +55,11 @@ public class HeadersMessage extends Message {
     }
     @Override
     public void nubitsSerializeToStream(OutputStream stream) throws IOException {
+        if (blockHeaders == null) {
+            stream.write(new VarInt(headerBatch.size()).encode());
+            headerBatch.writeEntries(stream);
+            return;
+        }
         stream.write(new VarInt(blockHeaders.size()).encode());
         for (Block header : blockHeaders) {
             header.cloneAsHeader().nubitsSerializeToStream(stream);
@@ -81,27 +88,36 @@ public class HeadersMessage extends Message {
             throw new ProtocolException("Too many headers: got " + numHeaders + " which is larger than " +
                                          MAX_HEADERS);
 
-        blockHeaders = new ArrayList<Block>();
-
-        for (int i = 0; i < numHeaders; ++i) {
-            // Read 80 bytes of the header and one more byte for the transaction list, which is always a 00 because the
-            // transaction list is empty.
-            byte[] blockHeader = readBytes(82);
-            if (blockHeader[80] != 0 || blockHeader[81] != 0)
-                throw new ProtocolException("Block header does not end with a null byte");
-            Block newBlockHeader = new Block(this.params, blockHeader, true, true, 82);
-            blockHeaders.add(newBlockHeader);
-        }
+        // Each header has 80 bytes, one more byte for the transaction count and one for the block signature, which
+        // are always 00 because there are no transactions and the signature is left out. The headers are only
+        // hashed and indexed here, see HeaderBatch.
+        headerBatch = new HeaderBatch(params, payload, cursor, (int) numHeaders);
+        cursor += (int) numHeaders * HeaderBatch.ENTRY_SIZE;
 
         if (log.isDebugEnabled()) {
             for (int i = 0; i < numHeaders; ++i) {
-                log.debug(this.blockHeaders.get(i).toString());
+                log.debug("header {}", headerBatch.getHash(i));
             }
         }
     }
 
+    /**
+     * Returns the headers as a flat {@link HeaderBatch}, which can be added to the chain without creating a
+     * {@link Block} for each header.
+     */
+    public HeaderBatch getHeaderBatch() {
+        if (headerBatch == null)
+            headerBatch = HeaderBatch.of(params, blockHeaders);
+        return headerBatch;
+    }
 
     public List<Block> getBlockHeaders() {
+        if (blockHeaders == null) {
+            List<Block> headers = new ArrayList<Block>(headerBatch.size());
+            for (int i = 0; i < headerBatch.size(); i++)
+                headers.add(headerBatch.toBlock(i));
+            blockHeaders = headers;
+        }
         return blockHeaders;
     }
 }
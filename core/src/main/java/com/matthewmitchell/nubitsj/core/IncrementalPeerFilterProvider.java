@@ -0,0 +1,49 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.matthewmitchell.nubitsj.core;
+
+import java.util.List;
+
+/**
+ * A {@link PeerFilterProvider} that reports changes to the set of elements it wants matched as they happen, so that an
+ * existing filter can be extended in place instead of being rebuilt from scratch. Used by
+ * {@link com.matthewmitchell.nubitsj.net.FilterMerger}, which falls back to full recalculations for providers that
+ * don't implement it.
+ */
+public interface IncrementalPeerFilterProvider extends PeerFilterProvider {
+    /**
+     * Registers a listener that must be told about every data element added to this provider. The listener may be
+     * invoked from any thread, including whilst the provider holds its own locks, so implementations of it must not
+     * block. Elements the provider had before the listener was added are not reported, so whoever adds it must start
+     * from a full filter.
+     */
+    void addBloomFilterDeltaListener(DeltaListener listener);
+
+    /** Removes a listener previously added with {@link #addBloomFilterDeltaListener(DeltaListener)}. */
+    boolean removeBloomFilterDeltaListener(DeltaListener listener);
+
+    /** Receives changes to the set of elements an {@link IncrementalPeerFilterProvider} wants matched. */
+    interface DeltaListener {
+        /** Called with raw data elements (pubkeys, hashes, serialized outpoints, ...) that the filter must now match. */
+        void onBloomFilterElementsAdded(List<byte[]> elements);
+
+        /**
+         * Called when the change can't be expressed as a list of additions, for instance because elements were
+         * removed or a whole key chain was added, and the filter must be recalculated in full.
+         */
+        void onBloomFilterRebuildRequired();
+    }
+}
@@ -45,6 +45,8 @@ import static com.matthewmitchell.nubitsj.core.Utils.*;
 public class NubitsSerializer {
     private static final Logger log = LoggerFactory.getLogger(NubitsSerializer.class);
     private static final int COMMAND_LEN = 12;
+    /** The number of bytes preceding the payload of a message on the wire: magic bytes, command, length, checksum. */
+    public static final int PACKET_HEADER_LENGTH = 4 + COMMAND_LEN + 4 + 4;
 
     private NetworkParameters params;
     private boolean parseLazy = false;
@@ -67,6 +69,8 @@ public class NubitsSerializer {
         names.put(GetAddrMessage.class, "getaddr");
         names.put(HeadersMessage.class, "headers");
         names.put(BloomFilter.class, "filterload");
+        names.put(FilterAddMessage.class, "filteradd");
+        names.put(FilterClearMessage.class, "filterclear");
         names.put(FilteredBlock.class, "merkleblock");
         names.put(NotFoundMessage.class, "notfound");
         names.put(MemoryPoolMessage.class, "mempool");
@@ -98,7 +102,24 @@ public class NubitsSerializer {
      * Writes message to to the output stream.
      */
     public void serialize(String name, byte[] message, OutputStream out) throws IOException {
-        byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */];
+        byte[] header = new byte[PACKET_HEADER_LENGTH];
+        writePacketHeader(name, message, 0, message.length, header);
+        out.write(header);
+        out.write(message);
+
+        if (log.isDebugEnabled())
+            log.debug("Sending {} message: {}", name, HEX.encode(header) + HEX.encode(message));
+    }
+
+    /**
+     * Writes the magic bytes and header for a payload that was already placed at {@link #PACKET_HEADER_LENGTH} in
+     * the given array, so that the whole packet can be handed to the network without copying the payload again.
+     */
+    public void serializeHeaderInPlace(String name, byte[] packet) {
+        writePacketHeader(name, packet, PACKET_HEADER_LENGTH, packet.length - PACKET_HEADER_LENGTH, packet);
+    }
+
+    private void writePacketHeader(String name, byte[] payload, int offset, int length, byte[] header) {
         uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
 
         // The header array is initialized to zero by Java so we don't have to worry about
@@ -107,15 +128,10 @@ public class NubitsSerializer {
             header[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
         }
 
-        Utils.uint32ToByteArrayLE(message.length, header, 4 + COMMAND_LEN);
+        Utils.uint32ToByteArrayLE(length, header, 4 + COMMAND_LEN);
 
-        byte[] hash = Sha256Hash.hashTwice(message);
+        byte[] hash = Sha256Hash.hashTwice(payload, offset, length);
         System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
-        out.write(header);
-        out.write(message);
-
-        if (log.isDebugEnabled())
-            log.debug("Sending {} message: {}", name, HEX.encode(header) + HEX.encode(message));
     }
 
     /**
@@ -225,6 +241,10 @@ public class NubitsSerializer {
             return new HeadersMessage(params, payloadBytes);
         } else if (command.equals("filterload")) {
             return new BloomFilter(params, payloadBytes);
+        } else if (command.equals("filteradd")) {
+            return new FilterAddMessage(params, payloadBytes);
+        } else if (command.equals("filterclear")) {
+            return new FilterClearMessage(params, payloadBytes);
         } else if (command.equals("notfound")) {
             return new NotFoundMessage(params, payloadBytes);
         } else if (command.equals("mempool")) {
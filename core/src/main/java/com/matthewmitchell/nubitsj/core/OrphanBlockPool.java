@@ -0,0 +1,251 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.core;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.LinkedHashMultimap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Holds the blocks that were received but can't be connected to the chain yet, indexed by the hash of the block
+ * they build on. When a block is connected only its own orphaned descendants are looked at, rather than every block
+ * in the pool.</p>
+ *
+ * <p>The pool is bounded by an estimate of the memory its blocks use. When it's full the oldest blocks are evicted,
+ * and the blocks from a single source, usually the peer that sent them, may use at most a share of the pool, so a
+ * peer sending blocks that never connect evicts its own blocks rather than everybody else's. The block being added is
+ * never evicted to make room for itself.</p>
+ *
+ * <p>The pool is used under the lock of the {@link AbstractBlockChain} that owns it. The settings and counts exposed
+ * for monitoring can be used from any thread.</p>
+ */
+public class OrphanBlockPool {
+    private static final Logger log = LoggerFactory.getLogger(OrphanBlockPool.class);
+
+    /** How many bytes of blocks the pool holds at most by default. */
+    public static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+    /** How much of the pool the blocks of a single source may use by default. */
+    public static final double DEFAULT_MAX_SOURCE_SHARE = 0.5;
+
+    // Holds a block header and, optionally, a list of tx hashes or block's transactions
+    static class OrphanBlock {
+        final Block block;
+        final List<Sha256Hash> filteredTxHashes;
+        final Map<Sha256Hash, Transaction> filteredTxn;
+        @Nullable final PeerAddress source;
+        final long size;
+
+        OrphanBlock(Block block, @Nullable List<Sha256Hash> filteredTxHashes,
+                    @Nullable Map<Sha256Hash, Transaction> filteredTxn, @Nullable PeerAddress source) {
+            final boolean filtered = filteredTxHashes != null && filteredTxn != null;
+            Preconditions.checkArgument((block.transactions == null && filtered)
+                                        || (block.transactions != null && !filtered));
+            this.block = block;
+            this.filteredTxHashes = filteredTxHashes;
+            this.filteredTxn = filteredTxn;
+            this.source = source;
+            long size = block.getOptimalEncodingMessageSize();
+            if (filtered) {
+                size += filteredTxHashes.size() * 32;
+                for (Transaction tx : filteredTxn.values())
+                    size += tx.getOptimalEncodingMessageSize();
+            }
+            this.size = size;
+        }
+    }
+
+    // Oldest first.
+    private final LinkedHashMap<Sha256Hash, OrphanBlock> blocks = new LinkedHashMap<Sha256Hash, OrphanBlock>();
+    private final LinkedHashMultimap<Sha256Hash, Sha256Hash> byPrev = LinkedHashMultimap.create();
+    private final LinkedHashMultimap<PeerAddress, Sha256Hash> bySource = LinkedHashMultimap.create();
+    private final HashMap<PeerAddress, Long> bytesBySource = new HashMap<PeerAddress, Long>();
+    private long bytes;
+
+    private volatile long vMaxBytes = DEFAULT_MAX_BYTES;
+    private volatile double vMaxSourceShare = DEFAULT_MAX_SOURCE_SHARE;
+    private volatile int vSize;
+    private volatile long vBytes;
+    private final AtomicLong added = new AtomicLong();
+    private final AtomicLong connected = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+
+    boolean contains(Sha256Hash hash) {
+        return blocks.containsKey(hash);
+    }
+
+    @Nullable
+    OrphanBlock get(Sha256Hash hash) {
+        return blocks.get(hash);
+    }
+
+    /** Adds the block, evicting others if that takes the pool or the blocks of its source over their limit. */
+    void add(OrphanBlock orphan) {
+        Sha256Hash hash = orphan.block.getHash();
+        checkArgument(!blocks.containsKey(hash), "Already an orphan: %s", hash);
+        blocks.put(hash, orphan);
+        byPrev.put(orphan.block.getPrevBlockHash(), hash);
+        bytes += orphan.size;
+        if (orphan.source != null) {
+            bySource.put(orphan.source, hash);
+            bytesBySource.put(orphan.source, sourceBytes(orphan.source) + orphan.size);
+        }
+        added.incrementAndGet();
+        // The new block is the newest of both, so reaching it means nothing else is left to evict.
+        if (orphan.source != null) {
+            long maxSourceBytes = (long) (vMaxBytes * vMaxSourceShare);
+            while (sourceBytes(orphan.source) > maxSourceBytes) {
+                Sha256Hash oldest = bySource.get(orphan.source).iterator().next();
+                if (oldest.equals(hash))
+                    break;
+                evict(oldest);
+            }
+        }
+        while (bytes > vMaxBytes) {
+            Sha256Hash oldest = blocks.keySet().iterator().next();
+            if (oldest.equals(hash))
+                break;
+            evict(oldest);
+        }
+        updateCounts();
+    }
+
+    private long sourceBytes(PeerAddress source) {
+        Long n = bytesBySource.get(source);
+        return n == null ? 0 : n;
+    }
+
+    private void evict(Sha256Hash hash) {
+        OrphanBlock orphan = remove(hash);
+        evicted.incrementAndGet();
+        log.info("Evicted orphan block {} from {}, {} left using {} bytes", hash, orphan.source, blocks.size(), bytes);
+    }
+
+    private OrphanBlock remove(Sha256Hash hash) {
+        OrphanBlock orphan = blocks.remove(hash);
+        byPrev.remove(orphan.block.getPrevBlockHash(), hash);
+        bytes -= orphan.size;
+        if (orphan.source != null) {
+            bySource.remove(orphan.source, hash);
+            long left = sourceBytes(orphan.source) - orphan.size;
+            if (left == 0)
+                bytesBySource.remove(orphan.source);
+            else
+                bytesBySource.put(orphan.source, left);
+        }
+        return orphan;
+    }
+
+    /** Returns the oldest block that builds on the given one, or null if there is none. */
+    @Nullable
+    OrphanBlock getFirstChild(Sha256Hash prevHash) {
+        Set<Sha256Hash> children = byPrev.get(prevHash);
+        return children.isEmpty() ? null : blocks.get(children.iterator().next());
+    }
+
+    /** Removes the block once it was connected to the chain. */
+    void removeConnected(Sha256Hash hash) {
+        remove(hash);
+        connected.incrementAndGet();
+        updateCounts();
+    }
+
+    /** Returns the hashes of the blocks that orphans build on and that aren't orphans themselves. */
+    List<Sha256Hash> getMissingParents() {
+        List<Sha256Hash> missing = new ArrayList<Sha256Hash>();
+        for (Sha256Hash prevHash : byPrev.keySet())
+            if (!blocks.containsKey(prevHash))
+                missing.add(prevHash);
+        return missing;
+    }
+
+    /** Removes all blocks, returning their hashes. */
+    Set<Sha256Hash> drain() {
+        Set<Sha256Hash> hashes = new HashSet<Sha256Hash>(blocks.keySet());
+        blocks.clear();
+        byPrev.clear();
+        bySource.clear();
+        bytesBySource.clear();
+        bytes = 0;
+        updateCounts();
+        return hashes;
+    }
+
+    boolean isEmpty() {
+        return blocks.isEmpty();
+    }
+
+    private void updateCounts() {
+        vSize = blocks.size();
+        vBytes = bytes;
+    }
+
+    /** Returns the number of blocks in the pool. */
+    public int getSize() {
+        return vSize;
+    }
+
+    /** Returns the estimated number of bytes the blocks in the pool use. */
+    public long getBytes() {
+        return vBytes;
+    }
+
+    /** Returns how many blocks were added to the pool. */
+    public long getAdded() {
+        return added.get();
+    }
+
+    /** Returns how many blocks left the pool because the block they build on was connected. */
+    public long getConnected() {
+        return connected.get();
+    }
+
+    /** Returns how many blocks were evicted to keep the pool or a source within its limit. */
+    public long getEvictions() {
+        return evicted.get();
+    }
+
+    public long getMaxBytes() {
+        return vMaxBytes;
+    }
+
+    /** Sets how many bytes of blocks the pool may hold. Takes effect as blocks are added. */
+    public void setMaxBytes(long maxBytes) {
+        checkArgument(maxBytes > 0, "maxBytes must be positive");
+        this.vMaxBytes = maxBytes;
+    }
+
+    public double getMaxSourceShare() {
+        return vMaxSourceShare;
+    }
+
+    /** Sets the share of the pool, from 0 to 1, that the blocks of a single source may use. */
+    public void setMaxSourceShare(double maxSourceShare) {
+        checkArgument(maxSourceShare > 0 && maxSourceShare <= 1, "maxSourceShare must be in (0, 1]");
+        this.vMaxSourceShare = maxSourceShare;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d orphan blocks using %d bytes, %d added, %d connected, %d evicted", getSize(),
+                getBytes(), getAdded(), getConnected(), getEvictions());
+    }
+}
@@ -467,6 +467,9 @@ public class Peer extends PeerSocketHandler {
         // the bottom of the dependency tree (where the unconfirmed transactions connect to transactions that are
         // in the chain).
         //
+        // If we're part of a PeerGroup, ask another peer that announced the transactions instead.
+        if (peerGroup != null)
+            peerGroup.getTxRequestTracker().notFound(this, m.getItems());
         // We go through and cancel the pending getdata futures for the items we were told weren't found.
         for (GetDataRequest req : getDataFutures) {
             for (InventoryItem item : m.getItems()) {
@@ -505,19 +508,36 @@ public class Peer extends PeerSocketHandler {
 
         try {
             checkState(!downloadBlockBodies, toString());
-            for (int i = 0; i < m.getBlockHeaders().size(); i++) {
-                Block header = m.getBlockHeaders().get(i);
+            // The headers are kept in their raw form and mostly added to the chain in bulk, see HeaderBatch.
+            HeaderBatch batch = m.getHeaderBatch();
+            int i = 0;
+            while (i < batch.size()) {
                 // Process headers until we pass the fast catchup time, or are about to catch up with the head
                 // of the chain - always process the last block as a full/filtered block to kick us out of the
                 // fast catchup mode (in which we ignore new blocks).
-                boolean passedTime = header.getTimeSeconds() >= fastCatchupTimeSecs;
-                boolean reachedTop = blockChain.getBestChainHeight() >= vPeerVersionMessage.bestHeight;
+                boolean passedTime = batch.getTimeSeconds(i) >= fastCatchupTimeSecs;
+                int chainHeight = blockChain.getBestChainHeight();
+                boolean reachedTop = chainHeight >= vPeerVersionMessage.bestHeight;
                 if (!passedTime && !reachedTop) {
                     if (!vDownloadData) {
                         // Not download peer anymore, some other peer probably became better.
                         log.info("Lost download peer status, throwing away downloaded headers.");
                         return;
                     }
+                    // Find the run of headers that can be added before one of the above conditions is hit.
+                    long headersLeft = vPeerVersionMessage.bestHeight - chainHeight;
+                    int end = i + 1;
+                    while (end < batch.size() && end - i < headersLeft && batch.getTimeSeconds(end) < fastCatchupTimeSecs)
+                        end++;
+                    int added = blockChain.add(batch, i, end - i);
+                    if (added > 0) {
+                        // The headers were successfully linked into the chain. Notify the user of our progress.
+                        i += added;
+                        invokeOnBlocksDownloaded(batch.toBlock(i - 1), null);
+                        continue;
+                    }
+                    // The header doesn't simply extend our best chain, so take the slow path which handles the rest.
+                    Block header = batch.toBlock(i);
                     if (blockChain.add(header)) {
                         // The block was successfully linked into the chain. Notify the user of our progress.
                         invokeOnBlocksDownloaded(header, null);
@@ -527,11 +547,12 @@ public class Peer extends PeerSocketHandler {
                         // headers that are part of the best chain.
                         throw new ProtocolException("Got unconnected header from peer: " + header.getHashAsString());
                     }
+                    i++;
                 } else {
                     lock.lock();
                     try {
                         log.info("Passed the fast catchup time, discarding {} headers and requesting full blocks",
-                                m.getBlockHeaders().size() - i);
+                                batch.size() - i);
                         this.downloadBlockBodies = true;
                         blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
                     } finally {
@@ -542,7 +563,7 @@ public class Peer extends PeerSocketHandler {
             }
             // We added all headers in the message to the chain. Request some more if we got up to the limit, otherwise
             // we are at the end of the chain.
-            if (m.getBlockHeaders().size() >= HeadersMessage.MAX_HEADERS) {
+            if (batch.size() >= HeadersMessage.MAX_HEADERS) {
                 lock.lock();
                 try {
                     blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
@@ -592,6 +613,8 @@ public class Peer extends PeerSocketHandler {
             TransactionConfidence confidence = tx.getConfidence();
             confidence.setSource(TransactionConfidence.Source.NETWORK);
             pendingTxDownloads.remove(confidence);
+            if (peerGroup != null)
+                peerGroup.getTxRequestTracker().received(tx.getHash());
             if (maybeHandleRequestedData(tx)) {
                 return;
             }
@@ -806,7 +829,7 @@ public class Peer extends PeerSocketHandler {
         pendingBlockDownloads.remove(m.getHash());
         try {
             // Otherwise it's a block sent to us because the peer thought we needed it, so add it to the block chain.
-            if (blockChain.add(m)) {
+            if (blockChain.add(m, getAddress())) {
 		
                 // The block was successfully linked into the chain. Notify the user of our progress.
                 invokeOnBlocksDownloaded(m, null);
@@ -912,7 +935,7 @@ public class Peer extends PeerSocketHandler {
                 lock.unlock();
             }
 
-            if (blockChain.add(m)) {
+            if (blockChain.add(m, getAddress())) {
                 // The block was successfully linked into the chain. Notify the user of our progress.
                 invokeOnBlocksDownloaded(m.getBlockHeader(), m);
             } else {
@@ -1043,6 +1066,12 @@ public class Peer extends PeerSocketHandler {
 
         GetDataMessage getdata = new GetDataMessage(params);
 
+        // Apply the whole inv to the confidence table at once, rather than locking it for every item.
+        // This can trigger confidence listeners.
+        List<Sha256Hash> txHashes = new ArrayList<Sha256Hash>(transactions.size());
+        for (InventoryItem item : transactions)
+            txHashes.add(item.hash);
+        Iterator<TransactionConfidence> confidences = context.getConfidenceTable().seen(txHashes, this.getAddress()).iterator();
         Iterator<InventoryItem> it = transactions.iterator();
         while (it.hasNext()) {
             InventoryItem item = it.next();
@@ -1050,20 +1079,20 @@ public class Peer extends PeerSocketHandler {
             // see it be advertised in inv packets asynchronously, they co-ordinate via the memory pool. We could
             // potentially download transactions faster by always asking every peer for a tx when advertised, as remote
             // peers run at different speeds. However to conserve bandwidth on mobile devices we try to only download a
-            // transaction once. This means we can miss broadcasts if the peer disconnects between sending us an inv and
-            // sending us the transaction: currently we'll never try to re-fetch after a timeout.
-            //
-            // The line below can trigger confidence listeners.
-            TransactionConfidence conf = context.getConfidenceTable().seen(item.hash, this.getAddress());
-            if (conf.numBroadcastPeers() > 1) {
-                // Some other peer already announced this so don't download.
-                it.remove();
-            } else if (conf.getSource().equals(TransactionConfidence.Source.SELF)) {
+            // transaction once. When we're part of a PeerGroup its TxRequestTracker re-fetches from another announcer
+            // if this peer disconnects or doesn't send the transaction in time, standalone peers never re-fetch.
+            TransactionConfidence conf = confidences.next();
+            if (conf.getSource().equals(TransactionConfidence.Source.SELF)) {
                 // We created this transaction ourselves, so don't download.
-                    it.remove();
-                } else {
-                    log.debug("{}: getdata on tx {}", getAddress(), item.hash);
-                    getdata.addItem(item);
+                it.remove();
+            } else if (peerGroup != null ? !peerGroup.getTxRequestTracker().shouldRequest(this, conf)
+                                         : conf.numBroadcastPeers() > 1) {
+                // Some other peer already announced this and is being (or was) asked for it, so don't download. When
+                // we're part of a PeerGroup the tracker will come back to us if that peer fails to deliver.
+                it.remove();
+            } else {
+                log.debug("{}: getdata on tx {}", getAddress(), item.hash);
+                getdata.addItem(item);
                 // Register with the garbage collector that we care about the confidence data for a while.
                 pendingTxDownloads.add(conf);
             }
@@ -1325,14 +1354,20 @@ public class Peer extends PeerSocketHandler {
                 });
             }
 
-            blockChain.addListener(new AbstractBlockChainListener() {
+            // Implements HeaderBatchListener so header batches don't need to be turned into blocks just for this.
+            class HashDownloadListener extends AbstractBlockChainListener implements HeaderBatchListener {
 
                 @Override
                 public void notifyHashDownload(boolean isDownloading) {
                     invokeOnDownloadingHashes(isDownloading);
                 }
 
-            });
+                @Override
+                public void notifyNewBestHeaders(HeaderBatch batch, int from, int count, StoredBlock newHead) {
+                }
+
+            }
+            blockChain.addListener(new HashDownloadListener());
 
             // When we just want as many blocks as possible, we can set the target hash to zero.
             lock.lock();
@@ -19,7 +19,9 @@ package com.matthewmitchell.nubitsj.core;
 /**
  * An interface which provides the information required to properly filter data downloaded from Peers.
  * Note that an implementer is responsible for calling {@link PeerGroup#recalculateFastCatchupAndFilter(boolean)} whenever a
- * change occurs which effects the data provided via this interface.
+ * change occurs which effects the data provided via this interface. Providers that can report their changes as they
+ * happen should implement {@link IncrementalPeerFilterProvider} as well, so the filter doesn't have to be recalculated
+ * in full each time.
  */
 public interface PeerFilterProvider {
     /**
@@ -65,7 +65,7 @@ import static com.google.common.base.Preconditions.*;
  * of PeerGroup are safe to call from a UI thread as some may do network IO, 
  * but starting and stopping the service should be fine.</p>
  */
-public class PeerGroup implements TransactionBroadcaster {
+public class PeerGroup implements BatchTransactionBroadcaster {
     private static final Logger log = LoggerFactory.getLogger(PeerGroup.class);
     // All members in this class should be marked with final, volatile, @GuardedBy or a mix as appropriate to define
     // their thread safety semantics. Volatile requires a Hungarian-style v prefix.
@@ -130,6 +130,8 @@ public class PeerGroup implements TransactionBroadcaster {
 
     /** How many milliseconds to wait after receiving a pong before sending another ping. */
     public static final long DEFAULT_PING_INTERVAL_MSEC = 2000;
+    // How often to look for transaction downloads that timed out and should be asked of another peer.
+    private static final long TX_REQUEST_CHECK_INTERVAL_MSEC = 5000;
     @GuardedBy("lock") private long pingIntervalMsec = DEFAULT_PING_INTERVAL_MSEC;
 
     @GuardedBy("lock") private boolean useLocalhostPeerWhenPossible = true;
@@ -144,7 +146,7 @@ public class PeerGroup implements TransactionBroadcaster {
     private final AbstractPeerEventListener peerListener = new AbstractPeerEventListener() {
         @Override
         public List<Message> getData(Peer peer, GetDataMessage m) {
-            return handleGetData(m);
+            return handleGetData(peer, m);
         }
 
         @Override
@@ -216,6 +218,9 @@ public class PeerGroup implements TransactionBroadcaster {
     // being garbage collected if nothing in the apps code holds on to them transitively. See the discussion
     // in broadcastTransaction.
     private final Set<TransactionBroadcast> runningBroadcasts;
+    // The batch broadcasts running, by the hashes of their transactions. This also keeps them from being collected.
+    private final ConcurrentMap<Sha256Hash, TransactionBatchBroadcast> batchBroadcasts =
+            new ConcurrentHashMap<Sha256Hash, TransactionBatchBroadcast>();
 
     private class PeerStartupListener extends AbstractPeerEventListener {
         @Override
@@ -246,6 +251,8 @@ public class PeerGroup implements TransactionBroadcaster {
     // An object that calculates bloom filters given a list of filter providers, whilst tracking some state useful
     // for privacy purposes.
     private final FilterMerger bloomFilterMerger;
+    // Makes sure each announced transaction is requested from one peer at a time, see TxRequestTracker.
+    private final TxRequestTracker txRequestTracker;
 
     /** The default timeout between when a connection attempt begins and version message exchange completes */
     public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 12000;
@@ -402,6 +409,7 @@ public class PeerGroup implements TransactionBroadcaster {
         peerEventListeners = new CopyOnWriteArrayList<ListenerRegistration<PeerEventListener>>();
         runningBroadcasts = Collections.synchronizedSet(new HashSet<TransactionBroadcast>());
         bloomFilterMerger = new FilterMerger(DEFAULT_BLOOM_FILTER_FP_RATE);
+        txRequestTracker = new TxRequestTracker(params);
     }
 
     private CountDownLatch executorStartupLatch = new CountDownLatch(1);
@@ -572,14 +580,24 @@ public class PeerGroup implements TransactionBroadcaster {
         }
     }
 
-    private List<Message> handleGetData(GetDataMessage m) {
+    private List<Message> handleGetData(Peer peer, GetDataMessage m) {
         // Scans the wallets and memory pool for transactions in the getdata message and returns them.
         // Runs on peer threads.
+        LinkedList<InventoryItem> items = new LinkedList<InventoryItem>(m.getItems());
+        Iterator<InventoryItem> it = items.iterator();
+        // Transactions of batch broadcasts are sent straight away from their packets, in the order asked for.
+        if (!batchBroadcasts.isEmpty()) {
+            while (it.hasNext()) {
+                InventoryItem item = it.next();
+                TransactionBatchBroadcast batch = batchBroadcasts.get(item.hash);
+                if (batch != null && batch.serve(peer, item.hash))
+                    it.remove();
+            }
+            it = items.iterator();
+        }
         lock.lock();
         try {
             LinkedList<Message> transactions = new LinkedList<Message>();
-            LinkedList<InventoryItem> items = new LinkedList<InventoryItem>(m.getItems());
-            Iterator<InventoryItem> it = items.iterator();
             while (it.hasNext()) {
                 InventoryItem item = it.next();
                 // Check the wallets.
@@ -922,6 +940,7 @@ public class PeerGroup implements TransactionBroadcaster {
                     channels.awaitRunning();
                     triggerConnections();
                     setupPinging();
+                    setupTxRequestTimeouts();
                 } catch (Throwable e) {
                     log.error("Exception when starting up", e);  // The executor swallows exceptions :(
                 }
@@ -940,7 +959,17 @@ public class PeerGroup implements TransactionBroadcaster {
         waitForJobQueue();
     }
 
+    /**
+     * Stops the PeerGroup. A PeerGroup that was never started only has its thread released, and the jobs queued for
+     * it are dropped.
+     */
     public ListenableFuture stopAsync() {
+        if (!vUsedUp) {
+            vUsedUp = true;
+            executorStartupLatch.countDown();
+            executor.shutdownNow();
+            return Futures.immediateFuture(null);
+        }
         checkState(vRunning);
         vRunning = false;
         ListenableFuture future = executor.submit(new Runnable() {
@@ -1379,6 +1408,27 @@ public class PeerGroup implements TransactionBroadcaster {
 
     @Nullable private volatile ListenableScheduledFuture<?> vPingTask;
 
+    private void setupTxRequestTimeouts() {
+        executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    txRequestTracker.checkTimeouts();
+                } catch (Throwable e) {
+                    log.error("Exception in tx request timeout loop", e);  // The executor swallows exceptions :(
+                }
+            }
+        }, TX_REQUEST_CHECK_INTERVAL_MSEC, TX_REQUEST_CHECK_INTERVAL_MSEC, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the tracker that decides which peer is asked for each announced transaction. It can be used to tune
+     * timeouts and per peer limits, and to see how many duplicate downloads were avoided.
+     */
+    public TxRequestTracker getTxRequestTracker() {
+        return txRequestTracker;
+    }
+
     @SuppressWarnings("NonAtomicOperationOnVolatileField")
     private void setupPinging() {
         if (getPingIntervalMsec() <= 0)
@@ -1426,13 +1476,22 @@ public class PeerGroup implements TransactionBroadcaster {
                     peer.addEventListener(downloadListener, Threading.SAME_THREAD);
                 downloadPeer.setDownloadData(true);
                 if (chain != null)
-                    downloadPeer.setDownloadParameters(fastCatchupTimeSecs, bloomFilterMerger.getLastFilter() != null);
+                    downloadPeer.setDownloadParameters(fastCatchupTimeSecs, useFilteredBlocks());
             }
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * Filtered blocks are only worth asking for if there is a filter that doesn't match everything, as it does when
+     * a wallet watches too many scripts for a Bloom filter.
+     */
+    private boolean useFilteredBlocks() {
+        BloomFilter filter = bloomFilterMerger.getLastFilter();
+        return filter != null && !filter.matchesAll();
+    }
+
     /** Use "Context.get().getConfidenceTable()" instead */
     @Deprecated @Nullable
     public TxConfidenceTable getMemoryPool() {
@@ -1450,7 +1509,7 @@ public class PeerGroup implements TransactionBroadcaster {
             checkState(chain == null || !chain.shouldVerifyTransactions(), "Fast catchup is incompatible with fully verifying");
             fastCatchupTimeSecs = secondsSinceEpoch;
             if (downloadPeer != null) {
-                downloadPeer.setDownloadParameters(secondsSinceEpoch, bloomFilterMerger.getLastFilter() != null);
+                downloadPeer.setDownloadParameters(secondsSinceEpoch, useFilteredBlocks());
             }
         } finally {
             lock.unlock();
@@ -1525,6 +1584,7 @@ public class PeerGroup implements TransactionBroadcaster {
         for (Wallet wallet : wallets) {
             peer.removeWallet(wallet);
         }
+        txRequestTracker.peerDisconnected(peer);
 
         final int fNumConnectedPeers = numConnectedPeers;
         for (final ListenerRegistration<PeerEventListener> registration : peerEventListeners) {
@@ -1921,6 +1981,64 @@ public class PeerGroup implements TransactionBroadcaster {
         return broadcast;
     }
 
+    /**
+     * Calls {@link PeerGroup#broadcastTransactions(List,int)} with getMinBroadcastConnections() as the number of
+     * connections to wait for before commencing broadcast.
+     */
+    @Override
+    public TransactionBatchBroadcast broadcastTransactions(List<Transaction> txns) {
+        return broadcastTransactions(txns, Math.max(1, getMinBroadcastConnections()));
+    }
+
+    /**
+     * <p>Broadcasts many transactions at once, see {@link TransactionBatchBroadcast}. Each chosen peer is sent one inv
+     * for all of them and asks for the ones it wants, which are sent parents first from packets serialized once. The
+     * future of the returned broadcast completes when every transaction was announced back by enough peers, after which
+     * the wallets are given them as for {@link #broadcastTransaction(Transaction, int)}. It fails if they haven't all
+     * propagated within the timeout of the broadcast.</p>
+     *
+     * <p>Use this rather than a broadcast per transaction when sending a burst of them, such as payouts that spend
+     * each other's change.</p>
+     */
+    public TransactionBatchBroadcast broadcastTransactions(List<Transaction> txns, final int minConnections) {
+        for (Transaction tx : txns) {
+            if (tx.getConfidence().getSource().equals(TransactionConfidence.Source.UNKNOWN))
+                tx.getConfidence().setSource(TransactionConfidence.Source.SELF);
+        }
+        final TransactionBatchBroadcast broadcast = new TransactionBatchBroadcast(this, txns);
+        broadcast.setMinConnections(minConnections);
+        Futures.addCallback(broadcast.future(), new FutureCallback<List<Transaction>>() {
+            @Override
+            public void onSuccess(List<Transaction> transactions) {
+                forget();
+                // Parents first, so that each spend connects to what it spends.
+                for (Wallet wallet : wallets) {
+                    for (Transaction tx : transactions) {
+                        try {
+                            wallet.receivePending(tx, null);
+                        } catch (VerificationException e) {
+                            throw new RuntimeException(e);   // Cannot fail to verify a tx we created ourselves.
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                forget();
+            }
+
+            private void forget() {
+                for (Transaction tx : broadcast.getTransactions())
+                    batchBroadcasts.remove(tx.getHash(), broadcast);
+            }
+        });
+        for (Transaction tx : broadcast.getTransactions())
+            batchBroadcasts.put(tx.getHash(), broadcast);
+        broadcast.broadcast();
+        return broadcast;
+    }
+
     /**
      * Returns the period between pings for an individual peer. Setting this lower means more accurate and timely ping
      * times are available via {@link com.matthewmitchell.nubitsj.core.Peer#getLastPingTime()} but it increases load on the
@@ -18,6 +18,7 @@ package com.matthewmitchell.nubitsj.core;
 
 import com.matthewmitchell.nubitsj.net.AbstractTimeoutHandler;
 import com.matthewmitchell.nubitsj.net.MessageWriteTarget;
+import com.matthewmitchell.nubitsj.net.SharedMessageWriteTarget;
 import com.matthewmitchell.nubitsj.net.StreamParser;
 import com.matthewmitchell.nubitsj.utils.Threading;
 import com.google.common.annotations.VisibleForTesting;
@@ -92,6 +93,29 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         }
     }
 
+    /**
+     * Sends a message that was already serialized including its packet header, see
+     * {@link NubitsSerializer#serializeHeaderInPlace(String, byte[])}. The array is not copied if the write target is a
+     * {@link SharedMessageWriteTarget}, so the same packet can be sent to many peers but must not be modified afterwards.
+     */
+    protected void sendPacket(byte[] packet) throws NotYetConnectedException {
+        lock.lock();
+        try {
+            if (writeTarget == null)
+                throw new NotYetConnectedException();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            if (writeTarget instanceof SharedMessageWriteTarget)
+                ((SharedMessageWriteTarget) writeTarget).writeSharedBytes(packet);
+            else
+                writeTarget.writeBytes(packet);
+        } catch (IOException e) {
+            exceptionCaught(e);
+        }
+    }
+
     /**
      * Closes the connection to the peer if one exists, or immediately closes the connection as soon as it opens
      */
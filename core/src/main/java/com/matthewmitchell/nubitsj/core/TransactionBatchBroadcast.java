@@ -0,0 +1,376 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.core;
+
+import com.google.common.annotations.*;
+import com.google.common.base.*;
+import com.google.common.collect.*;
+import com.google.common.util.concurrent.*;
+import com.matthewmitchell.nubitsj.utils.*;
+import org.slf4j.*;
+
+import javax.annotation.*;
+import javax.annotation.concurrent.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Broadcasts many transactions at once, such as a burst of payouts. Where a {@link TransactionBroadcast} sends each
+ * transaction to the peers on its own, a batch announces all of them to each chosen peer in one inv message and sends
+ * them when the peer asks for them, from packets that were serialized once for all peers. Transactions that spend
+ * others of the batch are announced and sent after them, so peers don't see them as orphans.</p>
+ *
+ * <p>Propagation is tracked for the whole batch by one confidence listener, and the future completes with the
+ * transactions once every one of them was announced back by enough peers or mined. Progress is the average progress
+ * of the transactions. If they haven't all propagated within the timeout, the future fails with a
+ * {@link TimeoutException}.</p>
+ */
+public class TransactionBatchBroadcast {
+    private static final Logger log = LoggerFactory.getLogger(TransactionBatchBroadcast.class);
+
+    /** How long to wait by default, once the transactions were announced, for all of them to propagate. */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5 * 60 * 1000;
+
+    private final SettableFuture<List<Transaction>> future = SettableFuture.create();
+    private final PeerGroup peerGroup;
+    private final List<Transaction> txns;
+    // The tx packets including their headers, ready to be written to any peer.
+    private final Map<Sha256Hash, byte[]> packets;
+    private int minConnections;
+    private long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+
+    @GuardedBy("this") private int numWaitingFor;
+    @GuardedBy("this") @Nullable private ConfidenceChange listener;
+    @GuardedBy("this") private final Map<Sha256Hash, Double> progress = new HashMap<Sha256Hash, Double>();
+    @GuardedBy("this") private final Set<Sha256Hash> done = new HashSet<Sha256Hash>();
+    @GuardedBy("this") @Nullable private TransactionBroadcast.ProgressCallback callback;
+    @GuardedBy("this") @Nullable private Executor progressCallbackExecutor;
+
+    TransactionBatchBroadcast(PeerGroup peerGroup, List<Transaction> txns) {
+        checkArgument(!txns.isEmpty(), "Nothing to broadcast");
+        this.peerGroup = peerGroup;
+        this.txns = sortParentsFirst(txns);
+        this.packets = Maps.newHashMapWithExpectedSize(txns.size());
+        NubitsSerializer serializer = new NubitsSerializer(txns.get(0).getParams());
+        for (Transaction tx : this.txns) {
+            byte[] payload = tx.nubitsSerialize();
+            byte[] packet = new byte[NubitsSerializer.PACKET_HEADER_LENGTH + payload.length];
+            System.arraycopy(payload, 0, packet, NubitsSerializer.PACKET_HEADER_LENGTH, payload.length);
+            serializer.serializeHeaderInPlace("tx", packet);
+            packets.put(tx.getHash(), packet);
+        }
+        this.minConnections = Math.max(1, peerGroup.getMinBroadcastConnections());
+    }
+
+    // Only for mock broadcasts.
+    private TransactionBatchBroadcast(List<Transaction> txns) {
+        this.peerGroup = null;
+        this.txns = ImmutableList.copyOf(txns);
+        this.packets = ImmutableMap.of();
+    }
+
+    @VisibleForTesting
+    public static TransactionBatchBroadcast createMockBroadcast(List<Transaction> txns,
+                                                                final ListenableFuture<List<Transaction>> future) {
+        return new TransactionBatchBroadcast(txns) {
+            @Override
+            public ListenableFuture<List<Transaction>> broadcast() {
+                return future;
+            }
+
+            @Override
+            public ListenableFuture<List<Transaction>> future() {
+                return future;
+            }
+        };
+    }
+
+    /**
+     * Returns the given transactions ordered so that each comes after the transactions of the list it spends, keeping
+     * the given order otherwise.
+     */
+    static List<Transaction> sortParentsFirst(List<Transaction> txns) {
+        Map<Sha256Hash, Transaction> byHash = new HashMap<Sha256Hash, Transaction>();
+        for (Transaction tx : txns)
+            checkArgument(byHash.put(tx.getHash(), tx) == null, "Transaction given twice: %s", tx.getHash());
+        List<Transaction> sorted = new ArrayList<Transaction>(txns.size());
+        Set<Sha256Hash> added = new HashSet<Sha256Hash>();
+        for (Transaction tx : txns)
+            addParentsFirst(tx, byHash, added, sorted);
+        return sorted;
+    }
+
+    private static void addParentsFirst(Transaction tx, Map<Sha256Hash, Transaction> byHash, Set<Sha256Hash> added,
+                                        List<Transaction> sorted) {
+        // Depth first with an explicit stack, as a chain of spends in a batch can be long.
+        Deque<Iterator<TransactionInput>> stack = new ArrayDeque<Iterator<TransactionInput>>();
+        Deque<Transaction> path = new ArrayDeque<Transaction>();
+        if (!added.add(tx.getHash()))
+            return;
+        path.push(tx);
+        stack.push(tx.getInputs().iterator());
+        while (!stack.isEmpty()) {
+            Iterator<TransactionInput> inputs = stack.peek();
+            if (inputs.hasNext()) {
+                Transaction parent = byHash.get(inputs.next().getOutpoint().getHash());
+                if (parent != null && added.add(parent.getHash())) {
+                    path.push(parent);
+                    stack.push(parent.getInputs().iterator());
+                }
+            } else {
+                stack.pop();
+                sorted.add(path.pop());
+            }
+        }
+    }
+
+    public ListenableFuture<List<Transaction>> future() {
+        return future;
+    }
+
+    /** Returns the transactions of the batch, in the order they are announced. */
+    public List<Transaction> getTransactions() {
+        return Collections.unmodifiableList(txns);
+    }
+
+    public void setMinConnections(int minConnections) {
+        this.minConnections = minConnections;
+    }
+
+    /**
+     * Sets how long to wait, once the transactions were announced, for all of them to propagate before the broadcast
+     * fails. Must be called before the broadcast starts.
+     */
+    public void setTimeoutMillis(long timeoutMillis) {
+        checkArgument(timeoutMillis > 0, "timeoutMillis must be positive");
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public ListenableFuture<List<Transaction>> broadcast() {
+        log.info("Waiting for {} peers required for broadcast of {} transactions, we have {} ...", minConnections,
+                txns.size(), peerGroup.getConnectedPeers().size());
+        peerGroup.waitForPeers(minConnections).addListener(new EnoughAvailablePeers(), Threading.SAME_THREAD);
+        return future;
+    }
+
+    private class EnoughAvailablePeers implements Runnable {
+        @Override
+        public void run() {
+            // As for a single broadcast, send to half the connected peers and wait to hear back from half the rest.
+            List<Peer> peers = peerGroup.getConnectedPeers();    // snapshots
+            int numToBroadcastTo = (int) Math.max(1, Math.round(Math.ceil(peers.size() / 2.0)));
+            int waitingFor = (int) Math.ceil((peers.size() - numToBroadcastTo) / 2.0);
+            Collections.shuffle(peers, TransactionBroadcast.random);
+            peers = peers.subList(0, numToBroadcastTo);
+            log.info("Broadcasting {} transactions to {} peers, will wait for {}: {}", txns.size(), numToBroadcastTo,
+                    waitingFor, Joiner.on(",").join(peers));
+            if (minConnections == 1) {
+                // The only peer won't announce back what we announce to it, so there is nothing to wait for. Send the
+                // transactions straight away rather than waiting to be asked, as there's nothing to know when done.
+                for (Peer peer : peers) {
+                    try {
+                        for (Transaction tx : txns)
+                            peer.sendPacket(packets.get(tx.getHash()));
+                    } catch (Exception e) {
+                        log.error("Caught exception sending to {}", peer, e);
+                    }
+                }
+                future.set(txns);
+                return;
+            }
+            // Transactions that already propagated are announced all the same: the peers chosen now may not have
+            // them, and a wallet re-broadcasting its pending transactions relies on that.
+            track(waitingFor);
+            List<InventoryMessage> invs = new ArrayList<InventoryMessage>();
+            for (List<Transaction> part : Lists.partition(txns, (int) ListMessage.MAX_INVENTORY_ITEMS)) {
+                InventoryMessage inv = new InventoryMessage(part.get(0).getParams());
+                for (Transaction tx : part)
+                    inv.addTransaction(tx);
+                invs.add(inv);
+            }
+            for (Peer peer : peers) {
+                try {
+                    for (InventoryMessage inv : invs)
+                        peer.sendMessage(inv);
+                } catch (Exception e) {
+                    log.error("Caught exception sending to {}", peer, e);
+                }
+            }
+            if (future.isDone())
+                return;  // They had all propagated already.
+            try {
+                peerGroup.executor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        expire();
+                    }
+                }, timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                log.info("Peer group is shutting down, batch broadcast won't time out");
+            }
+        }
+    }
+
+    /**
+     * Starts tracking the propagation of the transactions to the given number of peers. Those that were already
+     * announced back by enough peers or mined may see no further confidence changes, so they are counted as done now.
+     */
+    @VisibleForTesting
+    void track(int waitingFor) {
+        ConfidenceChange listener = new ConfidenceChange();
+        synchronized (this) {
+            numWaitingFor = waitingFor;
+            this.listener = listener;
+        }
+        for (Transaction tx : txns)
+            tx.getConfidence().addEventListener(listener);
+        for (Transaction tx : txns) {
+            TransactionConfidence conf = tx.getConfidence();
+            if (conf.numBroadcastPeers() >= waitingFor
+                    || conf.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING)
+                listener.onConfidenceChanged(conf, TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
+        }
+    }
+
+    /** Fails the broadcast if not all the transactions have propagated yet, and stops tracking them. */
+    @VisibleForTesting
+    void expire() {
+        ConfidenceChange listener;
+        int numDone;
+        synchronized (this) {
+            if (future.isDone())
+                return;
+            listener = this.listener;
+            numDone = done.size();
+        }
+        if (listener != null)
+            for (Transaction tx : txns)
+                tx.getConfidence().removeEventListener(listener);
+        log.warn("Batch broadcast timed out with {} of {} transactions done", numDone, txns.size());
+        future.setException(new TimeoutException(String.format("%d of %d transactions did not propagate in time",
+                txns.size() - numDone, txns.size())));
+    }
+
+    /**
+     * Sends the transaction with the given hash to the peer if it is part of this batch, returning false if it isn't.
+     * Called for getdata messages on the peer's thread.
+     */
+    boolean serve(Peer peer, Sha256Hash hash) {
+        byte[] packet = packets.get(hash);
+        if (packet == null)
+            return false;
+        peer.sendPacket(packet);
+        return true;
+    }
+
+    @VisibleForTesting
+    byte[] getPacket(Sha256Hash hash) {
+        return packets.get(hash);
+    }
+
+    private class ConfidenceChange implements TransactionConfidence.Listener {
+        @Override
+        public void onConfidenceChanged(TransactionConfidence conf, ChangeReason reason) {
+            int numSeenPeers = conf.numBroadcastPeers();
+            boolean mined = conf.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING;
+            Sha256Hash hash = conf.getTransactionHash();
+            boolean complete;
+            int numDone;
+            double batchProgress;
+            synchronized (TransactionBatchBroadcast.this) {
+                if (done.contains(hash))
+                    return;
+                boolean txDone = numSeenPeers >= numWaitingFor || mined;
+                progress.put(hash, txDone ? 1.0 : numSeenPeers / (double) numWaitingFor);
+                if (txDone)
+                    done.add(hash);
+                numDone = done.size();
+                complete = numDone == txns.size();
+                batchProgress = getProgress();
+                if (txDone)
+                    conf.removeEventListener(this);
+            }
+            log.info("Batch broadcast: {}: TX {} seen by {} peers{}, {} of {} done", reason, hash, numSeenPeers,
+                    mined ? " and mined" : "", numDone, txns.size());
+            invokeProgressCallback(batchProgress);
+            if (complete) {
+                log.info("Batch broadcast of {} transactions complete", txns.size());
+                future.set(txns);  // RE-ENTRANCY POINT
+            }
+        }
+    }
+
+    @GuardedBy("this")
+    private double getProgress() {
+        double sum = 0;
+        for (double p : progress.values())
+            sum += p;
+        return Math.min(1.0, sum / txns.size());
+    }
+
+    private void invokeProgressCallback(final double progress) {
+        final TransactionBroadcast.ProgressCallback callback;
+        Executor executor;
+        synchronized (this) {
+            callback = this.callback;
+            executor = this.progressCallbackExecutor;
+        }
+        if (callback != null) {
+            checkState(progress >= 0.0 && progress <= 1.0, progress);
+            try {
+                if (executor == null)
+                    callback.onBroadcastProgress(progress);
+                else
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onBroadcastProgress(progress);
+                        }
+                    });
+            } catch (Throwable e) {
+                log.error("Exception during progress callback", e);
+            }
+        }
+    }
+
+    /**
+     * Sets the given callback for receiving the progress of the whole batch, which will run on the user thread. If
+     * the broadcast has already started then the callback will be invoked immediately with the current progress.
+     */
+    public void setProgressCallback(TransactionBroadcast.ProgressCallback callback) {
+        setProgressCallback(callback, Threading.USER_THREAD);
+    }
+
+    /**
+     * Sets the given callback for receiving the progress of the whole batch, which will run on the given executor, or
+     * on a network thread if it is null. If the broadcast has already started then the callback will be invoked
+     * immediately with the current progress.
+     */
+    public void setProgressCallback(TransactionBroadcast.ProgressCallback callback, @Nullable Executor executor) {
+        boolean shouldInvoke;
+        double current;
+        synchronized (this) {
+            this.callback = callback;
+            this.progressCallbackExecutor = executor;
+            current = getProgress();
+            shouldInvoke = numWaitingFor > 0;
+        }
+        if (shouldInvoke)
+            invokeProgressCallback(current);
+    }
+}
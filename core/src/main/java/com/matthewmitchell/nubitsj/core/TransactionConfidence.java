@@ -229,6 +229,14 @@ public class TransactionConfidence implements Serializable {
         return removed;
     }
 
+    /** Returns true if any event listener other than the given one is registered with this confidence object. */
+    public boolean hasEventListenersOtherThan(Listener listener) {
+        for (ListenerRegistration<Listener> registration : listeners)
+            if (registration.listener != listener)
+                return true;
+        return false;
+    }
+
     /**
      * Returns the chain height at which the transaction appeared if confidence type is BUILDING.
      * @throws IllegalStateException if the confidence type is not BUILDING.
@@ -350,6 +358,17 @@ public class TransactionConfidence implements Serializable {
         return ++this.depth;
     }
 
+    /**
+     * Like {@link #incrementDepthInBlocks()}, for when several blocks were added to the top of the chain at once.
+     *
+     * @return the new depth
+     */
+    public synchronized int incrementDepthInBlocks(int blocks) {
+        checkArgument(blocks >= 0);
+        this.depth += blocks;
+        return this.depth;
+    }
+
     /**
      * <p>Depth in the chain is an approximation of how much time has elapsed since the transaction has been confirmed.
      * On average there is supposed to be a new block every 10 minutes, but the actual rate may vary. The reference
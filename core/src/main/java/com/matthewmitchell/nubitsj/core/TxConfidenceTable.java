@@ -23,6 +23,7 @@ import java.lang.ref.*;
 import java.util.*;
 import java.util.concurrent.locks.*;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -35,10 +36,13 @@ import static com.google.common.base.Preconditions.checkNotNull;
  *
  * <p>It is <b>not</b> at this time directly equivalent to the Satoshi clients memory pool, which tracks
  * all transactions not currently included in the best chain - it's simply a cache.</p>
+ *
+ * <p>Every inv from every peer ends up here, so the table is split into a number of independently locked segments
+ * selected by hash. Peers announcing different transactions thus rarely contend with each other, and a whole inv
+ * message can be applied with {@link #seen(List, PeerAddress)} taking each segment lock at most once. Each entry
+ * stores a single {@link Sha256Hash}, shared between the map key, the weak reference and the confidence object.</p>
  */
 public class TxConfidenceTable {
-    protected ReentrantLock lock = Threading.lock("txconfidencetable");
-
     private static class WeakConfidenceReference extends WeakReference<TransactionConfidence> {
         public Sha256Hash hash;
         public WeakConfidenceReference(TransactionConfidence confidence, ReferenceQueue<TransactionConfidence> queue) {
@@ -46,32 +50,61 @@ public class TxConfidenceTable {
             hash = confidence.getTransactionHash();
         }
     }
-    private LinkedHashMap<Sha256Hash, WeakConfidenceReference> table;
+
+    private static class Segment {
+        private final ReentrantLock lock = Threading.lock("txconfidencetable");
+        private final LinkedHashMap<Sha256Hash, WeakConfidenceReference> table;
+
+        private Segment(final int size) {
+            table = new LinkedHashMap<Sha256Hash, WeakConfidenceReference>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Sha256Hash, WeakConfidenceReference> entry) {
+                    // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the event
+                    // of some kind of DoS attack.
+                    return size() > size;
+                }
+            };
+        }
+    }
+
+    private final Segment[] segments;
 
     // This ReferenceQueue gets entries added to it when they are only weakly reachable, ie, the TxConfidenceTable is the
     // only thing that is tracking the confidence data anymore. We check it from time to time and delete table entries
     // corresponding to expired transactions. In this way memory usage of the system is in line with however many
     // transactions you actually care to track the confidence of. We can still end up with lots of hashes being stored
     // if our peers flood us with invs but the MAX_SIZE param caps this.
-    private ReferenceQueue<TransactionConfidence> referenceQueue;
+    private final ReferenceQueue<TransactionConfidence> referenceQueue;
 
     /** The max size of a table created with the no-args constructor. */
     public static final int MAX_SIZE = 1000;
 
+    /** The number of independently locked segments used unless specified otherwise. */
+    public static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
     /**
      * Creates a table that will track at most the given number of transactions (allowing you to bound memory
      * usage).
      * @param size Max number of transactions to track. The table will fill up to this size then stop growing.
      */
     public TxConfidenceTable(final int size) {
-        table = new LinkedHashMap<Sha256Hash, WeakConfidenceReference>() {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, WeakConfidenceReference> entry) {
-                // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the event
-                // of some kind of DoS attack.
-                return size() > size;
-            }
-        };
+        this(size, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * Creates a table that will track at most roughly the given number of transactions, split over the given number
+     * of segments so that peers can update it concurrently.
+     * @param size Max number of transactions to track. Each segment holds an equal share of this, rounded up.
+     * @param concurrencyLevel How many segments to use, rounded down to a power of two and to at most size.
+     */
+    public TxConfidenceTable(final int size, final int concurrencyLevel) {
+        checkArgument(size > 0, "size must be positive");
+        checkArgument(concurrencyLevel > 0, "concurrencyLevel must be positive");
+        int numSegments = Integer.highestOneBit(Math.min(size, concurrencyLevel));
+        int segmentSize = (size + numSegments - 1) / numSegments;
+        segments = new Segment[numSegments];
+        for (int i = 0; i < numSegments; i++)
+            segments[i] = new Segment(segmentSize);
         referenceQueue = new ReferenceQueue<TransactionConfidence>();
     }
 
@@ -83,6 +116,17 @@ public class TxConfidenceTable {
         this(MAX_SIZE);
     }
 
+    private int segmentIndex(Sha256Hash hash) {
+        int h = hash.hashCode();
+        // Spread the bits, the hash code of a tx hash is uniform but the segment count is usually small.
+        h ^= (h >>> 16);
+        return h & (segments.length - 1);
+    }
+
+    private Segment segmentFor(Sha256Hash hash) {
+        return segments[segmentIndex(hash)];
+    }
+
     /**
      * If any transactions have expired due to being only weakly reachable through us, go ahead and delete their
      * table entries - it means we downloaded the transaction and sent it to various event listeners, none of
@@ -90,17 +134,20 @@ public class TxConfidenceTable {
      * are relevant to any of our wallets.
      */
     private void cleanTable() {
-        lock.lock();
-        try {
-            Reference<? extends TransactionConfidence> ref;
-            while ((ref = referenceQueue.poll()) != null) {
-                // Find which transaction got deleted by the GC.
-                WeakConfidenceReference txRef = (WeakConfidenceReference) ref;
-                // And remove the associated map entry so the other bits of memory can also be reclaimed.
-                table.remove(txRef.hash);
+        Reference<? extends TransactionConfidence> ref;
+        while ((ref = referenceQueue.poll()) != null) {
+            // Find which transaction got deleted by the GC.
+            WeakConfidenceReference txRef = (WeakConfidenceReference) ref;
+            // And remove the associated map entry so the other bits of memory can also be reclaimed, unless it was
+            // replaced by a newer confidence object in the meantime.
+            Segment segment = segmentFor(txRef.hash);
+            segment.lock.lock();
+            try {
+                if (segment.table.get(txRef.hash) == txRef)
+                    segment.table.remove(txRef.hash);
+            } finally {
+                segment.lock.unlock();
             }
-        } finally {
-            lock.unlock();
         }
     }
 
@@ -108,24 +155,25 @@ public class TxConfidenceTable {
      * Returns the number of peers that have seen the given hash recently.
      */
     public int numBroadcastPeers(Sha256Hash txHash) {
-        lock.lock();
+        cleanTable();
+        Segment segment = segmentFor(txHash);
+        segment.lock.lock();
         try {
-            cleanTable();
-            WeakConfidenceReference entry = table.get(txHash);
+            WeakConfidenceReference entry = segment.table.get(txHash);
             if (entry == null) {
                 return 0;  // No such TX known.
             } else {
                 TransactionConfidence confidence = entry.get();
                 if (confidence == null) {
                     // Such a TX hash was seen, but nothing seemed to care so we ended up throwing away the data.
-                    table.remove(txHash);
+                    segment.table.remove(txHash);
                     return 0;
                 } else {
                     return confidence.numBroadcastPeers();
                 }
             }
         } finally {
-            lock.unlock();
+            segment.lock.unlock();
         }
     }
 
@@ -137,39 +185,87 @@ public class TxConfidenceTable {
      */
     public TransactionConfidence seen(Sha256Hash hash, PeerAddress byPeer) {
         TransactionConfidence confidence;
-        boolean fresh = false;
-        lock.lock();
-        {
-            cleanTable();
-            confidence = getOrCreate(hash);
+        boolean fresh;
+        cleanTable();
+        Segment segment = segmentFor(hash);
+        segment.lock.lock();
+        try {
+            confidence = getOrCreateLocked(segment, hash);
             fresh = confidence.markBroadcastBy(byPeer);
+        } finally {
+            segment.lock.unlock();
         }
-        lock.unlock();
         if (fresh)
             confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
         return confidence;
     }
 
+    /**
+     * Equivalent to calling {@link #seen(Sha256Hash, PeerAddress)} for each of the given hashes, but takes each
+     * segment lock only once. Used by peers to apply all transaction hashes of an inv message in one go.
+     *
+     * @return the confidence objects, in the same order as the given hashes
+     */
+    public List<TransactionConfidence> seen(List<Sha256Hash> hashes, PeerAddress byPeer) {
+        int size = hashes.size();
+        TransactionConfidence[] confidences = new TransactionConfidence[size];
+        boolean[] fresh = new boolean[size];
+        cleanTable();
+        // Group the hashes by segment so each lock is taken once.
+        int[] segmentIndexes = new int[size];
+        for (int i = 0; i < size; i++)
+            segmentIndexes[i] = segmentIndex(hashes.get(i));
+        for (int s = 0; s < segments.length; s++) {
+            Segment segment = segments[s];
+            boolean locked = false;
+            try {
+                for (int i = 0; i < size; i++) {
+                    if (segmentIndexes[i] != s)
+                        continue;
+                    if (!locked) {
+                        segment.lock.lock();
+                        locked = true;
+                    }
+                    confidences[i] = getOrCreateLocked(segment, hashes.get(i));
+                    fresh[i] = confidences[i].markBroadcastBy(byPeer);
+                }
+            } finally {
+                if (locked)
+                    segment.lock.unlock();
+            }
+        }
+        for (int i = 0; i < size; i++)
+            if (fresh[i])
+                confidences[i].queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
+        return Arrays.asList(confidences);
+    }
+
     /**
      * Returns the {@link TransactionConfidence} for the given hash if we have downloaded it, or null if that tx hash
      * is unknown to the system at this time.
      */
     public TransactionConfidence getOrCreate(Sha256Hash hash) {
         checkNotNull(hash);
-        lock.lock();
+        Segment segment = segmentFor(hash);
+        segment.lock.lock();
         try {
-            WeakConfidenceReference reference = table.get(hash);
-            if (reference != null) {
-                TransactionConfidence confidence = reference.get();
-                if (confidence != null)
-                    return confidence;
-            }
-            TransactionConfidence newConfidence = new TransactionConfidence(hash);
-            table.put(hash, new WeakConfidenceReference(newConfidence, referenceQueue));
-            return newConfidence;
+            return getOrCreateLocked(segment, hash);
         } finally {
-            lock.unlock();
+            segment.lock.unlock();
+        }
+    }
+
+    private TransactionConfidence getOrCreateLocked(Segment segment, Sha256Hash hash) {
+        WeakConfidenceReference reference = segment.table.get(hash);
+        if (reference != null) {
+            TransactionConfidence confidence = reference.get();
+            if (confidence != null)
+                return confidence;
         }
+        TransactionConfidence newConfidence = new TransactionConfidence(hash);
+        WeakConfidenceReference newReference = new WeakConfidenceReference(newConfidence, referenceQueue);
+        segment.table.put(newReference.hash, newReference);
+        return newConfidence;
     }
 
     /**
@@ -178,9 +274,10 @@ public class TxConfidenceTable {
      */
     @Nullable
     public TransactionConfidence get(Sha256Hash hash) {
-        lock.lock();
+        Segment segment = segmentFor(hash);
+        segment.lock.lock();
         try {
-            WeakConfidenceReference ref = table.get(hash);
+            WeakConfidenceReference ref = segment.table.get(hash);
             if (ref == null)
                 return null;
             TransactionConfidence confidence = ref.get();
@@ -189,7 +286,21 @@ public class TxConfidenceTable {
             else
                 return null;
         } finally {
-            lock.unlock();
+            segment.lock.unlock();
+        }
+    }
+
+    /** Returns the number of hashes currently tracked, including ones whose confidence was already collected. */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                size += segment.table.size();
+            } finally {
+                segment.lock.unlock();
+            }
         }
+        return size;
     }
 }
@@ -0,0 +1,362 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.core;
+
+import com.matthewmitchell.nubitsj.utils.Threading;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Coordinates the download of announced transactions across all peers of a {@link PeerGroup}. When the same
+ * transaction is announced by many peers at once, exactly one of them is asked for it via getdata. The others are
+ * remembered as fallbacks: if the chosen peer doesn't deliver within a timeout, says it doesn't have the transaction
+ * or disconnects, the request moves on to the next peer that announced it.</p>
+ *
+ * <p>The number of outstanding requests per peer is also capped, so a single peer flooding us with invs can't end
+ * up being the source for everything. Transactions announced by a peer that is at its limit wait for another
+ * announcer, or for the peer to have capacity again, for as long as the timeout, and are dropped if nobody can be
+ * asked by then. Each peer can only have as many of those waiting as it may have requests outstanding, further
+ * announcements from it are ignored until it catches up.</p>
+ *
+ * <p>The methods used by {@link Peer} are package private, the rest is exposed for monitoring. This class is thread
+ * safe.</p>
+ */
+public class TxRequestTracker {
+    private static final Logger log = LoggerFactory.getLogger(TxRequestTracker.class);
+
+    /** How long a peer has to deliver a requested transaction before the next announcer is asked. */
+    public static final long DEFAULT_TIMEOUT_MSEC = 20 * 1000;
+    /** How many transaction requests may be outstanding against a single peer. */
+    public static final int DEFAULT_MAX_REQUESTS_PER_PEER = 200;
+    // How many delivered hashes to remember, so late announcements of them don't cause another download.
+    private static final int MAX_RECENTLY_RECEIVED = 10000;
+
+    private final ReentrantLock lock = Threading.lock("txrequesttracker");
+    private final NetworkParameters params;
+
+    private static class Request {
+        final Sha256Hash hash;
+        // Keeps the confidence data pinned whilst we wait for the transaction to arrive.
+        final TransactionConfidence confidence;
+        // The peer we asked, or null if the request is waiting for an announcer with capacity.
+        @Nullable Peer peer;
+        // When the peer was asked, or when the request started waiting.
+        long sinceMsec;
+        // The peer whose announcement made the request wait because it was at its limit, while it waits.
+        @Nullable Peer queuedBy;
+        final LinkedList<Peer> fallbacks = new LinkedList<Peer>();
+
+        Request(TransactionConfidence confidence) {
+            this.hash = confidence.getTransactionHash();
+            this.confidence = confidence;
+        }
+    }
+
+    // In the order of their sinceMsec, so checkTimeouts() only has to look at the ones that are due.
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, Request> requests = new LinkedHashMap<Sha256Hash, Request>();
+    @GuardedBy("lock") private final LinkedHashSet<Request> waiting = new LinkedHashSet<Request>();
+    @GuardedBy("lock") private final HashMap<Peer, Integer> requestsPerPeer = new HashMap<Peer, Integer>();
+    @GuardedBy("lock") private final HashMap<Peer, Integer> queuedPerPeer = new HashMap<Peer, Integer>();
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, Boolean> recentlyReceived = new LinkedHashMap<Sha256Hash, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Boolean> eldest) {
+            return size() > MAX_RECENTLY_RECEIVED;
+        }
+    };
+
+    private final AtomicLong duplicatesAvoided = new AtomicLong();
+    private final AtomicLong requestsRetried = new AtomicLong();
+    private volatile long vTimeoutMsec = DEFAULT_TIMEOUT_MSEC;
+    private volatile int vMaxRequestsPerPeer = DEFAULT_MAX_REQUESTS_PER_PEER;
+
+    public TxRequestTracker(NetworkParameters params) {
+        this.params = checkNotNull(params);
+    }
+
+    /**
+     * Called by a peer for a transaction it announced. Returns true if the peer should request it now, or false if
+     * it's already being downloaded (in which case the peer is remembered as a fallback), was downloaded recently, or
+     * the peer has too many outstanding requests.
+     */
+    boolean shouldRequest(Peer peer, TransactionConfidence confidence) {
+        Sha256Hash hash = confidence.getTransactionHash();
+        lock.lock();
+        try {
+            if (recentlyReceived.containsKey(hash))
+                return false;
+            Request request = requests.get(hash);
+            boolean hasCapacity = count(requestsPerPeer, peer) < vMaxRequestsPerPeer;
+            if (request != null) {
+                if (request.peer == null && hasCapacity) {
+                    // Was waiting for an announcer that can be asked.
+                    request.fallbacks.remove(peer);
+                    assignLocked(request, peer);
+                    return true;
+                }
+                if (request.peer != peer && !request.fallbacks.contains(peer)) {
+                    request.fallbacks.add(peer);
+                    duplicatesAvoided.incrementAndGet();
+                }
+                return false;
+            }
+            if (!hasCapacity && count(queuedPerPeer, peer) >= vMaxRequestsPerPeer)
+                return false;  // Flooding us, forget about it. Another announcer can still bring it back.
+            request = new Request(confidence);
+            if (!hasCapacity) {
+                // Leave it for checkTimeouts() to hand to whichever announcer has capacity first.
+                request.fallbacks.add(peer);
+                queueLocked(request, peer);
+                return false;
+            }
+            assignLocked(request, peer);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Called when a transaction was received from any peer, whether we asked for it or not. */
+    void received(Sha256Hash hash) {
+        lock.lock();
+        try {
+            Request request = requests.get(hash);
+            if (request != null)
+                removeLocked(request);
+            recentlyReceived.put(hash, Boolean.TRUE);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Called when the given peer replied to a getdata with a notfound message. */
+    void notFound(Peer peer, List<InventoryItem> items) {
+        Map<Peer, GetDataMessage> retries = new HashMap<Peer, GetDataMessage>();
+        lock.lock();
+        try {
+            for (InventoryItem item : items) {
+                Request request = requests.get(item.hash);
+                if (request != null && request.peer == peer)
+                    retryLocked(request, retries);
+            }
+        } finally {
+            lock.unlock();
+        }
+        send(retries);
+    }
+
+    /** Called when a peer disconnected, to move its outstanding requests to other announcers. */
+    void peerDisconnected(Peer peer) {
+        Map<Peer, GetDataMessage> retries = new HashMap<Peer, GetDataMessage>();
+        lock.lock();
+        try {
+            for (Request request : new ArrayList<Request>(requests.values())) {
+                request.fallbacks.remove(peer);
+                if (request.queuedBy == peer)
+                    request.queuedBy = null;
+                if (request.peer == peer)
+                    retryLocked(request, retries);
+                else if (request.peer == null && request.fallbacks.isEmpty())
+                    removeLocked(request);  // Nobody left who announced it.
+            }
+            requestsPerPeer.remove(peer);
+            queuedPerPeer.remove(peer);
+        } finally {
+            lock.unlock();
+        }
+        send(retries);
+    }
+
+    /**
+     * Hands out requests that were waiting for a peer to have capacity, moves requests that weren't answered within
+     * the timeout on to the next announcer, and drops the ones that waited for as long. Called periodically by the
+     * {@link PeerGroup}.
+     */
+    void checkTimeouts() {
+        Map<Peer, GetDataMessage> retries = new HashMap<Peer, GetDataMessage>();
+        long now = Utils.currentTimeMillis();
+        long timeout = vTimeoutMsec;
+        lock.lock();
+        try {
+            for (Request request : new ArrayList<Request>(waiting))
+                handOutLocked(request, retries);
+            List<Request> due = new ArrayList<Request>();
+            for (Request request : requests.values()) {
+                if (now - request.sinceMsec <= timeout)
+                    break;
+                due.add(request);
+            }
+            for (Request request : due) {
+                if (request.peer != null) {
+                    retryLocked(request, retries);
+                } else {
+                    log.debug("Giving up on downloading tx {}, no announcer had capacity", request.hash);
+                    removeLocked(request);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        send(retries);
+    }
+
+    @GuardedBy("lock")
+    private void retryLocked(Request request, Map<Peer, GetDataMessage> retries) {
+        if (request.peer != null)
+            requestsRetried.incrementAndGet();
+        unassignLocked(request);
+        if (handOutLocked(request, retries))
+            return;
+        if (request.fallbacks.isEmpty()) {
+            // Nobody else announced it, so give up on it like a single peer would.
+            log.debug("Giving up on downloading tx {}", request.hash);
+            removeLocked(request);
+        } else {
+            // Everyone who did is busy.
+            queueLocked(request, null);
+        }
+    }
+
+    // Asks the first announcer that has capacity, returning false if there is none.
+    @GuardedBy("lock")
+    private boolean handOutLocked(Request request, Map<Peer, GetDataMessage> retries) {
+        Iterator<Peer> it = request.fallbacks.iterator();
+        while (it.hasNext()) {
+            Peer peer = it.next();
+            if (count(requestsPerPeer, peer) < vMaxRequestsPerPeer) {
+                it.remove();
+                assignLocked(request, peer);
+                GetDataMessage getdata = retries.get(peer);
+                if (getdata == null) {
+                    getdata = new GetDataMessage(params);
+                    retries.put(peer, getdata);
+                }
+                getdata.addTransaction(request.hash);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @GuardedBy("lock")
+    private void assignLocked(Request request, Peer peer) {
+        unqueueLocked(request);
+        request.peer = peer;
+        touchLocked(request);
+        requestsPerPeer.put(peer, count(requestsPerPeer, peer) + 1);
+    }
+
+    @GuardedBy("lock")
+    private void unassignLocked(Request request) {
+        if (request.peer == null)
+            return;
+        decrement(requestsPerPeer, request.peer);
+        request.peer = null;
+    }
+
+    @GuardedBy("lock")
+    private void queueLocked(Request request, @Nullable Peer queuedBy) {
+        waiting.add(request);
+        request.queuedBy = queuedBy;
+        if (queuedBy != null)
+            queuedPerPeer.put(queuedBy, count(queuedPerPeer, queuedBy) + 1);
+        touchLocked(request);
+    }
+
+    @GuardedBy("lock")
+    private void unqueueLocked(Request request) {
+        if (!waiting.remove(request))
+            return;
+        if (request.queuedBy != null)
+            decrement(queuedPerPeer, request.queuedBy);
+        request.queuedBy = null;
+    }
+
+    @GuardedBy("lock")
+    private void removeLocked(Request request) {
+        requests.remove(request.hash);
+        unqueueLocked(request);
+        unassignLocked(request);
+    }
+
+    // Restarts the clock of the request and moves it to the end of the requests.
+    @GuardedBy("lock")
+    private void touchLocked(Request request) {
+        request.sinceMsec = Utils.currentTimeMillis();
+        requests.remove(request.hash);
+        requests.put(request.hash, request);
+    }
+
+    private static int count(Map<Peer, Integer> counts, Peer peer) {
+        Integer num = counts.get(peer);
+        return num == null ? 0 : num;
+    }
+
+    private static void decrement(Map<Peer, Integer> counts, Peer peer) {
+        int num = count(counts, peer) - 1;
+        if (num > 0)
+            counts.put(peer, num);
+        else
+            counts.remove(peer);
+    }
+
+    private void send(Map<Peer, GetDataMessage> retries) {
+        for (Map.Entry<Peer, GetDataMessage> entry : retries.entrySet()) {
+            log.debug("{}: getdata on {} txns another peer failed to deliver", entry.getKey().getAddress(),
+                    entry.getValue().getItems().size());
+            entry.getKey().sendMessage(entry.getValue());
+        }
+    }
+
+    /** Returns how many announcements did not result in a getdata because another peer was already asked. */
+    public long getDuplicatesAvoided() {
+        return duplicatesAvoided.get();
+    }
+
+    /** Returns how many requests were moved to another peer after a timeout, notfound or disconnect. */
+    public long getRequestsRetried() {
+        return requestsRetried.get();
+    }
+
+    /** Returns the number of transactions currently being waited for. */
+    public int numPendingRequests() {
+        lock.lock();
+        try {
+            return requests.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Sets how long a peer has to deliver a requested transaction before the next announcer is asked. */
+    public void setTimeoutMsec(long timeoutMsec) {
+        checkArgument(timeoutMsec > 0);
+        this.vTimeoutMsec = timeoutMsec;
+    }
+
+    /** Sets how many transaction requests may be outstanding against a single peer. */
+    public void setMaxRequestsPerPeer(int maxRequestsPerPeer) {
+        checkArgument(maxRequestsPerPeer > 0);
+        this.vMaxRequestsPerPeer = maxRequestsPerPeer;
+    }
+}
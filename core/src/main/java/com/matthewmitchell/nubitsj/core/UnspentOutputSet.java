@@ -0,0 +1,249 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.core;
+
+import com.matthewmitchell.nubitsj.wallet.AllowUnconfirmedCoinSelector;
+import com.matthewmitchell.nubitsj.wallet.CoinSelector;
+import com.matthewmitchell.nubitsj.wallet.DefaultCoinSelector;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>The outputs a {@link Wallet} could spend, which keeps running totals of their value so that
+ * {@link Wallet#getBalance(Wallet.BalanceType)} doesn't have to go over all of them and run the coin selector.</p>
+ *
+ * <p>Every output is filed by three flags: whether the wallet can sign for it, whether its transaction is mature and
+ * whether the {@link DefaultCoinSelector} would pick it. The same flags let
+ * {@link Wallet#calculateAllSpendCandidates(boolean, boolean)} filter the outputs without looking up keys or redeem
+ * scripts in the key chains for each of them. The flags are worked out when the output is added, and the
+ * wallet calls {@link #refresh(Transaction)} when the confidence of a transaction changes in a way that could change
+ * them. The totals for each combination of flags are kept in an array that is replaced on every change, so balances can
+ * be read without holding the wallet lock.</p>
+ */
+class UnspentOutputSet extends HashSet<TransactionOutput> {
+    private static final int SIGNABLE = 1;
+    private static final int MATURE = 2;
+    private static final int SELECTABLE = 4;
+
+    private final Wallet wallet;
+    private final HashMap<TransactionOutput, Integer> flags = new HashMap<TransactionOutput, Integer>();
+    // Total value of the outputs with each combination of flags. Never modified once published.
+    private volatile long[] totals = new long[8];
+    private int unsignable;
+    // Set when keys were added to or removed from the wallet, as that can change which outputs we can sign for.
+    private transient volatile boolean keysAdded, keysRemoved;
+
+    UnspentOutputSet(Wallet wallet) {
+        this.wallet = wallet;
+    }
+
+    @Override
+    public boolean add(TransactionOutput output) {
+        if (!super.add(output))
+            return false;
+        int f = calculateFlags(output);
+        flags.put(output, f);
+        if ((f & SIGNABLE) == 0)
+            unsignable++;
+        long[] t = totals.clone();
+        t[f] += output.getValue().value;
+        totals = t;
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!super.remove(o))
+            return false;
+        forget((TransactionOutput) o);
+        return true;
+    }
+
+    private void forget(TransactionOutput output) {
+        int f = flags.remove(output);
+        if ((f & SIGNABLE) == 0)
+            unsignable--;
+        long[] t = totals.clone();
+        t[f] -= output.getValue().value;
+        totals = t;
+    }
+
+    @Override
+    public Iterator<TransactionOutput> iterator() {
+        final Iterator<TransactionOutput> iterator = super.iterator();
+        return new Iterator<TransactionOutput>() {
+            private TransactionOutput last;
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public TransactionOutput next() {
+                return last = iterator.next();
+            }
+
+            @Override
+            public void remove() {
+                iterator.remove();
+                forget(last);
+            }
+        };
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        flags.clear();
+        unsignable = 0;
+        totals = new long[8];
+    }
+
+    private int calculateFlags(TransactionOutput output) {
+        int f = 0;
+        try {
+            if (wallet.canSignFor(output.getScriptPubKey()))
+                f |= SIGNABLE;
+        } catch (ScriptException e) {
+            // Can't sign for what we can't parse.
+        }
+        Transaction tx = output.getParentTransaction();
+        if (tx == null || tx.isMature())
+            f |= MATURE;
+        if (tx == null || DefaultCoinSelector.isSelectable(tx))
+            f |= SELECTABLE;
+        return f;
+    }
+
+    /** Works out the maturity and selectability of the outputs of the given transaction again. */
+    void refresh(Transaction tx) {
+        long[] t = null;
+        for (TransactionOutput output : tx.getOutputs()) {
+            Integer old = flags.get(output);
+            if (old == null)
+                continue;
+            int f = (calculateFlags(output) & ~SIGNABLE) | (old & SIGNABLE);
+            if (f == old)
+                continue;
+            if (t == null)
+                t = totals.clone();
+            long value = output.getValue().value;
+            t[old] -= value;
+            t[f] += value;
+            flags.put(output, f);
+        }
+        if (t != null)
+            totals = t;
+    }
+
+    /** Works out the flags of every output again. */
+    void recalculate() {
+        long[] t = new long[8];
+        unsignable = 0;
+        for (TransactionOutput output : this) {
+            int f = calculateFlags(output);
+            flags.put(output, f);
+            if ((f & SIGNABLE) == 0)
+                unsignable++;
+            t[f] += output.getValue().value;
+        }
+        totals = t;
+    }
+
+    /**
+     * Returns the outputs, leaving out those of immature coinbases and those we can't sign for if asked to. Must be
+     * called with the wallet lock held.
+     */
+    List<TransactionOutput> getCandidates(boolean excludeImmatureCoinbases, boolean excludeUnsignable) {
+        checkKeys();
+        int required = (excludeImmatureCoinbases ? MATURE : 0) | (excludeUnsignable ? SIGNABLE : 0);
+        List<TransactionOutput> candidates = new ArrayList<TransactionOutput>(size());
+        for (Map.Entry<TransactionOutput, Integer> entry : flags.entrySet()) {
+            if ((entry.getValue() & required) == required)
+                candidates.add(entry.getKey());
+        }
+        return candidates;
+    }
+
+    /** Called when keys were added to the wallet. Can be called without holding the wallet lock. */
+    void keysAdded() {
+        keysAdded = true;
+    }
+
+    /** Called when keys were removed from the wallet. Can be called without holding the wallet lock. */
+    void keysRemoved() {
+        keysRemoved = true;
+    }
+
+    // Counts signability again if keys changed since it was worked out.
+    private void checkKeys() {
+        // Adding keys can only make outputs signable, so there is nothing to do if they all are already.
+        boolean recalculate = keysRemoved || (keysAdded && unsignable > 0);
+        keysAdded = keysRemoved = false;
+        if (recalculate)
+            recalculate();
+    }
+
+    /** Returns true if the given selector picks the same outputs that the totals were kept for. */
+    static boolean canSum(CoinSelector selector) {
+        return selector.getClass() == DefaultCoinSelector.class || selector.getClass() == AllowUnconfirmedCoinSelector.class;
+    }
+
+    /**
+     * Returns the balance as {@link Wallet#getBalance(Wallet.BalanceType)} calculates it when the given selector is
+     * used, which must be one {@link #canSum(CoinSelector)} accepts.
+     */
+    Coin getBalance(Wallet.BalanceType balanceType, CoinSelector selector) {
+        if (keysAdded || keysRemoved) {
+            wallet.lock.lock();
+            try {
+                checkKeys();
+            } finally {
+                wallet.lock.unlock();
+            }
+        }
+        int required;
+        switch (balanceType) {
+            case AVAILABLE:
+                required = selector.getClass() == DefaultCoinSelector.class ? MATURE | SELECTABLE : MATURE;
+                break;
+            case AVAILABLE_SPENDABLE:
+                required = selector.getClass() == DefaultCoinSelector.class ? MATURE | SELECTABLE | SIGNABLE : MATURE | SIGNABLE;
+                break;
+            case ESTIMATED:
+                required = 0;
+                break;
+            case ESTIMATED_SPENDABLE:
+                required = SIGNABLE;
+                break;
+            case ESTMINUSFEE:
+                return getBalance(Wallet.BalanceType.ESTIMATED, selector).subtract(Transaction.REFERENCE_DEFAULT_MIN_TX_FEE);
+            default:
+                throw new AssertionError("Unknown balance type");  // Unreachable.
+        }
+        long[] t = totals;
+        long total = 0;
+        for (int f = 0; f < t.length; f++)
+            if ((f & required) == required)
+                total += t[f];
+        return Coin.valueOf(total);
+    }
+}
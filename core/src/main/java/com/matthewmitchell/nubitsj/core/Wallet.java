@@ -43,6 +43,7 @@ import org.spongycastle.crypto.params.*;
 import javax.annotation.*;
 
 import java.io.*;
+import java.security.MessageDigest;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
@@ -90,11 +91,18 @@ import com.matthewmitchell.nubitsj.store.ValidHashStore;
  * {@link Wallet#autosaveToFile(java.io.File, long, java.util.concurrent.TimeUnit, com.matthewmitchell.nubitsj.wallet.WalletFiles.Listener)}
  * for more information about this.</p>
  */
-public class Wallet extends BaseTaggableObject implements Serializable, BlockChainListener, PeerFilterProvider, KeyBag, TransactionBag {
+public class Wallet extends BaseTaggableObject implements Serializable, BlockChainListener, HeaderBatchListener, BlockTransactionsListener,
+        IncrementalPeerFilterProvider, KeyBag, TransactionBag {
     private static final Logger log = LoggerFactory.getLogger(Wallet.class);
     private static final long serialVersionUID = 2L;
     private static final int MINIMUM_BLOOM_DATA_LENGTH = 8;
 
+    /**
+     * The default number of watched scripts above which the wallet stops putting them into its Bloom filter, see
+     * {@link #setMaxBloomWatchedScripts(int)}.
+     */
+    public static final int DEFAULT_MAX_BLOOM_WATCHED_SCRIPTS = 10000;
+
     // Ordering: lock > keychainLock. Keychain is protected separately to allow fast querying of current receive address
     // even if the wallet itself is busy e.g. saving or processing a big reorg. Useful for reducing UI latency.
     protected final ReentrantLock lock = Threading.lock("wallet");
@@ -127,9 +135,29 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     // All transactions together.
     protected final Map<Sha256Hash, Transaction> transactions;
 
+    // Bumped whenever one of the maps above changes, so readers can tell that the published snapshot is out of date.
+    private volatile int poolsVersion;
+    // Copies of the pools for queries that shouldn't wait for the lock, see snapshot().
+    @Nullable private transient volatile Snapshot snapshot;
+    // Spent and dead transactions that weren't parsed yet, see setSerializedTransactions(). The pools look them up
+    // here when they don't have a transaction.
+    @GuardedBy("lock") @Nullable private SerializedTransactions serializedTransactions;
+    // Transactions changed since they were last written to the journal, or null when the wallet isn't journaled.
+    // See saveToJournal().
+    @GuardedBy("lock") @Nullable private transient Set<Transaction> journalChanges;
+    // Set when a change can't be journaled, so the whole wallet has to be saved again.
+    @GuardedBy("lock") private transient boolean journalNeedsCompaction;
+    // Set when the keys, watched scripts, extensions or other wallet wide fields changed, so the next journal record
+    // has to hold them. Volatile as the keychain is changed without the wallet lock.
+    private transient volatile boolean journalHeaderChanged;
+    // Hash of the serialized extensions as the journal last has them, as extensions can change without telling the
+    // wallet. See saveToJournal().
+    @GuardedBy("lock") @Nullable private transient Sha256Hash journalExtensionsHash;
+
     // All the TransactionOutput objects that we could spend (ignoring whether we have the private key or not).
-    // Used to speed up various calculations.
-    protected final HashSet<TransactionOutput> myUnspents = Sets.newHashSet();
+    // Used to speed up various calculations. It also keeps the running totals that getBalance reads.
+    private final UnspentOutputSet unspentOutputs = new UnspentOutputSet(this);
+    protected final HashSet<TransactionOutput> myUnspents = unspentOutputs;
     // Transactions that were dropped by the risk analysis system. These are not in any pools and not serialized
     // to disk. We have to keep them around because if we ignore a tx because we think it will never confirm, but
     // then it actually does confirm and does so within the same network session, remote peers will not resend us
@@ -150,13 +178,19 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
 
     // A list of scripts watched by this wallet.
     @GuardedBy("keychainLock") private Set<Script> watchedScripts;
+    // The same scripts as compact hashes, for checking outputs against them without taking the keychain lock.
+    private transient ScriptHashSet watchedScriptHashes;
+    // Past this many watched scripts the Bloom filter would match too much to be useful, so it matches everything
+    // and full blocks are downloaded instead.
+    private volatile int vMaxBloomWatchedScripts = DEFAULT_MAX_BLOOM_WATCHED_SCRIPTS;
 
     protected final Context context;
     protected final NetworkParameters params;
 
-    @Nullable private Sha256Hash lastBlockSeenHash;
-    private int lastBlockSeenHeight;
-    private long lastBlockSeenTimeSecs;
+    // Volatile so snapshot() can tell whether its copy is current without the lock.
+    @Nullable private volatile Sha256Hash lastBlockSeenHash;
+    private volatile int lastBlockSeenHeight;
+    private volatile long lastBlockSeenTimeSecs;
 
     private transient CopyOnWriteArrayList<ListenerRegistration<WalletEventListener>> eventListeners;
 
@@ -164,6 +198,10 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     // as a convenience to API users so they don't have to register on every transaction themselves.
     private transient TransactionConfidence.Listener txConfidenceListener;
 
+    // Hashes of the parsed transactions that appear in each block, so a re-org only has to look at the transactions in
+    // the blocks it swaps. Entries for transactions that left the wallet or the block are dropped when they're found.
+    @GuardedBy("lock") private transient HashMultimap<Sha256Hash, Sha256Hash> blockTransactions;
+
     // If a TX hash appears in this set then notifyNewBestBlock will ignore it, as its confidence was already set up
     // in receive() via Transaction.setBlockAppearance(). As the BlockChain always calls notifyNewBestBlock even if
     // it sent transactions to the wallet, without this we'd double count.
@@ -176,6 +214,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     // side effect of how the code is written (e.g. during re-orgs confidence data gets adjusted multiple times).
     private int onWalletChangedSuppressions;
     private boolean insideReorg;
+    // Coins received and sent while taking in the transactions of a block, announced together once it's done.
+    @Nullable private List<CoinsEvent> blockCoinsEvents;
     private Map<Transaction, TransactionConfidence.Listener.ChangeReason> confidenceChanged;
     protected volatile WalletFiles vFileManager;
     // Object that is used to send transactions asynchronously when the wallet requires it.
@@ -184,7 +224,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     // that was created after it. Useful when you believe some keys have been compromised.
     private volatile long vKeyRotationTimestamp;
 
-    protected transient CoinSelector coinSelector = new DefaultCoinSelector();
+    protected transient volatile CoinSelector coinSelector = new DefaultCoinSelector();
 
     // The wallet version. This is an int that can be used to track breaking changes in the wallet format.
     // You can also use it to detect wallets that come from the future (ie they contain features you
@@ -204,6 +244,9 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
 
     // If this is set then the wallet selects spendable candidate outputs from a UTXO provider.
     @Nullable private volatile UTXOProvider vUTXOProvider;
+
+    // If this is set then AES keys derived from passwords given to the wallet are kept here for a while.
+    @Nullable private volatile DerivedKeyCache vDerivedKeyCache;
     
     private ValidHashStore validHashStore = null;
 
@@ -273,11 +316,11 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         if (this.keychain.numKeys() == 0)
             this.keychain.createAndActivateNewHDChain();
         watchedScripts = Sets.newHashSet();
-        unspent = new HashMap<Sha256Hash, Transaction>();
-        spent = new HashMap<Sha256Hash, Transaction>();
-        pending = new HashMap<Sha256Hash, Transaction>();
-        dead = new HashMap<Sha256Hash, Transaction>();
-        transactions = new HashMap<Sha256Hash, Transaction>();
+        unspent = new PoolMap(Pool.UNSPENT);
+        spent = new PoolMap(Pool.SPENT);
+        pending = new PoolMap(Pool.PENDING);
+        dead = new PoolMap(Pool.DEAD);
+        transactions = new PoolMap(null);
         eventListeners = new CopyOnWriteArrayList<ListenerRegistration<WalletEventListener>>();
         extensions = new HashMap<String, WalletExtension>();
         // Use a linked hash map to ensure ordering of event listeners is correct.
@@ -290,6 +333,36 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
 
     private void createTransientState() {
         ignoreNextNewBlock = new HashSet<Sha256Hash>();
+        blockTransactions = HashMultimap.create();
+        for (Transaction tx : getParsedTransactions())
+            indexBlockAppearances(tx);
+        bloomFilterDeltaListeners = new CopyOnWriteArrayList<IncrementalPeerFilterProvider.DeltaListener>();
+        bloomReportedOutPoints = new HashSet<TransactionOutPoint>();
+        watchedScriptHashes = new ScriptHashSet(watchedScripts.size());
+        for (Script script : watchedScripts)
+            watchedScriptHashes.add(script.getProgram());
+        // Runs synchronously on whatever thread added the keys, so filter deltas are never missed or reordered.
+        keychain.addEventListener(new KeyChainEventListener() {
+            @Override
+            public void onKeysAdded(List<ECKey> keys) {
+                journalHeaderChanged = true;
+                // Outputs we couldn't sign for may now be spendable. Counted lazily as we can't take the wallet lock.
+                unspentOutputs.keysAdded();
+                if (bloomFilterDeltaListeners.isEmpty())
+                    return;
+                if (keychain.isMarried()) {
+                    // Married chains put P2SH data into the filter rather than the keys themselves.
+                    notifyBloomFilterRebuildRequired();
+                    return;
+                }
+                List<byte[]> elements = new ArrayList<byte[]>(keys.size() * 2);
+                for (ECKey key : keys) {
+                    elements.add(key.getPubKey());
+                    elements.add(key.getPubKeyHash());
+                }
+                notifyBloomFilterElementsAdded(elements);
+            }
+        }, Threading.SAME_THREAD);
         txConfidenceListener = new TransactionConfidence.Listener() {
             @Override
             public void onConfidenceChanged(TransactionConfidence confidence, TransactionConfidence.Listener.ChangeReason reason) {
@@ -302,8 +375,11 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 if (reason == ChangeReason.SEEN_PEERS) {
                     lock.lock();
                     try {
-                        checkBalanceFuturesLocked(null);
                         Transaction tx = getTransaction(confidence.getTransactionHash());
+                        // More peers may make our own pending transaction selectable.
+                        if (tx != null)
+                            unspentOutputs.refresh(tx);
+                        checkBalanceFuturesLocked(null);
                         queueOnTransactionConfidenceChanged(tx);
                         maybeQueueOnWalletChanged();
                     } finally {
@@ -335,9 +411,10 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     public void addTransactionSigner(TransactionSigner signer) {
         lock.lock();
         try {
-            if (signer.isReady())
+            if (signer.isReady()) {
                 signers.add(signer);
-            else
+                journalHeaderChanged = true;
+            } else
                 throw new IllegalStateException("Signer instance is not ready to be added into Wallet: " + signer.getClass());
         } finally {
             lock.unlock();
@@ -368,7 +445,11 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         keychainLock.lock();
         try {
             maybeUpgradeToHD();
-            return keychain.currentKey(purpose);
+            int issued = countIssuedKeys();
+            DeterministicKey key = keychain.currentKey(purpose);
+            if (countIssuedKeys() != issued)
+                journalHeaderChanged = true;
+            return key;
         } finally {
             keychainLock.unlock();
         }
@@ -389,7 +470,11 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         keychainLock.lock();
         try {
             maybeUpgradeToHD();
-            return keychain.currentAddress(purpose);
+            int issued = countIssuedKeys();
+            Address address = keychain.currentAddress(purpose);
+            if (countIssuedKeys() != issued)
+                journalHeaderChanged = true;
+            return address;
         } finally {
             keychainLock.unlock();
         }
@@ -429,6 +514,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         try {
             maybeUpgradeToHD();
             keys = keychain.freshKeys(purpose, numberOfKeys);
+            journalHeaderChanged = true;
         } finally {
             keychainLock.unlock();
         }
@@ -454,6 +540,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         keychainLock.lock();
         try {
             key = keychain.freshAddress(purpose);
+            journalHeaderChanged = true;
         } finally {
             keychainLock.unlock();
         }
@@ -505,6 +592,9 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         keychainLock.lock();
         try {
             keychain.upgradeToDeterministic(vKeyRotationTimestamp, aesKey);
+            journalHeaderChanged = true;
+            // The keys of a new chain aren't reported as added.
+            notifyBloomFilterRebuildRequired();
         } finally {
             keychainLock.unlock();
         }
@@ -563,7 +653,13 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     public boolean removeKey(ECKey key) {
         keychainLock.lock();
         try {
-            return keychain.removeImportedKey(key);
+            boolean removed = keychain.removeImportedKey(key);
+            if (removed) {
+                journalHeaderChanged = true;
+                unspentOutputs.keysRemoved();
+                notifyBloomFilterRebuildRequired();
+            }
+            return removed;
         } finally {
             keychainLock.unlock();
         }
@@ -639,6 +735,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         keychainLock.lock();
         try {
             result = keychain.importKeys(keys);
+            journalHeaderChanged = true;
         } finally {
             keychainLock.unlock();
         }
@@ -658,7 +755,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         keychainLock.lock();
         try {
             checkNotNull(getKeyCrypter(), "Wallet is not encrypted");
-            return importKeysAndEncrypt(keys, getKeyCrypter().deriveKey(password));
+            return importKeysAndEncrypt(keys, deriveKey(getKeyCrypter(), password));
         } finally {
             keychainLock.unlock();
         }
@@ -669,6 +766,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         keychainLock.lock();
         try {
             checkNoDeterministicKeys(keys);
+            journalHeaderChanged = true;
             return keychain.importKeysAndEncrypt(keys, aesKey);
         } finally {
             keychainLock.unlock();
@@ -690,6 +788,9 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         keychainLock.lock();
         try {
             keychain.addAndActivateHDChain(chain);
+            journalHeaderChanged = true;
+            // The keys the chain already has aren't reported as added.
+            notifyBloomFilterRebuildRequired();
         } finally {
             keychainLock.unlock();
         }
@@ -700,6 +801,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         keychainLock.lock();
         try {
             keychain.setLookaheadSize(lookaheadSize);
+            journalHeaderChanged = true;
         } finally {
             keychainLock.unlock();
         }
@@ -721,6 +823,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         try {
             maybeUpgradeToHD();
             keychain.setLookaheadThreshold(num);
+            journalHeaderChanged = true;
         } finally {
             keychainLock.unlock();
         }
@@ -827,16 +930,31 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         int added = 0;
         keychainLock.lock();
         try {
+            boolean wasInBloomFilter = isWatchingInBloomFilter();
+            int zeroCreationTimes = 0;
             for (final Script script : scripts) {
                 // Script.equals/hashCode() only takes into account the program bytes, so this step lets the user replace
                 // a script in the wallet with an incorrect creation time.
                 if (watchedScripts.contains(script))
                     watchedScripts.remove(script);
-                if (script.getCreationTimeSeconds() == 0)
+                if (script.getCreationTimeSeconds() == 0 && zeroCreationTimes++ < 10)
                     log.warn("Adding a script to the wallet with a creation time of zero, this will disable the checkpointing optimization!    {}", script);
                 watchedScripts.add(script);
+                watchedScriptHashes.add(script.getProgram());
                 added++;
             }
+            if (added > 0)
+                journalHeaderChanged = true;
+            if (wasInBloomFilter && !isWatchingInBloomFilter()) {
+                log.info("Watching {} scripts, too many for the Bloom filter, which will now match everything",
+                        watchedScripts.size());
+                notifyBloomFilterRebuildRequired();
+            } else if (isWatchingInBloomFilter() && !bloomFilterDeltaListeners.isEmpty()) {
+                List<byte[]> elements = Lists.newArrayList();
+                for (Script script : scripts)
+                    elements.addAll(getBloomFilterElements(script));
+                notifyBloomFilterElementsAdded(elements);
+            }
         } finally {
             keychainLock.unlock();
         }
@@ -879,18 +997,23 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      */
     public boolean removeWatchedScripts(final List<Script> scripts) {
         lock.lock();
+        keychainLock.lock();
         try {
             for (final Script script : scripts) {
                 if (!watchedScripts.contains(script))
                     continue;
 
                 watchedScripts.remove(script);
+                watchedScriptHashes.remove(script.getProgram());
             }
+            journalHeaderChanged = true;
 
+            notifyBloomFilterRebuildRequired();
             queueOnScriptsChanged(scripts, false);
             saveNow();
             return true;
         } finally {
+            keychainLock.unlock();
             lock.unlock();
         }
     }
@@ -920,12 +1043,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     @Override
     @Nullable
     public ECKey findKeyFromPubHash(byte[] pubkeyHash) {
-        keychainLock.lock();
-        try {
-            return keychain.findKeyFromPubHash(pubkeyHash);
-        } finally {
-            keychainLock.unlock();
-        }
+        // Answered from the group's concurrent index, so the keychain lock isn't needed.
+        return keychain.findKeyFromPubHash(pubkeyHash);
     }
 
     /** Returns true if the given key is in the wallet, false otherwise. Currently an O(N) operation. */
@@ -947,12 +1066,29 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     /** {@inheritDoc} */
     @Override
     public boolean isWatchedScript(Script script) {
-        keychainLock.lock();
-        try {
-            return watchedScripts.contains(script);
-        } finally {
-            keychainLock.unlock();
-        }
+        // Answered from the compact hashes, so checking the outputs of a block doesn't queue on the keychain lock.
+        return watchedScriptHashes.contains(script.getProgram());
+    }
+
+    /**
+     * Sets how many scripts the wallet may watch before it stops putting them into its Bloom filter. Past this the
+     * filter would match so much that it is better to download full blocks, so the wallet gives a filter that matches
+     * everything, which makes the {@link PeerGroup} download full blocks. Outputs are still checked against the
+     * watched scripts here.
+     */
+    public void setMaxBloomWatchedScripts(int maxBloomWatchedScripts) {
+        checkArgument(maxBloomWatchedScripts >= 0);
+        this.vMaxBloomWatchedScripts = maxBloomWatchedScripts;
+        notifyBloomFilterRebuildRequired();
+    }
+
+    public int getMaxBloomWatchedScripts() {
+        return vMaxBloomWatchedScripts;
+    }
+
+    /** Returns whether the watched scripts are few enough to be put into the Bloom filter. */
+    public boolean isWatchingInBloomFilter() {
+        return watchedScriptHashes.size() <= vMaxBloomWatchedScripts;
     }
 
     /**
@@ -962,12 +1098,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     @Override
     @Nullable
     public ECKey findKeyFromPubKey(byte[] pubkey) {
-        keychainLock.lock();
-        try {
-            return keychain.findKeyFromPubKey(pubkey);
-        } finally {
-            keychainLock.unlock();
-        }
+        // Answered from the group's concurrent index, so the keychain lock isn't needed.
+        return keychain.findKeyFromPubKey(pubkey);
     }
 
     /** {@inheritDoc} */
@@ -983,12 +1115,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     @Nullable
     @Override
     public RedeemData findRedeemDataFromScriptHash(byte[] payToScriptHash) {
-        keychainLock.lock();
-        try {
-            return keychain.findRedeemDataFromScriptHash(payToScriptHash);
-        } finally {
-            keychainLock.unlock();
-        }
+        // Answered from the group's concurrent index, so the keychain lock isn't needed.
+        return keychain.findRedeemDataFromScriptHash(payToScriptHash);
     }
 
     /** {@inheritDoc} */
@@ -1004,6 +1132,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     private void markKeysAsUsed(Transaction tx) {
         keychainLock.lock();
         try {
+            int issued = countIssuedKeys();
             for (TransactionOutput o : tx.getOutputs()) {
                 try {
                     Script script = o.getScriptPubKey();
@@ -1022,11 +1151,21 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                     log.warn("Could not parse tx output script: {}", e.toString());
                 }
             }
+            if (countIssuedKeys() != issued)
+                journalHeaderChanged = true;
         } finally {
             keychainLock.unlock();
         }
     }
 
+    @GuardedBy("keychainLock")
+    private int countIssuedKeys() {
+        int issued = 0;
+        for (DeterministicKeyChain chain : keychain.getDeterministicKeyChains())
+            issued += chain.getIssuedExternalKeys() + chain.getIssuedInternalKeys();
+        return issued;
+    }
+
     /**
      * Returns the immutable seed for the current active HD chain.
      * @throws com.matthewmitchell.nubitsj.core.ECKey.MissingPrivateKeyException if the seed is unavailable (watching wallet)
@@ -1067,6 +1206,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         try {
             final KeyCrypterScrypt scrypt = new KeyCrypterScrypt();
             keychain.encrypt(scrypt, scrypt.deriveKey(password));
+            journalHeaderChanged = true;
         } finally {
             keychainLock.unlock();
         }
@@ -1085,6 +1225,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         keychainLock.lock();
         try {
             keychain.encrypt(keyCrypter, aesKey);
+            journalHeaderChanged = true;
         } finally {
             keychainLock.unlock();
         }
@@ -1100,7 +1241,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         try {
             final KeyCrypter crypter = keychain.getKeyCrypter();
             checkState(crypter != null, "Not encrypted");
-            keychain.decrypt(crypter.deriveKey(password));
+            keychain.decrypt(deriveKey(crypter, password));
+            journalHeaderChanged = true;
         } finally {
             keychainLock.unlock();
         }
@@ -1117,6 +1259,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         keychainLock.lock();
         try {
             keychain.decrypt(aesKey);
+            journalHeaderChanged = true;
         } finally {
             keychainLock.unlock();
         }
@@ -1133,12 +1276,36 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     public boolean checkPassword(CharSequence password) {
         keychainLock.lock();
         try {
-            return keychain.checkPassword(password);
+            final KeyCrypter crypter = keychain.getKeyCrypter();
+            checkState(crypter != null, "Not encrypted");
+            return keychain.checkAESKey(deriveKey(crypter, password));
         } finally {
             keychainLock.unlock();
         }
     }
 
+    /**
+     * Sets a cache for the AES keys the wallet derives from passwords given to {@link #decrypt(CharSequence)},
+     * {@link #checkPassword(CharSequence)}, {@link #changeEncryptionPassword(CharSequence, CharSequence)} and
+     * {@link #importKeysAndEncrypt(List, CharSequence)}, so that giving the same password again soon after doesn't
+     * derive the key again. The cache can also be used to get the key for {@link SendRequest#aesKey}. Pass null to stop
+     * caching.
+     */
+    public void setDerivedKeyCache(@Nullable DerivedKeyCache cache) {
+        vDerivedKeyCache = cache;
+    }
+
+    /** Returns the cache set by {@link #setDerivedKeyCache(DerivedKeyCache)}, or null. */
+    @Nullable
+    public DerivedKeyCache getDerivedKeyCache() {
+        return vDerivedKeyCache;
+    }
+
+    private KeyParameter deriveKey(KeyCrypter crypter, CharSequence password) {
+        DerivedKeyCache cache = vDerivedKeyCache;
+        return cache != null ? cache.deriveKey(crypter, password) : crypter.deriveKey(password);
+    }
+
     /**
      *  Check whether the AES key can decrypt the first encrypted key in the wallet.
      *
@@ -1233,6 +1400,9 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         FileOutputStream stream = null;
         lock.lock();
         try {
+            // If this is the journaled file, the journal no longer applies to it.
+            if (journalChanges != null)
+                journalNeedsCompaction = true;
             stream = new FileOutputStream(temp);
             saveToFileStream(stream);
             // Attempt to force the bits to hit the disk. In reality the OS or hard disk itself may still decide
@@ -1266,6 +1436,101 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         }
     }
 
+    /**
+     * Saves the whole wallet like {@link #saveToFile(File, File)} and then starts the given journal over, so that from
+     * now on changes can be appended to it with {@link #saveToJournal(WalletJournal)}.
+     */
+    public void saveToFile(File temp, File destFile, WalletJournal journal) throws IOException {
+        lock.lock();
+        try {
+            // Cleared first, so keychain changes made while the file is written get into the journal again.
+            journalHeaderChanged = false;
+            journalExtensionsHash = hashExtensions();
+            saveToFile(temp, destFile);
+            journal.reset(Sha256Hash.of(destFile));
+            journalChanges = new HashSet<Transaction>();
+            journalNeedsCompaction = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends the transactions that changed since the last save to the given journal, along with the wallet wide
+     * fields if they changed, and waits for them to reach the disk. Returns false without writing anything if the
+     * whole wallet has to be saved with {@link #saveToFile(File, File, WalletJournal)} instead, which is the case
+     * before the first such save, after transactions were removed from the wallet and after the wallet file was
+     * written some other way.
+     */
+    public boolean saveToJournal(WalletJournal journal) throws IOException {
+        long record;
+        lock.lock();
+        try {
+            if (journalChanges == null || journalNeedsCompaction || !journal.isOpen())
+                return false;
+            Set<Transaction> changed = new HashSet<Transaction>(journalChanges);
+            // Spending or unspending outputs changes the transactions they are in as well.
+            for (Transaction tx : journalChanges) {
+                for (TransactionInput input : tx.getInputs()) {
+                    Transaction connected = transactions.get(input.getOutpoint().getHash());
+                    if (connected != null)
+                        changed.add(connected);
+                }
+            }
+            List<WalletTransaction> records = new ArrayList<WalletTransaction>(changed.size());
+            for (Transaction tx : changed) {
+                Sha256Hash hash = tx.getHash();
+                if (unspent.get(hash) == tx)
+                    records.add(new WalletTransaction(Pool.UNSPENT, tx));
+                else if (spent.get(hash) == tx)
+                    records.add(new WalletTransaction(Pool.SPENT, tx));
+                else if (pending.get(hash) == tx)
+                    records.add(new WalletTransaction(Pool.PENDING, tx));
+                else if (dead.get(hash) == tx)
+                    records.add(new WalletTransaction(Pool.DEAD, tx));
+                else
+                    return false;  // Removed from the wallet, which the journal can't express.
+            }
+            journalChanges.clear();
+            // Cleared before the header is serialized, for the same reason as in saveToFile(). Extensions that changed
+            // in place only show in their bytes.
+            Sha256Hash extensionsHash = hashExtensions();
+            boolean headerChanged = journalHeaderChanged || !extensionsHash.equals(journalExtensionsHash);
+            journalHeaderChanged = false;
+            journalExtensionsHash = extensionsHash;
+            record = journal.add(this, records, headerChanged);
+        } finally {
+            lock.unlock();
+        }
+        try {
+            journal.sync(record);
+        } catch (IOException e) {
+            lock.lock();
+            try {
+                journalNeedsCompaction = true;
+            } finally {
+                lock.unlock();
+            }
+            throw e;
+        }
+        return true;
+    }
+
+    // Hashes the ids and serialized forms of the extensions, as they are written to the wallet file.
+    @GuardedBy("lock")
+    private Sha256Hash hashExtensions() {
+        MessageDigest digest = Sha256Hash.newDigest();
+        for (WalletExtension extension : new TreeMap<String, WalletExtension>(extensions).values()) {
+            byte[] id = extension.getWalletExtensionID().getBytes(Charsets.UTF_8);
+            byte[] data = extension.serializeWalletExtension();
+            digest.update(Ints.toByteArray(id.length));
+            digest.update(id);
+            digest.update(Ints.toByteArray(data.length));
+            digest.update(data);
+        }
+        return new Sha256Hash(digest.digest());
+    }
+
     /**
      * Uses protobuf serialization to save the wallet to the given file. To learn more about this file format, see
      * {@link WalletProtobufSerializer}. Writes out first to a temporary file in the same directory and then renames
@@ -1358,10 +1623,29 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      */
     public WalletFiles autosaveToFile(File f, long delayTime, TimeUnit timeUnit,
                                       @Nullable WalletFiles.Listener eventListener) {
+        return autosaveToFile(f, delayTime, timeUnit, eventListener, false);
+    }
+
+    /**
+     * Like {@link #autosaveToFile(File, long, TimeUnit, WalletFiles.Listener)}, but if journal is true, changes are
+     * appended to a {@link WalletJournal} next to the wallet file instead of writing the whole wallet every time. The
+     * journal is folded back into the wallet file in the background once it grows large, and is replayed by
+     * {@link #loadFromFile(File, ValidHashStore, WalletExtension...)}. The listener is only called when the wallet
+     * file itself is written.
+     *
+     * <p>Keys, watched scripts, extensions and the other wallet wide state are written to the journal again whenever
+     * they change. Changes made through the wallet's own methods are noticed as they happen. Every extension is also
+     * serialized on each journaled save and compared with what the journal last got, so an extension that changes its
+     * state in place is journaled too, but only on a save that happens for some other reason: call
+     * {@link #addOrUpdateExtension(WalletExtension)} to get such a change saved straight away. Extensions should
+     * therefore serialize quickly and give the same bytes for the same state.</p>
+     */
+    public WalletFiles autosaveToFile(File f, long delayTime, TimeUnit timeUnit,
+                                      @Nullable WalletFiles.Listener eventListener, boolean journal) {
         lock.lock();
         try {
             checkState(vFileManager == null, "Already auto saving this wallet.");
-            WalletFiles manager = new WalletFiles(this, f, delayTime, timeUnit);
+            WalletFiles manager = new WalletFiles(this, f, delayTime, timeUnit, journal);
             if (eventListener != null)
                 manager.setListener(eventListener);
             vFileManager = manager;
@@ -1385,6 +1669,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             vFileManager = null;
             checkState(files != null, "Auto saving not enabled.");
             files.shutdownAndWait();
+            journalChanges = null;
         } finally {
             lock.unlock();
         }
@@ -1440,16 +1725,45 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      * <p>Returns a wallet deserialized from the given file. Extensions previously saved with the wallet can be
      * deserialized by calling @{@link WalletExtension#deserializeWalletExtension(Wallet, byte[])}}</p>
      *
+     * <p>If the wallet was auto saved with a journal, the journal is replayed on top of the file.</p>
+     *
      * @param file the wallet file to read
      * @param validHashStore Valid hash store
      * @param walletExtensions extensions possibly added to the wallet.
      */
     public static Wallet loadFromFile(File file, ValidHashStore validHashStore, @Nullable WalletExtension... walletExtensions) throws UnreadableWalletException {
+        return loadFromFile(file, validHashStore, false, walletExtensions);
+    }
+
+    /**
+     * Like {@link #loadFromFile(File, ValidHashStore, WalletExtension...)}, but if parseHistoryLazily is true, spent
+     * and dead transactions are only parsed when they are asked for, see
+     * {@link WalletProtobufSerializer#setParseHistoryLazily(boolean)}.
+     */
+    public static Wallet loadFromFile(File file, ValidHashStore validHashStore, boolean parseHistoryLazily,
+                                      @Nullable WalletExtension... walletExtensions) throws UnreadableWalletException {
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        serializer.setParseHistoryLazily(parseHistoryLazily);
         try {
+            if (WalletJournal.journalFile(file).exists()) {
+                com.matthewmitchell.nubitsj.wallet.Protos.Wallet proto = WalletJournal.read(file);
+                NetworkParameters params = NetworkParameters.fromID(proto.getNetworkIdentifier());
+                if (params == null)
+                    throw new UnreadableWalletException("Unknown network parameters ID " + proto.getNetworkIdentifier());
+                Wallet wallet = serializer.readWallet(params, walletExtensions, proto, validHashStore);
+                if (!wallet.isConsistent()) {
+                    log.error("Loaded an inconsistent wallet");
+                }
+                return wallet;
+            }
             FileInputStream stream = null;
             try {
                 stream = new FileInputStream(file);
-                return loadFromFileStream(stream, validHashStore, walletExtensions);
+                Wallet wallet = serializer.readWallet(stream, validHashStore, walletExtensions);
+                if (!wallet.isConsistent()) {
+                    log.error("Loaded an inconsistent wallet");
+                }
+                return wallet;
             } finally {
                 if (stream != null) stream.close();
             }
@@ -1484,7 +1798,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     public void isConsistentOrThrow() throws IllegalStateException {
         lock.lock();
         try {
-            Set<Transaction> transactions = getTransactions(true);
+            // Transactions still in serialized form are left alone.
+            Set<Transaction> transactions = getParsedTransactions();
 
             Set<Sha256Hash> hashes = new HashSet<Sha256Hash>();
             for (Transaction tx : transactions) {
@@ -1492,6 +1807,10 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             }
 
             int size1 = transactions.size();
+            if (serializedTransactions != null) {
+                hashes.addAll(serializedTransactions.getHashes(null));
+                size1 += serializedTransactions.size();
+            }
 
             if (size1 != hashes.size()) {
                 throw new IllegalStateException("Two transactions with same hash");
@@ -1508,7 +1827,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 }
             }
 
-            for (Transaction tx : spent.values()) {
+            for (Transaction tx : parsed(spent)) {
                 if (!tx.isConsistent(this, true)) {
                     throw new IllegalStateException("Inconsistent spent tx: " + tx.getHashAsString());
                 }
@@ -1737,12 +2056,15 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         checkState(lock.isHeldByCurrentThread());
         // Compile a set of outpoints that are spent by tx.
         HashSet<TransactionOutPoint> outpoints = new HashSet<TransactionOutPoint>();
+        // Only pending transactions spending outputs of the same transactions can share outpoints with it.
+        LinkedHashSet<Transaction> candidates = new LinkedHashSet<Transaction>();
         for (TransactionInput input : tx.getInputs()) {
             outpoints.add(input.getOutpoint());
+            candidates.addAll(((PoolMap) pending).getSpending(input.getOutpoint().getHash()));
         }
         // Now for each pending transaction, see if it shares any outpoints with this tx.
         LinkedList<Transaction> doubleSpentTxns = Lists.newLinkedList();
-        for (Transaction p : pending.values()) {
+        for (Transaction p : candidates) {
             for (TransactionInput input : p.getInputs()) {
                 // This relies on the fact that TransactionOutPoint equality is defined at the protocol not object
                 // level - outpoints from two different inputs that point to the same output compare the same.
@@ -1790,8 +2112,96 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         }
     }
 
+    /**
+     * Called by the {@link BlockChain} with all the transactions of a new block at once, instead of
+     * {@link #receiveFromBlock(Transaction, StoredBlock, AbstractBlockChain.NewBlockType, int)} and
+     * {@link #notifyTransactionIsInBlock(Sha256Hash, StoredBlock, AbstractBlockChain.NewBlockType, int)} for each of
+     * the relevant ones. The wallet takes them in while holding its lock once, checks its consistency and saves once,
+     * and queues the coins received and sent events of the block as a single task per event listener, followed by
+     * one onWalletChanged.
+     */
+    @Override
+    public Set<Sha256Hash> receiveBlockTransactions(StoredBlock block, BlockChain.NewBlockType blockType,
+                                                    List<Sha256Hash> hashes,
+                                                    Map<Sha256Hash, Transaction> transactions,
+                                                    boolean duplicate) throws VerificationException {
+        Set<Sha256Hash> relevant = new HashSet<Sha256Hash>();
+        lock.lock();
+        try {
+            checkState(blockCoinsEvents == null);
+            blockCoinsEvents = new ArrayList<CoinsEvent>();
+            onWalletChangedSuppressions++;
+            try {
+                for (int i = 0; i < hashes.size(); i++) {
+                    Sha256Hash hash = hashes.get(i);
+                    Transaction tx = transactions.get(hash);
+                    if (tx != null) {
+                        // Checked only now, as it may spend outputs of the transactions taken in just before it.
+                        try {
+                            if (!isTransactionRelevant(tx))
+                                continue;
+                        } catch (ScriptException e) {
+                            // We don't want scripts we don't understand to break the block chain so just note that
+                            // this tx was not scanned here and continue.
+                            log.warn("Failed to parse a script: " + e.toString());
+                            continue;
+                        }
+                        if (duplicate) {
+                            try {
+                                tx = new Transaction(tx.params, tx.nubitsSerialize());
+                            } catch (ProtocolException e) {
+                                // Failed to duplicate tx, should never happen.
+                                throw new RuntimeException(e);
+                            }
+                        }
+                    } else {
+                        tx = this.transactions.get(hash);
+                        if (tx == null) {
+                            tx = riskDropped.get(hash);
+                            if (tx == null)
+                                continue;  // False positive.
+                            log.info("Risk analysis dropped tx {} but was included in block anyway", tx.getHash());
+                        }
+                    }
+                    relevant.add(hash);
+                    receiveWithoutNotifying(tx, block, blockType, i);
+                }
+            } finally {
+                onWalletChangedSuppressions--;
+            }
+            List<CoinsEvent> events = blockCoinsEvents;
+            blockCoinsEvents = null;
+            if (relevant.isEmpty())
+                return relevant;
+            if (!events.isEmpty()) {
+                queueOnCoinsEvents(events);
+                checkBalanceFuturesLocked(getBalance());
+            }
+            // On the best chain, notifyNewBestBlock comes next and calls maybeQueueOnWalletChanged for us.
+            if (blockType != BlockChain.NewBlockType.BEST_CHAIN)
+                maybeQueueOnWalletChanged();
+            informConfidenceListenersIfNotReorganizing();
+            isConsistentOrThrow();
+            saveNow();
+        } finally {
+            blockCoinsEvents = null;
+            lock.unlock();
+        }
+        return relevant;
+    }
+
     private void receive(Transaction tx, StoredBlock block, BlockChain.NewBlockType blockType,
                          int relativityOffset) throws VerificationException {
+        receiveWithoutNotifying(tx, block, blockType, relativityOffset);
+        informConfidenceListenersIfNotReorganizing();
+        isConsistentOrThrow();
+        saveNow();
+    }
+
+    // Does all of receive() except telling confidence listeners, checking consistency and saving. While a block is
+    // taken in, coins events are collected in blockCoinsEvents rather than queued.
+    private void receiveWithoutNotifying(Transaction tx, StoredBlock block, BlockChain.NewBlockType blockType,
+                                         int relativityOffset) throws VerificationException {
         // Runs in a peer thread.
         checkState(lock.isHeldByCurrentThread());
         Coin prevBalance = getBalance();
@@ -1863,6 +2273,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             // Mark the tx as appearing in this block so we can find it later after a re-org. This also tells the tx
             // confidence object about the block and sets its depth appropriately.
             tx.setBlockAppearance(block, bestChain, relativityOffset);
+            blockTransactions.put(block.getHeader().getHash(), txHash);
             if (bestChain) {
                 // Don't notify this tx of work done in notifyNewBestBlock which will be called immediately after
                 // this method has been called by BlockChain for all relevant transactions. Otherwise we'd double
@@ -1876,7 +2287,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         // Side chains don't affect confidence.
         if (bestChain) {
             // notifyNewBestBlock will be invoked next and will then call maybeQueueOnWalletChanged for us.
-            confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+            markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
         } else {
             maybeQueueOnWalletChanged();
         }
@@ -1889,24 +2300,38 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         //    own spends. If users want to know when a broadcast tx becomes confirmed, they need to use tx confidence
         //    listeners.
         if (!insideReorg && bestChain) {
-            Coin newBalance = getBalance();  // This is slow.
+            Coin newBalance = getBalance();
             log.info("Balance is now: " + newBalance.toFriendlyString());
             if (!wasPending) {
                 int diff = valueDifference.signum();
                 // We pick one callback based on the value difference, though a tx can of course both send and receive
                 // coins from the wallet.
-                if (diff > 0) {
+                if (blockCoinsEvents != null) {
+                    if (diff != 0)
+                        blockCoinsEvents.add(new CoinsEvent(tx, prevBalance, newBalance, diff > 0));
+                } else if (diff > 0) {
                     queueOnCoinsReceived(tx, prevBalance, newBalance);
                 } else if (diff < 0) {
                     queueOnCoinsSent(tx, prevBalance, newBalance);
                 }
             }
-            checkBalanceFuturesLocked(newBalance);
+            if (blockCoinsEvents == null)
+                checkBalanceFuturesLocked(newBalance);
         }
+    }
 
-        informConfidenceListenersIfNotReorganizing();
-        isConsistentOrThrow();
-        saveNow();
+    /**
+     * Records a confidence change to be announced by {@link #informConfidenceListenersIfNotReorganizing()}, and
+     * updates the balance totals if the change could have made outputs of the transaction spendable or unspendable.
+     */
+    private void markConfidenceChanged(Transaction tx, TransactionConfidence.Listener.ChangeReason reason) {
+        confidenceChanged.put(tx, reason);
+        // Only the maturity of coinbases depends on depth.
+        if (reason != TransactionConfidence.Listener.ChangeReason.DEPTH || tx.isCoinBase())
+            unspentOutputs.refresh(tx);
+        // Depths are worked out again from the last block seen when the journal is replayed.
+        if (journalChanges != null && reason != TransactionConfidence.Listener.ChangeReason.DEPTH)
+            journalChanges.add(tx);
     }
 
     private void informConfidenceListenersIfNotReorganizing() {
@@ -1931,6 +2356,21 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      */
     @Override
     public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
+        notifyNewBestBlocks(block, 1);
+    }
+
+    /**
+     * Called by the {@link BlockChain} when a run of headers was added to the top of the best chain during
+     * headers-only sync. Does the same as {@link #notifyNewBestBlock(StoredBlock)} for each of them, in one pass over
+     * the wallet.
+     */
+    @Override
+    public void notifyNewBestHeaders(HeaderBatch batch, int from, int count, StoredBlock newHead) {
+        notifyNewBestBlocks(newHead, count);
+    }
+
+    // The given block is the last of count new blocks on top of the best chain.
+    private void notifyNewBestBlocks(StoredBlock block, int count) {
         // Check to see if this block has been seen before.
         Sha256Hash newBlockHash = block.getHeader().getHash();
         if (newBlockHash.equals(getLastBlockSeenHash()))
@@ -1942,14 +2382,17 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             setLastBlockSeenHeight(block.getHeight());
             setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
             // Notify all the BUILDING transactions of the new block.
-            // This is so that they can update their depth.
-            Set<Transaction> transactions = getTransactions(true);
+            // This is so that they can update their depth. Serialized ones work it out when they're parsed.
+            Set<Transaction> transactions = getParsedTransactions();
             for (Transaction tx : transactions) {
+                int blocks = count;
                 if (ignoreNextNewBlock.contains(tx.getHash())) {
                     // tx was already processed in receive() due to it appearing in this block, so we don't want to
                     // increment the tx confidence depth twice, it'd result in miscounting.
                     ignoreNextNewBlock.remove(tx.getHash());
-                } else {
+                    blocks--;
+                }
+                if (blocks > 0) {
                     TransactionConfidence confidence = tx.getConfidence();
                     if (confidence.getConfidenceType() == ConfidenceType.BUILDING) {
                         // Erase the set of seen peers once the tx is so deep that it seems unlikely to ever go
@@ -1959,9 +2402,9 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                         // included once again. We could have a separate was-in-chain-and-now-isn't confidence type
                         // but this way is backwards compatible with existing software, and the new state probably
                         // wouldn't mean anything different to just remembering peers anyway.
-                        if (confidence.incrementDepthInBlocks() > context.getEventHorizon())
+                        if (confidence.incrementDepthInBlocks(blocks) > context.getEventHorizon())
                             confidence.clearBroadcastBy();
-                        confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+                        markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
                     }
                 }
             }
@@ -2109,7 +2552,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         // didn't see arrive on the best chain yet. For instance, because of a chain replay or because of our keys were
         // used by another wallet somewhere else. Also, unconfirmed transactions can arrive from the mempool in more or
         // less random order.
-        for (Transaction pendingTx : pending.values()) {
+        for (Transaction pendingTx : ((PoolMap) pending).getSpending(tx.getHash())) {
             for (TransactionInput input : pendingTx.getInputs()) {
                 TransactionInput.ConnectionResult result = input.connect(tx, TransactionInput.ConnectMode.ABORT_ON_CONFLICT);
                 if (fromChain) {
@@ -2159,7 +2602,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 maybeMovePool(connected, "kill");
             }
             tx.getConfidence().setOverridingTransaction(overridingTx);
-            confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+            markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
             // Now kill any transactions we have that depended on this one.
             for (TransactionOutput deadOutput : tx.getOutputs()) {
                 if (myUnspents.remove(deadOutput))
@@ -2243,7 +2686,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             // This also registers txConfidenceListener so wallet listeners get informed.
             log.info("->pending: {}", tx.getHashAsString());
             tx.getConfidence().setConfidenceType(ConfidenceType.PENDING);
-            confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+            markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
             addWalletTransaction(Pool.PENDING, tx);
             if (log.isInfoEnabled())
                 log.info("Estimated balance is now: {}", getBalance(BalanceType.ESTIMATED).toFriendlyString());
@@ -2345,6 +2788,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         checkState(lock.isHeldByCurrentThread());
         checkState(onWalletChangedSuppressions >= 0);
         if (onWalletChangedSuppressions > 0) return;
+        maybePublishSnapshot();
         for (final ListenerRegistration<WalletEventListener> registration : eventListeners) {
             registration.executor.execute(new Runnable() {
                 @Override
@@ -2379,6 +2823,40 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         }
     }
 
+    private static class CoinsEvent {
+        final Transaction tx;
+        final Coin prevBalance;
+        final Coin newBalance;
+        final boolean received;
+
+        CoinsEvent(Transaction tx, Coin prevBalance, Coin newBalance, boolean received) {
+            this.tx = tx;
+            this.prevBalance = prevBalance;
+            this.newBalance = newBalance;
+            this.received = received;
+        }
+    }
+
+    // Announces the coins received and sent by the transactions of a block with one task per listener.
+    private void queueOnCoinsEvents(final List<CoinsEvent> events) {
+        checkState(lock.isHeldByCurrentThread());
+        for (final ListenerRegistration<WalletEventListener> registration : eventListeners) {
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (CoinsEvent event : events) {
+                        if (event.received)
+                            registration.listener.onCoinsReceived(Wallet.this, event.tx, event.prevBalance,
+                                    event.newBalance);
+                        else
+                            registration.listener.onCoinsSent(Wallet.this, event.tx, event.prevBalance,
+                                    event.newBalance);
+                    }
+                }
+            });
+        }
+    }
+
     protected void queueOnReorganize() {
         checkState(lock.isHeldByCurrentThread());
         checkState(insideReorg);
@@ -2409,36 +2887,514 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
 
     //region Vending transactions and other internal state
 
+    /**
+     * A transaction pool that records every change to it in poolsVersion. Transactions of the pool that are still in
+     * serializedTransactions are parsed when they are looked up, or when the pool is iterated over.
+     */
+    private class PoolMap extends HashMap<Sha256Hash, Transaction> {
+        // The pool this map is, or null for the map of all transactions.
+        @Nullable private final Pool pool;
+        // For the pending pool, its transactions by the hashes of the transactions they spend outputs of, so a
+        // transaction can be checked against the pending ones that could spend it or double spend with it without
+        // looking at all of them.
+        @Nullable private final HashMultimap<Sha256Hash, Transaction> spending;
+        // Bumped along with poolsVersion when this pool changes, so snapshots only copy the pools that changed.
+        @GuardedBy("lock") int version;
+
+        PoolMap(@Nullable Pool pool) {
+            this.pool = pool;
+            this.spending = pool == Pool.PENDING ? HashMultimap.<Sha256Hash, Transaction>create() : null;
+        }
+
+        private void index(Transaction tx) {
+            if (spending != null)
+                for (TransactionInput input : tx.getInputs())
+                    spending.put(input.getOutpoint().getHash(), tx);
+        }
+
+        private void unindex(@Nullable Transaction tx) {
+            if (spending != null && tx != null)
+                for (TransactionInput input : tx.getInputs())
+                    spending.remove(input.getOutpoint().getHash(), tx);
+        }
+
+        /** Returns the transactions in the pool that spend outputs of the transaction with the given hash. */
+        List<Transaction> getSpending(Sha256Hash hash) {
+            checkState(spending != null);
+            return new ArrayList<Transaction>(spending.get(hash));
+        }
+
+        private boolean isSerialized(Object key) {
+            if (serializedTransactions == null)
+                return false;
+            Pool p = serializedTransactions.getPool(key);
+            return p != null && (pool == null || pool == p);
+        }
+
+        private void parseAll() {
+            if (serializedTransactions == null)
+                return;
+            lock.lock();
+            try {
+                for (Sha256Hash hash : serializedTransactions.getHashes(pool))
+                    parseSerialized(hash);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Returns the transactions in the pool that have been parsed, without parsing any others. */
+        Collection<Transaction> parsedValues() {
+            return super.values();
+        }
+
+        /** Returns an immutable copy of the transactions in the pool that have been parsed, without parsing others. */
+        ImmutableMap<Sha256Hash, Transaction> copyParsed() {
+            ImmutableMap.Builder<Sha256Hash, Transaction> builder = ImmutableMap.builder();
+            for (Map.Entry<Sha256Hash, Transaction> entry : super.entrySet())
+                builder.put(entry);
+            return builder.build();
+        }
+
+        /** Returns the number of transactions in the pool still in serialized form. */
+        int serializedSize() {
+            return size() - super.size();
+        }
+
+        /** Returns the latest update time of the transactions in the pool still in serialized form, see below. */
+        long serializedUpdateTime() {
+            return serializedTransactions == null ? -1 : serializedTransactions.getLatestUpdateTime(checkNotNull(pool));
+        }
+
+        @Nullable
+        Transaction getParsed(Object key) {
+            return super.get(key);
+        }
+
+        void putParsed(Sha256Hash key, Transaction value) {
+            super.put(key, value);
+        }
+
+        void removeParsed(Sha256Hash key) {
+            super.remove(key);
+        }
+
+        @Override
+        public Transaction get(Object key) {
+            Transaction tx = super.get(key);
+            if (tx == null && isSerialized(key))
+                tx = parseSerialized((Sha256Hash) key);
+            return tx;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return super.containsKey(key) || isSerialized(key);
+        }
+
+        @Override
+        public int size() {
+            if (serializedTransactions == null)
+                return super.size();
+            return super.size() + (pool == null ? serializedTransactions.size() : serializedTransactions.size(pool));
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return size() == 0;
+        }
+
+        @Override
+        public Collection<Transaction> values() {
+            parseAll();
+            return super.values();
+        }
+
+        @Override
+        public Set<Map.Entry<Sha256Hash, Transaction>> entrySet() {
+            parseAll();
+            return super.entrySet();
+        }
+
+        @Override
+        public Set<Sha256Hash> keySet() {
+            parseAll();
+            return super.keySet();
+        }
+
+        @Override
+        public Transaction put(Sha256Hash key, Transaction value) {
+            if (isSerialized(key))
+                parseSerialized(key);
+            poolsVersion++;
+            version++;
+            if (journalChanges != null)
+                journalChanges.add(value);
+            Transaction old = super.put(key, value);
+            unindex(old);
+            index(value);
+            return old;
+        }
+
+        @Override
+        public void putAll(Map<? extends Sha256Hash, ? extends Transaction> m) {
+            for (Map.Entry<? extends Sha256Hash, ? extends Transaction> entry : m.entrySet())
+                put(entry.getKey(), entry.getValue());
+        }
+
+        @Override
+        public Transaction remove(Object key) {
+            if (isSerialized(key))
+                parseSerialized((Sha256Hash) key);
+            poolsVersion++;
+            version++;
+            Transaction tx = super.remove(key);
+            if (tx != null && journalChanges != null)
+                journalChanges.add(tx);
+            unindex(tx);
+            return tx;
+        }
+
+        @Override
+        public void clear() {
+            poolsVersion++;
+            version++;
+            if (journalChanges != null)
+                journalNeedsCompaction = true;
+            if (serializedTransactions != null)
+                serializedTransactions.clear(pool);
+            if (spending != null)
+                spending.clear();
+            super.clear();
+        }
+    }
+
+    /**
+     * Hands the wallet spent and dead transactions that are still in serialized form. This is intended for usage by
+     * deserialization code, see {@link WalletProtobufSerializer#setParseHistoryLazily(boolean)}. The transactions are
+     * parsed the first time they are looked up, for example by {@link #getTransaction(Sha256Hash)} or
+     * {@link #getTransactions(boolean)}. Until then they don't get depth updates or confidence events for new blocks.
+     */
+    public void setSerializedTransactions(SerializedTransactions serialized) {
+        lock.lock();
+        try {
+            checkState(serializedTransactions == null, "Wallet already has serialized transactions");
+            for (Sha256Hash hash : serialized.getHashes(null))
+                checkArgument(!transactions.containsKey(hash), "Transaction %s is already in the wallet", hash);
+            serializedTransactions = serialized;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Puts spent transactions that are buried at least the given number of blocks deep back into serialized form,
+     * so they take a fraction of the memory of the parsed objects. They are kept the same way as the ones left
+     * serialized when the wallet was loaded, see {@link #setSerializedTransactions(SerializedTransactions)}, and
+     * parsed again when they are looked up. Transactions someone else added a confidence listener to are skipped, as
+     * the listener would no longer hear about them.</p>
+     *
+     * <p>This is not a change to the wallet: saving it before and after gives the same result. Returns the number of
+     * transactions compacted.</p>
+     */
+    public int compactTransactions(int minDepth) {
+        checkArgument(minDepth > 0, "minDepth must be positive");
+        lock.lock();
+        try {
+            List<Transaction> compact = new ArrayList<Transaction>();
+            for (Transaction tx : parsed(spent)) {
+                TransactionConfidence confidence = tx.getConfidence();
+                if (confidence.getConfidenceType() == ConfidenceType.BUILDING
+                        && confidence.getDepthInBlocks() >= minDepth
+                        && !confidence.hasEventListenersOtherThan(txConfidenceListener))
+                    compact.add(tx);
+            }
+            if (compact.isEmpty())
+                return 0;
+            if (serializedTransactions == null)
+                serializedTransactions = new SerializedTransactions(params);
+            serializedTransactions.addSpent(compact);
+            for (Transaction tx : compact) {
+                ((PoolMap) spent).removeParsed(tx.getHash());
+                ((PoolMap) transactions).removeParsed(tx.getHash());
+                // It can be registered more than once, if the transaction went through several pools.
+                while (tx.getConfidence().removeEventListener(txConfidenceListener)) ;
+            }
+            // The copies of the pools would hold on to the objects.
+            snapshot = null;
+            log.info("Compacted {} spent transactions", compact.size());
+            return compact.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Parses a transaction still in serialized form and puts it in its pool. Not a change to the wallet.
+    private Transaction parseSerialized(Sha256Hash hash) {
+        lock.lock();
+        try {
+            SerializedTransactions serialized = checkNotNull(serializedTransactions);
+            Pool pool = checkNotNull(serialized.getPool(hash));
+            Transaction tx = serialized.parse(hash, new Function<Sha256Hash, Transaction>() {
+                @Override
+                public Transaction apply(Sha256Hash input) {
+                    return ((PoolMap) transactions).getParsed(input);
+                }
+            }, new Function<Sha256Hash, Transaction>() {
+                @Override
+                public Transaction apply(Sha256Hash input) {
+                    return transactions.get(input);
+                }
+            }, getLastBlockSeenHeight(), context.getEventHorizon());
+            if (serialized.isEmpty())
+                serializedTransactions = null;
+            ((PoolMap) (pool == Pool.SPENT ? spent : dead)).putParsed(hash, tx);
+            ((PoolMap) transactions).putParsed(hash, tx);
+            // Not a change to the pool, but snapshots taken before left the transaction out.
+            poolsVersion++;
+            indexBlockAppearances(tx);
+            tx.getConfidence().addEventListener(txConfidenceListener, Threading.SAME_THREAD);
+            return tx;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns the transactions in the pool that have been parsed.
+    private static Collection<Transaction> parsed(Map<Sha256Hash, Transaction> pool) {
+        return ((PoolMap) pool).parsedValues();
+    }
+
+    /**
+     * An immutable copy of the transaction pools and the last block seen, as they were at some point the wallet lock
+     * was free. Works as a {@link TransactionBag} so transaction values can be calculated against it, with the key
+     * lookups going to the wallet. Only parsed transactions are copied, taking a snapshot never parses the ones in
+     * serializedTransactions: the maps leave those out and the snapshot just counts them.
+     */
+    private class Snapshot implements TransactionBag {
+        final int version;
+        final ImmutableMap<Sha256Hash, Transaction> unspent, spent, pending, dead;
+        final int unspentVersion, spentVersion, pendingVersion, deadVersion;
+        // Transactions of the spent and dead pools left out of the maps above as they are still serialized, and the
+        // latest update time among them, see SerializedTransactions.getLatestUpdateTime().
+        final int serializedSpent, serializedDead;
+        final long serializedSpentUpdateTime, serializedDeadUpdateTime;
+        @Nullable final Sha256Hash lastBlockSeenHash;
+        final int lastBlockSeenHeight;
+        final long lastBlockSeenTimeSecs;
+
+        // Copies the current pools, taking the ones that didn't change since the previous snapshot from it rather
+        // than copying them again. Most batches of changes only touch one or two of the pools, and most blocks none.
+        Snapshot(@Nullable Snapshot previous) {
+            checkState(lock.isHeldByCurrentThread());
+            this.version = poolsVersion;
+            this.unspentVersion = ((PoolMap) Wallet.this.unspent).version;
+            this.spentVersion = ((PoolMap) Wallet.this.spent).version;
+            this.pendingVersion = ((PoolMap) Wallet.this.pending).version;
+            this.deadVersion = ((PoolMap) Wallet.this.dead).version;
+            // Parsing a serialized transaction moves it into its pool without a version bump, so the count has to
+            // match too before the previous copy of the spent or dead pool can be reused.
+            this.serializedSpent = ((PoolMap) Wallet.this.spent).serializedSize();
+            this.serializedDead = ((PoolMap) Wallet.this.dead).serializedSize();
+            this.serializedSpentUpdateTime = serializedSpent == 0 ? -1
+                    : ((PoolMap) Wallet.this.spent).serializedUpdateTime();
+            this.serializedDeadUpdateTime = serializedDead == 0 ? -1
+                    : ((PoolMap) Wallet.this.dead).serializedUpdateTime();
+            this.unspent = previous != null && previous.unspentVersion == unspentVersion
+                    ? previous.unspent : ((PoolMap) Wallet.this.unspent).copyParsed();
+            this.spent = previous != null && previous.spentVersion == spentVersion
+                    && previous.serializedSpent == serializedSpent
+                    ? previous.spent : ((PoolMap) Wallet.this.spent).copyParsed();
+            this.pending = previous != null && previous.pendingVersion == pendingVersion
+                    ? previous.pending : ((PoolMap) Wallet.this.pending).copyParsed();
+            this.dead = previous != null && previous.deadVersion == deadVersion
+                    && previous.serializedDead == serializedDead
+                    ? previous.dead : ((PoolMap) Wallet.this.dead).copyParsed();
+            this.lastBlockSeenHash = Wallet.this.lastBlockSeenHash;
+            this.lastBlockSeenHeight = Wallet.this.lastBlockSeenHeight;
+            this.lastBlockSeenTimeSecs = Wallet.this.lastBlockSeenTimeSecs;
+        }
+
+        boolean isCurrent() {
+            return version == poolsVersion && Objects.equal(lastBlockSeenHash, Wallet.this.lastBlockSeenHash);
+        }
+
+        // Number of transactions in the pool, counting the serialized ones.
+        int size(Pool pool) {
+            return getTransactionPool(pool).size()
+                    + (pool == Pool.SPENT ? serializedSpent : pool == Pool.DEAD ? serializedDead : 0);
+        }
+
+        // Whether the maps hold every transaction of the pools a query looks at.
+        boolean isComplete(boolean includeDead) {
+            return serializedSpent == 0 && (!includeDead || serializedDead == 0);
+        }
+
+        @Override
+        public boolean isPubKeyHashMine(byte[] pubkeyHash) {
+            return Wallet.this.isPubKeyHashMine(pubkeyHash);
+        }
+
+        @Override
+        public boolean isWatchedScript(Script script) {
+            return Wallet.this.isWatchedScript(script);
+        }
+
+        @Override
+        public boolean isPubKeyMine(byte[] pubkey) {
+            return Wallet.this.isPubKeyMine(pubkey);
+        }
+
+        @Override
+        public boolean isPayToScriptHashMine(byte[] payToScriptHash) {
+            return Wallet.this.isPayToScriptHashMine(payToScriptHash);
+        }
+
+        @Override
+        public Map<Sha256Hash, Transaction> getTransactionPool(Pool pool) {
+            switch (pool) {
+                case UNSPENT:
+                    return unspent;
+                case SPENT:
+                    return spent;
+                case PENDING:
+                    return pending;
+                case DEAD:
+                    return dead;
+                default:
+                    throw new RuntimeException("Unknown wallet transaction type " + pool);
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of the transaction pools for read-only queries. If the pools changed since the last one was
+     * taken, a new snapshot is taken if the lock is free. If a writer holds the lock, the last snapshot is returned
+     * instead of waiting, so queries don't stall behind block processing or re-orgs: they see the wallet as it was
+     * after the last batch of changes that completed. Only the very first call can block. Code that holds the lock
+     * gets a private copy of the pools as they are right now, as they may be half way through a change.
+     */
+    private Snapshot snapshot() {
+        if (lock.isHeldByCurrentThread())
+            return new Snapshot(snapshot);
+        Snapshot s = snapshot;
+        if (s != null && s.isCurrent())
+            return s;
+        if (s == null)
+            lock.lock();
+        else if (!lock.tryLock())
+            return s;
+        try {
+            return publishSnapshot();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Takes a fresh snapshot if the pools changed since the last one.
+    private Snapshot publishSnapshot() {
+        checkState(lock.isHeldByCurrentThread());
+        Snapshot s = snapshot;
+        if (s == null || !s.isCurrent())
+            snapshot = s = new Snapshot(s);
+        return s;
+    }
+
+    // Called at the end of a batch of changes, so readers see it even if the lock is taken again straight away.
+    private void maybePublishSnapshot() {
+        checkState(onWalletChangedSuppressions == 0);
+        // Nobody reads snapshots unless they've asked for one before, so don't pay for copying the pools until then.
+        if (snapshot != null)
+            publishSnapshot();
+    }
+
     /**
      * Returns a set of all transactions in the wallet.
      * @param includeDead     If true, transactions that were overridden by a double spend are included.
      */
     public Set<Transaction> getTransactions(boolean includeDead) {
+        if (!lock.isHeldByCurrentThread()) {
+            Snapshot s = snapshot();
+            if (s.isComplete(includeDead))
+                return collectTransactions(s.unspent, s.spent, s.pending, includeDead ? s.dead : null);
+        }
+        // Some are still serialized, they need parsing to be returned.
         lock.lock();
         try {
-            Set<Transaction> all = new HashSet<Transaction>();
-            all.addAll(unspent.values());
-            all.addAll(spent.values());
-            all.addAll(pending.values());
-            if (includeDead)
-                all.addAll(dead.values());
-            return all;
+            return collectTransactions(unspent, spent, pending, includeDead ? dead : null);
         } finally {
             lock.unlock();
         }
     }
 
+    private static Set<Transaction> collectTransactions(Map<Sha256Hash, Transaction> unspent,
+                                                        Map<Sha256Hash, Transaction> spent,
+                                                        Map<Sha256Hash, Transaction> pending,
+                                                        @Nullable Map<Sha256Hash, Transaction> dead) {
+        return collectTransactions(unspent.values(), spent.values(), pending.values(),
+                dead != null ? dead.values() : null);
+    }
+
+    private static Set<Transaction> collectTransactions(Collection<Transaction> unspent,
+                                                        Collection<Transaction> spent,
+                                                        Collection<Transaction> pending,
+                                                        @Nullable Collection<Transaction> dead) {
+        Set<Transaction> all = new HashSet<Transaction>();
+        all.addAll(unspent);
+        all.addAll(spent);
+        all.addAll(pending);
+        if (dead != null)
+            all.addAll(dead);
+        return all;
+    }
+
+    // Like getTransactions(true), but leaves out the transactions still in serialized form. Call with the lock held.
+    private Set<Transaction> getParsedTransactions() {
+        return collectTransactions(parsed(unspent), parsed(spent), parsed(pending), parsed(dead));
+    }
+
     /**
      * Returns a set of all WalletTransactions in the wallet.
      */
     public Iterable<WalletTransaction> getWalletTransactions() {
+        Snapshot s = snapshot();
+        if (s.isComplete(true))
+            return collectWalletTransactions(s.unspent, s.spent, s.pending, s.dead);
+        // Some are still serialized, they need parsing to be returned.
+        lock.lock();
+        try {
+            return collectWalletTransactions(unspent, spent, pending, dead);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static Set<WalletTransaction> collectWalletTransactions(Map<Sha256Hash, Transaction> unspent,
+                                                                    Map<Sha256Hash, Transaction> spent,
+                                                                    Map<Sha256Hash, Transaction> pending,
+                                                                    Map<Sha256Hash, Transaction> dead) {
+        Set<WalletTransaction> all = new HashSet<WalletTransaction>();
+        addWalletTransactionsToSet(all, Pool.UNSPENT, unspent.values());
+        addWalletTransactionsToSet(all, Pool.SPENT, spent.values());
+        addWalletTransactionsToSet(all, Pool.DEAD, dead.values());
+        addWalletTransactionsToSet(all, Pool.PENDING, pending.values());
+        return all;
+    }
+
+    /**
+     * Like {@link #getWalletTransactions()}, but adds the transactions that are still in serialized form to the given
+     * list as protocol buffers rather than parsing them. For serialization code.
+     */
+    public Iterable<WalletTransaction> getWalletTransactions(List<Protos.Transaction> serialized) {
         lock.lock();
         try {
             Set<WalletTransaction> all = new HashSet<WalletTransaction>();
-            addWalletTransactionsToSet(all, Pool.UNSPENT, unspent.values());
-            addWalletTransactionsToSet(all, Pool.SPENT, spent.values());
-            addWalletTransactionsToSet(all, Pool.DEAD, dead.values());
-            addWalletTransactionsToSet(all, Pool.PENDING, pending.values());
+            addWalletTransactionsToSet(all, Pool.UNSPENT, parsed(unspent));
+            addWalletTransactionsToSet(all, Pool.SPENT, parsed(spent));
+            addWalletTransactionsToSet(all, Pool.DEAD, parsed(dead));
+            addWalletTransactionsToSet(all, Pool.PENDING, parsed(pending));
+            if (serializedTransactions != null)
+                serializedTransactions.writeTo(serialized, getLastBlockSeenHeight(), context.getEventHorizon());
             return all;
         } finally {
             lock.unlock();
@@ -2472,6 +3428,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     private void addWalletTransaction(Pool pool, Transaction tx) {
         checkState(lock.isHeldByCurrentThread());
         transactions.put(tx.getHash(), tx);
+        indexBlockAppearances(tx);
         switch (pool) {
         case UNSPENT:
             checkState(unspent.put(tx.getHash(), tx) == null);
@@ -2515,27 +3472,59 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      * depending on how the wallet is implemented (eg if backed by a database).
      */
     public List<Transaction> getRecentTransactions(int numTransactions, boolean includeDead) {
-        lock.lock();
-        try {
-            checkArgument(numTransactions >= 0);
-            // Firstly, put all transactions into an array.
-            int size = getPoolSize(Pool.UNSPENT) +
-                    getPoolSize(Pool.SPENT) +
-                    getPoolSize(Pool.PENDING);
-            if (numTransactions > size || numTransactions == 0) {
-                numTransactions = size;
-            }
-            ArrayList<Transaction> all = new ArrayList<Transaction>(getTransactions(includeDead));
-            // Order by update time.
-            Collections.sort(all, Transaction.SORT_TX_BY_UPDATE_TIME);
-            if (numTransactions == all.size()) {
-                return all;
-            } else {
-                all.subList(numTransactions, all.size()).clear();
-                return all;
-            }
-        } finally {
-            lock.unlock();
+        checkArgument(numTransactions >= 0);
+        Snapshot s = snapshot();
+        // Firstly, put all transactions into an array.
+        int size = s.size(Pool.UNSPENT) + s.size(Pool.SPENT) + s.size(Pool.PENDING);
+        if (numTransactions > size || numTransactions == 0) {
+            numTransactions = size;
+        }
+        ArrayList<Transaction> all = new ArrayList<Transaction>(
+                collectTransactions(s.unspent, s.spent, s.pending, includeDead ? s.dead : null));
+        // Order by update time. A writer may be changing the times as we go, so read each of them only once.
+        long oldest = sortByUpdateTime(all, numTransactions);
+        // Transactions still serialized are left out unless they could be among the most recent ones, in which case
+        // they have to be parsed. They are usually long buried, so it rarely comes to that.
+        long serializedUpdateTime = Math.max(s.serializedSpentUpdateTime,
+                includeDead ? s.serializedDeadUpdateTime : -1);
+        if (serializedUpdateTime >= 0 && (all.size() < numTransactions || serializedUpdateTime >= oldest)) {
+            all = new ArrayList<Transaction>(getTransactions(includeDead));
+            sortByUpdateTime(all, numTransactions);
+        }
+        // The pools may have changed since the snapshot, if the transactions were read from the wallet.
+        if (numTransactions >= all.size()) {
+            return all;
+        } else {
+            all.subList(numTransactions, all.size()).clear();
+            return all;
+        }
+    }
+
+    // Sorts like Transaction.SORT_TX_BY_UPDATE_TIME, with the times read up front so the order is consistent. Returns
+    // the time the first count of them were updated at or after, or -1 if there are not that many.
+    private static long sortByUpdateTime(List<Transaction> txns, int count) {
+        List<UpdateTimeKey> keys = new ArrayList<UpdateTimeKey>(txns.size());
+        for (Transaction tx : txns)
+            keys.add(new UpdateTimeKey(tx));
+        Collections.sort(keys);
+        for (int i = 0; i < keys.size(); i++)
+            txns.set(i, keys.get(i).tx);
+        return count > 0 && count <= keys.size() ? keys.get(count - 1).time : -1;
+    }
+
+    private static class UpdateTimeKey implements Comparable<UpdateTimeKey> {
+        final Transaction tx;
+        final long time;
+
+        UpdateTimeKey(Transaction tx) {
+            this.tx = tx;
+            this.time = tx.getUpdateTime().getTime();
+        }
+
+        @Override
+        public int compareTo(UpdateTimeKey other) {
+            int c = -Longs.compare(time, other.time);
+            return c != 0 ? c : tx.getHash().compareTo(other.tx.getHash());
         }
     }
 
@@ -2604,6 +3593,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         dead.clear();
         transactions.clear();
         myUnspents.clear();
+        blockTransactions.clear();
     }
 
     /**
@@ -2622,7 +3612,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                     if (!output.isAvailableForSpending()) continue;
                     try {
                         Script scriptPubKey = output.getScriptPubKey();
-                        if (!watchedScripts.contains(scriptPubKey)) continue;
+                        if (!isWatchedScript(scriptPubKey)) continue;
                         candidates.add(output);
                     } catch (ScriptException e) {
                         // Ignore
@@ -2644,8 +3634,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         lock.lock();
         try {
             boolean dirty = false;
-            for (Iterator<Transaction> i = pending.values().iterator(); i.hasNext();) {
-                Transaction tx = i.next();
+            // Removed through the map rather than an iterator, so the transaction leaves the pending index too.
+            for (Transaction tx : new ArrayList<Transaction>(pending.values())) {
                 if (isTransactionRisky(tx, null) && !acceptRiskyTransactions) {
                     log.debug("Found risky transaction {} in wallet during cleanup.", tx.getHashAsString());
                     if (!tx.isAnyOutputSpent()) {
@@ -2659,7 +3649,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                         }
                         for (TransactionOutput output : tx.getOutputs())
                             myUnspents.remove(output);
-                        i.remove();
+                        pending.remove(tx.getHash());
                         transactions.remove(tx.getHash());
                         dirty = true;
                         log.info("Removed transaction {} from pending pool during cleanup.", tx.getHashAsString());
@@ -2743,27 +3733,29 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      * stable or human readable.
      * @param includePrivateKeys Whether raw private key data should be included.
      * @param includeTransactions Whether to print transaction data.
-     * @param includeExtensions Whether to print extension data.
+     * @param includeExtensions Whether to print extension data. This is the only part that waits for the wallet lock,
+     *                          the rest is printed from a snapshot.
      * @param chain If set, will be used to estimate lock times for block timelocked transactions.
      */
     public String toString(boolean includePrivateKeys, boolean includeTransactions, boolean includeExtensions,
                            @Nullable AbstractBlockChain chain) {
-        lock.lock();
+        // Read from a snapshot so that printing a wallet doesn't have to wait for block processing.
+        final Snapshot s = snapshot();
+        StringBuilder builder = new StringBuilder();
         keychainLock.lock();
         try {
-            StringBuilder builder = new StringBuilder();
             Coin estimatedBalance = getBalance(BalanceType.ESTIMATED);
             Coin availableBalance = getBalance(BalanceType.AVAILABLE_SPENDABLE);
             builder.append(String.format(Locale.US, "Wallet containing %s BTC (spendable: %s BTC) in:%n",
                     estimatedBalance.toPlainString(), availableBalance.toPlainString()));
-            builder.append(String.format(Locale.US, "  %d pending transactions%n", pending.size()));
-            builder.append(String.format(Locale.US, "  %d unspent transactions%n", unspent.size()));
-            builder.append(String.format(Locale.US, "  %d spent transactions%n", spent.size()));
-            builder.append(String.format(Locale.US, "  %d dead transactions%n", dead.size()));
-            final Date lastBlockSeenTime = getLastBlockSeenTime();
-            final String lastBlockSeenTimeStr = lastBlockSeenTime == null ? "time unknown" : lastBlockSeenTime.toString();
+            builder.append(String.format(Locale.US, "  %d pending transactions%n", s.size(Pool.PENDING)));
+            builder.append(String.format(Locale.US, "  %d unspent transactions%n", s.size(Pool.UNSPENT)));
+            builder.append(String.format(Locale.US, "  %d spent transactions%n", s.size(Pool.SPENT)));
+            builder.append(String.format(Locale.US, "  %d dead transactions%n", s.size(Pool.DEAD)));
+            final String lastBlockSeenTimeStr = s.lastBlockSeenTimeSecs == 0 ? "time unknown" :
+                    new Date(s.lastBlockSeenTimeSecs * 1000).toString();
             builder.append(String.format(Locale.US, "Last seen best block: %d (%s): %s%n",
-                    getLastBlockSeenHeight(), lastBlockSeenTimeStr, getLastBlockSeenHash()));
+                    s.lastBlockSeenHeight, lastBlockSeenTimeStr, s.lastBlockSeenHash));
             final KeyCrypter crypter = keychain.getKeyCrypter();
             if (crypter != null)
                 builder.append(String.format(Locale.US, "Encryption: %s%n", crypter));
@@ -2785,43 +3777,51 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                     builder.append("  ").append(script).append("\n");
                 }
             }
+        } finally {
+            keychainLock.unlock();
+        }
 
-            if (includeTransactions) {
-                // Print the transactions themselves
-                if (pending.size() > 0) {
-                    builder.append("\n>>> PENDING:\n");
-                    toStringHelper(builder, pending, chain, Transaction.SORT_TX_BY_UPDATE_TIME);
-                }
-                if (unspent.size() > 0) {
-                    builder.append("\n>>> UNSPENT:\n");
-                    toStringHelper(builder, unspent, chain, Transaction.SORT_TX_BY_HEIGHT);
-                }
-                if (spent.size() > 0) {
-                    builder.append("\n>>> SPENT:\n");
-                    toStringHelper(builder, spent, chain, Transaction.SORT_TX_BY_HEIGHT);
-                }
-                if (dead.size() > 0) {
-                    builder.append("\n>>> DEAD:\n");
-                    toStringHelper(builder, dead, chain, Transaction.SORT_TX_BY_UPDATE_TIME);
-                }
+        if (includeTransactions) {
+            // Print the transactions themselves
+            if (s.pending.size() > 0) {
+                builder.append("\n>>> PENDING:\n");
+                toStringHelper(builder, s, s.pending, chain, Transaction.SORT_TX_BY_UPDATE_TIME);
+            }
+            if (s.unspent.size() > 0) {
+                builder.append("\n>>> UNSPENT:\n");
+                toStringHelper(builder, s, s.unspent, chain, Transaction.SORT_TX_BY_HEIGHT);
+            }
+            if (s.size(Pool.SPENT) > 0) {
+                builder.append("\n>>> SPENT:\n");
+                toStringHelper(builder, s, s.spent, chain, Transaction.SORT_TX_BY_HEIGHT);
+                if (s.serializedSpent > 0)
+                    builder.append(String.format(Locale.US, "  and %d more in serialized form%n", s.serializedSpent));
             }
-            if (includeExtensions && extensions.size() > 0) {
-                builder.append("\n>>> EXTENSIONS:\n");
-                for (WalletExtension extension : extensions.values()) {
-                    builder.append(extension).append("\n\n");
+            if (s.size(Pool.DEAD) > 0) {
+                builder.append("\n>>> DEAD:\n");
+                toStringHelper(builder, s, s.dead, chain, Transaction.SORT_TX_BY_UPDATE_TIME);
+                if (s.serializedDead > 0)
+                    builder.append(String.format(Locale.US, "  and %d more in serialized form%n", s.serializedDead));
+            }
+        }
+        if (includeExtensions) {
+            lock.lock();
+            try {
+                if (extensions.size() > 0) {
+                    builder.append("\n>>> EXTENSIONS:\n");
+                    for (WalletExtension extension : extensions.values()) {
+                        builder.append(extension).append("\n\n");
+                    }
                 }
+            } finally {
+                lock.unlock();
             }
-            return builder.toString();
-        } finally {
-            keychainLock.unlock();
-            lock.unlock();
         }
+        return builder.toString();
     }
 
-    private void toStringHelper(StringBuilder builder, Map<Sha256Hash, Transaction> transactionMap,
+    private void toStringHelper(StringBuilder builder, TransactionBag bag, Map<Sha256Hash, Transaction> transactionMap,
                                 @Nullable AbstractBlockChain chain, @Nullable Comparator<Transaction> sortOrder) {
-        checkState(lock.isHeldByCurrentThread());
-
         final Collection<Transaction> txns;
         if (sortOrder != null) {
             txns = new TreeSet<Transaction>(sortOrder);
@@ -2833,11 +3833,11 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         for (Transaction tx : txns) {
             try {
                 builder.append("Sends ");
-                builder.append(tx.getValueSentFromMe(this).toFriendlyString());
+                builder.append(tx.getValueSentFromMe(bag).toFriendlyString());
                 builder.append(" and receives ");
-                builder.append(tx.getValueSentToMe(this).toFriendlyString());
+                builder.append(tx.getValueSentToMe(bag).toFriendlyString());
                 builder.append(", total value ");
-                builder.append(tx.getValue(this).toFriendlyString());
+                builder.append(tx.getValue(bag).toFriendlyString());
                 builder.append(".\n");
             } catch (ScriptException e) {
                 // Ignore and don't print this line.
@@ -2982,6 +3982,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      */
     public void setVersion(int version) {
         this.version = version;
+        journalHeaderChanged = true;
     }
 
     /**
@@ -2990,6 +3991,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      */
     public void setDescription(String description) {
         this.description = description;
+        journalHeaderChanged = true;
     }
 
     /**
@@ -3061,9 +4063,18 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     }
 
     /**
-     * Returns the balance of this wallet as calculated by the provided balanceType.
+     * Returns the balance of this wallet as calculated by the provided balanceType. With the default coin selector
+     * this reads running totals and does not need to take the wallet lock.
      */
     public Coin getBalance(BalanceType balanceType) {
+        CoinSelector selector = coinSelector;
+        if (vUTXOProvider == null && UnspentOutputSet.canSum(selector))
+            return unspentOutputs.getBalance(balanceType, selector);
+        return calculateBalance(balanceType);
+    }
+
+    /** Calculates the balance by selecting coins from every spend candidate, which is what the running totals track. */
+    @VisibleForTesting Coin calculateBalance(BalanceType balanceType) {
         lock.lock();
         try {
             if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
@@ -3076,7 +4087,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 for (TransactionOutput out : all) value = value.add(out.getValue());
                 return value;
             }else if (balanceType == BalanceType.ESTMINUSFEE) {
-            	return getBalance(BalanceType.ESTIMATED).subtract(Transaction.REFERENCE_DEFAULT_MIN_TX_FEE);
+            	return calculateBalance(BalanceType.ESTIMATED).subtract(Transaction.REFERENCE_DEFAULT_MIN_TX_FEE);
             } else {
                 throw new AssertionError("Unknown balance type");  // Unreachable.
             }
@@ -3668,39 +4679,41 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             // Now shuffle the outputs to obfuscate which is the change.
             if (req.shuffleOutputs)
                 req.tx.shuffleOutputs();
-
-            // Now sign the inputs, thus proving that we are entitled to redeem the connected outputs.
-            if (req.signInputs) 
-                signTransaction(req);
-
-            // Check size.
-            final int size = req.tx.unsafeNubitsSerialize().length;
-            if (size > Transaction.MAX_STANDARD_TX_SIZE)
-                throw new ExceededMaxTransactionSize();
-
-            final Coin calculatedFee = req.tx.getFee();
-            if (calculatedFee != null)
-                log.info("  with a fee of {}/kB, {} for {} bytes",
-                        calculatedFee.multiply(1000).divide(size).toFriendlyString(), calculatedFee.toFriendlyString(),
-                        size);
-
-            // Label the transaction as being self created. We can use this later to spend its change output even before
-            // the transaction is confirmed. We deliberately won't bother notifying listeners here as there's not much
-            // point - the user isn't interested in a confidence transition they made themselves.
-            req.tx.getConfidence().setSource(TransactionConfidence.Source.SELF);
-            // Label the transaction as being a user requested payment. This can be used to render GUI wallet
-            // transaction lists more appropriately, especially when the wallet starts to generate transactions itself
-            // for internal purposes.
-            req.tx.setPurpose(Transaction.Purpose.USER_PAYMENT);
-            // Record the exchange rate that was valid when the transaction was completed.
-            req.tx.setExchangeRate(req.exchangeRate);
-            req.tx.setMemo(req.memo);
-            req.completed = true;
-            req.fee = calculatedFee;
-            log.info("  completed: {}", req.tx);
         } finally {
             lock.unlock();
         }
+
+        // Now sign the inputs, thus proving that we are entitled to redeem the connected outputs. The transaction
+        // belongs to the request from here on, so this doesn't need the wallet lock, which signTransaction only takes
+        // to prepare the input scripts.
+        if (req.signInputs)
+            signTransaction(req);
+
+        // Check size.
+        final int size = req.tx.unsafeNubitsSerialize().length;
+        if (size > Transaction.MAX_STANDARD_TX_SIZE)
+            throw new ExceededMaxTransactionSize();
+
+        final Coin calculatedFee = req.tx.getFee();
+        if (calculatedFee != null)
+            log.info("  with a fee of {}/kB, {} for {} bytes",
+                    calculatedFee.multiply(1000).divide(size).toFriendlyString(), calculatedFee.toFriendlyString(),
+                    size);
+
+        // Label the transaction as being self created. We can use this later to spend its change output even before
+        // the transaction is confirmed. We deliberately won't bother notifying listeners here as there's not much
+        // point - the user isn't interested in a confidence transition they made themselves.
+        req.tx.getConfidence().setSource(TransactionConfidence.Source.SELF);
+        // Label the transaction as being a user requested payment. This can be used to render GUI wallet
+        // transaction lists more appropriately, especially when the wallet starts to generate transactions itself
+        // for internal purposes.
+        req.tx.setPurpose(Transaction.Purpose.USER_PAYMENT);
+        // Record the exchange rate that was valid when the transaction was completed.
+        req.tx.setExchangeRate(req.exchangeRate);
+        req.tx.setMemo(req.memo);
+        req.completed = true;
+        req.fee = calculatedFee;
+        log.info("  completed: {}", req.tx);
     }
 
     /**
@@ -3708,18 +4721,20 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      * to have all necessary inputs connected or they will be ignored.</p>
      * <p>Actual signing is done by pluggable {@link #signers} and it's not guaranteed that
      * transaction will be complete in the end.</p>
+     * <p>The wallet lock is only held while the input scripts are prepared, the signers run after it is released, so
+     * nothing else may modify the transaction meanwhile.</p>
      */
     public void signTransaction(SendRequest req) {
+        Transaction tx = req.tx;
+        KeyBag maybeDecryptingKeyBag = new DecryptingKeyBag(this, req.aesKey);
+        List<TransactionSigner> signers;
         lock.lock();
         try {
-            Transaction tx = req.tx;
             List<TransactionInput> inputs = tx.getInputs();
             List<TransactionOutput> outputs = tx.getOutputs();
             checkState(inputs.size() > 0);
             checkState(outputs.size() > 0);
 
-            KeyBag maybeDecryptingKeyBag = new DecryptingKeyBag(this, req.aesKey);
-
             int numInputs = tx.getInputs().size();
             for (int i = 0; i < numInputs; i++) {
                 TransactionInput txIn = tx.getInput(i);
@@ -3744,18 +4759,21 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 checkNotNull(redeemData, "Transaction exists in wallet that we cannot redeem: %s", txIn.getOutpoint().getHash());
                 txIn.setScriptSig(scriptPubKey.createEmptyInputScript(redeemData.keys.get(0), redeemData.redeemScript));
             }
-
-            TransactionSigner.ProposedTransaction proposal = new TransactionSigner.ProposedTransaction(tx);
-            for (TransactionSigner signer : signers) {
-                if (!signer.signInputs(proposal, maybeDecryptingKeyBag))
-                    log.info("{} returned false for the tx", signer.getClass().getName());
-            }
-
-            // resolve missing sigs if any
-            new MissingSigResolutionSigner(req.missingSigsMode).signInputs(proposal, maybeDecryptingKeyBag);
+            signers = new ArrayList<TransactionSigner>(this.signers);
         } finally {
             lock.unlock();
         }
+
+        // Keys are looked up without the wallet lock, so the signing itself, which is most of the work, doesn't keep
+        // other threads out of the wallet.
+        TransactionSigner.ProposedTransaction proposal = new TransactionSigner.ProposedTransaction(tx);
+        for (TransactionSigner signer : signers) {
+            if (!signer.signInputs(proposal, maybeDecryptingKeyBag))
+                log.info("{} returned false for the tx", signer.getClass().getName());
+        }
+
+        // resolve missing sigs if any
+        new MissingSigResolutionSigner(req.missingSigsMode).signInputs(proposal, maybeDecryptingKeyBag);
     }
 
     /** Reduce the value of the first output of a transaction to pay the given feePerKb as appropriate for its size. */
@@ -3809,14 +4827,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         try {
             List<TransactionOutput> candidates;
             if (vUTXOProvider == null) {
-                candidates = new ArrayList<TransactionOutput>(myUnspents.size());
-                for (TransactionOutput output : myUnspents) {
-                    if (excludeUnsignable && !canSignFor(output.getScriptPubKey())) continue;
-                    Transaction transaction = checkNotNull(output.getParentTransaction());
-                    if (excludeImmatureCoinbases && !transaction.isMature())
-                        continue;
-                    candidates.add(output);
-                }
+                candidates = unspentOutputs.getCandidates(excludeImmatureCoinbases, excludeUnsignable);
             } else {
                 candidates = calculateAllSpendCandidatesFromUTXOProvider(excludeImmatureCoinbases);
             }
@@ -3826,6 +4837,28 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         }
     }
 
+    /**
+     * Like {@link #calculateAllSpendCandidates(boolean, boolean)} for a wallet without a UTXO provider, but checks
+     * every output against the key chains rather than using the signability and maturity cached by myUnspents.
+     */
+    @VisibleForTesting List<TransactionOutput> calculateAllSpendCandidatesFromScratch(boolean excludeImmatureCoinbases,
+                                                                                   boolean excludeUnsignable) {
+        lock.lock();
+        try {
+            List<TransactionOutput> candidates = new ArrayList<TransactionOutput>(myUnspents.size());
+            for (TransactionOutput output : myUnspents) {
+                if (excludeUnsignable && !canSignFor(output.getScriptPubKey())) continue;
+                Transaction transaction = checkNotNull(output.getParentTransaction());
+                if (excludeImmatureCoinbases && !transaction.isMature())
+                    continue;
+                candidates.add(output);
+            }
+            return candidates;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Returns true if this wallet has at least one of the private keys needed to sign for this scriptPubKey. Returns
      * false if the form of the script is not known or if the script is OP_RETURN.
@@ -4084,16 +5117,17 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             onWalletChangedSuppressions++;
 
             // Map block hash to transactions that appear in it. We ensure that the map values are sorted according
-            // to their relative position within those blocks.
+            // to their relative position within those blocks. Only the blocks that come and go are looked at, and
+            // serialized transactions are parsed only if they could be in one of them.
+            if (serializedTransactions != null) {
+                for (Sha256Hash hash : serializedTransactions.getHashesAbove(splitPoint.getHeight()))
+                    parseSerialized(hash);
+            }
             ArrayListMultimap<Sha256Hash, TxOffsetPair> mapBlockTx = ArrayListMultimap.create();
-            for (Transaction tx : getTransactions(true)) {
-                Map<Sha256Hash, Integer> appearsIn = tx.getAppearsInHashes();
-                if (appearsIn == null) continue;  // Pending.
-                for (Map.Entry<Sha256Hash, Integer> block : appearsIn.entrySet())
-                    mapBlockTx.put(block.getKey(), new TxOffsetPair(tx, block.getValue()));
+            for (StoredBlock block : Iterables.concat(oldBlocks, newBlocks)) {
+                Sha256Hash blockHash = block.getHeader().getHash();
+                mapBlockTx.putAll(blockHash, getTransactionsInBlock(blockHash));
             }
-            for (Sha256Hash blockHash : mapBlockTx.keySet())
-                Collections.sort(mapBlockTx.get(blockHash));
 
             List<Sha256Hash> oldBlockHashes = new ArrayList<Sha256Hash>(oldBlocks.size());
             log.info("Old part of chain (top to bottom):");
@@ -4150,7 +5184,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 if (tx.isCoinBase()) continue;
                 log.info("  ->pending {}", tx.getHash());
                 tx.getConfidence().setConfidenceType(ConfidenceType.PENDING);  // Wipe height/depth/work data.
-                confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+                markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
                 addWalletTransaction(Pool.PENDING, tx);
                 updateForSpends(tx, false);
             }
@@ -4160,36 +5194,39 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             // doesn't matter - the miners deleted T1 from their mempool, will resurrect T2 and put that into the
             // mempool and so T1 is still seen as a losing double spend.
 
-            // The old blocks have contributed to the depth for all the transactions in the
-            // wallet that are in blocks up to and including the chain split block.
-            // The total depth is calculated here and then subtracted from the appropriate transactions.
-            int depthToSubtract = oldBlocks.size();
-            log.info("depthToSubtract = " + depthToSubtract);
-            // Remove depthToSubtract from all transactions in the wallet except for pending.
-            subtractDepth(depthToSubtract, spent.values());
-            subtractDepth(depthToSubtract, unspent.values());
-            subtractDepth(depthToSubtract, dead.values());
-
             // The effective last seen block is now the split point so set the lastSeenBlockHash.
             setLastBlockSeenHash(splitPoint.getHeader().getHash());
+            setLastBlockSeenHeight(splitPoint.getHeight());
 
-            // For each block in the new chain, work forwards calling receive() and notifyNewBestBlock().
-            // This will pull them back out of the pending pool, or if the tx didn't appear in the old chain and
-            // does appear in the new chain, will treat it as such and possibly kill pending transactions that
-            // conflict.
+            // For each block in the new chain, work forwards calling receive(). This will pull them back out of the
+            // pending pool, or if the tx didn't appear in the old chain and does appear in the new chain, will treat
+            // it as such and possibly kill pending transactions that conflict. Depths are brought up to date once
+            // at the end rather than block by block.
+            Set<Sha256Hash> replayed = new HashSet<Sha256Hash>();
             for (StoredBlock block : newBlocks) {
                 log.info("Replaying block {}", block.getHeader().getHashAsString());
                 for (TxOffsetPair pair : mapBlockTx.get(block.getHeader().getHash())) {
                     log.info("  tx {}", pair.tx.getHash());
                     try {
-                        receive(pair.tx, block, BlockChain.NewBlockType.BEST_CHAIN, pair.offset);
+                        // Consistency is checked and the wallet saved once at the end.
+                        receiveWithoutNotifying(pair.tx, block, BlockChain.NewBlockType.BEST_CHAIN, pair.offset);
                     } catch (ScriptException e) {
                         throw new RuntimeException(e);  // Cannot happen as these blocks were already verified.
                     }
+                    replayed.add(pair.tx.getHash());
                 }
-                notifyNewBestBlock(block);
+                setLastBlockSeenHash(block.getHeader().getHash());
+                setLastBlockSeenHeight(block.getHeight());
+                setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
             }
+            ignoreNextNewBlock.removeAll(replayed);
+            updateDepthsAfterReorganize(newBlocks.size() - oldBlocks.size());
+
             isConsistentOrThrow();
+            // Confidence was wiped and rebuilt for everything that moved, so count their outputs again. Everything else
+            // was refreshed as its confidence changed.
+            for (TxOffsetPair pair : mapBlockTx.values())
+                unspentOutputs.refresh(pair.tx);
             final Coin balance = getBalance();
             log.info("post-reorg balance is {}", balance.toFriendlyString());
             // Inform event listeners that a re-org took place.
@@ -4205,15 +5242,51 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         }
     }
 
+    // Records the blocks the transaction appears in, see blockTransactions.
+    private void indexBlockAppearances(Transaction tx) {
+        Map<Sha256Hash, Integer> appearsIn = tx.getAppearsInHashes();
+        if (appearsIn == null)
+            return;
+        for (Sha256Hash blockHash : appearsIn.keySet())
+            blockTransactions.put(blockHash, tx.getHash());
+    }
+
+    // Returns the wallet transactions that appear in the given block, in the order they appear in it.
+    private List<TxOffsetPair> getTransactionsInBlock(Sha256Hash blockHash) {
+        List<TxOffsetPair> pairs = new ArrayList<TxOffsetPair>();
+        // Copied, as looking up a transaction that was compacted since it was indexed parses and indexes it again.
+        for (Sha256Hash hash : new ArrayList<Sha256Hash>(blockTransactions.get(blockHash))) {
+            Transaction tx = transactions.get(hash);
+            Map<Sha256Hash, Integer> appearsIn = tx == null ? null : tx.getAppearsInHashes();
+            Integer offset = appearsIn == null ? null : appearsIn.get(blockHash);
+            if (offset == null)
+                blockTransactions.remove(blockHash, hash);
+            else
+                pairs.add(new TxOffsetPair(tx, offset));
+        }
+        Collections.sort(pairs);
+        return pairs;
+    }
+
     /**
-     * Subtract the supplied depth from the given transactions.
+     * Sets the depth of the building transactions from the height they appeared at and the last block seen. Those
+     * whose height isn't known, from wallets saved before it was recorded, move by the given change in chain length.
+     * Serialized ones work out their depth when they're parsed.
      */
-    private void subtractDepth(int depthToSubtract, Collection<Transaction> transactions) {
-        for (Transaction tx : transactions) {
-            if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
-                tx.getConfidence().setDepthInBlocks(tx.getConfidence().getDepthInBlocks() - depthToSubtract);
-                confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
-            }
+    private void updateDepthsAfterReorganize(int lengthChange) {
+        int height = getLastBlockSeenHeight();
+        for (Transaction tx : getParsedTransactions()) {
+            TransactionConfidence confidence = tx.getConfidence();
+            if (confidence.getConfidenceType() != ConfidenceType.BUILDING)
+                continue;
+            int appearedAt = confidence.getAppearedAtChainHeight();
+            int depth = appearedAt >= 0 ? height - appearedAt + 1 : confidence.getDepthInBlocks() + lengthChange;
+            if (depth == confidence.getDepthInBlocks())
+                continue;
+            confidence.setDepthInBlocks(depth);
+            if (depth > context.getEventHorizon())
+                confidence.clearBroadcastBy();
+            markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
         }
     }
 
@@ -4224,6 +5297,9 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     //region Bloom filtering
 
     private final ArrayList<TransactionOutPoint> bloomOutPoints = Lists.newArrayList();
+    // Outpoints that filters were already told about, so only new ones are reported to the delta listeners.
+    @GuardedBy("lock") private transient HashSet<TransactionOutPoint> bloomReportedOutPoints;
+    private transient CopyOnWriteArrayList<IncrementalPeerFilterProvider.DeltaListener> bloomFilterDeltaListeners;
     // Used to track whether we must automatically begin/end a filter calculation and calc outpoints/take the locks.
     private final AtomicInteger bloomFilterGuard = new AtomicInteger(0);
     @Override
@@ -4241,8 +5317,12 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         bloomOutPoints.clear();
         Set<Transaction> all = new HashSet<Transaction>();
         all.addAll(unspent.values());
-        all.addAll(spent.values());
+        all.addAll(parsed(spent));
         all.addAll(pending.values());
+        // Outputs of spent transactions are only in the filter if their script is watched, which can be checked
+        // without parsing the transactions that are still serialized.
+        if (serializedTransactions != null)
+            bloomOutPoints.addAll(serializedTransactions.findOutputs(Pool.SPENT, watchedScripts));
         for (Transaction tx : all) {
             for (TransactionOutput out : tx.getOutputs()) {
                 try {
@@ -4254,6 +5334,14 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 }
             }
         }
+        if (!bloomFilterDeltaListeners.isEmpty()) {
+            List<byte[]> elements = Lists.newArrayList();
+            for (TransactionOutPoint point : bloomOutPoints) {
+                if (bloomReportedOutPoints.add(point))
+                    elements.add(point.nubitsSerialize());
+            }
+            notifyBloomFilterElementsAdded(elements);
+        }
     }
 
     @Override @GuardedBy("keychainLock")
@@ -4277,7 +5365,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             size += keychain.getBloomFilterElementCount();
             // Some scripts may have more than one bloom element.  That should normally be okay, because under-counting
             // just increases false-positive rate.
-            size += watchedScripts.size();
+            if (isWatchingInBloomFilter())
+                size += watchedScripts.size();
             return size;
         } finally {
             endBloomFilterCalculation();
@@ -4331,29 +5420,63 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         try {
             BloomFilter filter = keychain.getBloomFilter(size, falsePositiveRate, nTweak);
 
-            for (Script script : watchedScripts) {
-                for (ScriptChunk chunk : script.getChunks()) {
-                    // Only add long (at least 64 bit) data to the bloom filter.
-                    // If any long constants become popular in scripts, we will need logic
-                    // here to exclude them.
-                    if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH) {
-                        filter.insert(chunk.data);
-                    }
+            if (isWatchingInBloomFilter()) {
+                for (Script script : watchedScripts) {
+                    for (byte[] data : getBloomFilterElements(script))
+                        filter.insert(data);
                 }
+            } else {
+                filter.setMatchAll();
             }
             for (TransactionOutPoint point : bloomOutPoints)
                 filter.insert(point.nubitsSerialize());
+            bloomReportedOutPoints.clear();
+            bloomReportedOutPoints.addAll(bloomOutPoints);
             return filter;
         } finally {
             endBloomFilterCalculation();
         }
     }
 
+    private static List<byte[]> getBloomFilterElements(Script script) {
+        List<byte[]> elements = Lists.newArrayList();
+        for (ScriptChunk chunk : script.getChunks()) {
+            // Only add long (at least 64 bit) data to the bloom filter.
+            // If any long constants become popular in scripts, we will need logic
+            // here to exclude them.
+            if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH)
+                elements.add(chunk.data);
+        }
+        return elements;
+    }
+
+    @Override
+    public void addBloomFilterDeltaListener(IncrementalPeerFilterProvider.DeltaListener listener) {
+        bloomFilterDeltaListeners.add(checkNotNull(listener));
+    }
+
+    @Override
+    public boolean removeBloomFilterDeltaListener(IncrementalPeerFilterProvider.DeltaListener listener) {
+        return bloomFilterDeltaListeners.remove(listener);
+    }
+
+    private void notifyBloomFilterElementsAdded(List<byte[]> elements) {
+        if (elements.isEmpty())
+            return;
+        for (IncrementalPeerFilterProvider.DeltaListener listener : bloomFilterDeltaListeners)
+            listener.onBloomFilterElementsAdded(elements);
+    }
+
+    private void notifyBloomFilterRebuildRequired() {
+        for (IncrementalPeerFilterProvider.DeltaListener listener : bloomFilterDeltaListeners)
+            listener.onBloomFilterRebuildRequired();
+    }
+
     // Returns true if the output is one that won't be selected by a data element matching in the scriptSig.
     private boolean isTxOutputBloomFilterable(TransactionOutput out) {
         Script script = out.getScriptPubKey();
         boolean isScriptTypeSupported = script.isSentToRawPubKey() || script.isPayToScriptHash();
-        return (isScriptTypeSupported && myUnspents.contains(out)) || watchedScripts.contains(script);
+        return (isScriptTypeSupported && myUnspents.contains(out)) || isWatchedScript(script);
     }
 
     /**
@@ -4397,6 +5520,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             if (extensions.containsKey(id))
                 throw new IllegalStateException("Cannot add two extensions with the same ID: " + id);
             extensions.put(id, extension);
+            journalHeaderChanged = true;
             saveNow();
         } finally {
             lock.unlock();
@@ -4414,6 +5538,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             if (previousExtension != null)
                 return previousExtension;
             extensions.put(id, extension);
+            journalHeaderChanged = true;
             saveNow();
             return extension;
         } finally {
@@ -4424,13 +5549,15 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     /**
      * Either adds extension as a new extension or replaces the existing extension if one already exists with the same
      * id. This also triggers wallet auto-saving, so may be useful even when called with the same extension as is
-     * already present.
+     * already present. Extensions should call this whenever their state changes, or a journaled save may not pick
+     * the change up.
      */
     public void addOrUpdateExtension(WalletExtension extension) {
         String id = checkNotNull(extension).getWalletExtensionID();
         lock.lock();
         try {
             extensions.put(id, extension);
+            journalHeaderChanged = true;
             saveNow();
         } finally {
             lock.unlock();
@@ -4472,6 +5599,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     @Override
     public void setTag(String tag, ByteString value) {
         super.setTag(tag, value);
+        journalHeaderChanged = true;
         saveNow();
     }
 
@@ -4775,7 +5903,17 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             //    never saw it, due to bugs.
             // 2) It can't really hurt.
             log.info("New broadcaster so uploading waiting tx {}", tx.getHash());
-            broadcaster.broadcastTransaction(tx);
+        }
+        if (toBroadcast.length == 0)
+            return;
+        // As one batch if possible, otherwise one by one, so pending transactions that spend each other go out parents
+        // first either way.
+        List<Transaction> txns = Arrays.asList(toBroadcast);
+        if (broadcaster instanceof BatchTransactionBroadcaster) {
+            ((BatchTransactionBroadcaster) broadcaster).broadcastTransactions(txns);
+        } else {
+            for (Transaction tx : TransactionBatchBroadcast.sortParentsFirst(txns))
+                broadcaster.broadcastTransaction(tx);
         }
     }
 
@@ -4812,6 +5950,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         checkArgument(unixTimeSeconds <= Utils.currentTimeSeconds(), "Given time (%s) cannot be in the future.",
                 Utils.dateTimeFormat(unixTimeSeconds * 1000));
         vKeyRotationTimestamp = unixTimeSeconds;
+        journalHeaderChanged = true;
         saveNow();
     }
 
@@ -4910,6 +6049,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 log.info(" ... no non-rotating random keys available, generating entirely new HD tree: backup required after this.");
                 keychain.createAndActivateNewHDChain();
             }
+            journalHeaderChanged = true;
+            notifyBloomFilterRebuildRequired();
             saveNow();
         }
 
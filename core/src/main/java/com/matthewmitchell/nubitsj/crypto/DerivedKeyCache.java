@@ -0,0 +1,181 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.crypto;
+
+import com.matthewmitchell.nubitsj.core.Utils;
+import com.matthewmitchell.nubitsj.utils.Threading;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Keeps AES keys derived from passwords for a short while, so that operations on an encrypted wallet that are given
+ * the same password one after the other, like checking the password and then decrypting or signing, pay for the slow
+ * {@link KeyCrypter#deriveKey(CharSequence)} once. A derived key is kept for the lifetime given to the constructor,
+ * counted from when it was derived, and then its bytes are zeroed. {@link #clear()} zeroes all keys at once, for
+ * instance when the user locks the wallet or the app goes to the background.</p>
+ *
+ * <p>Passwords are not kept: keys are found by an HMAC of the password under a random secret of the cache. The keys
+ * handed out are copies, so they stay usable after expiry; callers should zero them when done.</p>
+ */
+public class DerivedKeyCache {
+    private static final Timer expiryTimer = new Timer("DerivedKeyCache expiry", true);
+
+    private final ReentrantLock lock = Threading.lock("DerivedKeyCache");
+    private final long lifetimeMillis;
+    private final byte[] secret = new byte[32];
+    @GuardedBy("lock") private final Map<CacheKey, Entry> entries = new HashMap<CacheKey, Entry>();
+
+    private static class CacheKey {
+        final KeyCrypter keyCrypter;
+        final byte[] passwordMac;
+
+        CacheKey(KeyCrypter keyCrypter, byte[] passwordMac) {
+            this.keyCrypter = keyCrypter;
+            this.passwordMac = passwordMac;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            CacheKey other = (CacheKey) o;
+            return keyCrypter.equals(other.keyCrypter) && Arrays.equals(passwordMac, other.passwordMac);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * keyCrypter.hashCode() + Arrays.hashCode(passwordMac);
+        }
+    }
+
+    private static class Entry {
+        final KeyParameter aesKey;
+        final long expiryTimeMillis;
+
+        Entry(KeyParameter aesKey, long expiryTimeMillis) {
+            this.aesKey = aesKey;
+            this.expiryTimeMillis = expiryTimeMillis;
+        }
+
+        void wipe() {
+            Arrays.fill(aesKey.getKey(), (byte) 0);
+        }
+    }
+
+    /** Creates a cache that keeps each derived key for the given time. */
+    public DerivedKeyCache(long lifetime, TimeUnit unit) {
+        checkArgument(lifetime > 0, "lifetime must be positive");
+        this.lifetimeMillis = unit.toMillis(lifetime);
+        new SecureRandom().nextBytes(secret);
+    }
+
+    /**
+     * Returns a copy of the AES key the given crypter derives from the password, deriving it only if the cache doesn't
+     * hold an unexpired one. The derivation itself runs without holding the cache lock.
+     */
+    public KeyParameter deriveKey(KeyCrypter keyCrypter, CharSequence password) throws KeyCrypterException {
+        checkNotNull(keyCrypter);
+        checkNotNull(password);
+        final CacheKey cacheKey = new CacheKey(keyCrypter, mac(password));
+        lock.lock();
+        try {
+            Entry entry = entries.get(cacheKey);
+            if (entry != null) {
+                if (entry.expiryTimeMillis > Utils.currentTimeMillis())
+                    return copy(entry.aesKey);
+                entries.remove(cacheKey);
+                entry.wipe();
+            }
+        } finally {
+            lock.unlock();
+        }
+        KeyParameter aesKey = keyCrypter.deriveKey(password);
+        final Entry entry = new Entry(copy(aesKey), Utils.currentTimeMillis() + lifetimeMillis);
+        lock.lock();
+        try {
+            Entry previous = entries.put(cacheKey, entry);
+            if (previous != null)
+                previous.wipe();
+        } finally {
+            lock.unlock();
+        }
+        // Zero the key when it expires even if the cache isn't used again.
+        expiryTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                lock.lock();
+                try {
+                    if (entries.get(cacheKey) == entry)
+                        entries.remove(cacheKey);
+                    entry.wipe();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }, lifetimeMillis);
+        return aesKey;
+    }
+
+    /** Zeroes and forgets all derived keys. */
+    public void clear() {
+        lock.lock();
+        try {
+            for (Entry entry : entries.values())
+                entry.wipe();
+            entries.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of derived keys held. */
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private byte[] mac(CharSequence password) {
+        byte[] passwordBytes = new byte[password.length() << 1];
+        try {
+            for (int i = 0; i < password.length(); i++) {
+                passwordBytes[i << 1] = (byte) (password.charAt(i) >> 8);
+                passwordBytes[(i << 1) + 1] = (byte) password.charAt(i);
+            }
+            return HDUtils.hmacSha512(secret, passwordBytes);
+        } finally {
+            Arrays.fill(passwordBytes, (byte) 0);
+        }
+    }
+
+    private static KeyParameter copy(KeyParameter aesKey) {
+        return new KeyParameter(aesKey.getKey().clone());
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.matthewmitchell.nubitsj.kits;
 
+import com.google.common.base.*;
 import com.google.common.collect.*;
 import com.google.common.util.concurrent.*;
 import com.subgraph.orchid.*;
@@ -24,6 +25,7 @@ import com.matthewmitchell.nubitsj.core.*;
 import com.matthewmitchell.nubitsj.net.discovery.*;
 import com.matthewmitchell.nubitsj.protocols.channels.*;
 import com.matthewmitchell.nubitsj.store.*;
+import com.matthewmitchell.nubitsj.utils.*;
 import com.matthewmitchell.nubitsj.wallet.*;
 import org.slf4j.*;
 
@@ -33,6 +35,7 @@ import java.net.*;
 import java.nio.channels.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -86,7 +89,12 @@ public class WalletAppKit extends AbstractIdleService {
 
     protected volatile Context context;
 
+    // Milliseconds taken by each stage of the last startup.
+    private final Map<String, Long> startupTimings = Collections.synchronizedMap(new LinkedHashMap<String, Long>());
+
     private static URL[] SERVERS;
+    // How long the peer lookup started alongside the wallet load may take.
+    private static final long DISCOVERY_TIMEOUT_MILLIS = 5000;
 
     static {
         try {
@@ -227,15 +235,16 @@ public class WalletAppKit extends AbstractIdleService {
     /**
      * <p>Override this to return wallet extensions if any are necessary.</p>
      *
-     * <p>When this is called, chain(), store(), and peerGroup() will return the created objects, however they are not
-     * initialized/started.</p>
+     * <p>This is called while the wallet is loaded, which runs alongside the creation of the block store, chain and
+     * peer group, so chain(), store() and peerGroup() may not return them yet.</p>
      */
     protected List<WalletExtension> provideWalletExtensions() throws Exception {
         return ImmutableList.of();
     }
 
     /**
-     * Override this to use a {@link BlockStore} that isn't the default of {@link SPVBlockStore}.
+     * Override this to use a {@link BlockStore} that isn't the default of {@link SPVBlockStore}. It is called while the
+     * wallet is loaded, so wallet() may not return it yet.
      */
     protected BlockStore provideBlockStore(File file) throws BlockStoreException {
         return new SPVBlockStore(params, file);
@@ -243,7 +252,8 @@ public class WalletAppKit extends AbstractIdleService {
 
     /**
      * This method is invoked on a background thread after all objects are initialised, but before the peer group
-     * or block chain download is started. You can tweak the objects configuration here.
+     * or block chain download is started. You can tweak the objects configuration here. Peer discovery may already
+     * be under way.
      */
     protected void onSetupCompleted() { }
 
@@ -276,123 +286,282 @@ public class WalletAppKit extends AbstractIdleService {
     protected void startUp() throws Exception {
         // Runs in a separate thread.
         Context.propagate(context);
+        long startTime = System.currentTimeMillis();
+        startupTimings.clear();
         if (!directory.exists()) {
             if (!directory.mkdirs()) {
                 throw new IOException("Could not create directory " + directory.getAbsolutePath());
             }
         }
         log.info("Starting up with directory = {}", directory);
+        final File chainFile = new File(directory, filePrefix + ".spvchain");
+        final File validHashFile = new File(directory, filePrefix + ".hashes");
+        final boolean chainFileExists = chainFile.exists();
+        vWalletFile = new File(directory, filePrefix + ".wallet");
+        final boolean shouldReplayWallet = (vWalletFile.exists() && !chainFileExists) || restoreFromSeed != null;
+        // Only a new chain file checkpointed at the creation time of the wallet's keys has to wait for the wallet.
+        boolean storeNeedsWallet = !chainFileExists && restoreFromSeed == null && checkpoints != null;
+
+        // The stages run as soon as the ones they depend on are done, so the wallet is read while the block store is
+        // opened and peers are looked up. Connecting to the peers waits until the wallet is attached, as the download
+        // peer would otherwise fetch blocks the wallet never sees.
+        ListeningExecutorService executor = MoreExecutors.listeningDecorator(
+                Executors.newCachedThreadPool(new ContextPropagatingThreadFactory("WalletAppKit startup")));
         try {
-            File chainFile = new File(directory, filePrefix + ".spvchain");
-            File validHashFile = new File(directory, filePrefix + ".hashes");
-            boolean chainFileExists = chainFile.exists();
-            vWalletFile = new File(directory, filePrefix + ".wallet");
-            boolean shouldReplayWallet = (vWalletFile.exists() && !chainFileExists) || restoreFromSeed != null;
-            vWallet = createOrLoadWallet(shouldReplayWallet);
-
-            validHashStore = new ValidHashStore(validHashFile, new ValidHashStore.TrustedServersInterface() {
-
-                int tryServer = 0;
-
+            final PeerDiscovery peerDiscovery;
+            if (peerAddresses == null && !useTor) {
+                final PeerDiscovery d = discovery != null ? discovery : new DnsDiscovery(params);
+                peerDiscovery = new PrefetchedDiscovery(d, stage(executor, "discovery", new Callable<InetSocketAddress[]>() {
+                    @Override
+                    public InetSocketAddress[] call() throws Exception {
+                        return d.getPeers(DISCOVERY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                    }
+                }));
+            } else {
+                peerDiscovery = null;
+            }
+            ListenableFuture<ValidHashStore> hashStoreStage = stage(executor, "hashstore", new Callable<ValidHashStore>() {
                 @Override
-                public URL getNext(boolean didFail) {
-
-                    if (didFail) {
-                        tryServer = (tryServer + 1) % SERVERS.length;
-                        if (tryServer == 0)
-                            return null;
+                public ValidHashStore call() throws Exception {
+                    validHashStore = createValidHashStore(validHashFile);
+                    return validHashStore;
+                }
+            });
+            ListenableFuture<Wallet> walletStage = stage(executor, "wallet", new Callable<Wallet>() {
+                @Override
+                public Wallet call() throws Exception {
+                    vWallet = createOrLoadWallet(shouldReplayWallet);
+                    return vWallet;
+                }
+            }, hashStoreStage);
+            ListenableFuture<BlockStore> storeStage = stage(executor, "blockstore", new Callable<BlockStore>() {
+                @Override
+                public BlockStore call() throws Exception {
+                    createBlockStore(chainFile, chainFileExists);
+                    return vStore;
+                }
+            }, storeNeedsWallet ? new ListenableFuture<?>[] {walletStage} : new ListenableFuture<?>[0]);
+            ListenableFuture<BlockChain> chainStage = stage(executor, "chain", new Callable<BlockChain>() {
+                @Override
+                public BlockChain call() throws Exception {
+                    vChain = new BlockChain(params, vStore, validHashStore);
+                    return vChain;
+                }
+            }, storeStage, hashStoreStage);
+            ListenableFuture<PeerGroup> peerGroupStage = stage(executor, "peergroup", new Callable<PeerGroup>() {
+                @Override
+                public PeerGroup call() throws Exception {
+                    vPeerGroup = createPeerGroup();
+                    if (userAgent != null)
+                        vPeerGroup.setUserAgent(userAgent, version);
+
+                    // Set up peer addresses or discovery first, so if wallet extensions try to broadcast a transaction
+                    // before we're actually connected the broadcast waits for an appropriate number of connections.
+                    if (peerAddresses != null) {
+                        for (PeerAddress addr : peerAddresses) vPeerGroup.addAddress(addr);
+                        vPeerGroup.setMaxConnections(peerAddresses.length);
+                        peerAddresses = null;
+                    } else if (peerDiscovery != null) {
+                        vPeerGroup.addPeerDiscovery(peerDiscovery);
                     }
-
-                    return SERVERS[tryServer];
+                    return vPeerGroup;
                 }
-
+            }, chainStage);
+            ListenableFuture<Void> setupStage = stage(executor, "setup", new Callable<Void>() {
                 @Override
-                public boolean invalidated() {
-                    return false;
+                public Void call() throws Exception {
+                    vChain.addWallet(vWallet);
+                    vPeerGroup.addWallet(vWallet);
+                    onSetupCompleted();
+                    return null;
                 }
-
+            }, walletStage, peerGroupStage);
+
+            // Wait for every stage, so that none is left running when one of them failed.
+            Futures.successfulAsList(ImmutableList.of(hashStoreStage, walletStage, storeStage, chainStage,
+                    peerGroupStage, setupStage)).get();
+            try {
+                setupStage.get();
+            } catch (ExecutionException e) {
+                // Guava doesn't call shutDown when startUp fails, so close what the stages that did finish opened.
+                closeAfterFailedStartup();
+                Throwable cause = e.getCause();
+                if (cause instanceof BlockStoreException)
+                    throw new IOException(cause);
+                Throwables.propagateIfInstanceOf(cause, Exception.class);
+                throw Throwables.propagate(cause);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        long time = System.currentTimeMillis() - startTime;
+        startupTimings.put("total", time);
+        log.info("Set up in {} ms: {}", time, getStartupTimings());
+
+        if (blockingStartup) {
+            vPeerGroup.start();
+            // Make sure we shut down cleanly.
+            installShutdownHook();
+            completeExtensionInitiations(vPeerGroup);
+
+            // TODO: Be able to use the provided download listener when doing a blocking startup.
+            final DownloadProgressTracker listener = new DownloadProgressTracker();
+            vPeerGroup.startBlockChainDownload(listener);
+            listener.await();
+        } else {
+            Futures.addCallback(vPeerGroup.startAsync(), new FutureCallback() {
                 @Override
-                public void markSuccess(boolean success) {
-                    // Do nothing
+                public void onSuccess(@Nullable Object result) {
+                    completeExtensionInitiations(vPeerGroup);
+                    final PeerEventListener l = downloadListener == null ? new DownloadProgressTracker() : downloadListener;
+                    vPeerGroup.startBlockChainDownload(l);
                 }
 
+                @Override
+                public void onFailure(Throwable t) {
+                    throw new RuntimeException(t);
+                }
             });
+        }
+    }
 
-            // Initiate Bitcoin network objects (block store, blockchain and peer group)
-            vStore = provideBlockStore(chainFile);
-            if (!chainFileExists || restoreFromSeed != null) {
-                if (checkpoints != null) {
-                    // Initialize the chain file with a checkpoint to speed up first-run sync.
-                    long time;
-                    if (restoreFromSeed != null) {
-                        time = restoreFromSeed.getCreationTimeSeconds();
-                        if (chainFileExists) {
-                            log.info("Deleting the chain file in preparation from restore.");
-                            vStore.close();
-                            if (!chainFile.delete())
-                                    throw new IOException("Failed to delete chain file in preparation for restore.");
-                            vStore = new SPVBlockStore(params, chainFile);
-                        }
-                    } else {
-                        time = vWallet.getEarliestKeyCreationTime();
-                    }
-                    if (time > 0)
-                        CheckpointManager.checkpoint(params, checkpoints, vStore, time);
-                    else
-                        log.warn("Creating a new uncheckpointed block store due to a wallet with a creation time of zero: this will result in a very slow chain sync");
-                } else if (chainFileExists) {
-                    log.info("Deleting the chain file in preparation from restore.");
-                    vStore.close();
-                    if (!chainFile.delete())
-                        throw new IOException("Failed to delete chain file in preparation for restore.");
-                    vStore = new SPVBlockStore(params, chainFile);
+    private void closeAfterFailedStartup() {
+        try {
+            if (vPeerGroup != null)
+                vPeerGroup.stop();
+            if (vWallet != null && useAutoSave)
+                vWallet.shutdownAutosaveAndWait();
+            if (vStore != null)
+                vStore.close();
+        } catch (Exception e) {
+            log.error("Failed to clean up after startup failed", e);
+        }
+        vPeerGroup = null;
+        vWallet = null;
+        vStore = null;
+        vChain = null;
+    }
+
+    /** Returns a future for the result of the body, run on the executor once all the dependencies are done. */
+    private <T> ListenableFuture<T> stage(ListeningExecutorService executor, final String name, final Callable<T> body,
+                                          ListenableFuture<?>... dependencies) {
+        return Futures.transform(Futures.allAsList(Arrays.asList(dependencies)), new AsyncFunction<List<Object>, T>() {
+            @Override
+            public ListenableFuture<T> apply(List<Object> input) throws Exception {
+                long start = System.currentTimeMillis();
+                try {
+                    return Futures.immediateFuture(body.call());
+                } finally {
+                    long time = System.currentTimeMillis() - start;
+                    startupTimings.put(name, time);
+                    log.info("Startup stage {} took {} ms", name, time);
                 }
             }
-            vChain = new BlockChain(params, vStore, validHashStore);
-            vPeerGroup = createPeerGroup();
-            if (this.userAgent != null)
-                vPeerGroup.setUserAgent(userAgent, version);
-
-            // Set up peer addresses or discovery first, so if wallet extensions try to broadcast a transaction
-            // before we're actually connected the broadcast waits for an appropriate number of connections.
-            if (peerAddresses != null) {
-                for (PeerAddress addr : peerAddresses) vPeerGroup.addAddress(addr);
-                vPeerGroup.setMaxConnections(peerAddresses.length);
-                peerAddresses = null;
-            } else if (!useTor) {
-                vPeerGroup.addPeerDiscovery(discovery != null ? discovery : new DnsDiscovery(params));
+        }, executor);
+    }
+
+    /**
+     * Returns how many milliseconds each stage of the last startup took, in the order they finished, and the total
+     * time until the objects were set up as "total". The stages are "hashstore", "wallet", "blockstore", "chain",
+     * "peergroup" and "setup", and "discovery" for the peer lookup done alongside them, which may finish later.
+     * The stages overlap, so their times don't add up to the total.
+     */
+    public Map<String, Long> getStartupTimings() {
+        synchronized (startupTimings) {
+            return ImmutableMap.copyOf(startupTimings);
+        }
+    }
+
+    private ValidHashStore createValidHashStore(File validHashFile) throws IOException {
+        return new ValidHashStore(validHashFile, new ValidHashStore.TrustedServersInterface() {
+
+            int tryServer = 0;
+
+            @Override
+            public URL getNext(boolean didFail) {
+
+                if (didFail) {
+                    tryServer = (tryServer + 1) % SERVERS.length;
+                    if (tryServer == 0)
+                        return null;
+                }
+
+                return SERVERS[tryServer];
             }
-            vChain.addWallet(vWallet);
-            vPeerGroup.addWallet(vWallet);
-            onSetupCompleted();
-
-            if (blockingStartup) {
-                vPeerGroup.start();
-                // Make sure we shut down cleanly.
-                installShutdownHook();
-                completeExtensionInitiations(vPeerGroup);
-
-                // TODO: Be able to use the provided download listener when doing a blocking startup.
-                final DownloadProgressTracker listener = new DownloadProgressTracker();
-                vPeerGroup.startBlockChainDownload(listener);
-                listener.await();
-            } else {
-                Futures.addCallback(vPeerGroup.startAsync(), new FutureCallback() {
-                    @Override
-                    public void onSuccess(@Nullable Object result) {
-                        completeExtensionInitiations(vPeerGroup);
-                        final PeerEventListener l = downloadListener == null ? new DownloadProgressTracker() : downloadListener;
-                        vPeerGroup.startBlockChainDownload(l);
-                    }
 
-                    @Override
-                    public void onFailure(Throwable t) {
-                        throw new RuntimeException(t);
+            @Override
+            public boolean invalidated() {
+                return false;
+            }
+
+            @Override
+            public void markSuccess(boolean success) {
+                // Do nothing
+            }
+
+        });
+    }
+
+    private void createBlockStore(File chainFile, boolean chainFileExists) throws BlockStoreException, IOException {
+        vStore = provideBlockStore(chainFile);
+        if (!chainFileExists || restoreFromSeed != null) {
+            if (checkpoints != null) {
+                // Initialize the chain file with a checkpoint to speed up first-run sync.
+                long time;
+                if (restoreFromSeed != null) {
+                    time = restoreFromSeed.getCreationTimeSeconds();
+                    if (chainFileExists) {
+                        log.info("Deleting the chain file in preparation from restore.");
+                        vStore.close();
+                        if (!chainFile.delete())
+                                throw new IOException("Failed to delete chain file in preparation for restore.");
+                        vStore = new SPVBlockStore(params, chainFile);
                     }
-                });
+                } else {
+                    time = vWallet.getEarliestKeyCreationTime();
+                }
+                if (time > 0)
+                    CheckpointManager.checkpoint(params, checkpoints, vStore, time);
+                else
+                    log.warn("Creating a new uncheckpointed block store due to a wallet with a creation time of zero: this will result in a very slow chain sync");
+            } else if (chainFileExists) {
+                log.info("Deleting the chain file in preparation from restore.");
+                vStore.close();
+                if (!chainFile.delete())
+                    throw new IOException("Failed to delete chain file in preparation for restore.");
+                vStore = new SPVBlockStore(params, chainFile);
             }
-        } catch (BlockStoreException e) {
-            throw new IOException(e);
+        }
+    }
+
+    /** Answers the first lookup of the peer group with the one started alongside the wallet load. */
+    private static class PrefetchedDiscovery implements PeerDiscovery {
+        private final PeerDiscovery discovery;
+        private final ListenableFuture<InetSocketAddress[]> prefetched;
+        private final AtomicBoolean used = new AtomicBoolean();
+
+        PrefetchedDiscovery(PeerDiscovery discovery, ListenableFuture<InetSocketAddress[]> prefetched) {
+            this.discovery = discovery;
+            this.prefetched = prefetched;
+        }
+
+        @Override
+        public InetSocketAddress[] getPeers(long timeoutValue, TimeUnit timeoutUnit) throws PeerDiscoveryException {
+            if (used.getAndSet(true))
+                return discovery.getPeers(timeoutValue, timeoutUnit);
+            try {
+                return prefetched.get(timeoutValue, timeoutUnit);
+            } catch (ExecutionException e) {
+                throw new PeerDiscoveryException(e.getCause());
+            } catch (Exception e) {
+                throw new PeerDiscoveryException(e);
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            prefetched.cancel(true);
+            discovery.shutdown();
         }
     }
 
@@ -489,6 +658,10 @@ public class WalletAppKit extends AbstractIdleService {
     }
 
 
+    /**
+     * Override this to use a {@link PeerGroup} of your own. It is called once the chain is built, which may be while
+     * the wallet is still loaded, so wallet() may not return it yet. The wallet is added to the peer group later.
+     */
     protected PeerGroup createPeerGroup() throws TimeoutException {
         if (useTor) {
             TorClient torClient = new TorClient();
@@ -42,7 +42,7 @@ import static com.google.common.base.Preconditions.checkState;
  * A simple NIO MessageWriteTarget which handles all the business logic of a connection (reading+writing bytes).
  * Used only by the NioClient and NioServer classes
  */
-class ConnectionHandler implements MessageWriteTarget {
+class ConnectionHandler implements SharedMessageWriteTarget {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(ConnectionHandler.class);
 
     private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
@@ -134,6 +134,16 @@ class ConnectionHandler implements MessageWriteTarget {
 
     @Override
     public void writeBytes(byte[] message) throws IOException {
+        // TODO: Kill the needless message duplication when the write completes right away
+        queueBytes(Arrays.copyOf(message, message.length));
+    }
+
+    @Override
+    public void writeSharedBytes(byte[] message) throws IOException {
+        queueBytes(message);
+    }
+
+    private void queueBytes(byte[] message) throws IOException {
         boolean andUnlock = true;
         lock.lock();
         try {
@@ -145,8 +155,7 @@ class ConnectionHandler implements MessageWriteTarget {
             if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
                 throw new IOException("Outbound buffer overflowed");
             // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
+            bytesToWrite.offer(ByteBuffer.wrap(message));
             bytesToWriteRemaining += message.length;
             setWriteOps();
         } catch (IOException e) {
@@ -2,10 +2,14 @@ package com.matthewmitchell.nubitsj.net;
 
 import com.google.common.collect.Lists;
 import com.matthewmitchell.nubitsj.core.BloomFilter;
+import com.matthewmitchell.nubitsj.core.IncrementalPeerFilterProvider;
 import com.matthewmitchell.nubitsj.core.PeerFilterProvider;
 import com.google.common.collect.ImmutableList;
 
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // This code is unit tested by the PeerGroup tests.
 
@@ -14,20 +18,40 @@ import java.util.LinkedList;
  * {@link com.matthewmitchell.nubitsj.core.BloomFilter} and earliest key time for all of them.
  * Used by the {@link com.matthewmitchell.nubitsj.core.PeerGroup} class internally.</p>
  *
+ * <p>Recalculating the filter from scratch means re-hashing every element of every provider, which is slow for large
+ * wallets. So the merger registers itself as a {@link IncrementalPeerFilterProvider.DeltaListener} on each provider
+ * that supports it and, as long as the new elements still fit in the stair-stepped size of the previous filter and
+ * none of the filter parameters changed, simply inserts the reported elements into a copy of the last filter. A full
+ * rebuild only happens when the set of providers, the element capacity, the false positive rate or the update flags
+ * change, when a provider asks for one, or every time if any provider doesn't report its changes.</p>
+ *
  * <p>Thread safety: threading here can be complicated. Each filter provider is given a begin event, which may acquire
  * a lock (and is guaranteed to receive an end event). This class is mostly thread unsafe and is meant to be used from a
  * single thread only, PeerGroup ensures this by only accessing it from the dedicated PeerGroup thread. PeerGroup does
  * not hold any locks whilst this object is used, relying on the single thread to prevent multiple filters being
  * calculated in parallel, thus a filter provider can do things like make blocking calls into PeerGroup from a separate
- * thread. However the bloomFilterFPRate property IS thread safe, for convenience.</p>
+ * thread. However the bloomFilterFPRate property IS thread safe, for convenience, and delta events may arrive from
+ * any thread.</p>
  */
-public class FilterMerger {
+public class FilterMerger implements IncrementalPeerFilterProvider.DeltaListener {
     // We use a constant tweak to avoid giving up privacy when we regenerate our filter with new keys
     private final long bloomFilterTweak = (long) (Math.random() * Long.MAX_VALUE);
     private volatile double vBloomFilterFPRate;
     private int lastBloomFilterElementCount;
     private BloomFilter lastFilter;
 
+    // The parameters and providers the last filter was built from. Deltas can only be applied on top of it if these
+    // are unchanged.
+    private double lastFilterFPRate;
+    private BloomFilter.BloomUpdate lastFilterFlags;
+    private ImmutableList<PeerFilterProvider> lastProviders = ImmutableList.of();
+
+    // Elements reported by providers since the last calculation. Written to from arbitrary threads.
+    private final ConcurrentLinkedQueue<byte[]> pendingElements = new ConcurrentLinkedQueue<byte[]>();
+    private final AtomicInteger pendingElementCount = new AtomicInteger();
+    private volatile int vMaxPendingElements;
+    private volatile boolean vRebuildRequired = true;
+
     public FilterMerger(double bloomFilterFPRate) {
         this.vBloomFilterFPRate = bloomFilterFPRate;
     }
@@ -49,17 +73,23 @@ public class FilterMerger {
                 provider.beginBloomFilterCalculation();
                 begunProviders.add(provider);
             }
+            boolean providersChanged = !providers.equals(lastProviders);
+            if (providersChanged)
+                updateDeltaListeners(providers);
             Result result = new Result();
             result.earliestKeyTimeSecs = Long.MAX_VALUE;
             int elements = 0;
             boolean requiresUpdateAll = false;
+            boolean allIncremental = true;
             for (PeerFilterProvider p : providers) {
                 result.earliestKeyTimeSecs = Math.min(result.earliestKeyTimeSecs, p.getEarliestKeyCreationTime());
                 elements += p.getBloomFilterElementCount();
                 requiresUpdateAll = requiresUpdateAll || p.isRequiringUpdateAllBloomFilter();
+                allIncremental = allIncremental && p instanceof IncrementalPeerFilterProvider;
             }
 
             if (elements > 0) {
+                boolean withinCapacity = elements <= lastBloomFilterElementCount;
                 // We stair-step our element count so that we avoid creating a filter with different parameters
                 // as much as possible as that results in a loss of privacy.
                 // The constant 100 here is somewhat arbitrary, but makes sense for small to medium wallets -
@@ -69,8 +99,23 @@ public class FilterMerger {
                         requiresUpdateAll ? BloomFilter.BloomUpdate.UPDATE_ALL : BloomFilter.BloomUpdate.UPDATE_P2PUBKEY_ONLY;
                 double fpRate = vBloomFilterFPRate;
                 BloomFilter filter = new BloomFilter(lastBloomFilterElementCount, fpRate, bloomFilterTweak, bloomFlags);
-                for (PeerFilterProvider p : providers)
-                    filter.merge(p.getBloomFilter(lastBloomFilterElementCount, fpRate, bloomFilterTweak));
+                if (lastFilter != null && withinCapacity && allIncremental && !providersChanged && !vRebuildRequired &&
+                        fpRate == lastFilterFPRate && bloomFlags == lastFilterFlags) {
+                    // Same parameters as last time, so extend a copy of the last filter (peers may still be holding
+                    // on to that one) with whatever the providers added since.
+                    filter.merge(lastFilter);
+                    insertPendingElements(filter);
+                } else {
+                    // Anything reported so far will be picked up by the providers below, as they only ever grow.
+                    vRebuildRequired = false;
+                    pendingElements.clear();
+                    pendingElementCount.set(0);
+                    for (PeerFilterProvider p : providers)
+                        filter.merge(p.getBloomFilter(lastBloomFilterElementCount, fpRate, bloomFilterTweak));
+                    lastFilterFPRate = fpRate;
+                    lastFilterFlags = bloomFlags;
+                    vMaxPendingElements = lastBloomFilterElementCount;
+                }
 
                 result.changed = !filter.equals(lastFilter);
                 result.filter = lastFilter = filter;
@@ -87,6 +132,48 @@ public class FilterMerger {
         }
     }
 
+    private void updateDeltaListeners(ImmutableList<PeerFilterProvider> providers) {
+        for (PeerFilterProvider p : lastProviders)
+            if (!providers.contains(p) && p instanceof IncrementalPeerFilterProvider)
+                ((IncrementalPeerFilterProvider) p).removeBloomFilterDeltaListener(this);
+        for (PeerFilterProvider p : providers) {
+            if (!lastProviders.contains(p) && p instanceof IncrementalPeerFilterProvider) {
+                // Only changes from now on are reported, so whatever the provider already has needs a full rebuild.
+                ((IncrementalPeerFilterProvider) p).addBloomFilterDeltaListener(this);
+                onBloomFilterRebuildRequired();
+            }
+        }
+        lastProviders = providers;
+    }
+
+    private void insertPendingElements(BloomFilter filter) {
+        byte[] element;
+        while ((element = pendingElements.poll()) != null) {
+            pendingElementCount.decrementAndGet();
+            filter.insert(element);
+        }
+    }
+
+    @Override
+    public void onBloomFilterElementsAdded(List<byte[]> elements) {
+        if (vRebuildRequired)
+            return;   // Will be picked up by the full recalculation anyway.
+        // Don't let the queue grow without bound if nobody is calculating filters: past the capacity of the last
+        // filter we'd have to rebuild it anyway.
+        if (pendingElementCount.addAndGet(elements.size()) > vMaxPendingElements) {
+            onBloomFilterRebuildRequired();
+            return;
+        }
+        pendingElements.addAll(elements);
+    }
+
+    @Override
+    public void onBloomFilterRebuildRequired() {
+        vRebuildRequired = true;
+        pendingElements.clear();
+        pendingElementCount.set(0);
+    }
+
     public void setBloomFilterFPRate(double bloomFilterFPRate) {
         this.vBloomFilterFPRate = bloomFilterFPRate;
     }
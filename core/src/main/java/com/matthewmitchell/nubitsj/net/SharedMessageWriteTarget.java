@@ -0,0 +1,29 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.net;
+
+import java.io.IOException;
+
+/**
+ * A {@link MessageWriteTarget} that can also take arrays without copying them, for writing the same bytes to many
+ * connections.
+ */
+public interface SharedMessageWriteTarget extends MessageWriteTarget {
+    /**
+     * Writes the given bytes to the remote server like {@link #writeBytes(byte[])}, but the array may be queued as is,
+     * so it must never be modified after this call.
+     */
+    void writeSharedBytes(byte[] message) throws IOException;
+}
@@ -22,11 +22,15 @@ import com.matthewmitchell.nubitsj.core.TransactionInput;
 import com.matthewmitchell.nubitsj.crypto.DeterministicKey;
 import com.matthewmitchell.nubitsj.crypto.TransactionSignature;
 import com.matthewmitchell.nubitsj.script.Script;
+import com.matthewmitchell.nubitsj.utils.ParallelTransform;
 import com.matthewmitchell.nubitsj.wallet.KeyBag;
 import com.matthewmitchell.nubitsj.wallet.RedeemData;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * <p>{@link TransactionSigner} implementation for signing inputs using keys from provided {@link com.matthewmitchell.nubitsj.wallet.KeyBag}.</p>
  * <p>This signer doesn't create input scripts for tx inputs. Instead it expects inputs to contain scripts with
@@ -38,10 +42,24 @@ import org.slf4j.LoggerFactory;
  * signers to use correct signing key for P2SH inputs, because all the keys involved in a single P2SH address have
  * the same derivation path.</p>
  * <p>This signer always uses {@link com.matthewmitchell.nubitsj.core.Transaction.SigHash#ALL} signing mode.</p>
+ * <p>The inputs of a transaction are signed on several threads when there are many of them, so the transaction must
+ * not be modified by anyone else while it is being signed.</p>
  */
 public class LocalTransactionSigner extends StatelessTransactionSigner {
     private static final Logger log = LoggerFactory.getLogger(LocalTransactionSigner.class);
 
+    /** Transactions with fewer inputs than this are signed on the calling thread. */
+    static final int MIN_PARALLEL_INPUTS = 8;
+
+    private static final int ALREADY_SIGNED = 0, MISSING_KEY = 1, MISSING_PRIVATE_KEY = 2, SIGNED = 3;
+
+    /** What signing one input came to, worked out on any thread and then applied in input order. */
+    private static class InputResult {
+        int outcome;
+        RedeemData redeemData;
+        TransactionSignature signature;
+    }
+
     @Override
     public boolean isReady() {
         return true;
@@ -51,51 +69,41 @@ public class LocalTransactionSigner extends StatelessTransactionSigner {
     public boolean signInputs(ProposedTransaction propTx, KeyBag keyBag) {
         Transaction tx = propTx.partialTx;
         int numInputs = tx.getInputs().size();
+        List<Integer> indexes = new ArrayList<Integer>(numInputs);
         for (int i = 0; i < numInputs; i++) {
-            TransactionInput txIn = tx.getInput(i);
-            if (txIn.getConnectedOutput() == null) {
+            if (tx.getInput(i).getConnectedOutput() == null)
                 log.warn("Missing connected output, assuming input {} is already signed.", i);
-                continue;
-            }
+            else
+                indexes.add(i);
+        }
 
-            try {
-                // We assume if its already signed, its hopefully got a SIGHASH type that will not invalidate when
-                // we sign missing pieces (to check this would require either assuming any signatures are signing
-                // standard output types or a way to get processed signatures out of script execution)
-                txIn.getScriptSig().correctlySpends(tx, i, txIn.getConnectedOutput().getScriptPubKey());
+        // Signatures of different inputs don't depend on each other, as the signature hash covers no input scripts but
+        // the one being signed, so they are calculated on several threads and only then put into the transaction.
+        List<InputResult> results = ParallelTransform.transform(indexes, new SignFunction(tx, keyBag),
+                RuntimeException.class, ParallelTransform.defaultThreads(), MIN_PARALLEL_INPUTS);
+
+        for (int n = 0; n < indexes.size(); n++) {
+            int i = indexes.get(n);
+            InputResult result = results.get(n);
+            if (result.outcome == ALREADY_SIGNED) {
                 log.warn("Input {} already correctly spends output, assuming SIGHASH type used will be safe and skipping signing.", i);
                 continue;
-            } catch (ScriptException e) {
-                // Expected.
             }
-
-            RedeemData redeemData = txIn.getConnectedRedeemData(keyBag);
-
+            TransactionInput txIn = tx.getInput(i);
             Script scriptPubKey = txIn.getConnectedOutput().getScriptPubKey();
 
             // For P2SH inputs we need to share derivation path of the signing key with other signers, so that they
             // use correct key to calculate their signatures.
             // Married keys all have the same derivation path, so we can safely just take first one here.
-            ECKey pubKey = redeemData.keys.get(0);
+            ECKey pubKey = result.redeemData.keys.get(0);
             if (pubKey instanceof DeterministicKey)
                 propTx.keyPaths.put(scriptPubKey, (((DeterministicKey) pubKey).getPath()));
 
-            ECKey key;
-            // locate private key in redeem data. For pay-to-address and pay-to-key inputs RedeemData will always contain
-            // only one key (with private bytes). For P2SH inputs RedeemData will contain multiple keys, one of which MAY
-            // have private bytes
-            if ((key = redeemData.getFullKey()) == null) {
+            if (result.outcome == MISSING_KEY) {
                 log.warn("No local key found for input {}", i);
-                continue;
-            }
-
-            Script inputScript = txIn.getScriptSig();
-            // script here would be either a standard CHECKSIG program for pay-to-address or pay-to-pubkey inputs or
-            // a CHECKMULTISIG program for P2SH inputs
-            byte[] script = redeemData.redeemScript.getProgram();
-            try {
-                TransactionSignature signature = tx.calculateSignature(i, key, script, Transaction.SigHash.ALL, false);
-
+            } else if (result.outcome == MISSING_PRIVATE_KEY) {
+                log.warn("No private key in keypair for input {}", i);
+            } else {
                 // at this point we have incomplete inputScript with OP_0 in place of one or more signatures. We already
                 // have calculated the signature using the local key and now need to insert it in the correct place
                 // within inputScript. For pay-to-address and pay-to-key script there is only one signature and it always
@@ -104,17 +112,61 @@ public class LocalTransactionSigner extends StatelessTransactionSigner {
                 // we always run first, we have to depend on the other signers rearranging the signatures as needed.
                 // Therefore, always place as first signature.
                 int sigIndex = 0;
-                inputScript = scriptPubKey.getScriptSigWithSignature(inputScript, signature.encodeToNubits(), sigIndex);
+                Script inputScript = scriptPubKey.getScriptSigWithSignature(txIn.getScriptSig(),
+                        result.signature.encodeToNubits(), sigIndex);
                 txIn.setScriptSig(inputScript);
+            }
+        }
+        return true;
+    }
 
+    private static class SignFunction implements ParallelTransform.Function<Integer, InputResult, RuntimeException> {
+        private final Transaction tx;
+        private final KeyBag keyBag;
+
+        SignFunction(Transaction tx, KeyBag keyBag) {
+            this.tx = tx;
+            this.keyBag = keyBag;
+        }
+
+        @Override
+        public InputResult apply(Integer i) {
+            TransactionInput txIn = tx.getInput(i);
+            InputResult result = new InputResult();
+            try {
+                // We assume if its already signed, its hopefully got a SIGHASH type that will not invalidate when
+                // we sign missing pieces (to check this would require either assuming any signatures are signing
+                // standard output types or a way to get processed signatures out of script execution)
+                txIn.getScriptSig().correctlySpends(tx, i, txIn.getConnectedOutput().getScriptPubKey());
+                result.outcome = ALREADY_SIGNED;
+                return result;
+            } catch (ScriptException e) {
+                // Expected.
+            }
+
+            result.redeemData = txIn.getConnectedRedeemData(keyBag);
+
+            ECKey key;
+            // locate private key in redeem data. For pay-to-address and pay-to-key inputs RedeemData will always contain
+            // only one key (with private bytes). For P2SH inputs RedeemData will contain multiple keys, one of which MAY
+            // have private bytes
+            if ((key = result.redeemData.getFullKey()) == null) {
+                result.outcome = MISSING_KEY;
+                return result;
+            }
+
+            // script here would be either a standard CHECKSIG program for pay-to-address or pay-to-pubkey inputs or
+            // a CHECKMULTISIG program for P2SH inputs
+            byte[] script = result.redeemData.redeemScript.getProgram();
+            try {
+                result.signature = tx.calculateSignature(i, key, script, Transaction.SigHash.ALL, false);
+                result.outcome = SIGNED;
             } catch (ECKey.KeyIsEncryptedException e) {
                 throw e;
             } catch (ECKey.MissingPrivateKeyException e) {
-                log.warn("No private key in keypair for input {}", i);
+                result.outcome = MISSING_PRIVATE_KEY;
             }
-
+            return result;
         }
-        return true;
     }
-
 }
@@ -0,0 +1,29 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.store;
+
+import com.matthewmitchell.nubitsj.core.HeaderBatch;
+
+/**
+ * A {@link BlockStore} that can save headers straight from a {@link HeaderBatch}, without a
+ * {@link com.matthewmitchell.nubitsj.core.StoredBlock} for each of them. Used during headers-only chain sync.
+ */
+public interface HeaderBatchStore extends BlockStore {
+    /**
+     * Saves headers [from, from + count) of the batch, which must have been connected to the chain so their heights
+     * and chain work are known. The chain head is not changed.
+     */
+    void putHeaders(HeaderBatch batch, int from, int count) throws BlockStoreException;
+}
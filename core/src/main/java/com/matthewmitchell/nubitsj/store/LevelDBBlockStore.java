@@ -14,7 +14,7 @@ import java.nio.*;
  * usage than the {@link SPVBlockStore}. If all you want is a regular wallet you don't need this class: it exists for
  * specialised applications where you need to quickly verify a standalone SPV proof.
  */
-public class LevelDBBlockStore implements BlockStore {
+public class LevelDBBlockStore implements HeaderBatchStore {
     private static final byte[] CHAIN_HEAD_KEY = "chainhead".getBytes();
 
     private final Context context;
@@ -67,6 +67,29 @@ public class LevelDBBlockStore implements BlockStore {
         db.put(block.getHeader().getHash().getBytes(), buffer.array());
     }
 
+    @Override
+    public synchronized void putHeaders(HeaderBatch batch, int from, int count) throws BlockStoreException {
+        ByteBuffer hash = ByteBuffer.allocate(32);
+        WriteBatch writeBatch = db.createWriteBatch();
+        try {
+            for (int i = from; i < from + count; i++) {
+                hash.clear();
+                batch.writeHash(i, hash);
+                buffer.clear();
+                batch.serializeCompact(i, buffer);
+                // WriteBatch keeps references to the arrays, so they can't be reused.
+                writeBatch.put(hash.array().clone(), buffer.array().clone());
+            }
+            db.write(writeBatch);
+        } finally {
+            try {
+                writeBatch.close();
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            }
+        }
+    }
+
     @Override @Nullable
     public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
         byte[] bits = db.get(hash.getBytes());
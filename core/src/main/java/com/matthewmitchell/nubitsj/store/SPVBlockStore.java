@@ -36,7 +36,7 @@ import static com.google.common.base.Preconditions.*;
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
  * but as they are virtually unheard of this is not a significant risk.
  */
-public class SPVBlockStore implements BlockStore {
+public class SPVBlockStore implements HeaderBatchStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
 
     /** The default number of headers that will be stored in the ring buffer. */
@@ -176,6 +176,31 @@ public class SPVBlockStore implements BlockStore {
         } finally { lock.unlock(); }
     }
 
+    @Override
+    public void putHeaders(HeaderBatch batch, int from, int count) throws BlockStoreException {
+        final MappedByteBuffer buffer = this.buffer;
+        if (buffer == null) throw new BlockStoreException("Store closed");
+
+        lock.lock();
+        try {
+            int cursor = getRingCursor(buffer);
+            for (int i = from; i < from + count; i++) {
+                if (cursor == getFileSize()) {
+                    // Wrapped around.
+                    cursor = FILE_PROLOGUE_BYTES;
+                }
+                buffer.position(cursor);
+                batch.writeHash(i, buffer);
+                batch.serializeCompact(i, buffer);
+                cursor = buffer.position();
+            }
+            setRingCursor(buffer, cursor);
+            // The new headers may have been looked up before they arrived. They aren't added to blockCache as that
+            // would mean creating their StoredBlocks.
+            notFoundCache.clear();
+        } finally { lock.unlock(); }
+    }
+
     @Override
     @Nullable
     public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
@@ -0,0 +1,366 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.store;
+
+import com.matthewmitchell.nubitsj.core.*;
+import com.matthewmitchell.nubitsj.script.Script;
+import com.matthewmitchell.nubitsj.wallet.Protos;
+import com.matthewmitchell.nubitsj.wallet.WalletTransaction;
+import com.google.common.base.Function;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * <p>Spent and dead transactions of a {@link Wallet} that are kept in serialized form, either because they were left
+ * that way when the wallet was loaded, see {@link WalletProtobufSerializer#setParseHistoryLazily(boolean)}, or because
+ * the wallet compacted them, see {@link Wallet#compactTransactions(int)}. Each is kept as the bytes of its
+ * {@link Protos.Transaction} message, indexed by hash, and the wallet parses it with
+ * {@link #parse(Sha256Hash, Function, Function, int, int)} the first time it's looked up. Saving the wallet writes
+ * them out again without parsing them.</p>
+ *
+ * <p>Next to the bytes each transaction has a table of where its output scripts are in them, so outputs can be matched
+ * against scripts without decoding the message, and the few fields of its confidence the wallet needs to know whether
+ * the message is up to date. Those are kept as primitives rather than as a {@link TransactionConfidence}, which only
+ * gets created when the transaction is parsed and someone can add listeners to it.</p>
+ *
+ * <p>The depth of a building transaction is left as it was when the transaction was serialized, and brought up to
+ * date from the last block seen when the transaction is parsed or written out. Outputs of parsed transactions that are
+ * spent by a serialized one are connected to it when it gets parsed.</p>
+ *
+ * <p>Not thread safe, the wallet only uses it with its lock held.</p>
+ */
+public class SerializedTransactions implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final NetworkParameters params;
+    private final HashMap<Sha256Hash, Entry> entries = new HashMap<Sha256Hash, Entry>();
+    // Outputs of parsed transactions, by the hash of the serialized transaction spending them.
+    private final ArrayListMultimap<Sha256Hash, Spend> spends = ArrayListMultimap.create();
+
+    private static class Entry implements Serializable {
+        final byte[] proto;
+        final WalletTransaction.Pool pool;
+        // Offset and length of the script of each output within proto.
+        final int[] scripts;
+        // Height the transaction appeared at if it is building, otherwise -1, and the depth recorded in proto.
+        final int appearedAtHeight;
+        final int depth;
+        // Update time of the transaction in milliseconds, zero if it has none.
+        final long updatedAt;
+
+        Entry(byte[] proto, WalletTransaction.Pool pool, int[] scripts, int appearedAtHeight, int depth,
+              long updatedAt) {
+            this.proto = proto;
+            this.pool = pool;
+            this.scripts = scripts;
+            this.appearedAtHeight = appearedAtHeight;
+            this.depth = depth;
+            this.updatedAt = updatedAt;
+        }
+
+        int getOutputCount() {
+            return scripts.length / 2;
+        }
+    }
+
+    private static class Spend implements Serializable {
+        final TransactionOutput output;
+        final int index;
+
+        Spend(TransactionOutput output, int index) {
+            this.output = output;
+            this.index = index;
+        }
+    }
+
+    public SerializedTransactions(NetworkParameters params) {
+        this.params = checkNotNull(params);
+    }
+
+    void add(Protos.Transaction proto) {
+        WalletTransaction.Pool pool;
+        switch (proto.getPool()) {
+            case SPENT: pool = WalletTransaction.Pool.SPENT; break;
+            case DEAD: pool = WalletTransaction.Pool.DEAD; break;
+            default: throw new IllegalArgumentException("Only spent and dead transactions can stay serialized");
+        }
+        Protos.TransactionConfidence confidence = proto.getConfidence();
+        int appearedAtHeight = -1;
+        if (confidence.getType() == Protos.TransactionConfidence.Type.BUILDING && confidence.hasAppearedAtHeight())
+            appearedAtHeight = confidence.getAppearedAtHeight();
+        byte[] bytes = proto.toByteArray();
+        Sha256Hash hash = WalletProtobufSerializer.byteStringToHash(proto.getHash());
+        entries.put(hash, new Entry(bytes, pool, findScripts(bytes), appearedAtHeight, confidence.getDepth(),
+                proto.getUpdatedAt()));
+    }
+
+    /**
+     * <p>Serializes the given parsed spent transactions, which the wallet then drops. Outputs of transactions that stay
+     * parsed and are spent by one of them are connected to the new object when it gets parsed. Until then they still
+     * point to the old one, so they are written out as spent. Inputs of transactions that stay parsed and spend one of
+     * them are disconnected, so they no longer hold on to the old object, and get connected again when it is
+     * parsed.</p>
+     */
+    public void addSpent(Collection<Transaction> txns) {
+        Set<Sha256Hash> hashes = new HashSet<Sha256Hash>();
+        for (Transaction tx : txns)
+            hashes.add(tx.getHash());
+        for (Transaction tx : txns) {
+            add(WalletProtobufSerializer.makeTxProto(new WalletTransaction(WalletTransaction.Pool.SPENT, tx)));
+            for (int i = 0; i < tx.getInputs().size(); i++) {
+                TransactionOutput output = tx.getInput(i).getConnectedOutput();
+                if (output != null && !isSerialized(output.getParentTransaction()))
+                    addSpend(tx.getHash(), output, i);
+            }
+            for (TransactionOutput output : tx.getOutputs()) {
+                TransactionInput spentBy = output.getSpentBy();
+                if (spentBy != null && !isSerialized(spentBy.getParentTransaction()))
+                    spentBy.disconnect();
+            }
+        }
+        // Spends of outputs that were just serialized are recorded in the messages now.
+        for (Iterator<Spend> it = spends.values().iterator(); it.hasNext(); )
+            if (hashes.contains(it.next().output.getParentTransaction().getHash()))
+                it.remove();
+    }
+
+    private boolean isSerialized(@Nullable Transaction tx) {
+        return tx != null && entries.containsKey(tx.getHash());
+    }
+
+    void addSpend(Sha256Hash spentBy, TransactionOutput output, int index) {
+        spends.put(spentBy, new Spend(output, index));
+    }
+
+    public boolean contains(Object hash) {
+        return entries.containsKey(hash);
+    }
+
+    /** Returns the pool of the given transaction, or null if it isn't in serialized form. */
+    @Nullable
+    public WalletTransaction.Pool getPool(Object hash) {
+        Entry entry = entries.get(hash);
+        return entry == null ? null : entry.pool;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /** Returns the number of transactions in the given pool. */
+    public int size(WalletTransaction.Pool pool) {
+        int size = 0;
+        for (Entry entry : entries.values())
+            if (entry.pool == pool)
+                size++;
+        return size;
+    }
+
+    /**
+     * Returns the latest update time in milliseconds of the transactions in the given pool, zero if they have none, or
+     * -1 if the pool has no serialized transactions.
+     */
+    public long getLatestUpdateTime(WalletTransaction.Pool pool) {
+        long latest = -1;
+        for (Entry entry : entries.values())
+            if (entry.pool == pool)
+                latest = Math.max(latest, entry.updatedAt);
+        return latest;
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /** Returns the hashes of the transactions in the given pool, or in all pools if it is null. */
+    public List<Sha256Hash> getHashes(@Nullable WalletTransaction.Pool pool) {
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        for (Map.Entry<Sha256Hash, Entry> entry : entries.entrySet())
+            if (pool == null || entry.getValue().pool == pool)
+                hashes.add(entry.getKey());
+        return hashes;
+    }
+
+    /**
+     * Returns the hashes of the building transactions that appeared above the given height, and of the dead ones, as
+     * those may appear in blocks of a side chain. These are the ones a re-org from that height can affect.
+     */
+    public List<Sha256Hash> getHashesAbove(int height) {
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        for (Map.Entry<Sha256Hash, Entry> entry : entries.entrySet())
+            if (entry.getValue().appearedAtHeight > height || entry.getValue().pool == WalletTransaction.Pool.DEAD)
+                hashes.add(entry.getKey());
+        return hashes;
+    }
+
+    /** Forgets the transactions in the given pool, or in all pools if it is null. */
+    public void clear(@Nullable WalletTransaction.Pool pool) {
+        for (Sha256Hash hash : getHashes(pool)) {
+            entries.remove(hash);
+            spends.removeAll(hash);
+        }
+    }
+
+    /**
+     * Parses the given transaction and stops tracking it. Transactions it spends outputs of are found with parsed,
+     * which must not parse anything itself, and the one overriding it, if it is dead, with any.
+     */
+    public Transaction parse(Sha256Hash hash, Function<Sha256Hash, Transaction> parsed,
+                             Function<Sha256Hash, Transaction> any, int lastBlockSeenHeight, int eventHorizon) {
+        Entry entry = checkNotNull(entries.remove(hash));
+        try {
+            Protos.Transaction proto = toProto(entry, lastBlockSeenHeight, eventHorizon);
+            Transaction tx = WalletProtobufSerializer.parseTransaction(proto, params);
+            for (int i = 0; i < tx.getOutputs().size(); i++) {
+                Protos.TransactionOutput outputProto = proto.getTransactionOutput(i);
+                if (!outputProto.hasSpentByTransactionHash())
+                    continue;
+                Sha256Hash spentBy = WalletProtobufSerializer.byteStringToHash(outputProto.getSpentByTransactionHash());
+                Transaction spendingTx = parsed.apply(spentBy);
+                if (spendingTx != null)
+                    spendingTx.getInput(outputProto.getSpentByTransactionIndex()).connect(tx.getOutput(i));
+                else
+                    addSpend(spentBy, tx.getOutput(i), outputProto.getSpentByTransactionIndex());
+            }
+            for (Spend spend : spends.removeAll(hash)) {
+                // Still marked as spent by the object this transaction was serialized from, if it was compacted.
+                if (!spend.output.isAvailableForSpending())
+                    spend.output.markAsUnspent();
+                tx.getInput(spend.index).connect(spend.output);
+            }
+            if (proto.hasConfidence()) {
+                Map<ByteString, Transaction> overriding = new HashMap<ByteString, Transaction>();
+                Protos.TransactionConfidence confidence = proto.getConfidence();
+                if (confidence.hasOverridingTransaction()) {
+                    Transaction overridingTx = any.apply(
+                            WalletProtobufSerializer.byteStringToHash(confidence.getOverridingTransaction()));
+                    if (overridingTx != null)
+                        overriding.put(confidence.getOverridingTransaction(), overridingTx);
+                }
+                WalletProtobufSerializer.readConfidence(tx, confidence, tx.getConfidence(), overriding);
+            }
+            return tx;
+        } catch (InvalidProtocolBufferException e) {
+            throw new IllegalStateException("Could not parse serialized transaction " + hash, e);
+        } catch (UnreadableWalletException e) {
+            throw new IllegalStateException("Could not parse serialized transaction " + hash, e);
+        }
+    }
+
+    /** Adds the transactions to the given list as they should be written out now. */
+    public void writeTo(List<Protos.Transaction> list, int lastBlockSeenHeight, int eventHorizon) {
+        for (Entry entry : entries.values()) {
+            try {
+                list.add(toProto(entry, lastBlockSeenHeight, eventHorizon));
+            } catch (InvalidProtocolBufferException e) {
+                throw new IllegalStateException(e);  // Cannot happen, we serialized it ourselves.
+            }
+        }
+    }
+
+    /** Returns the outpoints of outputs with the given scripts in the serialized transactions of the given pool. */
+    public List<TransactionOutPoint> findOutputs(WalletTransaction.Pool pool, Set<Script> scripts) {
+        List<TransactionOutPoint> outPoints = new ArrayList<TransactionOutPoint>();
+        if (scripts.isEmpty())
+            return outPoints;
+        for (Map.Entry<Sha256Hash, Entry> mapEntry : entries.entrySet()) {
+            Entry entry = mapEntry.getValue();
+            if (entry.pool != pool)
+                continue;
+            for (int i = 0; i < entry.getOutputCount(); i++) {
+                try {
+                    if (scripts.contains(new Script(getScriptBytes(entry, i))))
+                        outPoints.add(new TransactionOutPoint(params, i, mapEntry.getKey()));
+                } catch (ScriptException e) {
+                    // Not one of ours then.
+                }
+            }
+        }
+        return outPoints;
+    }
+
+    /** Returns the number of outputs of the given serialized transaction. */
+    public int getOutputCount(Sha256Hash hash) {
+        return checkNotNull(entries.get(hash)).getOutputCount();
+    }
+
+    /** Returns the script of the given output of a serialized transaction, read from its bytes without parsing it. */
+    public byte[] getScriptBytes(Sha256Hash hash, int index) {
+        return getScriptBytes(checkNotNull(entries.get(hash)), index);
+    }
+
+    private static byte[] getScriptBytes(Entry entry, int index) {
+        int offset = entry.scripts[index * 2];
+        return Arrays.copyOfRange(entry.proto, offset, offset + entry.scripts[index * 2 + 1]);
+    }
+
+    // Finds the offset and length of each output script in the bytes of a Protos.Transaction.
+    private static int[] findScripts(byte[] proto) {
+        try {
+            int[] scripts = new int[16];
+            int n = 0;
+            CodedInputStream input = CodedInputStream.newInstance(proto);
+            for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+                if (WireFormat.getTagFieldNumber(tag) != Protos.Transaction.TRANSACTION_OUTPUT_FIELD_NUMBER) {
+                    input.skipField(tag);
+                    continue;
+                }
+                int limit = input.pushLimit(input.readRawVarint32());
+                for (int outputTag = input.readTag(); outputTag != 0; outputTag = input.readTag()) {
+                    if (WireFormat.getTagFieldNumber(outputTag) != Protos.TransactionOutput.SCRIPT_BYTES_FIELD_NUMBER) {
+                        input.skipField(outputTag);
+                        continue;
+                    }
+                    int length = input.readRawVarint32();
+                    if (n == scripts.length)
+                        scripts = Arrays.copyOf(scripts, n * 2);
+                    scripts[n++] = input.getTotalBytesRead();
+                    scripts[n++] = length;
+                    input.skipRawBytes(length);
+                }
+                input.popLimit(limit);
+            }
+            return Arrays.copyOf(scripts, n);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);  // Cannot happen, we serialized it ourselves.
+        }
+    }
+
+    // Decodes the message of a transaction, with the depth of a building one worked out like
+    // Wallet.notifyNewBestBlock() would have counted it.
+    private static Protos.Transaction toProto(Entry entry, int lastBlockSeenHeight, int eventHorizon)
+            throws InvalidProtocolBufferException {
+        Protos.Transaction proto = Protos.Transaction.parseFrom(entry.proto);
+        if (entry.appearedAtHeight < 0 || lastBlockSeenHeight < entry.appearedAtHeight)
+            return proto;
+        int depth = lastBlockSeenHeight - entry.appearedAtHeight + 1;
+        if (depth == entry.depth)
+            return proto;
+        Protos.TransactionConfidence.Builder builder = proto.getConfidence().toBuilder().setDepth(depth);
+        if (depth > eventHorizon)
+            builder.clearBroadcastBy();
+        return proto.toBuilder().setConfidence(builder).build();
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.store;
+
+import com.matthewmitchell.nubitsj.core.*;
+import com.matthewmitchell.nubitsj.wallet.Protos;
+import com.matthewmitchell.nubitsj.wallet.WalletTransaction;
+import com.google.common.io.Files;
+import com.google.protobuf.ByteString;
+import org.slf4j.*;
+
+import javax.annotation.*;
+import java.io.*;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * <p>An append-only log of wallet changes that goes next to a wallet file, so that the wallet can be saved without
+ * serializing all of it every time. Each record is a {@link Protos.Wallet} message holding the transactions that
+ * changed since the last record, in the same form {@link WalletProtobufSerializer} writes them, and the last block
+ * seen. When the keys, watched scripts, extensions or other wallet wide fields changed, the record holds those too.
+ * The wallet tracks whether they did, since serializing the keys for every record would cost as much as the
+ * transactions saved. Records are length prefixed and fsynced in batches: {@link #add(Wallet, Collection, boolean)}
+ * queues a record and
+ * {@link #sync(long)} writes out everything queued so far, so that when several threads save at once only one of them
+ * pays for the disk flush.</p>
+ *
+ * <p>The journal starts with the hash of the wallet file it applies to. Compaction writes a full wallet file and then
+ * starts a new journal with {@link #reset(Sha256Hash)}, so if the process dies in between, the stale journal no longer
+ * matches and is ignored on load. {@link #read(File)} returns the wallet file with the journal replayed on top of it.
+ * The depth of building transactions isn't journaled for every block; it's worked out again from the last block seen
+ * when replaying.</p>
+ *
+ * <p>Records are queued with the wallet lock held, which keeps them in the order the changes were made.</p>
+ */
+public class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    private static final byte[] MAGIC = { 'w', 'j', 'n', 'l' };
+    private static final int CHANGES = 0;
+    private static final int HEADER = 1;
+
+    private final File file;
+    private final Object writeLock = new Object();
+
+    // Guarded by writeLock.
+    @Nullable private FileOutputStream stream;
+    private long size;
+    private long synced;
+
+    // Guarded by the queue.
+    private final ArrayList<byte[]> queue = new ArrayList<byte[]>();
+    private long queued;
+
+    public WalletJournal(File file) {
+        this.file = checkNotNull(file);
+    }
+
+    /** Returns the journal file that goes with the given wallet file. */
+    public static File journalFile(File walletFile) {
+        return new File(walletFile.getPath() + ".journal");
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /** Returns true once {@link #reset(Sha256Hash)} was called, so records can be written. */
+    public boolean isOpen() {
+        synchronized (writeLock) {
+            return stream != null;
+        }
+    }
+
+    /** Returns the number of bytes written to the journal since it was last reset. */
+    public long size() {
+        synchronized (writeLock) {
+            return size;
+        }
+    }
+
+    /**
+     * Starts the journal over for a wallet file with the given hash, dropping any records still queued. Must be called
+     * with the wallet lock held, right after the wallet file was written, so the dropped records are all in it.
+     */
+    public void reset(Sha256Hash walletFileHash) throws IOException {
+        synchronized (writeLock) {
+            synchronized (queue) {
+                queue.clear();
+                synced = queued;
+            }
+            close();
+            File temp = new File(file.getPath() + ".tmp");
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(MAGIC);
+                out.write(walletFileHash.getBytes());
+                out.flush();
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (file.exists() && !file.delete())
+                throw new IOException("Failed to delete " + file);
+            if (!temp.renameTo(file))
+                throw new IOException("Failed to rename " + temp + " to " + file);
+            stream = new FileOutputStream(file, true);
+            size = 0;
+        }
+    }
+
+    /**
+     * Queues a record of the given changed transactions and the wallet's current last block seen, and if
+     * headerChanged is true, the wallet wide fields. Must be called with the wallet lock held. Returns a number to
+     * pass to {@link #sync(long)}.
+     */
+    public long add(Wallet wallet, Collection<WalletTransaction> changed, boolean headerChanged) {
+        Protos.Wallet.Builder record;
+        int type;
+        if (headerChanged) {
+            type = HEADER;
+            WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+            record = serializer.walletToProto(wallet, Collections.<WalletTransaction>emptyList()).toBuilder();
+        } else {
+            type = CHANGES;
+            record = Protos.Wallet.newBuilder().setNetworkIdentifier(wallet.getNetworkParameters().getId());
+            Sha256Hash lastSeenBlockHash = wallet.getLastBlockSeenHash();
+            if (lastSeenBlockHash != null) {
+                record.setLastSeenBlockHash(WalletProtobufSerializer.hashToByteString(lastSeenBlockHash));
+                record.setLastSeenBlockHeight(wallet.getLastBlockSeenHeight());
+            }
+            if (wallet.getLastBlockSeenTimeSecs() > 0)
+                record.setLastSeenBlockTimeSecs(wallet.getLastBlockSeenTimeSecs());
+        }
+        for (WalletTransaction wtx : changed)
+            record.addTransaction(WalletProtobufSerializer.makeTxProto(wtx));
+        synchronized (queue) {
+            try {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                bos.write(type);
+                record.build().writeDelimitedTo(bos);
+                queue.add(bos.toByteArray());
+            } catch (IOException e) {
+                throw new RuntimeException(e);  // Cannot happen.
+            }
+            return ++queued;
+        }
+    }
+
+    /** Writes out and fsyncs all queued records, if the record with the given number hasn't been already. */
+    public void sync(long record) throws IOException {
+        synchronized (writeLock) {
+            if (synced >= record)
+                return;  // Someone else flushed it along with theirs.
+            checkState(stream != null, "Journal is not open");
+            List<byte[]> records;
+            long last;
+            synchronized (queue) {
+                records = new ArrayList<byte[]>(queue);
+                queue.clear();
+                last = queued;
+            }
+            for (byte[] bytes : records) {
+                stream.write(bytes);
+                size += bytes.length;
+            }
+            stream.flush();
+            stream.getFD().sync();
+            synced = last;
+        }
+    }
+
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            if (stream != null) {
+                stream.close();
+                stream = null;
+            }
+        }
+    }
+
+    /**
+     * Reads the given wallet file, and if a journal for it exists, replays the journal on top. A record cut short
+     * by a crash ends the replay.
+     */
+    public static Protos.Wallet read(File walletFile) throws IOException {
+        byte[] bytes = Files.toByteArray(walletFile);
+        Protos.Wallet wallet = WalletProtobufSerializer.parseToProto(new ByteArrayInputStream(bytes));
+        File journal = journalFile(walletFile);
+        if (!journal.exists())
+            return wallet;
+        InputStream input = new BufferedInputStream(new FileInputStream(journal));
+        try {
+            byte[] start = new byte[MAGIC.length + 32];
+            if (input.read(start) != start.length || !Arrays.equals(MAGIC, Arrays.copyOf(start, MAGIC.length))) {
+                log.warn("Ignoring journal {} without a valid header", journal);
+                return wallet;
+            }
+            Sha256Hash base = Sha256Hash.wrap(Arrays.copyOfRange(start, MAGIC.length, start.length));
+            if (!base.equals(Sha256Hash.of(bytes))) {
+                log.info("Ignoring journal {} for an older wallet file", journal);
+                return wallet;
+            }
+            return replay(wallet, input);
+        } finally {
+            input.close();
+        }
+    }
+
+    private static Protos.Wallet replay(Protos.Wallet wallet, InputStream input) throws IOException {
+        Protos.Wallet.Builder builder = wallet.toBuilder().clearTransaction();
+        LinkedHashMap<ByteString, Protos.Transaction> transactions = new LinkedHashMap<ByteString, Protos.Transaction>();
+        for (Protos.Transaction tx : wallet.getTransactionList())
+            transactions.put(tx.getHash(), tx);
+        int records = 0;
+        while (true) {
+            int type = input.read();
+            if (type == -1)
+                break;
+            Protos.Wallet record;
+            try {
+                record = Protos.Wallet.parseDelimitedFrom(input);
+            } catch (IOException e) {
+                record = null;
+            }
+            if (record == null || (type != CHANGES && type != HEADER)) {
+                log.warn("Journal ends in a partly written record, ignoring it");
+                break;
+            }
+            if (type == HEADER) {
+                builder = record.toBuilder().clearTransaction();
+            } else {
+                builder.clearLastSeenBlockHash().clearLastSeenBlockHeight().clearLastSeenBlockTimeSecs();
+                if (record.hasLastSeenBlockHash())
+                    builder.setLastSeenBlockHash(record.getLastSeenBlockHash());
+                if (record.hasLastSeenBlockHeight())
+                    builder.setLastSeenBlockHeight(record.getLastSeenBlockHeight());
+                if (record.hasLastSeenBlockTimeSecs())
+                    builder.setLastSeenBlockTimeSecs(record.getLastSeenBlockTimeSecs());
+            }
+            for (Protos.Transaction tx : record.getTransactionList())
+                transactions.put(tx.getHash(), tx);
+            records++;
+        }
+        log.info("Replayed {} journal records", records);
+        if (records == 0 || !builder.hasLastSeenBlockHeight()) {
+            builder.addAllTransaction(transactions.values());
+            return builder.build();
+        }
+        // Bring the depths of transactions that were only journaled when they first got into a block up to date.
+        int height = builder.getLastSeenBlockHeight();
+        for (Protos.Transaction tx : transactions.values()) {
+            Protos.TransactionConfidence confidence = tx.getConfidence();
+            if (confidence.getType() == Protos.TransactionConfidence.Type.BUILDING && confidence.hasAppearedAtHeight()
+                    && height >= confidence.getAppearedAtHeight()) {
+                int depth = height - confidence.getAppearedAtHeight() + 1;
+                if (depth != confidence.getDepth())
+                    tx = tx.toBuilder().setConfidence(confidence.toBuilder().setDepth(depth)).build();
+            }
+            builder.addTransaction(tx);
+        }
+        return builder.build();
+    }
+}
@@ -26,6 +26,7 @@ import com.matthewmitchell.nubitsj.signers.LocalTransactionSigner;
 import com.matthewmitchell.nubitsj.signers.TransactionSigner;
 import com.matthewmitchell.nubitsj.utils.ExchangeRate;
 import com.matthewmitchell.nubitsj.utils.Fiat;
+import com.matthewmitchell.nubitsj.utils.ParallelTransform;
 import com.matthewmitchell.nubitsj.wallet.DefaultKeyChainFactory;
 import com.matthewmitchell.nubitsj.wallet.KeyChainFactory;
 import com.matthewmitchell.nubitsj.wallet.KeyChainGroup;
@@ -50,6 +51,7 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.*;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -83,6 +85,8 @@ public class WalletProtobufSerializer {
     protected Map<ByteString, Transaction> txMap;
 
     private boolean requireMandatoryExtensions = true;
+    private boolean parseHistoryLazily;
+    private int decodingThreads = ParallelTransform.defaultThreads();
 
     public interface WalletFactory {
         Wallet create(NetworkParameters params, KeyChainGroup keyChainGroup, ValidHashStore validHashStore);
@@ -119,6 +123,26 @@ public class WalletProtobufSerializer {
         requireMandatoryExtensions = value;
     }
 
+    /**
+     * If this property is set to true, spent and dead transactions are kept in serialized form when a wallet is read,
+     * and only parsed when the wallet is asked for them, see {@link SerializedTransactions}. Transactions the unspent
+     * and pending ones depend on are still parsed up front. This makes wallets with a long history load faster and
+     * take much less memory.
+     */
+    public void setParseHistoryLazily(boolean value) {
+        parseHistoryLazily = value;
+    }
+
+    /**
+     * Sets how many threads transactions are decoded on when a wallet is read, one per processor by default. Only
+     * building the transaction objects is spread over threads; connecting them to each other and placing them in
+     * their pools is done on the calling thread afterwards.
+     */
+    public void setDecodingThreads(int threads) {
+        checkArgument(threads > 0, "threads must be positive");
+        decodingThreads = threads;
+    }
+
     /**
      * Formats the given wallet (transactions and keys) to the given output stream in protocol buffer format.<p>
      *
@@ -146,13 +170,25 @@ public class WalletProtobufSerializer {
      * additional data fields set, before serialization takes place.
      */
     public Protos.Wallet walletToProto(Wallet wallet) {
+        // Transactions that were never parsed are written out as they are.
+        List<Protos.Transaction> serialized = new ArrayList<Protos.Transaction>();
+        Iterable<WalletTransaction> transactions = wallet.getWalletTransactions(serialized);
+        return walletToProtoBuilder(wallet, transactions).addAllTransaction(serialized).build();
+    }
+
+    /** Like {@link #walletToProto(Wallet)}, but with only the given transactions. Used for {@link WalletJournal}. */
+    Protos.Wallet walletToProto(Wallet wallet, Iterable<WalletTransaction> transactions) {
+        return walletToProtoBuilder(wallet, transactions).build();
+    }
+
+    private Protos.Wallet.Builder walletToProtoBuilder(Wallet wallet, Iterable<WalletTransaction> transactions) {
         Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
         walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
         if (wallet.getDescription() != null) {
             walletBuilder.setDescription(wallet.getDescription());
         }
 
-        for (WalletTransaction wtx : wallet.getWalletTransactions()) {
+        for (WalletTransaction wtx : transactions) {
             Protos.Transaction txProto = makeTxProto(wtx);
             walletBuilder.addTransaction(txProto);
         }
@@ -220,7 +256,7 @@ public class WalletProtobufSerializer {
         // Populate the wallet version.
         walletBuilder.setVersion(wallet.getVersion());
 
-        return walletBuilder.build();
+        return walletBuilder;
     }
 
     private static void populateExtensions(Wallet wallet, Protos.Wallet.Builder walletBuilder) {
@@ -233,7 +269,7 @@ public class WalletProtobufSerializer {
         }
     }
 
-    private static Protos.Transaction makeTxProto(WalletTransaction wtx) {
+    static Protos.Transaction makeTxProto(WalletTransaction wtx) {
         Transaction tx = wtx.getTransaction();
         Protos.Transaction.Builder txBuilder = Protos.Transaction.newBuilder();
         
@@ -454,16 +490,27 @@ public class WalletProtobufSerializer {
             wallet.setDescription(walletProto.getDescription());
         }
 
-        // Read all transactions and insert into the txMap.
+        // Read all transactions and insert into the txMap, except those left serialized.
+        Set<ByteString> unparsed = parseHistoryLazily ? findUnparsed(walletProto) : Collections.<ByteString>emptySet();
+        SerializedTransactions serialized = unparsed.isEmpty() ? null : new SerializedTransactions(params);
+        List<Protos.Transaction> toParse = new ArrayList<Protos.Transaction>(walletProto.getTransactionCount());
         for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-            readTransaction(txProto, wallet.getParams());
+            if (unparsed.contains(txProto.getHash()))
+                serialized.add(txProto);
+            else
+                toParse.add(txProto);
         }
+        readTransactions(toParse, wallet.getParams());
 
         // Update transaction outputs to point to inputs that spend them
         for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-            WalletTransaction wtx = connectTransactionOutputs(txProto);
+            if (unparsed.contains(txProto.getHash()))
+                continue;
+            WalletTransaction wtx = connectTransactionOutputs(txProto, serialized);
             wallet.addWalletTransaction(wtx);
         }
+        if (serialized != null)
+            wallet.setSerializedTransactions(serialized);
 
         // Update the lastBlockSeenHash.
         if (!walletProto.hasLastSeenBlockHash()) {
@@ -553,7 +600,47 @@ public class WalletProtobufSerializer {
         return Protos.Wallet.parseFrom(codedInput);
     }
 
-    private void readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
+    // Returns the spent and dead transactions that can be left serialized: those not spending outputs of unspent or
+    // pending transactions, as these outputs have to be marked spent when they are loaded.
+    private static Set<ByteString> findUnparsed(Protos.Wallet walletProto) {
+        Set<ByteString> needed = new HashSet<ByteString>();
+        for (Protos.Transaction txProto : walletProto.getTransactionList()) {
+            Protos.Transaction.Pool pool = txProto.getPool();
+            if (pool == Protos.Transaction.Pool.SPENT || pool == Protos.Transaction.Pool.DEAD)
+                continue;
+            needed.add(txProto.getHash());
+            for (Protos.TransactionOutput output : txProto.getTransactionOutputList()) {
+                if (output.hasSpentByTransactionHash())
+                    needed.add(output.getSpentByTransactionHash());
+            }
+        }
+        Set<ByteString> unparsed = new HashSet<ByteString>();
+        for (Protos.Transaction txProto : walletProto.getTransactionList()) {
+            if (!needed.contains(txProto.getHash()))
+                unparsed.add(txProto.getHash());
+        }
+        return unparsed;
+    }
+
+    // Transactions are decoded independently of each other, so that part is spread over threads.
+    private void readTransactions(List<Protos.Transaction> txProtos, final NetworkParameters params)
+            throws UnreadableWalletException {
+        List<Transaction> txns = ParallelTransform.transform(txProtos,
+                new ParallelTransform.Function<Protos.Transaction, Transaction, UnreadableWalletException>() {
+                    @Override
+                    public Transaction apply(Protos.Transaction txProto) throws UnreadableWalletException {
+                        return parseTransaction(txProto, params);
+                    }
+                }, UnreadableWalletException.class, decodingThreads);
+        for (int i = 0; i < txns.size(); i++) {
+            ByteString hash = txProtos.get(i).getHash();
+            if (txMap.containsKey(hash))
+                throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(hash));
+            txMap.put(hash, txns.get(i));
+        }
+    }
+
+    static Transaction parseTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
         Transaction tx = new Transaction(params);
         if (txProto.hasUpdatedAt()) {
             tx.setUpdateTime(new Date(txProto.getUpdatedAt()));
@@ -622,12 +709,11 @@ public class WalletProtobufSerializer {
         Sha256Hash protoHash = byteStringToHash(txProto.getHash());
         if (!tx.getHash().equals(protoHash))
             throw new UnreadableWalletException(String.format(Locale.US, "Transaction did not deserialize completely: %s vs %s", tx.getHash(), protoHash));
-        if (txMap.containsKey(txProto.getHash()))
-            throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(txProto.getHash()));
-        txMap.put(txProto.getHash(), tx);
+        return tx;
     }
 
-    private WalletTransaction connectTransactionOutputs(com.matthewmitchell.nubitsj.wallet.Protos.Transaction txProto) throws UnreadableWalletException {
+    private WalletTransaction connectTransactionOutputs(com.matthewmitchell.nubitsj.wallet.Protos.Transaction txProto,
+                                                        @Nullable SerializedTransactions serialized) throws UnreadableWalletException {
         Transaction tx = txMap.get(txProto.getHash());
         final WalletTransaction.Pool pool;
         switch (txProto.getPool()) {
@@ -652,6 +738,13 @@ public class WalletProtobufSerializer {
             if (transactionOutput.hasSpentByTransactionHash()) {
                 final ByteString spentByTransactionHash = transactionOutput.getSpentByTransactionHash();
                 Transaction spendingTx = txMap.get(spentByTransactionHash);
+                if (spendingTx == null && serialized != null
+                        && serialized.contains(byteStringToHash(spentByTransactionHash))) {
+                    // Connected when the spending transaction is parsed.
+                    serialized.addSpend(byteStringToHash(spentByTransactionHash), output,
+                            transactionOutput.getSpentByTransactionIndex());
+                    continue;
+                }
                 if (spendingTx == null) {
                     throw new UnreadableWalletException(String.format(Locale.US, "Could not connect %s to %s",
                             tx.getHashAsString(), byteStringToHash(spentByTransactionHash)));
@@ -665,14 +758,15 @@ public class WalletProtobufSerializer {
         if (txProto.hasConfidence()) {
             Protos.TransactionConfidence confidenceProto = txProto.getConfidence();
             TransactionConfidence confidence = tx.getConfidence();
-            readConfidence(tx, confidenceProto, confidence);
+            readConfidence(tx, confidenceProto, confidence, txMap);
         }
 
         return new WalletTransaction(pool, tx);
     }
 
-    private void readConfidence(Transaction tx, Protos.TransactionConfidence confidenceProto,
-                                TransactionConfidence confidence) throws UnreadableWalletException {
+    static void readConfidence(Transaction tx, Protos.TransactionConfidence confidenceProto,
+                               TransactionConfidence confidence, Map<ByteString, Transaction> txMap)
+            throws UnreadableWalletException {
         // We are lenient here because tx confidence is not an essential part of the wallet.
         // If the tx has an unknown type of confidence, ignore.
         if (!confidenceProto.hasType()) {
@@ -20,8 +20,11 @@ import com.matthewmitchell.nubitsj.core.*;
 import com.matthewmitchell.nubitsj.utils.Threading;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -31,7 +34,7 @@ import java.util.concurrent.locks.ReentrantLock;
  * the broadcast to be seen as if it never propagated though, so you may instead use {@link #waitForTxFuture()} and then
  * set the returned future when you want the "broadcast" to be completed.
  */
-public class MockTransactionBroadcaster implements TransactionBroadcaster {
+public class MockTransactionBroadcaster implements BatchTransactionBroadcaster {
     private final ReentrantLock lock = Threading.lock("mock tx broadcaster");
     private final Wallet wallet;
 
@@ -95,6 +98,15 @@ public class MockTransactionBroadcaster implements TransactionBroadcaster {
         }
     }
 
+    /** Hands each transaction over as its own broadcast, completing the batch when all of them were. */
+    @Override
+    public TransactionBatchBroadcast broadcastTransactions(List<Transaction> txns) {
+        List<ListenableFuture<Transaction>> futures = new ArrayList<ListenableFuture<Transaction>>();
+        for (Transaction tx : txns)
+            futures.add(broadcastTransaction(tx).future());
+        return TransactionBatchBroadcast.createMockBroadcast(txns, Futures.allAsList(futures));
+    }
+
     public Transaction waitForTransaction() {
         return waitForTxFuture().tx;
     }
@@ -0,0 +1,300 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.utils;
+
+import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.matthewmitchell.nubitsj.core.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>An executor for event listeners that runs the tasks given for the same key in the order they were given, one at a
+ * time, while tasks for different keys can run at the same time. Keys are spread over a fixed number of threads by
+ * identity, so a slow listener only holds up the keys that share its thread. Tasks given to the executor itself
+ * rather than through {@link #forKey(Object)} all go to the first thread and so stay in order with each other.</p>
+ *
+ * <p>Each thread has room for a bounded number of waiting tasks. When a thread is full, callers wait up to a given
+ * time for room and then queue the task anyway with a warning. Once a caller gave up waiting, the thread takes tasks
+ * past its capacity without making anyone wait until it has caught up with all of them, so a stuck listener costs
+ * one wait rather than one per event. Callers holding a lock or monitor never wait, as events are often queued while
+ * holding a lock that the listener itself takes, and neither do the executor's own threads.</p>
+ *
+ * <p>This is not the default {@link Threading#USER_THREAD}, see {@link Threading#useKeyedUserThreads()}.</p>
+ *
+ * <p>The time tasks spend waiting and running is counted per key, see {@link #getStats(Object)}. Keys are held
+ * weakly and compared by identity.</p>
+ */
+public class KeyedOrderedExecutor implements Executor {
+    private static final Logger log = LoggerFactory.getLogger(KeyedOrderedExecutor.class);
+
+    private final Worker[] workers;
+    private final int capacity;
+    private final long maxWaitMillis;
+    private final ConcurrentMap<Object, Stats> stats = new MapMaker().weakKeys().makeMap();
+
+    /** How many tasks of a key ran, how many are waiting, and how long they waited and ran. */
+    public static class Stats {
+        private final AtomicInteger pending = new AtomicInteger();
+        private final AtomicLong tasks = new AtomicLong();
+        private final AtomicLong totalQueueNanos = new AtomicLong();
+        private final AtomicLong maxQueueNanos = new AtomicLong();
+        private final AtomicLong totalRunNanos = new AtomicLong();
+        private final AtomicLong maxRunNanos = new AtomicLong();
+
+        /** Returns the number of tasks queued and not yet finished. */
+        public int getPending() {
+            return pending.get();
+        }
+
+        /** Returns the number of tasks that finished. */
+        public long getTasks() {
+            return tasks.get();
+        }
+
+        /** Returns the average time from queueing a task to starting it, in nanoseconds. */
+        public long getAverageQueueNanos() {
+            long n = tasks.get();
+            return n == 0 ? 0 : totalQueueNanos.get() / n;
+        }
+
+        public long getMaxQueueNanos() {
+            return maxQueueNanos.get();
+        }
+
+        /** Returns the average time a task took to run, in nanoseconds. */
+        public long getAverageRunNanos() {
+            long n = tasks.get();
+            return n == 0 ? 0 : totalRunNanos.get() / n;
+        }
+
+        public long getMaxRunNanos() {
+            return maxRunNanos.get();
+        }
+
+        private void record(long queueNanos, long runNanos) {
+            tasks.incrementAndGet();
+            totalQueueNanos.addAndGet(queueNanos);
+            totalRunNanos.addAndGet(runNanos);
+            raise(maxQueueNanos, queueNanos);
+            raise(maxRunNanos, runNanos);
+        }
+
+        private static void raise(AtomicLong max, long value) {
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) ;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d tasks, %d pending, queued %d/%d us, ran %d/%d us (avg/max)", getTasks(),
+                    getPending(), getAverageQueueNanos() / 1000, getMaxQueueNanos() / 1000,
+                    getAverageRunNanos() / 1000, getMaxRunNanos() / 1000);
+        }
+    }
+
+    private static class Task {
+        final Runnable runnable;
+        @Nullable final Stats stats;
+        final boolean holdsPermit;
+        final long queuedNanos = System.nanoTime();
+
+        Task(Runnable runnable, @Nullable Stats stats, boolean holdsPermit) {
+            this.runnable = runnable;
+            this.stats = stats;
+            this.holdsPermit = holdsPermit;
+        }
+    }
+
+    private class Worker extends Thread {
+        final LinkedBlockingQueue<Task> tasks = new LinkedBlockingQueue<Task>();
+        final Semaphore room = new Semaphore(capacity);
+        // Set once tasks are queued past capacity, until the queue is empty again. No caller waits meanwhile.
+        volatile boolean overflowing;
+
+        Worker(String name) {
+            super(name);
+            setDaemon(true);
+        }
+
+        void add(Runnable runnable, @Nullable Stats stats) {
+            boolean holdsPermit = false;
+            if (!isWorkerThread()) {
+                holdsPermit = room.tryAcquire();
+                if (!holdsPermit && !overflowing && !holdsLocks()) {
+                    long start = System.nanoTime();
+                    try {
+                        holdsPermit = room.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    if (holdsPermit)
+                        log.info("{} was full, waited {} ms for room", getName(), (System.nanoTime() - start) / 1000000);
+                }
+                if (!holdsPermit && !overflowing) {
+                    overflowing = true;
+                    log.warn("{} has {} pending tasks, queueing more anyway until it catches up. Check for slow or " +
+                            "deadlocked event listeners.", getName(), tasks.size());
+                }
+            }
+            if (stats != null)
+                stats.pending.incrementAndGet();
+            Uninterruptibles.putUninterruptibly(tasks, new Task(runnable, stats, holdsPermit));
+        }
+
+        @SuppressWarnings("InfiniteLoopStatement") @Override
+        public void run() {
+            while (true) {
+                Task task = Uninterruptibles.takeUninterruptibly(tasks);
+                if (task.holdsPermit)
+                    room.release();
+                long start = System.nanoTime();
+                try {
+                    task.runnable.run();
+                } catch (Throwable throwable) {
+                    log.warn("Exception in user thread", throwable);
+                    Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+                    if (handler != null)
+                        handler.uncaughtException(this, throwable);
+                } finally {
+                    if (task.stats != null) {
+                        task.stats.pending.decrementAndGet();
+                        task.stats.record(start - task.queuedNanos, System.nanoTime() - start);
+                    }
+                    if (overflowing && tasks.isEmpty()) {
+                        overflowing = false;
+                        log.info("{} caught up", getName());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates an executor with the given number of threads, each with room for the given number of waiting tasks.
+     * Callers wait up to the given time for room before queueing past that.
+     */
+    public KeyedOrderedExecutor(String name, int threads, int capacity, long maxWait, TimeUnit unit) {
+        checkArgument(threads > 0, "threads must be positive");
+        checkArgument(capacity > 0, "capacity must be positive");
+        this.capacity = capacity;
+        this.maxWaitMillis = unit.toMillis(maxWait);
+        this.workers = new Worker[threads];
+        for (int i = 0; i < threads; i++)
+            workers[i] = new Worker(threads == 1 ? name : name + " " + i);
+        for (Worker worker : workers)
+            worker.start();
+    }
+
+    /** Queues a task behind all other tasks given to this executor without a key. */
+    @Override
+    public void execute(@Nonnull Runnable command) {
+        workers[0].add(checkNotNull(command), null);
+    }
+
+    /** Returns an executor that queues tasks behind the other tasks for the given key. */
+    public Executor forKey(final Object key) {
+        checkNotNull(key);
+        final Worker worker = workers[(System.identityHashCode(key) & Integer.MAX_VALUE) % workers.length];
+        Stats newStats = new Stats();
+        Stats existing = stats.putIfAbsent(key, newStats);
+        final Stats keyStats = existing != null ? existing : newStats;
+        return new Executor() {
+            @Override
+            public void execute(@Nonnull Runnable command) {
+                worker.add(checkNotNull(command), keyStats);
+            }
+        };
+    }
+
+    /** Returns the counts and timings of the tasks given for the key, or null if none were. */
+    @Nullable
+    public Stats getStats(Object key) {
+        return stats.get(key);
+    }
+
+    /** Returns the number of tasks waiting on all threads. */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Worker worker : workers)
+            depth += worker.tasks.size();
+        return depth;
+    }
+
+    public int getThreads() {
+        return workers.length;
+    }
+
+    // Whether the calling thread holds a lock or monitor, in which case waiting for a listener could deadlock. Only
+    // asked when a thread is full, as it is slow. Assumes so where it can't tell, such as on Android.
+    private static boolean holdsLocks() {
+        if (Utils.isAndroidRuntime())
+            return true;
+        try {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (!bean.isObjectMonitorUsageSupported() || !bean.isSynchronizerUsageSupported())
+                return true;
+            ThreadInfo info = bean.getThreadInfo(new long[] {Thread.currentThread().getId()}, true, true)[0];
+            return info == null || info.getLockedMonitors().length > 0 || info.getLockedSynchronizers().length > 0;
+        } catch (Throwable e) {
+            return true;
+        }
+    }
+
+    /** Returns true if called from one of the threads of this executor. */
+    public boolean isWorkerThread() {
+        Thread thread = Thread.currentThread();
+        for (Worker worker : workers)
+            if (worker == thread)
+                return true;
+        return false;
+    }
+
+    /**
+     * Waits until all tasks queued before the call have run. Must not be called from one of the threads of this
+     * executor.
+     */
+    public void waitForQueued() {
+        checkState(!isWorkerThread(), "Would wait for itself");
+        final CountDownLatch latch = new CountDownLatch(workers.length);
+        for (Worker worker : workers) {
+            worker.add(new Runnable() {
+                @Override
+                public void run() {
+                    latch.countDown();
+                }
+            }, null);
+        }
+        Uninterruptibles.awaitUninterruptibly(latch);
+    }
+}
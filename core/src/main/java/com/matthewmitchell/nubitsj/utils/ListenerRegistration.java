@@ -28,9 +28,15 @@ public class ListenerRegistration<T> {
     public final T listener;
     public final Executor executor;
 
+    /**
+     * If the executor is a {@link KeyedOrderedExecutor}, see {@link Threading#useKeyedUserThreads()}, the listener
+     * is run with its own key, so that it gets its events in order.
+     */
     public ListenerRegistration(T listener, Executor executor) {
         this.listener = checkNotNull(listener);
-        this.executor = checkNotNull(executor);
+        checkNotNull(executor);
+        this.executor = executor instanceof KeyedOrderedExecutor ? ((KeyedOrderedExecutor) executor).forKey(listener)
+                : executor;
     }
 
     /** Returns true if the listener was removed, else false. */
@@ -0,0 +1,110 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.utils;
+
+import com.google.common.base.Throwables;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Applies a function to every item of a list on several threads, for work that is independent per item, like
+ * decoding the transactions or keys of a wallet. The list is cut into one slice per thread: the calling thread does
+ * the first slice and {@link Threading#THREAD_POOL} the others. Lists shorter than {@link #MIN_PARALLEL_SIZE} are done
+ * on the calling thread alone, as handing them off would cost more than it saves. Work that is much costlier per item,
+ * like deriving keys, can give a lower minimum.</p>
+ *
+ * <p>The function must not touch state shared between items. If it throws, the exception of the first slice that
+ * failed is rethrown.</p>
+ */
+public class ParallelTransform {
+    /** Lists shorter than this are transformed on the calling thread. */
+    public static final int MIN_PARALLEL_SIZE = 256;
+
+    /** A function that can fail with a checked exception of type E. */
+    public interface Function<F, T, E extends Exception> {
+        T apply(F input) throws E;
+    }
+
+    /** Returns the number of threads to use by default, one per processor. */
+    public static int defaultThreads() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Returns the results of applying the function to each item, in the order of the items, using up to the given
+     * number of threads. Exceptions of the given type and unchecked exceptions thrown by the function are rethrown as
+     * they are.
+     */
+    public static <F, T, E extends Exception> List<T> transform(List<F> items, Function<F, T, E> function,
+                                                                Class<E> exceptionType, int threads) throws E {
+        return transform(items, function, exceptionType, threads, MIN_PARALLEL_SIZE);
+    }
+
+    /**
+     * Like {@link #transform(List, Function, Class, int)}, but only lists shorter than the given size are transformed
+     * on the calling thread alone.
+     */
+    public static <F, T, E extends Exception> List<T> transform(List<F> items, final Function<F, T, E> function,
+                                                                Class<E> exceptionType, int threads,
+                                                                int minParallelSize) throws E {
+        checkArgument(threads > 0, "threads must be positive");
+        if (threads == 1 || items.size() < Math.max(minParallelSize, 2))
+            return transformSlice(items, function);
+        int sliceSize = (items.size() + threads - 1) / threads;
+        List<Future<List<T>>> futures = new ArrayList<Future<List<T>>>(threads - 1);
+        for (int from = sliceSize; from < items.size(); from += sliceSize) {
+            final List<F> slice = items.subList(from, Math.min(items.size(), from + sliceSize));
+            futures.add(Threading.THREAD_POOL.submit(new Callable<List<T>>() {
+                @Override
+                public List<T> call() throws Exception {
+                    return transformSlice(slice, function);
+                }
+            }));
+        }
+        boolean done = false;
+        try {
+            List<T> results = new ArrayList<T>(items.size());
+            results.addAll(transformSlice(items.subList(0, sliceSize), function));
+            for (Future<List<T>> future : futures)
+                results.addAll(future.get());
+            done = true;
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), exceptionType);
+            throw Throwables.propagate(e.getCause());
+        } finally {
+            if (!done)
+                for (Future<List<T>> future : futures)
+                    future.cancel(true);
+        }
+    }
+
+    private static <F, T, E extends Exception> List<T> transformSlice(List<F> items, Function<F, T, E> function)
+            throws E {
+        List<T> results = new ArrayList<T>(items.size());
+        for (F item : items)
+            results.add(function.apply(item));
+        return results;
+    }
+}
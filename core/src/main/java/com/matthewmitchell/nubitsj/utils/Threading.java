@@ -45,12 +45,34 @@ public class Threading {
     /////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
     /**
-     * An executor with one thread that is intended for running event listeners on. This ensures all event listener code
-     * runs without any locks being held. It's intended for the API user to run things on. Callbacks registered by
-     * nubitsj internally shouldn't normally run here, although currently there are a few exceptions.
+     * <p>An executor that is intended for running event listeners on. This ensures all event listener code runs without
+     * any locks being held. It's intended for the API user to run things on. Callbacks registered by nubitsj
+     * internally shouldn't normally run here, although currently there are a few exceptions.</p>
+     *
+     * <p>By default this is a single {@link UserThread}, so all listeners run one at a time in the order their events
+     * happened. Apps whose listeners can run concurrently with each other can switch to a {@link KeyedOrderedExecutor}
+     * with {@link #useKeyedUserThreads()}, so a slow listener doesn't hold up the others.</p>
      */
     public static Executor USER_THREAD;
 
+    /** The number of threads of the executor set by {@link #useKeyedUserThreads()}. */
+    public static final int USER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /** The number of tasks each thread set by {@link #useKeyedUserThreads()} queues before callers have to wait. */
+    public static final int USER_THREAD_CAPACITY = 10000;
+
+    /**
+     * Sets {@link #USER_THREAD} to a {@link KeyedOrderedExecutor} with {@link #USER_THREADS} threads. Listeners
+     * registered with it are given their own key, so each listener gets its events in order and one at a time, but
+     * different listeners can run at the same time. Only use it if your listeners don't rely on not running
+     * concurrently with each other. Like the other policy changes here, call it before instantiating any nubitsj
+     * objects.
+     */
+    public static void useKeyedUserThreads() {
+        USER_THREAD = new KeyedOrderedExecutor("nubitsj user thread", USER_THREADS, USER_THREAD_CAPACITY, 1,
+                TimeUnit.SECONDS);
+    }
+
     /**
      * A dummy executor that just invokes the runnable immediately. Use this over
      * {@link com.google.common.util.concurrent.MoreExecutors#sameThreadExecutor()} because the latter creates a new
@@ -60,13 +82,17 @@ public class Threading {
     public static final Executor SAME_THREAD;
 
     /**
-     * Put a dummy task into the queue and wait for it to be run. Because it's single threaded, this means all
-     * tasks submitted before this point are now completed. Usually you won't want to use this method - it's a
+     * Put a dummy task into the queue of each user thread and wait for them to be run. Because tasks queue up in
+     * order, this means all tasks submitted before this point are now completed. Usually you won't want to use this method - it's a
      * convenience primarily used in unit testing. If you want to wait for an event to be called the right thing
      * to do is usually to create a {@link com.google.common.util.concurrent.SettableFuture} and then call set
      * on it. You can then either block on that future, compose it, add listeners to it and so on.
      */
     public static void waitForUserCode() {
+        if (USER_THREAD instanceof KeyedOrderedExecutor) {
+            ((KeyedOrderedExecutor) USER_THREAD).waitForQueued();
+            return;
+        }
         final CountDownLatch latch = new CountDownLatch(1);
         USER_THREAD.execute(new Runnable() {
             @Override public void run() {
@@ -87,6 +113,7 @@ public class Threading {
     @Nullable
     public static volatile Thread.UncaughtExceptionHandler uncaughtExceptionHandler;
 
+    /** A single thread with an unbounded queue, the default {@link #USER_THREAD}. */
     public static class UserThread extends Thread implements Executor {
         private static final Logger log = LoggerFactory.getLogger(UserThread.class);
         // 10,000 pending tasks is entirely arbitrary and may or may not be appropriate for the device we're
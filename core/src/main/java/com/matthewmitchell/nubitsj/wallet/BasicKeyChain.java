@@ -21,6 +21,7 @@ import com.matthewmitchell.nubitsj.core.ECKey;
 import com.matthewmitchell.nubitsj.crypto.*;
 import com.matthewmitchell.nubitsj.store.UnreadableWalletException;
 import com.matthewmitchell.nubitsj.utils.ListenerRegistration;
+import com.matthewmitchell.nubitsj.utils.ParallelTransform;
 import com.matthewmitchell.nubitsj.utils.Threading;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
@@ -51,6 +52,9 @@ public class BasicKeyChain implements EncryptableKeyChain {
 
     private final CopyOnWriteArrayList<ListenerRegistration<KeyChainEventListener>> listeners;
 
+    // Encrypting or decrypting at least this many keys is done on several threads.
+    private static final int MIN_PARALLEL_CRYPTO = 16;
+
     public BasicKeyChain() {
         this(null);
     }
@@ -358,40 +362,56 @@ public class BasicKeyChain implements EncryptableKeyChain {
     }
 
     private void deserializeFromProtobuf(List<Protos.Key> keys) throws UnreadableWalletException {
+        List<Protos.Key> basicKeys = new ArrayList<Protos.Key>();
+        for (Protos.Key key : keys) {
+            if (key.getType() == Protos.Key.Type.ORIGINAL || key.getType() == Protos.Key.Type.ENCRYPTED_SCRYPT_AES)
+                basicKeys.add(key);
+        }
+        // Decoding the public key points is the expensive part, so it's spread over threads before taking the lock.
+        List<ECKey> ecKeys = ParallelTransform.transform(basicKeys,
+                new ParallelTransform.Function<Protos.Key, ECKey, UnreadableWalletException>() {
+                    @Override
+                    public ECKey apply(Protos.Key key) throws UnreadableWalletException {
+                        return decodeKey(key, keyCrypter);
+                    }
+                }, UnreadableWalletException.class, ParallelTransform.defaultThreads());
         lock.lock();
         try {
             checkState(hashToKeys.isEmpty(), "Tried to deserialize into a non-empty chain");
-            for (Protos.Key key : keys) {
-                if (key.getType() != Protos.Key.Type.ORIGINAL && key.getType() != Protos.Key.Type.ENCRYPTED_SCRYPT_AES)
-                    continue;
-                boolean encrypted = key.getType() == Protos.Key.Type.ENCRYPTED_SCRYPT_AES;
-                byte[] priv = key.hasSecretBytes() ? key.getSecretBytes().toByteArray() : null;
-                if (!key.hasPublicKey())
-                    throw new UnreadableWalletException("Public key missing");
-                byte[] pub = key.getPublicKey().toByteArray();
-                ECKey ecKey;
-                if (encrypted) {
-                    checkState(keyCrypter != null, "This wallet is encrypted but encrypt() was not called prior to deserialization");
-                    if (!key.hasEncryptedData())
-                        throw new UnreadableWalletException("Encrypted private key data missing");
-                    Protos.EncryptedData proto = key.getEncryptedData();
-                    EncryptedData e = new EncryptedData(proto.getInitialisationVector().toByteArray(),
-                            proto.getEncryptedPrivateKey().toByteArray());
-                    ecKey = ECKey.fromEncrypted(e, keyCrypter, pub);
-                } else {
-                    if (priv != null)
-                        ecKey = ECKey.fromPrivateAndPrecalculatedPublic(priv, pub);
-                    else
-                        ecKey = ECKey.fromPublicOnly(pub);
-                }
-                ecKey.setCreationTimeSeconds((key.getCreationTimestamp() + 500) / 1000);
+            for (ECKey ecKey : ecKeys)
                 importKeyLocked(ecKey);
-            }
         } finally {
             lock.unlock();
         }
     }
 
+    private static ECKey decodeKey(Protos.Key key, @Nullable KeyCrypter keyCrypter) throws UnreadableWalletException {
+        boolean encrypted = key.getType() == Protos.Key.Type.ENCRYPTED_SCRYPT_AES;
+        byte[] priv = key.hasSecretBytes() ? key.getSecretBytes().toByteArray() : null;
+        if (!key.hasPublicKey())
+            throw new UnreadableWalletException("Public key missing");
+        byte[] pub = key.getPublicKey().toByteArray();
+        ECKey ecKey;
+        if (encrypted) {
+            checkState(keyCrypter != null, "This wallet is encrypted but encrypt() was not called prior to deserialization");
+            if (!key.hasEncryptedData())
+                throw new UnreadableWalletException("Encrypted private key data missing");
+            Protos.EncryptedData proto = key.getEncryptedData();
+            EncryptedData e = new EncryptedData(proto.getInitialisationVector().toByteArray(),
+                    proto.getEncryptedPrivateKey().toByteArray());
+            ecKey = ECKey.fromEncrypted(e, keyCrypter, pub);
+        } else {
+            if (priv != null)
+                ecKey = ECKey.fromPrivateAndPrecalculatedPublic(priv, pub);
+            else
+                ecKey = ECKey.fromPublicOnly(pub);
+        }
+        ecKey.setCreationTimeSeconds((key.getCreationTimestamp() + 500) / 1000);
+        // Hashed here too, so importing it under the lock only has to look the hash up.
+        ecKey.getPubKeyHash();
+        return ecKey;
+    }
+
 
     ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
     //
@@ -456,23 +476,30 @@ public class BasicKeyChain implements EncryptableKeyChain {
      * @throws KeyCrypterException Thrown if the wallet encryption fails. If so, the wallet state is unchanged.
      */
     @Override
-    public BasicKeyChain toEncrypted(KeyCrypter keyCrypter, KeyParameter aesKey) {
+    public BasicKeyChain toEncrypted(final KeyCrypter keyCrypter, final KeyParameter aesKey) {
         lock.lock();
         try {
             checkNotNull(keyCrypter);
             checkState(this.keyCrypter == null, "Key chain is already encrypted");
             BasicKeyChain encrypted = new BasicKeyChain(keyCrypter);
-            for (ECKey key : hashToKeys.values()) {
-                ECKey encryptedKey = key.encrypt(keyCrypter, aesKey);
-                // Check that the encrypted key can be successfully decrypted.
-                // This is done as it is a critical failure if the private key cannot be decrypted successfully
-                // (all nubits controlled by that private key is lost forever).
-                // For a correctly constructed keyCrypter the encryption should always be reversible so it is just
-                // being as cautious as possible.
-                if (!ECKey.encryptionIsReversible(key, encryptedKey, keyCrypter, aesKey))
-                    throw new KeyCrypterException("The key " + key.toString() + " cannot be successfully decrypted after encryption so aborting wallet encryption.");
+            // Checking each key takes a point multiplication, so with many keys this is worth spreading over threads.
+            List<ECKey> encryptedKeys = ParallelTransform.transform(new ArrayList<ECKey>(hashToKeys.values()),
+                    new ParallelTransform.Function<ECKey, ECKey, KeyCrypterException>() {
+                        @Override
+                        public ECKey apply(ECKey key) {
+                            ECKey encryptedKey = key.encrypt(keyCrypter, aesKey);
+                            // Check that the encrypted key can be successfully decrypted.
+                            // This is done as it is a critical failure if the private key cannot be decrypted successfully
+                            // (all nubits controlled by that private key is lost forever).
+                            // For a correctly constructed keyCrypter the encryption should always be reversible so it is just
+                            // being as cautious as possible.
+                            if (!ECKey.encryptionIsReversible(key, encryptedKey, keyCrypter, aesKey))
+                                throw new KeyCrypterException("The key " + key.toString() + " cannot be successfully decrypted after encryption so aborting wallet encryption.");
+                            return encryptedKey;
+                        }
+                    }, KeyCrypterException.class, ParallelTransform.defaultThreads(), MIN_PARALLEL_CRYPTO);
+            for (ECKey encryptedKey : encryptedKeys)
                 encrypted.importKeyLocked(encryptedKey);
-            }
             return encrypted;
         } finally {
             lock.unlock();
@@ -487,7 +514,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
     }
 
     @Override
-    public BasicKeyChain toDecrypted(KeyParameter aesKey) {
+    public BasicKeyChain toDecrypted(final KeyParameter aesKey) {
         lock.lock();
         try {
             checkState(keyCrypter != null, "Wallet is already decrypted");
@@ -495,9 +522,15 @@ public class BasicKeyChain implements EncryptableKeyChain {
             if (numKeys() > 0 && !checkAESKey(aesKey))
                 throw new KeyCrypterException("Password/key was incorrect.");
             BasicKeyChain decrypted = new BasicKeyChain();
-            for (ECKey key : hashToKeys.values()) {
-                decrypted.importKeyLocked(key.decrypt(aesKey));
-            }
+            List<ECKey> decryptedKeys = ParallelTransform.transform(new ArrayList<ECKey>(hashToKeys.values()),
+                    new ParallelTransform.Function<ECKey, ECKey, KeyCrypterException>() {
+                        @Override
+                        public ECKey apply(ECKey key) {
+                            return key.decrypt(aesKey);
+                        }
+                    }, KeyCrypterException.class, ParallelTransform.defaultThreads(), MIN_PARALLEL_CRYPTO);
+            for (ECKey key : decryptedKeys)
+                decrypted.importKeyLocked(key);
             return decrypted;
         } finally {
             lock.unlock();
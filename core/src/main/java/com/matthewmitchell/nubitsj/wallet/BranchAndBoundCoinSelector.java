@@ -0,0 +1,324 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.wallet;
+
+import com.google.common.collect.Sets;
+import com.matthewmitchell.nubitsj.core.*;
+import com.matthewmitchell.nubitsj.store.ValidHashStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.IOException;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A {@link CoinSelector} that looks for a set of outputs adding up to the target closely enough that no change
+ * output is needed, which keeps transactions small. The search is a depth first branch and bound over the selectable
+ * outputs sorted by value, giving up after a number of tries. If it finds nothing it falls back to a knapsack
+ * heuristic that looks for the smallest total above the target, leaving change.</p>
+ *
+ * <p>When fees are low, selections that make change anyway also take in some small outputs, so that they don't pile
+ * up in the wallet and make later transactions large when fees are higher. The fee is asked of a
+ * {@link ValidHashStore} if one is given, at most every ten minutes.</p>
+ *
+ * <p>The outputs sorted by value are kept between calls and only updated for the outputs that came or went, so
+ * sending repeatedly from a wallet with many outputs doesn't sort them all each time.</p>
+ */
+public class BranchAndBoundCoinSelector extends DefaultCoinSelector {
+    private static final Logger log = LoggerFactory.getLogger(BranchAndBoundCoinSelector.class);
+
+    /** The default number of steps of the search before falling back to the knapsack heuristic. */
+    public static final int DEFAULT_MAX_TRIES = 100000;
+    private static final int KNAPSACK_ROUNDS = 1000;
+    private static final long FEE_CACHE_MILLIS = 10 * 60 * 1000;
+
+    private static final Comparator<TransactionOutput> BY_VALUE_DESCENDING = new Comparator<TransactionOutput>() {
+        @Override
+        public int compare(TransactionOutput a, TransactionOutput b) {
+            return b.getValue().compareTo(a.getValue());
+        }
+    };
+
+    private final Coin costOfChange;
+    private final int maxTries;
+    @Nullable private final ValidHashStore validHashStore;
+    private final Coin lowFee;
+    private final Coin smallValue;
+    private final int maxConsolidationInputs;
+    private final Random random = new Random();
+
+    @GuardedBy("this") private List<TransactionOutput> index = Collections.emptyList();
+    @GuardedBy("this") private Set<TransactionOutput> indexed = Collections.emptySet();
+    @GuardedBy("this") private Coin cachedFee;
+    @GuardedBy("this") private long cachedFeeTime;
+
+    /**
+     * Creates a selector that accepts less than {@link Transaction#MIN_OUTPUT_VALUE} over the target instead of
+     * change, as the wallet would give up such change as fee anyway, and doesn't consolidate.
+     */
+    public BranchAndBoundCoinSelector() {
+        this(Transaction.MIN_OUTPUT_VALUE, DEFAULT_MAX_TRIES, null, Coin.ZERO, Coin.ZERO, 0);
+    }
+
+    /**
+     * @param costOfChange a change-free selection must gather less than this over the target, the excess going to
+     *                     fees. Zero only takes exact matches.
+     * @param maxTries how many steps the search may take.
+     * @param validHashStore where to get the current fee from, or null to assume {@link
+     *                       Transaction#REFERENCE_DEFAULT_MIN_TX_FEE}.
+     * @param lowFee the fee per 1000 bytes at or below which small outputs are consolidated.
+     * @param smallValue outputs worth less than this are consolidated.
+     * @param maxConsolidationInputs how many outputs a selection may take in for consolidating.
+     */
+    public BranchAndBoundCoinSelector(Coin costOfChange, int maxTries, @Nullable ValidHashStore validHashStore,
+                                      Coin lowFee, Coin smallValue, int maxConsolidationInputs) {
+        checkArgument(costOfChange.signum() >= 0, "costOfChange must not be negative");
+        checkArgument(maxTries > 0, "maxTries must be positive");
+        checkArgument(maxConsolidationInputs >= 0, "maxConsolidationInputs must not be negative");
+        this.costOfChange = checkNotNull(costOfChange);
+        this.maxTries = maxTries;
+        this.validHashStore = validHashStore;
+        this.lowFee = checkNotNull(lowFee);
+        this.smallValue = checkNotNull(smallValue);
+        this.maxConsolidationInputs = maxConsolidationInputs;
+    }
+
+    @Override
+    public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
+        if (target.equals(NetworkParameters.MAX_MONEY)) {
+            // Asked for everything, as when emptying the wallet, so there is nothing to search for.
+            return super.select(target, candidates);
+        }
+        List<TransactionOutput> sorted = new ArrayList<TransactionOutput>(candidates.size());
+        for (TransactionOutput output : sortedByValue(candidates))
+            if (shouldSelect(output.getParentTransaction()))
+                sorted.add(output);
+        long[] values = new long[sorted.size()];
+        long available = 0;
+        for (int i = 0; i < values.length; i++) {
+            values[i] = sorted.get(i).getValue().value;
+            available += values[i];
+        }
+        if (available < target.value)
+            return new CoinSelection(Coin.valueOf(available), sorted);  // Not enough, let the wallet say how much.
+
+        boolean[] selected = branchAndBound(values, target.value);
+        if (selected == null) {
+            selected = knapsack(values, target.value);
+            consolidate(sorted, values, selected, target);
+        }
+        List<TransactionOutput> gathered = new ArrayList<TransactionOutput>();
+        long total = 0;
+        for (int i = 0; i < selected.length; i++) {
+            if (selected[i]) {
+                gathered.add(sorted.get(i));
+                total += values[i];
+            }
+        }
+        return new CoinSelection(Coin.valueOf(total), gathered);
+    }
+
+    /**
+     * Returns which of the values, sorted from largest to smallest, add up to at least the target and less than the
+     * cost of change over it, with the least excess found, or null if the search found none within its tries.
+     */
+    @Nullable
+    boolean[] branchAndBound(long[] values, long target) {
+        int n = values.length;
+        long[] remaining = new long[n + 1];
+        for (int i = n - 1; i >= 0; i--)
+            remaining[i] = remaining[i + 1] + values[i];
+        // Excess equal to the cost of change would make a change output the wallet keeps, so it's outside the window.
+        long upperBound = target + Math.max(costOfChange.value - 1, 0);
+        boolean[] current = new boolean[n];
+        boolean[] best = null;
+        long bestExcess = Long.MAX_VALUE;
+        long currentValue = 0;
+        int depth = 0;
+        for (int tries = 0; tries < maxTries; tries++) {
+            boolean backtrack;
+            if (currentValue + remaining[depth] < target || currentValue > upperBound) {
+                // Can't reach the target from here, or already past the window.
+                backtrack = true;
+            } else if (currentValue >= target) {
+                long excess = currentValue - target;
+                if (excess < bestExcess) {
+                    best = Arrays.copyOf(current, n);
+                    bestExcess = excess;
+                    if (excess == 0)
+                        break;
+                }
+                backtrack = true;
+            } else {
+                backtrack = false;
+            }
+            if (backtrack) {
+                // Walk back past the values left out, then leave out the last value taken.
+                while (depth > 0 && !current[depth - 1])
+                    depth--;
+                if (depth == 0)
+                    break;  // Searched everything.
+                current[depth - 1] = false;
+                currentValue -= values[depth - 1];
+            } else {
+                // Leaving out a value equal to one just left out gives the same sums again, so skip trying it.
+                if (depth > 0 && !current[depth - 1] && values[depth] == values[depth - 1]) {
+                    current[depth] = false;
+                } else {
+                    current[depth] = true;
+                    currentValue += values[depth];
+                }
+                depth++;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns which of the values, sorted from largest to smallest and adding up to at least the target, to take for
+     * about the smallest total at or above the target, like the reference client did before branch and bound.
+     */
+    boolean[] knapsack(long[] values, long target) {
+        int n = values.length;
+        boolean[] result = new boolean[n];
+        // The smallest value above the target, and the total of those below it.
+        int lowestLarger = -1;
+        long totalLower = 0;
+        int firstLower = n;
+        for (int i = 0; i < n; i++) {
+            if (values[i] == target) {
+                result[i] = true;
+                return result;
+            } else if (values[i] > target) {
+                lowestLarger = i;
+            } else {
+                if (firstLower == n)
+                    firstLower = i;
+                totalLower += values[i];
+            }
+        }
+        if (totalLower == target) {
+            Arrays.fill(result, firstLower, n, true);
+            return result;
+        } else if (totalLower < target) {
+            // The caller made sure there is enough in total, so there is a larger value.
+            result[lowestLarger] = true;
+            return result;
+        }
+        // Take random subsets of the smaller values, largest first, and keep the one closest to the target.
+        boolean[] best = new boolean[n];
+        Arrays.fill(best, firstLower, n, true);
+        long bestValue = totalLower;
+        boolean[] included = new boolean[n];
+        for (int round = 0; round < KNAPSACK_ROUNDS && bestValue != target; round++) {
+            Arrays.fill(included, false);
+            long total = 0;
+            boolean reachedTarget = false;
+            for (int pass = 0; pass < 2 && !reachedTarget; pass++) {
+                for (int i = firstLower; i < n; i++) {
+                    // The first pass picks at random, the second takes all the others until the target is reached.
+                    if (pass == 0 ? random.nextBoolean() : !included[i]) {
+                        total += values[i];
+                        included[i] = true;
+                        if (total >= target) {
+                            reachedTarget = true;
+                            if (total < bestValue) {
+                                bestValue = total;
+                                System.arraycopy(included, 0, best, 0, n);
+                            }
+                            total -= values[i];
+                            included[i] = false;
+                        }
+                    }
+                }
+            }
+        }
+        if (lowestLarger >= 0 && bestValue != target && values[lowestLarger] <= bestValue) {
+            result[lowestLarger] = true;
+            return result;
+        }
+        return best;
+    }
+
+    /** Adds the smallest unselected outputs to a selection that makes change, if fees are low. */
+    private void consolidate(List<TransactionOutput> sorted, long[] values, boolean[] selected, Coin target) {
+        if (maxConsolidationInputs == 0 || !isFeeLow(target))
+            return;
+        int added = 0;
+        for (int i = values.length - 1; i >= 0 && added < maxConsolidationInputs; i--) {
+            if (values[i] >= smallValue.value)
+                break;
+            if (!selected[i]) {
+                selected[i] = true;
+                added++;
+            }
+        }
+        if (added > 0)
+            log.info("Consolidating {} small outputs", added);
+    }
+
+    private synchronized boolean isFeeLow(Coin target) {
+        long now = Utils.currentTimeMillis();
+        if (cachedFee == null || now - cachedFeeTime > FEE_CACHE_MILLIS) {
+            if (validHashStore == null) {
+                cachedFee = Transaction.REFERENCE_DEFAULT_MIN_TX_FEE;
+            } else {
+                try {
+                    cachedFee = validHashStore.getFee(1000, target);
+                } catch (IOException e) {
+                    log.warn("Could not get the fee, not consolidating: {}", e.getMessage());
+                    return false;
+                }
+            }
+            cachedFeeTime = now;
+        }
+        return cachedFee.compareTo(lowFee) <= 0;
+    }
+
+    /**
+     * Returns the candidates sorted by value, largest first, updating the index of the previous call for the outputs
+     * that were added or removed since.
+     */
+    private synchronized List<TransactionOutput> sortedByValue(List<TransactionOutput> candidates) {
+        Set<TransactionOutput> current = Sets.newIdentityHashSet();
+        current.addAll(candidates);
+        List<TransactionOutput> kept = new ArrayList<TransactionOutput>(candidates.size());
+        for (TransactionOutput output : index)
+            if (current.contains(output))
+                kept.add(output);
+        List<TransactionOutput> added = new ArrayList<TransactionOutput>();
+        for (TransactionOutput output : current)
+            if (!indexed.contains(output))
+                added.add(output);
+        Collections.sort(added, BY_VALUE_DESCENDING);
+        // Merge the two sorted lists.
+        List<TransactionOutput> merged = new ArrayList<TransactionOutput>(current.size());
+        int i = 0, j = 0;
+        while (i < kept.size() || j < added.size()) {
+            if (j == added.size() || (i < kept.size() && BY_VALUE_DESCENDING.compare(kept.get(i), added.get(j)) <= 0))
+                merged.add(kept.get(i++));
+            else
+                merged.add(added.get(j++));
+        }
+        index = merged;
+        indexed = current;
+        return merged;
+    }
+}
@@ -23,6 +23,7 @@ import com.matthewmitchell.nubitsj.core.Utils;
 import com.matthewmitchell.nubitsj.crypto.*;
 import com.matthewmitchell.nubitsj.script.Script;
 import com.matthewmitchell.nubitsj.store.UnreadableWalletException;
+import com.matthewmitchell.nubitsj.utils.ParallelTransform;
 import com.matthewmitchell.nubitsj.utils.Threading;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterators;
@@ -135,6 +136,9 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         return lookaheadSize / 3;
     }
 
+    // Lookahead batches at least this long are derived on several threads, see deriveChildren.
+    private static final int MIN_PARALLEL_LOOKAHEAD = 32;
+
     // The parent keys for external keys (handed out to other people) and internal keys (used for change addresses).
     private DeterministicKey externalKey, internalKey;
     // How many keys on each path have actually been used. This may be fewer than the number that have been deserialized
@@ -420,6 +424,7 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
 
         // Now copy the (pubkey only) leaf keys across to avoid rederiving them. The private key bytes are missing
         // anyway so there's nothing to encrypt.
+        List<DeterministicKey> leafKeys = new ArrayList<DeterministicKey>();
         for (ECKey eckey : chain.basicKeyChain.getKeys()) {
             DeterministicKey key = (DeterministicKey) eckey;
             if (key.getPath().size() != getAccountPath().size() + 2) continue; // Not a leaf key.
@@ -427,8 +432,9 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
             // Clone the key to the new encrypted hierarchy.
             key = new DeterministicKey(key.dropPrivateBytes(), parent);
             hierarchy.putKey(key);
-            basicKeyChain.importKey(key);
+            leafKeys.add(key);
         }
+        basicKeyChain.importKeys(leafKeys);
     }
 
     /** Override in subclasses to use a different account derivation path */
@@ -653,9 +659,9 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
     public int numKeys() {
         // We need to return here the total number of keys including the lookahead zone, not the number of keys we
         // have issued via getKey/freshReceiveKey.
+        maybeLookAhead();
         lock.lock();
         try {
-            maybeLookAhead();
             return basicKeyChain.numKeys();
         } finally {
             lock.unlock();
@@ -986,6 +992,7 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         chain.lookaheadSize = lookaheadSize;
         // Now copy the (pubkey only) leaf keys across to avoid rederiving them. The private key bytes are missing
         // anyway so there's nothing to decrypt.
+        List<DeterministicKey> leafKeys = new ArrayList<DeterministicKey>();
         for (ECKey eckey : basicKeyChain.getKeys()) {
             DeterministicKey key = (DeterministicKey) eckey;
             if (key.getPath().size() != getAccountPath().size() + 2) continue; // Not a leaf key.
@@ -994,8 +1001,9 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
             // Clone the key to the new decrypted hierarchy.
             key = new DeterministicKey(key.dropPrivateBytes(), parent);
             chain.hierarchy.putKey(key);
-            chain.basicKeyChain.importKey(key);
+            leafKeys.add(key);
         }
+        chain.basicKeyChain.importKeys(leafKeys);
         chain.issuedExternalKeys = issuedExternalKeys;
         chain.issuedInternalKeys = issuedInternalKeys;
         return chain;
@@ -1049,9 +1057,9 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
 
     @Override
     public BloomFilter getFilter(int size, double falsePositiveRate, long tweak) {
+        checkArgument(size >= numBloomFilterEntries());
         lock.lock();
         try {
-            checkArgument(size >= numBloomFilterEntries());
             maybeLookAhead();
             return basicKeyChain.getFilter(size, falsePositiveRate, tweak);
         } finally {
@@ -1132,10 +1140,16 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
      * the lookahead procedure, but it's normally unnecessary as it will be done automatically when needed.
      */
     public void maybeLookAhead() {
+        // Unless the caller holds the lock already, do the EC math for the keys that are probably needed without it,
+        // so that other users of the chain aren't held up for seconds when the lookahead size is large. What's
+        // derived is only a hint: the keys actually needed are worked out again below, under the lock.
+        Map<ImmutableList<ChildNumber>, DeterministicKey> derived = lock.isHeldByCurrentThread()
+                ? Collections.<ImmutableList<ChildNumber>, DeterministicKey>emptyMap()
+                : deriveLookAheadUnlocked();
         lock.lock();
         try {
-            List<DeterministicKey> keys = maybeLookAhead(externalKey, issuedExternalKeys);
-            keys.addAll(maybeLookAhead(internalKey, issuedInternalKeys));
+            List<DeterministicKey> keys = maybeLookAhead(externalKey, issuedExternalKeys, derived);
+            keys.addAll(maybeLookAhead(internalKey, issuedInternalKeys, derived));
             if (keys.isEmpty())
                 return;
             keyLookaheadEpoch++;
@@ -1148,9 +1162,39 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         }
     }
 
-    private List<DeterministicKey> maybeLookAhead(DeterministicKey parent, int issued) {
+    private List<DeterministicKey> maybeLookAhead(DeterministicKey parent, int issued,
+                                                  Map<ImmutableList<ChildNumber>, DeterministicKey> derived) {
         checkState(lock.isHeldByCurrentThread());
-        return maybeLookAhead(parent, issued, getLookaheadSize(), getLookaheadThreshold());
+        return maybeLookAhead(parent, issued, getLookaheadSize(), getLookaheadThreshold(), derived);
+    }
+
+    private Map<ImmutableList<ChildNumber>, DeterministicKey> deriveLookAheadUnlocked() {
+        DeterministicKey external, internal;
+        int externalChildren, internalChildren, externalNeeded, internalNeeded;
+        lock.lock();
+        try {
+            if (externalKey == null)
+                return Collections.emptyMap();
+            external = externalKey;
+            internal = internalKey;
+            externalChildren = hierarchy.getNumChildren(external.getPath());
+            internalChildren = hierarchy.getNumChildren(internal.getPath());
+            externalNeeded = lookAheadNeeded(externalChildren, issuedExternalKeys, getLookaheadSize(), getLookaheadThreshold());
+            internalNeeded = lookAheadNeeded(internalChildren, issuedInternalKeys, getLookaheadSize(), getLookaheadThreshold());
+        } finally {
+            lock.unlock();
+        }
+        Map<ImmutableList<ChildNumber>, DeterministicKey> derived = new HashMap<ImmutableList<ChildNumber>, DeterministicKey>();
+        for (DeterministicKey key : deriveChildren(external, externalChildren, externalNeeded, derived))
+            derived.put(key.getPath(), key);
+        for (DeterministicKey key : deriveChildren(internal, internalChildren, internalNeeded, derived))
+            derived.put(key.getPath(), key);
+        return derived;
+    }
+
+    private static int lookAheadNeeded(int numChildren, int issued, int lookaheadSize, int lookaheadThreshold) {
+        final int needed = issued + lookaheadSize + lookaheadThreshold - numChildren;
+        return needed <= lookaheadThreshold ? 0 : needed;
     }
 
     /**
@@ -1160,27 +1204,70 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
      * The returned mutable list of keys must be inserted into the basic key chain.
      */
     private List<DeterministicKey> maybeLookAhead(DeterministicKey parent, int issued, int lookaheadSize, int lookaheadThreshold) {
+        return maybeLookAhead(parent, issued, lookaheadSize, lookaheadThreshold,
+                Collections.<ImmutableList<ChildNumber>, DeterministicKey>emptyMap());
+    }
+
+    private List<DeterministicKey> maybeLookAhead(DeterministicKey parent, int issued, int lookaheadSize, int lookaheadThreshold,
+                                                  Map<ImmutableList<ChildNumber>, DeterministicKey> derived) {
         checkState(lock.isHeldByCurrentThread());
         final int numChildren = hierarchy.getNumChildren(parent.getPath());
-        final int needed = issued + lookaheadSize + lookaheadThreshold - numChildren;
+        final int needed = lookAheadNeeded(numChildren, issued, lookaheadSize, lookaheadThreshold);
 
-        if (needed <= lookaheadThreshold)
+        if (needed == 0)
             return new ArrayList<DeterministicKey>();
 
         log.info("{} keys needed for {} = {} issued + {} lookahead size + {} lookahead threshold - {} num children",
                 needed, parent.getPathAsString(), issued, lookaheadSize, lookaheadThreshold, numChildren);
 
-        List<DeterministicKey> result  = new ArrayList<DeterministicKey>(needed);
         long now = System.currentTimeMillis();
-        int nextChild = numChildren;
-        for (int i = 0; i < needed; i++) {
-            DeterministicKey key = HDKeyDerivation.deriveThisOrNextChildKey(parent, nextChild);
-            key = key.dropPrivateBytes();
+        List<DeterministicKey> result = deriveChildren(parent, numChildren, needed, derived);
+        for (DeterministicKey key : result)
             hierarchy.putKey(key);
+        log.info("Took {} msec", System.currentTimeMillis() - now);
+        return result;
+    }
+
+    /**
+     * Returns the given number of public children of parent from the given child number on, the same keys
+     * {@link HDKeyDerivation#deriveThisOrNextChildKey(DeterministicKey, int)} would give one after the other. Keys that
+     * are not in derived already are derived on several threads, as each takes an EC point multiplication. This only
+     * reads the parent key, so it can be called without the lock.
+     */
+    private static List<DeterministicKey> deriveChildren(final DeterministicKey parent, int from, int count,
+                                                         Map<ImmutableList<ChildNumber>, DeterministicKey> derived) {
+        List<ChildNumber> missing = new ArrayList<ChildNumber>();
+        for (int i = from; i < from + count; i++) {
+            ChildNumber child = new ChildNumber(i, false);
+            if (!derived.containsKey(HDUtils.append(parent.getPath(), child)))
+                missing.add(child);
+        }
+        List<DeterministicKey> keys = ParallelTransform.transform(missing,
+                new ParallelTransform.Function<ChildNumber, DeterministicKey, RuntimeException>() {
+                    @Override
+                    public DeterministicKey apply(ChildNumber child) {
+                        try {
+                            DeterministicKey key = HDKeyDerivation.deriveChildKey(parent, child).dropPrivateBytes();
+                            key.getPubKeyHash();   // Computed and cached here rather than when imported.
+                            return key;
+                        } catch (HDDerivationException e) {
+                            return null;   // Invalid child, very unlikely. Skipped below.
+                        }
+                    }
+                }, RuntimeException.class, ParallelTransform.defaultThreads(), MIN_PARALLEL_LOOKAHEAD);
+        Map<ImmutableList<ChildNumber>, DeterministicKey> available = new HashMap<ImmutableList<ChildNumber>, DeterministicKey>(derived);
+        for (DeterministicKey key : keys)
+            if (key != null)
+                available.put(key.getPath(), key);
+        List<DeterministicKey> result = new ArrayList<DeterministicKey>(count);
+        int nextChild = from;
+        while (result.size() < count) {
+            DeterministicKey key = available.get(HDUtils.append(parent.getPath(), new ChildNumber(nextChild, false)));
+            if (key == null)
+                key = HDKeyDerivation.deriveThisOrNextChildKey(parent, nextChild).dropPrivateBytes();
             result.add(key);
             nextChild = key.getChildNumber().num() + 1;
         }
-        log.info("Took {} msec", System.currentTimeMillis() - now);
         return result;
     }
 
@@ -1372,4 +1459,9 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
     public RedeemData findRedeemDataByScriptHash(ByteString bytes) {
         return null;
     }
+
+    /** Returns the redeem data of all scripts this keychain generated, by script hash. */
+    public Map<ByteString, RedeemData> getRedeemDataByScriptHash() {
+        return Collections.emptyMap();
+    }
 }
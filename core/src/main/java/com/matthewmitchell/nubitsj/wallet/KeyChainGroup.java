@@ -49,7 +49,9 @@ import static com.google.common.base.Preconditions.*;
  *
  * <p>The wallet delegates most key management tasks to this class. It is <b>not</b> thread safe and requires external
  * locking, i.e. by the wallet lock. The group then in turn delegates most operations to the key chain objects,
- * combining their responses together when necessary.</p>
+ * combining their responses together when necessary. The exception are the lookups of keys by public key or public key
+ * hash and of redeem data by script hash, which are answered from an index across all chains that may be read without
+ * the lock.</p>
  *
  * <p>Deterministic key chains have a concept of a lookahead size and threshold. Please see the discussion in the
  * class docs for {@link DeterministicKeyChain} for more information on this topic.</p>
@@ -76,6 +78,21 @@ public class KeyChainGroup implements KeyBag {
     private int lookaheadSize = -1;
     private int lookaheadThreshold = -1;
 
+    // Keys of all chains by the hash160 of their public key, so that lookups don't have to ask each chain in turn.
+    // New keys are added by indexListener, which is registered on every chain. The maps are replaced rather than
+    // cleared when the chains are, so lookups never see them half built.
+    private volatile ConcurrentHashMap<ByteString, ECKey> keysByPubKeyHash = new ConcurrentHashMap<ByteString, ECKey>();
+    // Redeem data of married chains by script hash, brought up to date whenever the chains look ahead scripts.
+    private volatile ConcurrentHashMap<ByteString, RedeemData> redeemDataByScriptHash = new ConcurrentHashMap<ByteString, RedeemData>();
+    private final KeyChainEventListener indexListener = new KeyChainEventListener() {
+        @Override
+        public void onKeysAdded(List<ECKey> keys) {
+            ConcurrentHashMap<ByteString, ECKey> index = keysByPubKeyHash;
+            for (ECKey key : keys)
+                index.putIfAbsent(ByteString.copyFrom(key.getPubKeyHash()), key);
+        }
+    };
+
     /** Creates a keychain group with no basic chain, and a single, lazily created HD chain. */
     public KeyChainGroup(NetworkParameters params) {
         this(params, null, new ArrayList<DeterministicKeyChain>(1), null, null);
@@ -114,6 +131,10 @@ public class KeyChainGroup implements KeyBag {
                 ? new EnumMap<KeyChain.KeyPurpose, DeterministicKey>(KeyChain.KeyPurpose.class)
                 : currentKeys;
         this.currentAddresses = new EnumMap<KeyChain.KeyPurpose, Address>(KeyChain.KeyPurpose.class);
+        this.basic.addEventListener(indexListener, Threading.SAME_THREAD);
+        for (DeterministicKeyChain chain : this.chains)
+            chain.addEventListener(indexListener, Threading.SAME_THREAD);
+        rebuildIndex();
         maybeLookaheadScripts();
 
         if (isMarried()) {
@@ -128,9 +149,30 @@ public class KeyChainGroup implements KeyBag {
     private void maybeLookaheadScripts() {
         for (DeterministicKeyChain chain : chains) {
             chain.maybeLookAheadScripts();
+            // Later chains win, as they're the ones most likely to be asked about.
+            redeemDataByScriptHash.putAll(chain.getRedeemDataByScriptHash());
         }
     }
 
+    // Indexes the keys of all chains again, basic first as lookups used to ask it first. Called when chains are
+    // replaced; the listeners must already be registered on the new chains so that no key added meanwhile is missed.
+    private void rebuildIndex() {
+        ConcurrentHashMap<ByteString, ECKey> keys = new ConcurrentHashMap<ByteString, ECKey>();
+        indexKeys(keys, basic.getKeys());
+        for (DeterministicKeyChain chain : chains)
+            indexKeys(keys, chain.getKeys(true));
+        ConcurrentHashMap<ByteString, RedeemData> scripts = new ConcurrentHashMap<ByteString, RedeemData>();
+        for (DeterministicKeyChain chain : chains)
+            scripts.putAll(chain.getRedeemDataByScriptHash());
+        keysByPubKeyHash = keys;
+        redeemDataByScriptHash = scripts;
+    }
+
+    private static void indexKeys(ConcurrentHashMap<ByteString, ECKey> index, List<ECKey> keys) {
+        for (ECKey key : keys)
+            index.putIfAbsent(ByteString.copyFrom(key.getPubKeyHash()), key);
+    }
+
     /** Adds a new HD chain to the chains list, and make it the default chain (from which keys are issued). */
     public void createAndActivateNewHDChain() {
         // We can't do auto upgrade here because we don't know the rotation time, if any.
@@ -151,6 +193,8 @@ public class KeyChainGroup implements KeyBag {
         if (lookaheadThreshold >= 0)
             chain.setLookaheadThreshold(lookaheadThreshold);
         chains.add(chain);
+        indexKeys(keysByPubKeyHash, chain.getKeys(true));
+        redeemDataByScriptHash.putAll(chain.getRedeemDataByScriptHash());
     }
 
     /**
@@ -349,14 +393,7 @@ public class KeyChainGroup implements KeyBag {
     @Override
     @Nullable
     public RedeemData findRedeemDataFromScriptHash(byte[] scriptHash) {
-        // Iterate in reverse order, since the active keychain is the one most likely to have the hit
-        for (Iterator<DeterministicKeyChain> iter = chains.descendingIterator() ; iter.hasNext() ; ) {
-            DeterministicKeyChain chain = iter.next();
-            RedeemData redeemData = chain.findRedeemDataByScriptHash(ByteString.copyFrom(scriptHash));
-            if (redeemData != null)
-                return redeemData;
-        }
-        return null;
+        return redeemDataByScriptHash.get(ByteString.copyFrom(scriptHash));
     }
 
     public void markP2SHAddressAsUsed(Address address) {
@@ -378,14 +415,7 @@ public class KeyChainGroup implements KeyBag {
     @Nullable
     @Override
     public ECKey findKeyFromPubHash(byte[] pubkeyHash) {
-        ECKey result;
-        if ((result = basic.findKeyFromPubHash(pubkeyHash)) != null)
-            return result;
-        for (DeterministicKeyChain chain : chains) {
-            if ((result = chain.findKeyFromPubHash(pubkeyHash)) != null)
-                return result;
-        }
-        return null;
+        return keysByPubKeyHash.get(ByteString.copyFrom(pubkeyHash));
     }
 
     /**
@@ -429,25 +459,14 @@ public class KeyChainGroup implements KeyBag {
     }
 
     public boolean hasKey(ECKey key) {
-        if (basic.hasKey(key))
-            return true;
-        for (DeterministicKeyChain chain : chains)
-            if (chain.hasKey(key))
-                return true;
-        return false;
+        return findKeyFromPubKey(key.getPubKey()) != null;
     }
 
     @Nullable
     @Override
     public ECKey findKeyFromPubKey(byte[] pubkey) {
-        ECKey result;
-        if ((result = basic.findKeyFromPubKey(pubkey)) != null)
-            return result;
-        for (DeterministicKeyChain chain : chains) {
-            if ((result = chain.findKeyFromPubKey(pubkey)) != null)
-                return result;
-        }
-        return null;
+        ECKey key = keysByPubKeyHash.get(ByteString.copyFrom(Utils.sha256hash160(pubkey)));
+        return key != null && Arrays.equals(key.getPubKey(), pubkey) ? key : null;
     }
 
     /**
@@ -479,7 +498,10 @@ public class KeyChainGroup implements KeyBag {
     public boolean removeImportedKey(ECKey key) {
         checkNotNull(key);
         checkArgument(!(key instanceof DeterministicKey));
-        return basic.removeKey(key);
+        if (!basic.removeKey(key))
+            return false;
+        keysByPubKeyHash.remove(ByteString.copyFrom(key.getPubKeyHash()));
+        return true;
     }
 
     /**
@@ -512,10 +534,12 @@ public class KeyChainGroup implements KeyBag {
         }
         for (DeterministicKeyChain chain : chains)
             newChains.add(chain.toEncrypted(keyCrypter, aesKey));
+        copyListeners(newBasic, newChains);
         this.keyCrypter = keyCrypter;
         basic = newBasic;
         chains.clear();
         chains.addAll(newChains);
+        rebuildIndex();
     }
 
     /**
@@ -532,10 +556,21 @@ public class KeyChainGroup implements KeyBag {
         for (DeterministicKeyChain chain : chains)
             newChains.add(chain.toDecrypted(aesKey));
 
+        copyListeners(newBasic, newChains);
         this.keyCrypter = null;
         basic = newBasic;
         chains.clear();
         chains.addAll(newChains);
+        rebuildIndex();
+    }
+
+    // Encryption and decryption replace every chain, so carry the key listeners over or they'd silently stop firing.
+    private void copyListeners(BasicKeyChain newBasic, List<DeterministicKeyChain> newChains) {
+        for (ListenerRegistration<KeyChainEventListener> registration : basic.getListeners()) {
+            newBasic.addEventListener(registration.listener, registration.executor);
+            for (DeterministicKeyChain chain : newChains)
+                chain.addEventListener(registration.listener, registration.executor);
+        }
     }
 
     /** Returns true if the group is encrypted. */
@@ -748,7 +783,9 @@ public class KeyChainGroup implements KeyBag {
         if (aesKey != null) {
             chain = chain.toEncrypted(checkNotNull(basic.getKeyCrypter()), aesKey);
         }
+        chain.addEventListener(indexListener, Threading.SAME_THREAD);
         chains.add(chain);
+        indexKeys(keysByPubKeyHash, chain.getKeys(true));
         return chain;
     }
 
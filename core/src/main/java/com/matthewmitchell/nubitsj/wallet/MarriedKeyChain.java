@@ -17,6 +17,7 @@
 package com.matthewmitchell.nubitsj.wallet;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.protobuf.ByteString;
 
@@ -274,6 +275,11 @@ public class MarriedKeyChain extends DeterministicKeyChain {
         return marriedKeysRedeemData.get(bytes);
     }
 
+    @Override
+    public Map<ByteString, RedeemData> getRedeemDataByScriptHash() {
+        return ImmutableMap.copyOf(marriedKeysRedeemData);
+    }
+
     @Override
     public BloomFilter getFilter(int size, double falsePositiveRate, long tweak) {
         lock.lock();
@@ -0,0 +1,201 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.wallet;
+
+import com.matthewmitchell.nubitsj.core.Utils;
+import com.matthewmitchell.nubitsj.script.ScriptOpCodes;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <p>A set of output scripts kept as 20 byte hashes in flat arrays, for checking outputs against a large number of
+ * watched scripts without holding a {@link com.matthewmitchell.nubitsj.script.Script} object for each. Pay to address
+ * and pay to script hash scripts are kept as the hash they contain, so checking them needs no hashing, and other
+ * scripts as the RIPEMD160 of the SHA256 of their program. The kind of script is kept too, so a script hash never
+ * matches an address with the same hash.</p>
+ *
+ * <p>The set is an open addressing hash table with linear probing, using 21 bytes per slot and at most half the slots.
+ * Lookups from many threads can run at the same time.</p>
+ */
+public class ScriptHashSet {
+    private static final int HASH_LENGTH = 20;
+    private static final byte EMPTY = 0, PAY_TO_ADDRESS = 1, PAY_TO_SCRIPT_HASH = 2, OTHER = 3;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    @GuardedBy("lock") private byte[] kinds;
+    @GuardedBy("lock") private byte[] hashes;
+    @GuardedBy("lock") private int size;
+
+    public ScriptHashSet() {
+        this(16);
+    }
+
+    /** Creates a set with room for the given number of scripts before it has to grow. */
+    public ScriptHashSet(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2)
+            capacity <<= 1;
+        kinds = new byte[capacity];
+        hashes = new byte[capacity * HASH_LENGTH];
+    }
+
+    /** Adds the script with the given program, returning false if it was already in the set. */
+    public boolean add(byte[] program) {
+        byte[] key = new byte[HASH_LENGTH];
+        byte kind = key(program, key);
+        lock.writeLock().lock();
+        try {
+            if (find(kind, key) >= 0)
+                return false;
+            if ((size + 1) * 2 > kinds.length)
+                resize(kinds.length * 2);
+            insert(kind, key, 0);
+            size++;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Removes the script with the given program, returning false if it wasn't in the set. */
+    public boolean remove(byte[] program) {
+        byte[] key = new byte[HASH_LENGTH];
+        byte kind = key(program, key);
+        lock.writeLock().lock();
+        try {
+            int slot = find(kind, key);
+            if (slot < 0)
+                return false;
+            delete(slot);
+            size--;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean contains(byte[] program) {
+        byte[] key = new byte[HASH_LENGTH];
+        byte kind = key(program, key);
+        lock.readLock().lock();
+        try {
+            return find(kind, key) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            kinds = new byte[16];
+            hashes = new byte[16 * HASH_LENGTH];
+            size = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Puts the 20 byte hash the script is kept as into key and returns its kind. */
+    private static byte key(byte[] program, byte[] key) {
+        if (program.length == 25 && program[0] == (byte) ScriptOpCodes.OP_DUP &&
+                program[1] == (byte) ScriptOpCodes.OP_HASH160 && program[2] == HASH_LENGTH &&
+                program[23] == (byte) ScriptOpCodes.OP_EQUALVERIFY && program[24] == (byte) ScriptOpCodes.OP_CHECKSIG) {
+            System.arraycopy(program, 3, key, 0, HASH_LENGTH);
+            return PAY_TO_ADDRESS;
+        }
+        if (program.length == 23 && program[0] == (byte) ScriptOpCodes.OP_HASH160 && program[1] == HASH_LENGTH &&
+                program[22] == (byte) ScriptOpCodes.OP_EQUAL) {
+            System.arraycopy(program, 2, key, 0, HASH_LENGTH);
+            return PAY_TO_SCRIPT_HASH;
+        }
+        System.arraycopy(Utils.sha256hash160(program), 0, key, 0, HASH_LENGTH);
+        return OTHER;
+    }
+
+    private static int home(byte[] hashes, int offset, int mask) {
+        // The keys are hashes already, so any four of their bytes are spread evenly.
+        int h = (hashes[offset] & 0xff) | (hashes[offset + 1] & 0xff) << 8 | (hashes[offset + 2] & 0xff) << 16 |
+                (hashes[offset + 3] & 0xff) << 24;
+        return h & mask;
+    }
+
+    @GuardedBy("lock")
+    private int find(byte kind, byte[] key) {
+        int mask = kinds.length - 1;
+        for (int slot = home(key, 0, mask); kinds[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (kinds[slot] == kind && equalsAt(slot, key))
+                return slot;
+        }
+        return -1;
+    }
+
+    private boolean equalsAt(int slot, byte[] key) {
+        int offset = slot * HASH_LENGTH;
+        for (int i = 0; i < HASH_LENGTH; i++)
+            if (hashes[offset + i] != key[i])
+                return false;
+        return true;
+    }
+
+    @GuardedBy("lock")
+    private void insert(byte kind, byte[] source, int sourceOffset) {
+        int mask = kinds.length - 1;
+        int slot = home(source, sourceOffset, mask);
+        while (kinds[slot] != EMPTY)
+            slot = (slot + 1) & mask;
+        kinds[slot] = kind;
+        System.arraycopy(source, sourceOffset, hashes, slot * HASH_LENGTH, HASH_LENGTH);
+    }
+
+    @GuardedBy("lock")
+    private void delete(int slot) {
+        // Move later entries of the same run back into the gap, so that lookups don't stop short at it.
+        int mask = kinds.length - 1;
+        int gap = slot;
+        kinds[gap] = EMPTY;
+        for (int next = (gap + 1) & mask; kinds[next] != EMPTY; next = (next + 1) & mask) {
+            int home = home(hashes, next * HASH_LENGTH, mask);
+            boolean staysPut = gap <= next ? (gap < home && home <= next) : (gap < home || home <= next);
+            if (staysPut)
+                continue;
+            kinds[gap] = kinds[next];
+            System.arraycopy(hashes, next * HASH_LENGTH, hashes, gap * HASH_LENGTH, HASH_LENGTH);
+            kinds[next] = EMPTY;
+            gap = next;
+        }
+    }
+
+    @GuardedBy("lock")
+    private void resize(int capacity) {
+        byte[] oldKinds = kinds;
+        byte[] oldHashes = hashes;
+        kinds = new byte[capacity];
+        hashes = new byte[capacity * HASH_LENGTH];
+        for (int slot = 0; slot < oldKinds.length; slot++)
+            if (oldKinds[slot] != EMPTY)
+                insert(oldKinds[slot], oldHashes, slot * HASH_LENGTH);
+    }
+}
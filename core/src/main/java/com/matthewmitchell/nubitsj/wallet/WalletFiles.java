@@ -18,6 +18,7 @@
 package com.matthewmitchell.nubitsj.wallet;
 
 import com.matthewmitchell.nubitsj.core.*;
+import com.matthewmitchell.nubitsj.store.*;
 import com.matthewmitchell.nubitsj.utils.*;
 import org.slf4j.*;
 
@@ -34,6 +35,10 @@ import static com.google.common.base.Preconditions.*;
  * It can be useful to delay writing of a wallet file to disk on slow devices where disk and serialization overhead
  * can come to dominate the chain processing speed, i.e. on Android phones. By coalescing writes and doing serialization
  * and disk IO on a background thread performance can be improved.
+ *
+ * In journal mode, saves append the changes since the last save to a {@link WalletJournal} instead of writing the whole
+ * wallet, and the journal is compacted into the wallet file on the background thread once it grows larger than the
+ * wallet file.
  */
 public class WalletFiles {
     private static final Logger log = LoggerFactory.getLogger(WalletFiles.class);
@@ -45,6 +50,9 @@ public class WalletFiles {
     private final long delay;
     private final TimeUnit delayTimeUnit;
     private final Callable<Void> saver;
+    @Nullable private final WalletJournal journal;
+    private final AtomicBoolean compactionPending;
+    private final Callable<Void> compactor;
 
     private volatile Listener vListener;
 
@@ -64,7 +72,15 @@ public class WalletFiles {
         void onAfterAutoSave(File newlySavedFile);
     }
 
+    /** The journal isn't compacted before it reaches this size, however small the wallet file is. */
+    public static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+
     public WalletFiles(final Wallet wallet, File file, long delay, TimeUnit delayTimeUnit) {
+        this(wallet, file, delay, delayTimeUnit, false);
+    }
+
+    /** If journal is true, saves go to a {@link WalletJournal} next to the file, see the class description. */
+    public WalletFiles(final Wallet wallet, File file, long delay, TimeUnit delayTimeUnit, boolean journal) {
         // An executor that starts up threads when needed and shuts them down later.
         this.executor = new ScheduledThreadPoolExecutor(1, new ContextPropagatingThreadFactory("Wallet autosave thread", Thread.MIN_PRIORITY));
         this.executor.setKeepAliveTime(5, TimeUnit.SECONDS);
@@ -93,6 +109,17 @@ public class WalletFiles {
                 return null;
             }
         };
+        this.journal = journal ? new WalletJournal(WalletJournal.journalFile(file)) : null;
+        this.compactionPending = new AtomicBoolean();
+        this.compactor = new Callable<Void>() {
+            @Override public Void call() throws Exception {
+                // Runs in an auto save thread.
+                compactionPending.set(false);
+                log.info("Compacting wallet journal of {} bytes", WalletFiles.this.journal.size());
+                saveFile();
+                return null;
+            }
+        };
     }
 
     /**
@@ -102,7 +129,10 @@ public class WalletFiles {
         this.vListener = checkNotNull(listener);
     }
 
-    /** Actually write the wallet file to disk, using an atomic rename when possible. Runs on the current thread. */
+    /**
+     * Actually write the wallet file to disk, using an atomic rename when possible, or in journal mode append the
+     * changes to the journal. Runs on the current thread.
+     */
     public void saveNow() throws IOException {
         // Can be called by any thread. However the wallet is locked whilst saving, so we can have two saves in flight
         // but they will serialize (using different temp files).
@@ -114,13 +144,30 @@ public class WalletFiles {
     }
 
     private void saveNowInternal() throws IOException {
+        if (journal != null) {
+            long now = System.currentTimeMillis();
+            if (wallet.saveToJournal(journal)) {
+                log.info("Journal write completed in {}msec", System.currentTimeMillis() - now);
+                if (journal.size() > Math.max(MIN_COMPACTION_SIZE, file.length()) && !executor.isShutdown()
+                        && !compactionPending.getAndSet(true))
+                    executor.submit(compactor);
+                return;
+            }
+        }
+        saveFile();
+    }
+
+    private void saveFile() throws IOException {
         long now = System.currentTimeMillis();
         File directory = file.getAbsoluteFile().getParentFile();
         File temp = File.createTempFile("wallet", null, directory);
         final Listener listener = vListener;
         if (listener != null)
             listener.onBeforeAutoSave(temp);
-        wallet.saveToFile(temp, file);
+        if (journal != null)
+            wallet.saveToFile(temp, file, journal);
+        else
+            wallet.saveToFile(temp, file);
         if (listener != null)
             listener.onAfterAutoSave(file);
         log.info("Save completed in {}msec", System.currentTimeMillis() - now);
@@ -141,5 +188,12 @@ public class WalletFiles {
         } catch (InterruptedException x) {
             throw new RuntimeException(x);
         }
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                log.error("Failed to close wallet journal", e);
+            }
+        }
     }
 }
@@ -0,0 +1,141 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.core;
+
+import com.matthewmitchell.nubitsj.params.*;
+import com.matthewmitchell.nubitsj.store.*;
+import org.junit.*;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CheckpointManagerTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private List<StoredBlock> checkpoints;
+
+    @Before
+    public void setUp() throws Exception {
+        new Context(params);
+        Address coinsTo = new ECKey().toAddress(params);
+        checkpoints = new ArrayList<StoredBlock>();
+        Block genesis = params.getGenesisBlock();
+        // Far enough ahead for the blocks ten minutes apart not to be in the future.
+        Utils.setMockClock(genesis.getTimeSeconds() + 86400);
+        StoredBlock block = new StoredBlock(genesis.cloneAsHeader(), genesis.getWork(), 0);
+        for (int i = 1; i <= 50; i++) {
+            Block next = block.getHeader().createNextBlock(coinsTo, block.getHeader().getTimeSeconds() + 600);
+            block = block.build(next.cloneAsHeader());
+            if (i % 5 == 0)
+                checkpoints.add(block);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Utils.mockTime = null;
+    }
+
+    private byte[] binary() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeBytes("CHECKPOINTS 1");
+        out.writeInt(0);
+        out.writeInt(checkpoints.size());
+        ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        for (StoredBlock block : checkpoints) {
+            buffer.position(0);
+            block.serializeCompact(buffer);
+            out.write(buffer.array());
+        }
+        return bos.toByteArray();
+    }
+
+    private void checkLookups(CheckpointManager manager) {
+        assertEquals(checkpoints.size(), manager.numCheckpoints());
+        long genesisTime = params.getGenesisBlock().getTimeSeconds();
+        assertEquals(0, manager.getCheckpointBefore(genesisTime + 1).getHeight());
+        for (StoredBlock block : checkpoints) {
+            long time = block.getHeader().getTimeSeconds();
+            assertEquals(block, manager.getCheckpointBefore(time));
+            assertEquals(block, manager.getCheckpointBefore(time + 599));
+            assertEquals(block, manager.getCheckpoint(block.getHeader().getHash()));
+        }
+        assertNull(manager.getCheckpoint(Sha256Hash.ZERO_HASH));
+        assertNull(manager.getCheckpoint(params.getGenesisBlock().getHash()));
+    }
+
+    @Test
+    public void indexedMatchesBinary() throws Exception {
+        CheckpointManager binary = new CheckpointManager(params, new ByteArrayInputStream(binary()));
+        checkLookups(binary);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Sha256Hash hash = CheckpointManager.writeIndexed(checkpoints, bos);
+        assertEquals(binary.getDataHash(), hash);
+        CheckpointManager indexed = new CheckpointManager(params, new ByteArrayInputStream(bos.toByteArray()));
+        assertEquals(hash, indexed.getDataHash());
+        checkLookups(indexed);
+
+        // The records are sorted when written, whatever order they are given in.
+        List<StoredBlock> shuffled = new ArrayList<StoredBlock>(checkpoints);
+        Collections.shuffle(shuffled, new Random(1));
+        bos = new ByteArrayOutputStream();
+        CheckpointManager.writeIndexed(shuffled, bos);
+        checkLookups(new CheckpointManager(params, new ByteArrayInputStream(bos.toByteArray())));
+    }
+
+    @Test
+    public void mapsFile() throws Exception {
+        File file = File.createTempFile("checkpoints", null);
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        CheckpointManager.writeIndexed(checkpoints, out);
+        out.close();
+        CheckpointManager manager = new CheckpointManager(params, file);
+        checkLookups(manager);
+
+        MemoryBlockStore store = new MemoryBlockStore(params);
+        StoredBlock expected = checkpoints.get(3);
+        CheckpointManager.checkpoint(params, file, store, expected.getHeader().getTimeSeconds() + 86400 * 7);
+        assertEquals(expected, store.getChainHead());
+
+        // Other formats are read from the file as before.
+        out = new FileOutputStream(file);
+        out.write(binary());
+        out.close();
+        checkLookups(new CheckpointManager(params, file));
+    }
+
+    @Test(expected = IOException.class)
+    public void dataHashMismatch() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        CheckpointManager.writeIndexed(checkpoints, bos);
+        byte[] bytes = bos.toByteArray();
+        // The last byte of the nonce of the first checkpoint, after the header, its time, chain work and height.
+        bytes["CHECKPOINTS 2".length() + 4 + 4 + 32 + 4 + StoredBlock.CHAIN_WORK_BYTES + 4 + Block.HEADER_SIZE - 1] ^= 1;
+        new CheckpointManager(params, new ByteArrayInputStream(bytes));
+    }
+
+    @Test(expected = IOException.class)
+    public void truncated() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        CheckpointManager.writeIndexed(checkpoints, bos);
+        byte[] bytes = Arrays.copyOf(bos.toByteArray(), bos.size() - 1);
+        new CheckpointManager(params, new ByteArrayInputStream(bytes));
+    }
+}
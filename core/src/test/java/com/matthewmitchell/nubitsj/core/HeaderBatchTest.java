@@ -0,0 +1,161 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.core;
+
+import com.matthewmitchell.nubitsj.params.*;
+import com.matthewmitchell.nubitsj.store.*;
+import com.matthewmitchell.nubitsj.utils.*;
+import com.google.common.util.concurrent.*;
+import org.junit.*;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class HeaderBatchTest {
+    private NetworkParameters params = UnitTestParams.get();
+    private Address coinsTo;
+    private SPVBlockStore blockStore;
+    private BlockChain chain;
+    private Wallet wallet;
+    private List<Block> blocks;
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        new Context(params);
+        coinsTo = new ECKey().toAddress(params);
+        File file = File.createTempFile("headerbatch", null);
+        file.delete();
+        file.deleteOnExit();
+        blockStore = new SPVBlockStore(params, file);
+        wallet = new Wallet(params, null);
+        chain = new BlockChain(params, blockStore, null);
+        chain.addWallet(wallet);
+        blocks = new ArrayList<Block>();
+        Block block = params.getGenesisBlock();
+        for (int i = 0; i < 100; i++) {
+            // Keep the time steps small, so the chain doesn't end up too far in the future.
+            block = block.createNextBlock(coinsTo, block.getTimeSeconds() + 1);
+            blocks.add(block);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Utils.mockTime = null;
+        blockStore.close();
+    }
+
+    private HeaderBatch received(List<Block> headers) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        NubitsSerializer serializer = new NubitsSerializer(params);
+        serializer.serialize(new HeadersMessage(params, headers), bos);
+        return ((HeadersMessage) serializer.deserialize(ByteBuffer.wrap(bos.toByteArray()))).getHeaderBatch();
+    }
+
+    @Test
+    public void parse() throws Exception {
+        HeaderBatch batch = received(blocks);
+        assertEquals(100, batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            Block block = blocks.get(i);
+            assertEquals(block.getHash(), batch.getHash(i));
+            assertTrue(batch.hashEquals(i, block.getHash()));
+            assertEquals(block.getPrevBlockHash(), batch.getPrevBlockHash(i));
+            assertEquals(block.getTimeSeconds(), batch.getTimeSeconds(i));
+            assertEquals(block.getDifficultyTarget(), batch.getDifficultyTarget(i));
+            assertEquals(block.cloneAsHeader(), batch.toBlock(i));
+        }
+        assertTrue(batch.prevHashEquals(0, params.getGenesisBlock().getHash()));
+        assertEquals(100, batch.findLinkBreak(0, 100));
+        assertEquals(10, batch.findLinkBreak(10, 0));
+    }
+
+    @Test
+    public void addsHeadersInBulk() throws Exception {
+        final List<StoredBlock> notified = new ArrayList<StoredBlock>();
+        chain.addListener(new AbstractBlockChainListener() {
+            @Override
+            public void notifyNewBestBlock(StoredBlock block) {
+                notified.add(block);
+            }
+        }, Threading.SAME_THREAD);
+        // The first header is already known, so it's left for add(Block).
+        assertTrue(chain.add(blocks.get(0).cloneAsHeader()));
+        HeaderBatch batch = received(blocks);
+        assertEquals(0, chain.add(batch, 0, 100));
+        assertEquals(99, chain.add(batch, 1, 99));
+        assertEquals(100, chain.getBestChainHeight());
+        assertEquals(blocks.get(99).getHash(), chain.getChainHead().getHeader().getHash());
+
+        // The stored headers are the same as the ones that add(Block) would have stored.
+        StoredBlock expected = blockStore.get(blocks.get(0).getHash());
+        for (int i = 1; i < 100; i++) {
+            expected = expected.build(blocks.get(i).cloneAsHeader());
+            assertEquals(expected, blockStore.get(blocks.get(i).getHash()));
+            assertEquals(expected.getChainWork(), blockStore.get(blocks.get(i).getHash()).getChainWork());
+        }
+        assertEquals(100, notified.size());
+        assertEquals(blocks.get(99).getHash(), notified.get(99).getHeader().getHash());
+        assertEquals(100, wallet.getLastBlockSeenHeight());
+        assertEquals(blocks.get(99).getHash(), wallet.getLastBlockSeenHash());
+    }
+
+    @Test
+    public void stopsAtBrokenLink() throws Exception {
+        List<Block> headers = new ArrayList<Block>(blocks.subList(0, 10));
+        headers.add(blocks.get(20));
+        headers.addAll(blocks.subList(10, 20));
+        HeaderBatch batch = received(headers);
+        assertEquals(10, batch.findLinkBreak(0, 21));
+        assertEquals(10, chain.add(batch, 0, 21));
+        assertEquals(0, chain.add(batch, 10, 11));
+        assertEquals(10, chain.add(batch, 11, 10));
+        assertEquals(1, chain.add(batch, 10, 1));
+        assertEquals(21, chain.getBestChainHeight());
+        assertEquals(blocks.get(20).getHash(), chain.getChainHead().getHeader().getHash());
+    }
+
+    @Test
+    public void stopsAtFutureHeader() throws Exception {
+        long time = blocks.get(4).getTimeSeconds();
+        Utils.setMockClock(time + 3 * 60 * 60);
+        Block future = blocks.get(4).createNextBlock(coinsTo, time + 3 * 60 * 60);
+        Utils.setMockClock(time);
+        List<Block> headers = new ArrayList<Block>(blocks.subList(0, 5));
+        headers.add(future);
+        HeaderBatch batch = received(headers);
+        assertEquals(5, chain.add(batch, 0, 6));
+        assertEquals(5, chain.getBestChainHeight());
+        try {
+            chain.add(batch.toBlock(5));
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void getHeightFuture() throws Exception {
+        ListenableFuture<StoredBlock> future = chain.getHeightFuture(42);
+        assertEquals(100, chain.add(received(blocks), 0, 100));
+        assertTrue(future.isDone());
+        assertEquals(42, future.get().getHeight());
+        assertEquals(blocks.get(41).getHash(), future.get().getHeader().getHash());
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.core;
+
+import com.matthewmitchell.nubitsj.params.*;
+import com.matthewmitchell.nubitsj.store.*;
+import com.matthewmitchell.nubitsj.testing.*;
+import com.matthewmitchell.nubitsj.utils.*;
+import org.junit.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+
+import static com.matthewmitchell.nubitsj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class HeaderRelayServerTest {
+    private NetworkParameters params = UnitTestParams.get();
+    private Address coinsTo;
+    private BlockStore blockStore;
+    private BlockChain chain;
+    private List<Block> blocks;
+    private HeaderRelayServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        new Context(params);
+        coinsTo = new ECKey().toAddress(params);
+        blockStore = new MemoryBlockStore(params);
+        chain = new BlockChain(params, blockStore, null);
+        blocks = new ArrayList<Block>();
+        blocks.add(params.getGenesisBlock());
+        extend(params.getGenesisBlock(), 10);
+        server = new HeaderRelayServer(params, chain, null, new InetSocketAddress("127.0.0.1", 0));
+        server.startAsync().awaitRunning();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stopAsync().awaitTerminated();
+    }
+
+    // Adds count blocks on top of the given one and records them as the main chain.
+    private Block extend(Block from, int count) throws Exception {
+        while (blocks.get(blocks.size() - 1) != from)
+            blocks.remove(blocks.size() - 1);
+        Block block = from;
+        for (int i = 0; i < count; i++) {
+            // Keep the time steps small, so long chains don't end up too far in the future.
+            block = block.createNextBlock(coinsTo, block.getTimeSeconds() + 1);
+            assertTrue(chain.add(block));
+            blocks.add(block);
+        }
+        return block;
+    }
+
+    private List<Block> getHeaders(List<Sha256Hash> locator, Sha256Hash stopHash) throws Exception {
+        byte[] packet = server.getHeadersPacket(locator, stopHash);
+        return ((HeadersMessage) new NubitsSerializer(params).deserialize(ByteBuffer.wrap(packet))).getBlockHeaders();
+    }
+
+    private void assertHeaders(int from, List<Block> headers) {
+        for (int i = 0; i < headers.size(); i++)
+            assertEquals(blocks.get(from + i).getHash(), headers.get(i).getHash());
+    }
+
+    @Test
+    public void headers() throws Exception {
+        assertEquals(10, server.getBestHeight());
+        List<Block> headers = getHeaders(Collections.singletonList(params.getGenesisBlock().getHash()), Sha256Hash.ZERO_HASH);
+        assertEquals(10, headers.size());
+        assertHeaders(1, headers);
+        // The first known locator entry is used and the stop hash is respected.
+        List<Sha256Hash> locator = Arrays.asList(Sha256Hash.of(new byte[] { 1 }), blocks.get(4).getHash());
+        headers = getHeaders(locator, blocks.get(7).getHash());
+        assertEquals(3, headers.size());
+        assertHeaders(5, headers);
+        // Already synced or nothing in common.
+        assertEquals(0, getHeaders(Collections.singletonList(blocks.get(10).getHash()), Sha256Hash.ZERO_HASH).size());
+        assertEquals(0, getHeaders(Collections.singletonList(Sha256Hash.of(new byte[] { 1 })), Sha256Hash.ZERO_HASH).size());
+    }
+
+    @Test
+    public void newBlocksAndReorg() throws Exception {
+        extend(blocks.get(10), 2);
+        assertEquals(12, server.getBestHeight());
+        assertHeaders(1, getHeaders(Collections.singletonList(params.getGenesisBlock().getHash()), Sha256Hash.ZERO_HASH));
+        // Fork off at height 8 with a longer chain, the index follows it.
+        Block oldTip = blocks.get(12);
+        extend(blocks.get(8), 5);
+        assertEquals(13, server.getBestHeight());
+        List<Block> headers = getHeaders(Collections.singletonList(blocks.get(8).getHash()), Sha256Hash.ZERO_HASH);
+        assertEquals(5, headers.size());
+        assertHeaders(9, headers);
+        // A client on the old fork is sent the new chain from the last block it has in common with it.
+        List<Sha256Hash> locator = Arrays.asList(oldTip.getHash(), blocks.get(8).getHash());
+        assertHeaders(9, getHeaders(locator, Sha256Hash.ZERO_HASH));
+    }
+
+    @Test
+    public void headerBatches() throws Exception {
+        List<Block> newBlocks = new ArrayList<Block>();
+        Block block = blocks.get(10);
+        for (int i = 0; i < 5; i++) {
+            block = block.createNextBlock(coinsTo, block.getTimeSeconds() + 1);
+            newBlocks.add(block);
+        }
+        HeaderBatch batch = HeaderBatch.of(params, newBlocks);
+        assertEquals(5, chain.add(batch, 0, 5));
+        blocks.addAll(newBlocks);
+        assertEquals(15, server.getBestHeight());
+        List<Block> headers = getHeaders(Collections.singletonList(blocks.get(10).getHash()), Sha256Hash.ZERO_HASH);
+        assertEquals(5, headers.size());
+        assertHeaders(11, headers);
+    }
+
+    @Test
+    public void blocksInv() throws Exception {
+        InventoryMessage inv = server.getBlocksInv(Collections.singletonList(blocks.get(2).getHash()), Sha256Hash.ZERO_HASH);
+        assertEquals(8, inv.getItems().size());
+        for (int i = 0; i < 8; i++) {
+            assertEquals(InventoryItem.Type.Block, inv.getItems().get(i).type);
+            assertEquals(blocks.get(3 + i).getHash(), inv.getItems().get(i).hash);
+        }
+    }
+
+    @Test
+    public void fullBatchesAreCached() throws Exception {
+        extend(blocks.get(10), HeadersMessage.MAX_HEADERS);
+        List<Sha256Hash> locator = Collections.singletonList(params.getGenesisBlock().getHash());
+        byte[] packet = server.getHeadersPacket(locator, Sha256Hash.ZERO_HASH);
+        assertSame(packet, server.getHeadersPacket(locator, Sha256Hash.ZERO_HASH));
+        List<Block> headers = getHeaders(locator, Sha256Hash.ZERO_HASH);
+        assertEquals(HeadersMessage.MAX_HEADERS, headers.size());
+        assertHeaders(1, headers);
+        // A re-org inside the batch invalidates it.
+        extend(blocks.get(1000), 2000);
+        byte[] packet2 = server.getHeadersPacket(locator, Sha256Hash.ZERO_HASH);
+        assertNotSame(packet, packet2);
+        assertHeaders(1, getHeaders(locator, Sha256Hash.ZERO_HASH));
+    }
+
+    // A blocking client speaking the wire protocol, to see what the server sends back.
+    private class Client {
+        private final NubitsSerializer serializer = new NubitsSerializer(params);
+        private final Socket socket;
+        private final DataInputStream in;
+
+        Client(InetSocketAddress address) throws Exception {
+            socket = new Socket(address.getAddress(), address.getPort());
+            socket.setSoTimeout(10000);
+            in = new DataInputStream(socket.getInputStream());
+            send(new VersionMessage(params, 0));
+            assertTrue(receive() instanceof VersionMessage);
+            assertTrue(receive() instanceof VersionAck);
+        }
+
+        void send(Message message) throws IOException {
+            serializer.serialize(message, socket.getOutputStream());
+            socket.getOutputStream().flush();
+        }
+
+        Message receive() throws Exception {
+            byte[] header = new byte[NubitsSerializer.PACKET_HEADER_LENGTH];
+            in.readFully(header);
+            int length = (int) Utils.readUint32(header, header.length - 8);
+            byte[] packet = Arrays.copyOf(header, header.length + length);
+            in.readFully(packet, header.length, length);
+            return serializer.deserialize(ByteBuffer.wrap(packet));
+        }
+
+        // Waits until the server handled everything sent so far, which it does in order.
+        void sync() throws Exception {
+            send(new Ping(42));
+            assertTrue(receive() instanceof Pong);
+        }
+    }
+
+    @Test
+    public void filterAddAndClear() throws Exception {
+        ServerSocket free = new ServerSocket(0);
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", free.getLocalPort());
+        free.close();
+        HeaderRelayServer relay = new HeaderRelayServer(params, chain, null, address);
+        relay.startAsync().awaitRunning();
+        try {
+            Client client = new Client(address);
+            Address watched = new ECKey().toAddress(params);
+            client.send(new BloomFilter(1, 0.0001, 0));
+            client.send(new FilterAddMessage(watched.getHash160()));
+            client.sync();
+            // Only the transaction paying the added address is announced.
+            relay.addTransaction(FakeTxBuilder.createFakeTx(params, COIN, new ECKey().toAddress(params)));
+            Transaction tx = FakeTxBuilder.createFakeTx(params, COIN, watched);
+            relay.addTransaction(tx);
+            InventoryMessage inv = (InventoryMessage) client.receive();
+            assertEquals(tx.getHash(), inv.getItems().get(0).hash);
+            // Without a filter, everything is announced again.
+            client.send(new FilterClearMessage(params));
+            client.sync();
+            tx = FakeTxBuilder.createFakeTx(params, COIN, new ECKey().toAddress(params));
+            relay.addTransaction(tx);
+            inv = (InventoryMessage) client.receive();
+            assertEquals(tx.getHash(), inv.getItems().get(0).hash);
+            // Adding to a filter that isn't there gets the client disconnected.
+            client.send(new FilterAddMessage(watched.getHash160()));
+            try {
+                client.receive();
+                fail();
+            } catch (EOFException e) {
+                // Expected.
+            }
+        } finally {
+            relay.stopAsync().awaitTerminated();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.core;
+
+import com.matthewmitchell.nubitsj.params.*;
+import com.matthewmitchell.nubitsj.store.*;
+import com.matthewmitchell.nubitsj.utils.*;
+import org.junit.*;
+
+import java.net.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class OrphanBlockPoolTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private BlockChain chain;
+    private List<Block> blocks;
+    private PeerAddress peer1, peer2;
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        new Context(params);
+        chain = new BlockChain(params, new MemoryBlockStore(params), null);
+        Address coinsTo = new ECKey().toAddress(params);
+        blocks = new ArrayList<Block>();
+        Block block = params.getGenesisBlock();
+        for (int i = 0; i < 10; i++) {
+            block = block.createNextBlock(coinsTo, block.getTimeSeconds() + 1);
+            blocks.add(block);
+        }
+        peer1 = new PeerAddress(InetAddress.getByAddress(new byte[] {10, 0, 0, 1}), 7890);
+        peer2 = new PeerAddress(InetAddress.getByAddress(new byte[] {10, 0, 0, 2}), 7890);
+    }
+
+    @Test
+    public void connectsDescendantsInOrder() throws Exception {
+        // Received top down, and with a fork on top of the third block.
+        Block fork = blocks.get(2).createNextBlock(new ECKey().toAddress(params), blocks.get(2).getTimeSeconds() + 2);
+        for (int i = 9; i > 0; i--)
+            assertFalse(chain.add(blocks.get(i), peer1));
+        assertFalse(chain.add(fork, peer2));
+        OrphanBlockPool pool = chain.getOrphanBlockPool();
+        assertEquals(10, pool.getSize());
+        assertEquals(blocks.get(1), chain.getOrphanRoot(blocks.get(9).getHash()));
+        assertTrue(chain.isOrphan(fork.getHash()));
+
+        assertTrue(chain.add(blocks.get(0), peer1));
+        assertEquals(blocks.get(9).getHash(), chain.getChainHead().getHeader().getHash());
+        assertEquals(0, pool.getSize());
+        assertEquals(0, pool.getBytes());
+        assertEquals(10, pool.getConnected());
+        assertEquals(0, pool.getEvictions());
+    }
+
+    @Test
+    public void keepsSiblingsOfFailedBlock() throws Exception {
+        final Block fork = blocks.get(0).createNextBlock(new ECKey().toAddress(params), blocks.get(0).getTimeSeconds() + 2);
+        assertFalse(chain.add(blocks.get(1), peer1));
+        assertFalse(chain.add(fork, peer2));
+        chain.addListener(new AbstractBlockChainListener() {
+            @Override
+            public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
+                if (block.getHeader().getHash().equals(blocks.get(1).getHash()))
+                    throw new VerificationException("Rejected");
+            }
+        }, Threading.SAME_THREAD);
+        try {
+            chain.add(blocks.get(0), peer1);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        // The sibling of the block that failed to connect is still there.
+        assertTrue(chain.isOrphan(fork.getHash()));
+    }
+
+    @Test
+    public void evictsOldest() throws Exception {
+        OrphanBlockPool pool = chain.getOrphanBlockPool();
+        assertFalse(chain.add(blocks.get(5), peer1));
+        long size = pool.getBytes();
+        pool.setMaxBytes(size * 3);
+        pool.setMaxSourceShare(1);
+        assertFalse(chain.add(blocks.get(4), peer2));
+        assertFalse(chain.add(blocks.get(3), null));
+        assertEquals(3, pool.getSize());
+        assertFalse(chain.add(blocks.get(2), peer2));
+        assertEquals(3, pool.getSize());
+        assertEquals(1, pool.getEvictions());
+        assertFalse(chain.isOrphan(blocks.get(5).getHash()));
+        // The rest still connects once the gap is filled.
+        assertTrue(chain.add(blocks.get(0)));
+        assertTrue(chain.add(blocks.get(1)));
+        assertEquals(blocks.get(4).getHash(), chain.getChainHead().getHeader().getHash());
+    }
+
+    @Test
+    public void evictsFromGreedySource() throws Exception {
+        OrphanBlockPool pool = chain.getOrphanBlockPool();
+        assertFalse(chain.add(blocks.get(9), peer2));
+        long size = pool.getBytes();
+        pool.setMaxBytes(size * 10);
+        pool.setMaxSourceShare(0.3);
+        for (int i = 8; i > 0; i--)
+            assertFalse(chain.add(blocks.get(i), peer1));
+        // Only three of peer1's blocks fit its share, and the block of peer2 is left alone.
+        assertEquals(4, pool.getSize());
+        assertEquals(5, pool.getEvictions());
+        assertTrue(chain.isOrphan(blocks.get(9).getHash()));
+        for (int i = 1; i <= 3; i++)
+            assertTrue(chain.isOrphan(blocks.get(i).getHash()));
+        assertEquals(blocks.get(1), chain.getOrphanRoot(blocks.get(3).getHash()));
+    }
+
+    @Test
+    public void neverEvictsTheNewBlock() throws Exception {
+        OrphanBlockPool pool = chain.getOrphanBlockPool();
+        pool.setMaxBytes(1);
+        assertFalse(chain.add(blocks.get(5), peer1));
+        assertFalse(chain.add(blocks.get(3), peer1));
+        assertEquals(1, pool.getSize());
+        assertEquals(blocks.get(3), chain.getOrphanRoot(blocks.get(3).getHash()));
+    }
+
+    @Test
+    public void drain() throws Exception {
+        assertFalse(chain.add(blocks.get(2), peer1));
+        assertFalse(chain.add(blocks.get(1), peer1));
+        Set<Sha256Hash> drained = chain.drainOrphanBlocks();
+        assertEquals(2, drained.size());
+        assertTrue(drained.contains(blocks.get(2).getHash()));
+        assertEquals(0, chain.getOrphanBlockPool().getSize());
+        assertTrue(chain.add(blocks.get(0)));
+        assertEquals(blocks.get(0).getHash(), chain.getChainHead().getHeader().getHash());
+    }
+}
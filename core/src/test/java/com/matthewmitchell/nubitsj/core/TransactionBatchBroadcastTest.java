@@ -0,0 +1,123 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.core;
+
+import com.matthewmitchell.nubitsj.params.*;
+import com.matthewmitchell.nubitsj.testing.*;
+import com.google.common.collect.*;
+import org.junit.*;
+
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static com.matthewmitchell.nubitsj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class TransactionBatchBroadcastTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private Address address;
+
+    @Before
+    public void setUp() throws Exception {
+        new Context(params);
+        address = new ECKey().toAddress(params);
+    }
+
+    // Returns a transaction spending the first output of the given one.
+    private Transaction spend(Transaction parent) {
+        Transaction tx = new Transaction(params);
+        tx.addInput(parent.getOutput(0));
+        tx.addOutput(parent.getOutput(0).getValue(), address);
+        return tx;
+    }
+
+    @Test
+    public void parentsFirst() throws Exception {
+        Transaction a = FakeTxBuilder.createFakeTx(params, COIN, address);
+        Transaction b = spend(a);
+        Transaction c = spend(b);
+        Transaction other = FakeTxBuilder.createFakeTx(params, CENT, address);
+        assertEquals(ImmutableList.of(other, a, b, c),
+                TransactionBatchBroadcast.sortParentsFirst(ImmutableList.of(other, c, a, b)));
+        // Already in order, so left as it is.
+        assertEquals(ImmutableList.of(a, other, b, c),
+                TransactionBatchBroadcast.sortParentsFirst(ImmutableList.of(a, other, b, c)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void duplicate() throws Exception {
+        Transaction a = FakeTxBuilder.createFakeTx(params, COIN, address);
+        TransactionBatchBroadcast.sortParentsFirst(ImmutableList.of(a, spend(a), a));
+    }
+
+    @Test
+    public void preparedPackets() throws Exception {
+        Transaction a = FakeTxBuilder.createFakeTx(params, COIN, address);
+        Transaction b = spend(a);
+        PeerGroup peerGroup = new PeerGroup(params);
+        TransactionBatchBroadcast broadcast = new TransactionBatchBroadcast(peerGroup, ImmutableList.of(b, a));
+        assertEquals(ImmutableList.of(a, b), broadcast.getTransactions());
+        NubitsSerializer serializer = new NubitsSerializer(params);
+        for (Transaction tx : broadcast.getTransactions()) {
+            Message message = serializer.deserialize(ByteBuffer.wrap(broadcast.getPacket(tx.getHash())));
+            assertEquals(tx, message);
+        }
+        assertNull(broadcast.getPacket(Sha256Hash.ZERO_HASH));
+    }
+
+    @Test
+    public void alreadyPropagated() throws Exception {
+        Transaction a = FakeTxBuilder.createFakeTx(params, COIN, address);
+        Transaction b = FakeTxBuilder.createFakeTx(params, CENT, address);
+        a.getConfidence().markBroadcastBy(new PeerAddress(InetAddress.getByAddress(new byte[] {10, 0, 0, 1}), 7890));
+        a.getConfidence().markBroadcastBy(new PeerAddress(InetAddress.getByAddress(new byte[] {10, 0, 0, 2}), 7890));
+        b.getConfidence().setAppearedAtChainHeight(1);
+        TransactionBatchBroadcast broadcast = new TransactionBatchBroadcast(new PeerGroup(params), ImmutableList.of(a, b));
+        broadcast.track(2);
+        assertEquals(ImmutableList.of(a, b), broadcast.future().get());
+    }
+
+    @Test
+    public void expires() throws Exception {
+        Transaction a = FakeTxBuilder.createFakeTx(params, COIN, address);
+        Transaction b = FakeTxBuilder.createFakeTx(params, CENT, address);
+        b.getConfidence().setAppearedAtChainHeight(1);
+        TransactionBatchBroadcast broadcast = new TransactionBatchBroadcast(new PeerGroup(params), ImmutableList.of(a, b));
+        broadcast.track(2);
+        assertFalse(broadcast.future().isDone());
+        broadcast.expire();
+        try {
+            broadcast.future().get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+
+    @Test
+    public void mockBroadcaster() throws Exception {
+        Wallet wallet = new Wallet(params, null);
+        MockTransactionBroadcaster broadcaster = new MockTransactionBroadcaster(wallet);
+        Transaction a = FakeTxBuilder.createFakeTx(params, COIN, address);
+        Transaction b = FakeTxBuilder.createFakeTx(params, CENT, address);
+        TransactionBatchBroadcast broadcast = broadcaster.broadcastTransactions(ImmutableList.of(a, b));
+        broadcaster.waitForTxFuture().succeed();
+        assertFalse(broadcast.future().isDone());
+        broadcaster.waitForTxFuture().succeed();
+        assertEquals(ImmutableList.of(a, b), broadcast.future().get());
+    }
+}
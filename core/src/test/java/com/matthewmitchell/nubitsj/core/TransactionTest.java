@@ -0,0 +1,103 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.core;
+
+import com.matthewmitchell.nubitsj.crypto.TransactionSignature;
+import com.matthewmitchell.nubitsj.params.UnitTestParams;
+import com.matthewmitchell.nubitsj.script.ScriptBuilder;
+import com.matthewmitchell.nubitsj.script.ScriptOpCodes;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TransactionTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private static Transaction createTx(int numInputs, int numOutputs) {
+        Transaction tx = new Transaction(params);
+        for (int i = 0; i < numInputs; i++) {
+            TransactionOutPoint outpoint = new TransactionOutPoint(params, i, Sha256Hash.of(new byte[] {(byte) i}));
+            TransactionInput input = new TransactionInput(params, tx, new byte[] {ScriptOpCodes.OP_1, (byte) i}, outpoint);
+            input.setSequenceNumber(1000 + i);
+            tx.addInput(input);
+        }
+        for (int i = 0; i < numOutputs; i++)
+            tx.addOutput(Coin.valueOf(i + 1), new ECKey());
+        return tx;
+    }
+
+    /** Works the signature hash out the way the reference client does, on a modified copy of the transaction. */
+    private static Sha256Hash referenceHash(Transaction tx, int inputIndex, byte[] connectedScript,
+                                            Transaction.SigHash type, boolean anyoneCanPay) throws Exception {
+        if (type == Transaction.SigHash.SINGLE && inputIndex >= tx.getOutputs().size())
+            return Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
+        Transaction copy = new Transaction(params, tx.nubitsSerialize());
+        for (int i = 0; i < copy.getInputs().size(); i++) {
+            copy.getInput(i).setScriptBytes(i == inputIndex ? connectedScript : TransactionInput.EMPTY_ARRAY);
+            if (i != inputIndex && type != Transaction.SigHash.ALL)
+                copy.getInput(i).setSequenceNumber(0);
+        }
+        if (type != Transaction.SigHash.ALL) {
+            TransactionOutput signed = copy.getOutputs().size() > inputIndex ? copy.getOutput(inputIndex) : null;
+            copy.clearOutputs();
+            if (type == Transaction.SigHash.SINGLE) {
+                for (int i = 0; i < inputIndex; i++)
+                    copy.addOutput(new TransactionOutput(params, copy, Coin.NEGATIVE_SATOSHI, new byte[] {}));
+                copy.addOutput(new TransactionOutput(params, copy, signed.getValue(), signed.getScriptBytes()));
+            }
+        }
+        if (anyoneCanPay) {
+            TransactionInput input = copy.getInput(inputIndex);
+            copy.clearInputs();
+            copy.addInput(input);
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        copy.nubitsSerialize(bos);
+        Utils.uint32ToByteStreamLE(0xff & TransactionSignature.calcSigHashValue(type, anyoneCanPay), bos);
+        return Sha256Hash.twiceOf(bos.toByteArray());
+    }
+
+    @Test
+    public void hashForSignature() throws Exception {
+        Transaction tx = createTx(3, 2);
+        byte[] serialized = tx.nubitsSerialize();
+        byte[] script = ScriptBuilder.createOutputScript(new ECKey()).getProgram();
+        Transaction.SigHash[] types = {Transaction.SigHash.ALL, Transaction.SigHash.NONE, Transaction.SigHash.SINGLE};
+        for (Transaction.SigHash type : types) {
+            for (boolean anyoneCanPay : new boolean[] {false, true}) {
+                for (int i = 0; i < tx.getInputs().size(); i++) {
+                    assertEquals(type + " " + anyoneCanPay + " " + i, referenceHash(tx, i, script, type, anyoneCanPay),
+                            tx.hashForSignature(i, script, type, anyoneCanPay));
+                }
+            }
+        }
+        // The transaction is left as it was.
+        assertTrue(Arrays.equals(serialized, tx.nubitsSerialize()));
+    }
+
+    @Test
+    public void hashForSignatureSkipsCodeSeparators() throws Exception {
+        Transaction tx = createTx(2, 2);
+        byte[] script = ScriptBuilder.createOutputScript(new ECKey()).getProgram();
+        byte[] withSeparator = new byte[script.length + 1];
+        withSeparator[0] = (byte) ScriptOpCodes.OP_CODESEPARATOR;
+        System.arraycopy(script, 0, withSeparator, 1, script.length);
+        assertEquals(tx.hashForSignature(1, script, Transaction.SigHash.ALL, false),
+                tx.hashForSignature(1, withSeparator, Transaction.SigHash.ALL, false));
+    }
+}
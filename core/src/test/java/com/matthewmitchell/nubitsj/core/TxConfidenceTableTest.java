@@ -22,6 +22,7 @@ import com.matthewmitchell.nubitsj.utils.*;
 import org.junit.*;
 
 import java.net.*;
+import java.util.*;
 
 import static com.matthewmitchell.nubitsj.core.Coin.*;
 import static org.junit.Assert.*;
@@ -99,4 +100,26 @@ public class TxConfidenceTableTest {
         assertEquals(3, tx2.getConfidence().numBroadcastPeers());
         assertEquals(3, table.numBroadcastPeers(tx1.getHash()));
     }
+
+    @Test
+    public void batchSeen() throws Exception {
+        Transaction tx3 = FakeTxBuilder.createFakeTx(params, COIN, new ECKey().toAddress(params));
+        List<Sha256Hash> hashes = Arrays.asList(tx1.getHash(), tx3.getHash());
+        List<TransactionConfidence> confidences = table.seen(hashes, address1);
+        assertEquals(tx1.getHash(), confidences.get(0).getTransactionHash());
+        assertEquals(tx3.getHash(), confidences.get(1).getTransactionHash());
+        table.seen(hashes, address1);
+        table.seen(hashes, address2);
+        assertEquals(2, table.numBroadcastPeers(tx1.getHash()));
+        assertEquals(2, tx3.getConfidence().numBroadcastPeers());
+    }
+
+    @Test
+    public void bounded() throws Exception {
+        TxConfidenceTable small = new TxConfidenceTable(64, 4);
+        List<TransactionConfidence> pinned = new ArrayList<TransactionConfidence>();
+        for (int i = 0; i < 1000; i++)
+            pinned.add(small.seen(Sha256Hash.of(new byte[] { (byte) i, (byte) (i >> 8) }), address1));
+        assertTrue(small.size() <= 64);
+    }
 }
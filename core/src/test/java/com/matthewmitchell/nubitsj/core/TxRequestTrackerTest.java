@@ -0,0 +1,163 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.core;
+
+import com.matthewmitchell.nubitsj.params.*;
+import com.matthewmitchell.nubitsj.utils.*;
+import org.junit.*;
+
+import java.net.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TxRequestTrackerTest {
+    private NetworkParameters params = UnitTestParams.get();
+    private TxConfidenceTable table;
+    private TxRequestTracker tracker;
+    private RecordingPeer peer1, peer2;
+
+    private class RecordingPeer extends Peer {
+        final List<Message> sent = new ArrayList<Message>();
+
+        RecordingPeer(int n) throws Exception {
+            super(params, new VersionMessage(params, 1), null,
+                    new PeerAddress(InetAddress.getByAddress(new byte[] { 127, 0, 0, (byte) n })));
+        }
+
+        @Override
+        public void sendMessage(Message message) {
+            sent.add(message);
+        }
+    }
+
+    @Before
+    public void setup() throws Exception {
+        BriefLogFormatter.init();
+        Utils.setMockClock();
+        table = new Context(params).getConfidenceTable();
+        tracker = new TxRequestTracker(params);
+        peer1 = new RecordingPeer(1);
+        peer2 = new RecordingPeer(2);
+    }
+
+    private TransactionConfidence confidence(int n) {
+        return table.getOrCreate(Sha256Hash.of(new byte[] { (byte) n }));
+    }
+
+    @Test
+    public void requestedOnce() throws Exception {
+        TransactionConfidence conf = confidence(1);
+        assertTrue(tracker.shouldRequest(peer1, conf));
+        assertFalse(tracker.shouldRequest(peer2, conf));
+        assertFalse(tracker.shouldRequest(peer1, conf));
+        assertEquals(1, tracker.getDuplicatesAvoided());
+        tracker.received(conf.getTransactionHash());
+        assertEquals(0, tracker.numPendingRequests());
+        // A late announcement of something we already have doesn't cause a download.
+        assertFalse(tracker.shouldRequest(peer2, conf));
+        assertTrue(peer2.sent.isEmpty());
+    }
+
+    @Test
+    public void retryOnTimeout() throws Exception {
+        TransactionConfidence conf = confidence(1);
+        assertTrue(tracker.shouldRequest(peer1, conf));
+        assertFalse(tracker.shouldRequest(peer2, conf));
+        tracker.checkTimeouts();
+        assertTrue(peer2.sent.isEmpty());
+        Utils.rollMockClockMillis(TxRequestTracker.DEFAULT_TIMEOUT_MSEC + 1);
+        tracker.checkTimeouts();
+        GetDataMessage getdata = (GetDataMessage) peer2.sent.get(0);
+        assertEquals(conf.getTransactionHash(), getdata.getItems().get(0).hash);
+        assertEquals(1, tracker.getRequestsRetried());
+        // Nobody else to ask, so the next timeout gives up.
+        Utils.rollMockClockMillis(TxRequestTracker.DEFAULT_TIMEOUT_MSEC + 1);
+        tracker.checkTimeouts();
+        assertEquals(0, tracker.numPendingRequests());
+        assertTrue(peer1.sent.isEmpty());
+    }
+
+    @Test
+    public void retryOnDisconnectAndNotFound() throws Exception {
+        TransactionConfidence conf1 = confidence(1);
+        TransactionConfidence conf2 = confidence(2);
+        assertTrue(tracker.shouldRequest(peer1, conf1));
+        assertTrue(tracker.shouldRequest(peer1, conf2));
+        assertFalse(tracker.shouldRequest(peer2, conf1));
+        tracker.notFound(peer1, Collections.singletonList(new InventoryItem(InventoryItem.Type.Transaction, conf1.getTransactionHash())));
+        assertEquals(1, peer2.sent.size());
+        assertFalse(tracker.shouldRequest(peer2, conf2));
+        tracker.peerDisconnected(peer1);
+        assertEquals(2, peer2.sent.size());
+        assertEquals(conf2.getTransactionHash(), ((GetDataMessage) peer2.sent.get(1)).getItems().get(0).hash);
+    }
+
+    @Test
+    public void perPeerLimit() throws Exception {
+        tracker.setMaxRequestsPerPeer(1);
+        TransactionConfidence conf1 = confidence(1);
+        TransactionConfidence conf2 = confidence(2);
+        assertTrue(tracker.shouldRequest(peer1, conf1));
+        assertFalse(tracker.shouldRequest(peer1, conf2));
+        assertTrue(tracker.shouldRequest(peer2, confidence(3)));
+        // conf2 is requested from peer1 once it has capacity again.
+        tracker.received(conf1.getTransactionHash());
+        tracker.checkTimeouts();
+        assertEquals(conf2.getTransactionHash(), ((GetDataMessage) peer1.sent.get(0)).getItems().get(0).hash);
+    }
+
+    @Test
+    public void waitingRequestsExpire() throws Exception {
+        tracker.setMaxRequestsPerPeer(1);
+        assertTrue(tracker.shouldRequest(peer1, confidence(1)));
+        assertFalse(tracker.shouldRequest(peer1, confidence(2)));
+        assertEquals(2, tracker.numPendingRequests());
+        Utils.rollMockClockMillis(TxRequestTracker.DEFAULT_TIMEOUT_MSEC + 1);
+        tracker.checkTimeouts();
+        // The first request has nobody else to go to, and peer1 never had room for the second.
+        assertEquals(0, tracker.numPendingRequests());
+        assertTrue(peer1.sent.isEmpty());
+    }
+
+    @Test
+    public void waitingRequestGoesToNextAnnouncer() throws Exception {
+        tracker.setMaxRequestsPerPeer(1);
+        TransactionConfidence conf = confidence(2);
+        assertTrue(tracker.shouldRequest(peer1, confidence(1)));
+        assertFalse(tracker.shouldRequest(peer1, conf));
+        assertTrue(tracker.shouldRequest(peer2, conf));
+        tracker.received(conf.getTransactionHash());
+        assertEquals(1, tracker.numPendingRequests());
+    }
+
+    @Test
+    public void floodingPeerIsCapped() throws Exception {
+        tracker.setMaxRequestsPerPeer(2);
+        for (int i = 0; i < 100; i++)
+            tracker.shouldRequest(peer1, confidence(i));
+        // Two outstanding and two waiting.
+        assertEquals(4, tracker.numPendingRequests());
+        tracker.received(confidence(0).getTransactionHash());
+        tracker.checkTimeouts();
+        assertEquals(confidence(2).getTransactionHash(), ((GetDataMessage) peer1.sent.get(0)).getItems().get(0).hash);
+        // One waiting now, so there's room for one more.
+        assertFalse(tracker.shouldRequest(peer1, confidence(100)));
+        assertFalse(tracker.shouldRequest(peer1, confidence(101)));
+        assertEquals(4, tracker.numPendingRequests());
+        tracker.peerDisconnected(peer1);
+        assertEquals(0, tracker.numPendingRequests());
+    }
+}
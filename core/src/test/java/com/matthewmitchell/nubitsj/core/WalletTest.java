@@ -19,6 +19,7 @@ package com.matthewmitchell.nubitsj.core;
 
 import com.matthewmitchell.nubitsj.core.Wallet.SendRequest;
 import com.matthewmitchell.nubitsj.crypto.*;
+import com.matthewmitchell.nubitsj.net.FilterMerger;
 import com.matthewmitchell.nubitsj.params.MainNetParams;
 import com.matthewmitchell.nubitsj.script.Script;
 import com.matthewmitchell.nubitsj.script.ScriptBuilder;
@@ -36,8 +37,11 @@ import com.matthewmitchell.nubitsj.utils.Threading;
 import com.matthewmitchell.nubitsj.wallet.*;
 import com.matthewmitchell.nubitsj.wallet.WalletTransaction.Pool;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.protobuf.ByteString;
 import com.matthewmitchell.nubitsj.wallet.Protos.Wallet.EncryptionType;
 import org.junit.After;
@@ -88,6 +92,17 @@ public class WalletTest extends TestWithWallet {
     @After
     @Override
     public void tearDown() throws Exception {
+        // The running balance totals must agree with selecting from every spend candidate, whatever the test did.
+        for (Wallet.BalanceType type : Wallet.BalanceType.values())
+            assertEquals(type.toString(), wallet.calculateBalance(type), wallet.getBalance(type));
+        // And the cached signability and maturity of the spend candidates must match looking them up again.
+        if (wallet.getUTXOProvider() == null) {
+            for (int i = 0; i < 4; i++) {
+                boolean excludeImmature = (i & 1) != 0, excludeUnsignable = (i & 2) != 0;
+                assertEquals(new HashSet<TransactionOutput>(wallet.calculateAllSpendCandidatesFromScratch(excludeImmature, excludeUnsignable)),
+                        new HashSet<TransactionOutput>(wallet.calculateAllSpendCandidates(excludeImmature, excludeUnsignable)));
+            }
+        }
         super.tearDown();
     }
 
@@ -249,6 +264,12 @@ public class WalletTest extends TestWithWallet {
         assertEquals("Wrong number of UNSPENT.5", 0, wallet.getPoolSize(WalletTransaction.Pool.UNSPENT));
         assertEquals("Wrong number of ALL.5", 2, wallet.getTransactions(true).size());
         assertEquals(valueOf(0, 49), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+
+        // The removed transaction no longer counts as pending, so spending its input elsewhere isn't a double spend.
+        Transaction other = new Transaction(params);
+        other.addInput(new TransactionInput(params, other, new byte[0], t.getInput(0).getOutpoint()));
+        other.addOutput(valueOf(0, 10), new ECKey().toAddress(params));
+        assertFalse(wallet.isTransactionRelevant(other));
     }
 
     @Test
@@ -617,6 +638,55 @@ public class WalletTest extends TestWithWallet {
         assertEquals(3, confTxns.size());
     }
 
+    @Test
+    public void blockTransactionsTakenInTogether() throws Exception {
+        // The relevant transactions of a block go into the wallet in one go, and are announced together.
+        final List<Transaction> received = new ArrayList<Transaction>();
+        final List<Coin> balances = new ArrayList<Coin>();
+        final AtomicInteger walletChanged = new AtomicInteger();
+        wallet.addEventListener(new AbstractWalletEventListener() {
+            @Override
+            public void onCoinsReceived(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+                received.add(tx);
+                balances.add(prevBalance);
+                balances.add(newBalance);
+            }
+
+            @Override
+            public void onWalletChanged(Wallet wallet) {
+                walletChanged.incrementAndGet();
+            }
+        }, Threading.SAME_THREAD);
+        Transaction t1 = createFakeTx(params, COIN, myAddress);
+        Transaction t2 = createFakeTx(params, valueOf(0, 50), myAddress);
+        Transaction t3 = createFakeTx(params, valueOf(0, 20), new ECKey().toAddress(params));
+        Block b1 = createFakeBlock(blockStore, t1, t3, t2).block;
+        chain.add(b1);
+        assertEquals(ImmutableList.of(t1, t2), received);
+        assertEquals(ImmutableList.of(ZERO, COIN, COIN, valueOf(1, 50)), balances);
+        assertEquals(1, walletChanged.get());
+        assertEquals(valueOf(1, 50), wallet.getBalance());
+        assertEquals(2, wallet.getTransactions(false).size());
+        assertEquals(1, wallet.getTransaction(t2.getHash()).getConfidence().getDepthInBlocks());
+        assertTrue(wallet.getTransaction(t1.getHash()).getAppearsInHashes().get(b1.getHash())
+                < wallet.getTransaction(t2.getHash()).getAppearsInHashes().get(b1.getHash()));
+    }
+
+    @Test
+    public void chainedSpendInOneBlock() throws Exception {
+        // The second transaction is only relevant once the first one was received.
+        Transaction t1 = createFakeTx(params, COIN, myAddress);
+        Transaction t2 = new Transaction(params);
+        t2.addInput(t1.getOutput(0));
+        t2.addOutput(COIN, new ECKey().toAddress(params));
+        Block b1 = createFakeBlock(blockStore, t1, t2).block;
+        chain.add(b1);
+        assertEquals(ZERO, wallet.getBalance());
+        assertEquals(2, wallet.getTransactions(false).size());
+        assertEquals(t1.getHash(), wallet.getTransaction(t2.getHash()).getInput(0).getOutpoint().getHash());
+        assertTrue(wallet.getTransaction(t1.getHash()).getOutput(0).getSpentBy() != null);
+    }
+
     @Test
     public void balances() throws Exception {
         Coin nanos = COIN;
@@ -1020,6 +1090,67 @@ public class WalletTest extends TestWithWallet {
         assertEquals(t2, called[1]); // replacement
     }
 
+    @Test
+    public void queriesDontWaitForWriters() throws Exception {
+        Transaction tx1 = sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(1, wallet.getTransactions(false).size());
+        // Simulate a long running change by holding the lock on another thread.
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                wallet.lock.lock();
+                try {
+                    wallet.addWalletTransaction(new WalletTransaction(Pool.DEAD,
+                            createFakeTx(params, COIN, myAddress)));
+                    locked.countDown();
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    wallet.lock.unlock();
+                }
+            }
+        };
+        writer.start();
+        locked.await();
+        // The half finished change isn't visible, and the queries don't block.
+        assertEquals(ImmutableSet.of(tx1), wallet.getTransactions(true));
+        assertEquals(ImmutableList.of(tx1), wallet.getRecentTransactions(0, true));
+        assertTrue(wallet.toString(false, true, false, null).contains("0 dead transactions"));
+        release.countDown();
+        writer.join();
+        assertEquals(2, wallet.getTransactions(true).size());
+    }
+
+    private Map<Transaction, Pool> pools() {
+        Map<Transaction, Pool> pools = new HashMap<Transaction, Pool>();
+        for (WalletTransaction wtx : wallet.getWalletTransactions())
+            pools.put(wtx.getTransaction(), wtx.getPool());
+        return pools;
+    }
+
+    @Test
+    public void snapshotsFollowChangesToEachPool() throws Exception {
+        // Each step changes some pools and leaves others alone, which snapshots take over from the last one.
+        Transaction tx1 = sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(ImmutableMap.of(tx1, Pool.UNSPENT), pools());
+        Transaction dead = createFakeTx(params, COIN, myAddress);
+        wallet.addWalletTransaction(new WalletTransaction(Pool.DEAD, dead));
+        assertEquals(ImmutableMap.of(tx1, Pool.UNSPENT, dead, Pool.DEAD), pools());
+        Transaction send = wallet.createSend(new ECKey().toAddress(params), valueOf(0, 50));
+        wallet.commitTx(send);
+        assertEquals(ImmutableMap.of(tx1, Pool.SPENT, dead, Pool.DEAD, send, Pool.PENDING), pools());
+        sendMoneyToWallet(send, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(ImmutableMap.of(tx1, Pool.SPENT, dead, Pool.DEAD, send, Pool.UNSPENT), pools());
+        // A block with nothing for us only moves the last block seen on.
+        StoredBlock block = createFakeBlock(blockStore).storedBlock;
+        wallet.notifyNewBestBlock(block);
+        assertEquals(ImmutableMap.of(tx1, Pool.SPENT, dead, Pool.DEAD, send, Pool.UNSPENT), pools());
+        assertTrue(wallet.toString(false, true, false, null).contains(block.getHeader().getHashAsString()));
+    }
+
     @Test
     public void transactionsList() throws Exception {
         // Check the wallet can give us an ordered list of all received transactions.
@@ -1223,6 +1354,22 @@ public class WalletTest extends TestWithWallet {
         assertTrue(wallet.isPendingTransactionRelevant(t1));
     }
 
+    @Test
+    public void watchedBalanceBecomesSpendableOnKeyImport() throws Exception {
+        ECKey key = new ECKey();
+        wallet.addWatchedAddress(key.toAddress(params));
+        sendMoneyToWallet(createFakeTx(params, CENT, key.toAddress(params)), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(CENT, wallet.getBalance(Wallet.BalanceType.AVAILABLE));
+        assertEquals(Coin.ZERO, wallet.getBalance(Wallet.BalanceType.AVAILABLE_SPENDABLE));
+        assertEquals(Coin.ZERO, wallet.getBalance(Wallet.BalanceType.ESTIMATED_SPENDABLE));
+        // Importing the key is picked up by the running totals.
+        wallet.importKey(key);
+        assertEquals(CENT, wallet.getBalance(Wallet.BalanceType.AVAILABLE_SPENDABLE));
+        assertEquals(CENT, wallet.getBalance(Wallet.BalanceType.ESTIMATED_SPENDABLE));
+        wallet.removeKey(key);
+        assertEquals(Coin.ZERO, wallet.getBalance(Wallet.BalanceType.AVAILABLE_SPENDABLE));
+    }
+
     @Test(expected = InsufficientMoneyException.class)
     public void watchingScriptsConfirmed() throws Exception {
         ECKey key = new ECKey();
@@ -1284,6 +1431,78 @@ public class WalletTest extends TestWithWallet {
         assertTrue(wallet.getBloomFilter(1e-12).contains(outPoint.nubitsSerialize()));
     }
 
+    @Test
+    public void tooManyWatchedScriptsForBloomFilter() throws Exception {
+        wallet.setMaxBloomWatchedScripts(2);
+        List<Address> addresses = new ArrayList<Address>();
+        for (int i = 0; i < 3; i++)
+            addresses.add(new ECKey().toAddress(params));
+        wallet.addWatchedAddresses(addresses.subList(0, 2), Utils.currentTimeSeconds());
+        assertTrue(wallet.isWatchingInBloomFilter());
+        assertFalse(wallet.getBloomFilter(1e-12).matchesAll());
+
+        wallet.addWatchedAddresses(addresses.subList(2, 3), Utils.currentTimeSeconds());
+        assertFalse(wallet.isWatchingInBloomFilter());
+        assertTrue(wallet.getBloomFilter(1e-12).matchesAll());
+        // Outputs are still matched exactly.
+        for (Address address : addresses)
+            assertTrue(wallet.isAddressWatched(address));
+        assertFalse(wallet.isAddressWatched(new ECKey().toAddress(params)));
+        Transaction t1 = createFakeTx(params, CENT, addresses.get(2));
+        assertTrue(wallet.isTransactionRelevant(t1));
+
+        wallet.removeWatchedAddress(addresses.get(0));
+        assertFalse(wallet.isAddressWatched(addresses.get(0)));
+        assertTrue(wallet.isWatchingInBloomFilter());
+        assertFalse(wallet.getBloomFilter(1e-12).matchesAll());
+    }
+
+    @Test
+    public void filterMergerAppliesDeltas() throws Exception {
+        FilterMerger merger = new FilterMerger(1e-6);
+        ImmutableList<PeerFilterProvider> providers = ImmutableList.<PeerFilterProvider>of(wallet);
+        BloomFilter first = merger.calculate(providers).filter;
+
+        // A new key fits in the stair-stepped size of the filter, so it is just inserted into a copy of it.
+        ECKey key = new ECKey();
+        wallet.importKey(key);
+        FilterMerger.Result result = merger.calculate(providers);
+        assertTrue(result.changed);
+        assertTrue(result.filter.contains(key.getPubKey()));
+        assertTrue(result.filter.contains(key.getPubKeyHash()));
+        assertFalse(first.contains(key.getPubKey()));
+
+        // A full rebuild with the same parameters yields exactly the same filter.
+        merger.onBloomFilterRebuildRequired();
+        FilterMerger.Result rebuilt = merger.calculate(providers);
+        assertFalse(rebuilt.changed);
+        assertEquals(result.filter, rebuilt.filter);
+    }
+
+    @Test
+    public void filterMergerRebuildsForAddedKeys() throws Exception {
+        FilterMerger merger = new FilterMerger(1e-6);
+        merger.calculate(ImmutableList.<PeerFilterProvider>of(wallet));
+
+        // A chain that already has keys when it's added doesn't report them one by one.
+        DeterministicKeyChain chain = new DeterministicKeyChain(new SecureRandom());
+        // Few enough keys to fit in the room the last filter left for new elements.
+        chain.setLookaheadSize(5);
+        chain.setLookaheadThreshold(1);
+        DeterministicKey key = chain.getKey(KeyChain.KeyPurpose.RECEIVE_FUNDS);
+        wallet.addAndActivateHDChain(chain);
+        FilterMerger.Result result = merger.calculate(ImmutableList.<PeerFilterProvider>of(wallet));
+        assertTrue(result.filter.contains(key.getPubKeyHash()));
+
+        // Neither does a provider that already has keys when it's registered.
+        Wallet other = new Wallet(params, null);
+        ECKey otherKey = new ECKey();
+        other.importKey(otherKey);
+        result = merger.calculate(ImmutableList.<PeerFilterProvider>of(wallet, other));
+        assertTrue(result.filter.contains(key.getPubKeyHash()));
+        assertTrue(result.filter.contains(otherKey.getPubKeyHash()));
+    }
+
     @Test
     public void getWatchedAddresses() throws Exception {
         Address watchedAddress = new ECKey().toAddress(params);
@@ -1603,6 +1822,23 @@ public class WalletTest extends TestWithWallet {
         assertFalse(encryptedWallet.checkPassword(WRONG_PASSWORD));
     }
 
+    @Test
+    public void derivedKeyCache() {
+        Wallet encryptedWallet = new Wallet(params, null);
+        encryptedWallet.encrypt(PASSWORD1);
+        DerivedKeyCache cache = new DerivedKeyCache(1, TimeUnit.MINUTES);
+        encryptedWallet.setDerivedKeyCache(cache);
+        assertTrue(encryptedWallet.checkPassword(PASSWORD1));
+        assertFalse(encryptedWallet.checkPassword(WRONG_PASSWORD));
+        assertEquals(2, cache.size());
+        // The key derived for checking the password is used to decrypt and to sign.
+        KeyParameter aesKey = cache.deriveKey(encryptedWallet.getKeyCrypter(), PASSWORD1);
+        assertTrue(encryptedWallet.checkAESKey(aesKey));
+        encryptedWallet.changeEncryptionPassword(PASSWORD1, "My name is Tom");
+        assertTrue(encryptedWallet.checkPassword("My name is Tom"));
+        assertEquals(3, cache.size());
+    }
+
     @Test
     public void changeAesKeyTest() {
         Wallet encryptedWallet = new Wallet(params, null);
@@ -2244,6 +2480,23 @@ public class WalletTest extends TestWithWallet {
         assertEquals(ZERO, wallet.getBalance());
     }
 
+    @Test
+    public void signManyInputs() throws Exception {
+        // Enough inputs, each to its own key, that they are signed on several threads.
+        StoredBlock block = new StoredBlock(makeSolvedTestBlock(blockStore, new ECKey().toAddress(params)), BigInteger.ONE, 1);
+        for (int i = 0; i < 40; i++) {
+            Transaction tx = createFakeTx(params, CENT, wallet.freshReceiveAddress());
+            wallet.receiveFromBlock(tx, block, AbstractBlockChain.NewBlockType.BEST_CHAIN, i);
+        }
+        SendRequest request = SendRequest.emptyWallet(new ECKey().toAddress(params));
+        wallet.completeTx(request);
+        assertEquals(40, request.tx.getInputs().size());
+        for (int i = 0; i < 40; i++) {
+            TransactionInput input = request.tx.getInput(i);
+            input.getScriptSig().correctlySpends(request.tx, i, input.getConnectedOutput().getScriptPubKey());
+        }
+    }
+
     @Test
     public void testEmptyWallet() throws Exception {
         Address outputKey = new ECKey().toAddress(params);
@@ -2793,6 +3046,24 @@ public class WalletTest extends TestWithWallet {
         wallet.sendCoins(req);
     }
 
+    @Test
+    public void rebroadcastsOneByOneWithoutBatches() throws Exception {
+        Address notMyAddr = new ECKey().toAddress(params);
+        receiveATransactionAmount(wallet, myAddress, Coin.COIN);
+        Transaction parent = wallet.sendCoinsOffline(SendRequest.to(notMyAddr, CENT));
+        Transaction child = wallet.sendCoinsOffline(SendRequest.to(notMyAddr, CENT));
+        assertEquals(parent.getHash(), child.getInput(0).getOutpoint().getHash());
+        final List<Transaction> broadcast = new ArrayList<Transaction>();
+        wallet.setTransactionBroadcaster(new TransactionBroadcaster() {
+            @Override
+            public TransactionBroadcast broadcastTransaction(Transaction tx) {
+                broadcast.add(tx);
+                return TransactionBroadcast.createMockBroadcast(tx, SettableFuture.<Transaction>create());
+            }
+        });
+        assertEquals(Arrays.asList(parent, child), broadcast);
+    }
+
     @Test
     public void fromKeys() {
         ECKey key = ECKey.fromPrivate(Utils.HEX.decode("00905b93f990267f4104f316261fc10f9f983551f9ef160854f40102eb71cffdcc"));
@@ -2804,4 +3075,38 @@ public class WalletTest extends TestWithWallet {
         assertEquals("5ca8cd6c01aa004d3c5396c628b78a4a89462f412f460a845b594ac42eceaa264b0e14dcd4fe73d4ed08ce06f4c28facfa85042d26d784ab2798a870bb7af556", seed);
     }
 
+    @Test
+    public void reorganize() throws Exception {
+        Transaction tx1 = sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        StoredBlock split = blockStore.getChainHead();
+        Transaction tx2 = createFakeTx(params, CENT, myAddress);
+        StoredBlock a2 = createFakeBlock(blockStore, tx2).storedBlock;
+        wallet.receiveFromBlock(tx2, a2, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        wallet.notifyNewBestBlock(a2);
+        // A longer side chain with another transaction in it.
+        Transaction tx3 = createFakeTx(params, CENT.multiply(2), myAddress);
+        StoredBlock b2 = split.build(makeSolvedTestBlock(split.getHeader()));
+        StoredBlock b3 = b2.build(makeSolvedTestBlock(b2.getHeader(), tx3));
+        wallet.receiveFromBlock(tx3, b3, AbstractBlockChain.NewBlockType.SIDE_CHAIN, 0);
+        assertEquals(TransactionConfidence.ConfidenceType.PENDING, tx3.getConfidence().getConfidenceType());
+
+        wallet.reorganize(split, Lists.newArrayList(a2), Lists.newArrayList(b3, b2));
+        assertEquals(TransactionConfidence.ConfidenceType.PENDING, tx2.getConfidence().getConfidenceType());
+        assertEquals(TransactionConfidence.ConfidenceType.BUILDING, tx3.getConfidence().getConfidenceType());
+        assertEquals(1, tx3.getConfidence().getDepthInBlocks());
+        assertEquals(3, tx1.getConfidence().getDepthInBlocks());
+        assertEquals(COIN.add(CENT.multiply(2)), wallet.getBalance());
+        assertEquals(COIN.add(CENT.multiply(3)), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+
+        // And back again.
+        StoredBlock a3 = a2.build(makeSolvedTestBlock(a2.getHeader()));
+        StoredBlock a4 = a3.build(makeSolvedTestBlock(a3.getHeader()));
+        wallet.reorganize(split, Lists.newArrayList(b3, b2), Lists.newArrayList(a4, a3, a2));
+        assertEquals(TransactionConfidence.ConfidenceType.BUILDING, tx2.getConfidence().getConfidenceType());
+        assertEquals(3, tx2.getConfidence().getDepthInBlocks());
+        assertEquals(TransactionConfidence.ConfidenceType.PENDING, tx3.getConfidence().getConfidenceType());
+        assertEquals(4, tx1.getConfidence().getDepthInBlocks());
+        assertEquals(COIN.add(CENT), wallet.getBalance());
+        assertTrue(wallet.isConsistent());
+    }
 }
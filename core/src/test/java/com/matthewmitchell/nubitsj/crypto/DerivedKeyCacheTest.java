@@ -0,0 +1,90 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.crypto;
+
+import com.matthewmitchell.nubitsj.core.Utils;
+import org.junit.Before;
+import org.junit.Test;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DerivedKeyCacheTest {
+    private final AtomicInteger derivations = new AtomicInteger();
+    private KeyCrypterScrypt scrypt;
+    private DerivedKeyCache cache;
+
+    @Before
+    public void setUp() {
+        Utils.setMockClock();
+        scrypt = new KeyCrypterScrypt(2) {
+            @Override
+            public KeyParameter deriveKey(CharSequence password) throws KeyCrypterException {
+                derivations.incrementAndGet();
+                return super.deriveKey(password);
+            }
+        };
+        cache = new DerivedKeyCache(5, TimeUnit.MINUTES);
+    }
+
+    @Test
+    public void derivesOncePerPassword() {
+        KeyParameter key1 = cache.deriveKey(scrypt, "password");
+        KeyParameter key2 = cache.deriveKey(scrypt, "password");
+        assertEquals(1, derivations.get());
+        assertArrayEquals(scrypt.deriveKey("password").getKey(), key1.getKey());
+        assertArrayEquals(key1.getKey(), key2.getKey());
+        // Callers get copies, so zeroing one doesn't touch the cached key.
+        assertNotSame(key1.getKey(), key2.getKey());
+        Arrays.fill(key1.getKey(), (byte) 0);
+        assertArrayEquals(key2.getKey(), cache.deriveKey(scrypt, "password").getKey());
+
+        KeyParameter other = cache.deriveKey(scrypt, "other password");
+        assertFalse(Arrays.equals(key2.getKey(), other.getKey()));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void expires() {
+        cache.deriveKey(scrypt, "password");
+        Utils.rollMockClock(4 * 60);
+        cache.deriveKey(scrypt, "password");
+        assertEquals(1, derivations.get());
+        Utils.rollMockClock(2 * 60);
+        cache.deriveKey(scrypt, "password");
+        assertEquals(2, derivations.get());
+    }
+
+    @Test
+    public void clear() {
+        cache.deriveKey(scrypt, "password");
+        cache.clear();
+        assertEquals(0, cache.size());
+        cache.deriveKey(scrypt, "password");
+        assertEquals(2, derivations.get());
+    }
+
+    @Test
+    public void separatesCrypters() {
+        cache.deriveKey(scrypt, "password");
+        KeyCrypterScrypt other = new KeyCrypterScrypt(2);
+        assertArrayEquals(other.deriveKey("password").getKey(), cache.deriveKey(other, "password").getKey());
+        assertEquals(2, cache.size());
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.kits;
+
+import com.matthewmitchell.nubitsj.core.*;
+import com.matthewmitchell.nubitsj.params.*;
+import com.google.common.io.*;
+import org.junit.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class WalletAppKitTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDir();
+    }
+
+    private WalletAppKit start() throws Exception {
+        WalletAppKit kit = new WalletAppKit(params, directory, "test");
+        // Nothing listens there, the kit only needs somewhere to try.
+        kit.setPeerNodes(new PeerAddress(InetAddress.getByAddress(new byte[] {127, 0, 0, 1}), 1));
+        kit.setBlockingStartup(false);
+        kit.setAutoStop(false);
+        kit.startAsync();
+        kit.awaitRunning();
+        return kit;
+    }
+
+    @Test
+    public void stagedStartup() throws Exception {
+        WalletAppKit kit = start();
+        Map<String, Long> timings = kit.getStartupTimings();
+        for (String stage : new String[] {"hashstore", "wallet", "blockstore", "chain", "peergroup", "setup", "total"})
+            assertTrue(stage, timings.containsKey(stage));
+        // The setup stage waits for all others.
+        assertEquals("setup", new ArrayList<String>(timings.keySet()).get(timings.size() - 2));
+        Address address = kit.wallet().currentReceiveAddress();
+        kit.stopAsync();
+        kit.awaitTerminated();
+
+        // And again from the files written the first time.
+        kit = start();
+        assertEquals(address, kit.wallet().currentReceiveAddress());
+        assertEquals(params.getGenesisBlock().getHash(), kit.chain().getChainHead().getHeader().getHash());
+        kit.stopAsync();
+        kit.awaitTerminated();
+    }
+
+    @Test
+    public void failedStartupReleasesFiles() throws Exception {
+        File walletFile = new File(directory, "test.wallet");
+        Files.write(new byte[] {1, 2, 3, 4}, walletFile);
+        try {
+            start();
+            fail();
+        } catch (IllegalStateException e) {
+            // The wallet couldn't be read.
+        }
+        // The block store the failed startup opened is closed again, so its file can be locked.
+        assertTrue(walletFile.delete());
+        WalletAppKit kit = start();
+        assertNotNull(kit.wallet());
+        kit.stopAsync();
+        kit.awaitTerminated();
+    }
+}
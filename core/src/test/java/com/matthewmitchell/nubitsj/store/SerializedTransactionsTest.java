@@ -0,0 +1,199 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.store;
+
+import com.matthewmitchell.nubitsj.core.*;
+import com.matthewmitchell.nubitsj.testing.*;
+import com.matthewmitchell.nubitsj.wallet.*;
+import com.google.common.collect.Lists;
+import org.junit.*;
+
+import java.io.*;
+import java.util.*;
+
+import static com.matthewmitchell.nubitsj.core.Coin.*;
+import static com.matthewmitchell.nubitsj.testing.FakeTxBuilder.*;
+import static org.junit.Assert.*;
+
+public class SerializedTransactionsTest extends TestWithWallet {
+    private Transaction received, spend, change;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        // Coins received and then spent, so both transactions end up in the spent pool.
+        received = sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        Wallet.SendRequest req = Wallet.SendRequest.emptyWallet(new ECKey().toAddress(params));
+        wallet.completeTx(req);
+        spend = req.tx;
+        wallet.commitTx(spend);
+        sendMoneyToWallet(spend, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        change = sendMoneyToWallet(valueOf(0, 30), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(2, wallet.getTransactionPool(WalletTransaction.Pool.SPENT).size());
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    private Wallet roundTrip(Wallet wallet, boolean lazily) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(wallet, output);
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        serializer.setParseHistoryLazily(lazily);
+        return serializer.readWallet(new ByteArrayInputStream(output.toByteArray()), null);
+    }
+
+    private static Set<Protos.Transaction> transactions(Wallet wallet) {
+        return new HashSet<Protos.Transaction>(new WalletProtobufSerializer().walletToProto(wallet).getTransactionList());
+    }
+
+    private void addBlock(Wallet... wallets) {
+        StoredBlock block = createFakeBlock(blockStore).storedBlock;
+        for (Wallet w : wallets)
+            w.notifyNewBestBlock(block);
+    }
+
+    @Test
+    public void parsesOnDemand() throws Exception {
+        Wallet lazy = roundTrip(wallet, true);
+        assertTrue(lazy.isConsistent());
+        assertEquals(valueOf(0, 30), lazy.getBalance());
+        assertEquals(2, lazy.getTransactionPool(WalletTransaction.Pool.SPENT).size());
+        assertEquals(1, lazy.getTransactionPool(WalletTransaction.Pool.UNSPENT).size());
+        // Nothing was parsed, so writing the wallet out again gives the same transactions.
+        assertEquals(transactions(wallet), transactions(lazy));
+
+        // Serialized transactions are brought up to date with blocks that arrived since.
+        addBlock(wallet, lazy);
+        addBlock(wallet, lazy);
+        assertEquals(transactions(wallet), transactions(lazy));
+        Transaction tx = lazy.getTransaction(received.getHash());
+        assertEquals(received, tx);
+        assertEquals(5, tx.getConfidence().getDepthInBlocks());
+        assertEquals(wallet.getTransaction(received.getHash()).getConfidence().getDepthInBlocks(),
+                tx.getConfidence().getDepthInBlocks());
+        // Its output is connected to the spend, which is still serialized.
+        assertNull(tx.getOutput(0).getSpentBy());
+        assertEquals(spend, lazy.getTransaction(spend.getHash()));
+        assertEquals(spend.getHash(), tx.getOutput(0).getSpentBy().getParentTransaction().getHash());
+        assertTrue(lazy.isConsistent());
+        assertEquals(transactions(wallet), transactions(lazy));
+    }
+
+    @Test
+    public void iteratingParsesAll() throws Exception {
+        Wallet lazy = roundTrip(wallet, true);
+        assertEquals(wallet.getTransactions(true), lazy.getTransactions(true));
+        assertEquals(3, lazy.getRecentTransactions(0, false).size());
+        assertEquals(spend.getValue(wallet), lazy.getTransaction(spend.getHash()).getValue(lazy));
+        assertTrue(lazy.isConsistent());
+        assertEquals(transactions(wallet), transactions(roundTrip(lazy, false)));
+    }
+
+    @Test
+    public void keepsWhatUnspentTransactionsNeed() throws Exception {
+        // A pending spend of the unspent transaction has to be parsed for the output to count as spent.
+        Wallet.SendRequest req = Wallet.SendRequest.emptyWallet(new ECKey().toAddress(params));
+        wallet.completeTx(req);
+        Transaction pending = req.tx;
+        wallet.commitTx(pending);
+        Wallet lazy = roundTrip(wallet, true);
+        assertEquals(wallet.getBalance(), lazy.getBalance());
+        assertEquals(Coin.ZERO, lazy.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(3, lazy.getTransactionPool(WalletTransaction.Pool.SPENT).size());
+        assertEquals(pending.getValue(wallet), lazy.getTransaction(pending.getHash()).getValue(lazy));
+        assertEquals(change, lazy.getTransaction(change.getHash()));
+    }
+
+    @Test
+    public void compactsBuriedSpentTransactions() throws Exception {
+        Set<Protos.Transaction> before = transactions(wallet);
+        // Received is three blocks deep and spend two, so only received is compacted.
+        assertEquals(1, wallet.compactTransactions(3));
+        assertEquals(before, transactions(wallet));
+        assertEquals(1, wallet.compactTransactions(1));
+        assertEquals(0, wallet.compactTransactions(1));
+        assertEquals(before, transactions(wallet));
+        assertEquals(valueOf(0, 30), wallet.getBalance());
+        assertEquals(2, wallet.getTransactionPool(WalletTransaction.Pool.SPENT).size());
+
+        // Blocks arriving meanwhile are accounted for when they're parsed again.
+        addBlock(wallet);
+        Transaction tx = wallet.getTransaction(spend.getHash());
+        assertEquals(spend, tx);
+        assertEquals(3, tx.getConfidence().getDepthInBlocks());
+        assertEquals(spend.getHash(), wallet.getTransaction(received.getHash()).getOutput(0).getSpentBy()
+                .getParentTransaction().getHash());
+        assertTrue(wallet.isConsistent());
+        assertEquals(transactions(wallet), transactions(roundTrip(wallet, false)));
+    }
+
+    @Test
+    public void snapshotsLeaveSerializedTransactionsAlone() throws Exception {
+        wallet.getTransaction(change.getHash()).setUpdateTime(new Date(Utils.currentTimeMillis() + 1000));
+        assertEquals(2, wallet.compactTransactions(1));
+        String text = wallet.toString(false, true, false, null);
+        assertTrue(text, text.contains("2 spent transactions"));
+        assertTrue(text, text.contains("and 2 more in serialized form"));
+        assertEquals(change, wallet.getRecentTransactions(1, false).get(0));
+        // Were they parsed, they could be compacted again.
+        assertEquals(0, wallet.compactTransactions(1));
+
+        // Listing them all has to parse them, and the next snapshot has them.
+        assertEquals(3, wallet.getTransactions(false).size());
+        assertEquals(2, wallet.compactTransactions(1));
+        assertEquals(3, wallet.getRecentTransactions(0, false).size());
+        assertFalse(wallet.toString(false, true, false, null).contains("serialized form"));
+        assertTrue(wallet.isConsistent());
+    }
+
+    @Test
+    public void readsScriptsWithoutParsing() throws Exception {
+        Set<Protos.Transaction> protos = transactions(wallet);
+        SerializedTransactions serialized = new SerializedTransactions(params);
+        for (Protos.Transaction proto : protos)
+            if (proto.getPool() == Protos.Transaction.Pool.SPENT)
+                serialized.add(proto);
+        assertEquals(received.getOutputs().size(), serialized.getOutputCount(received.getHash()));
+        for (int i = 0; i < spend.getOutputs().size(); i++)
+            assertArrayEquals(spend.getOutput(i).getScriptBytes(), serialized.getScriptBytes(spend.getHash(), i));
+        Set<com.matthewmitchell.nubitsj.script.Script> scripts = new HashSet<com.matthewmitchell.nubitsj.script.Script>();
+        scripts.add(received.getOutput(0).getScriptPubKey());
+        List<TransactionOutPoint> found = serialized.findOutputs(WalletTransaction.Pool.SPENT, scripts);
+        assertEquals(1, found.size());
+        assertEquals(received.getHash(), found.get(0).getHash());
+        assertEquals(0, found.get(0).getIndex());
+    }
+
+    @Test
+    public void reorganizeParsesWhatItAffects() throws Exception {
+        assertEquals(2, wallet.compactTransactions(1));
+        // Swap out the blocks of the spend and the change, leaving the received coins where they are.
+        StoredBlock top = blockStore.getChainHead();
+        StoredBlock spendBlock = blockStore.get(top.getHeader().getPrevBlockHash());
+        StoredBlock split = blockStore.get(spendBlock.getHeader().getPrevBlockHash());
+        StoredBlock replacement = split.build(makeSolvedTestBlock(split.getHeader()));
+        wallet.reorganize(split, Lists.newArrayList(top, spendBlock), Lists.newArrayList(replacement));
+        Transaction tx = wallet.getTransaction(spend.getHash());
+        assertEquals(TransactionConfidence.ConfidenceType.PENDING, tx.getConfidence().getConfidenceType());
+        assertTrue(wallet.getTransactionPool(WalletTransaction.Pool.PENDING).containsKey(spend.getHash()));
+        assertEquals(2, wallet.getTransaction(received.getHash()).getConfidence().getDepthInBlocks());
+        assertTrue(wallet.isConsistent());
+    }
+}
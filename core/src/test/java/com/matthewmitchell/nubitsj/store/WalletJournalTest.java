@@ -0,0 +1,189 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.store;
+
+import com.matthewmitchell.nubitsj.core.*;
+import com.matthewmitchell.nubitsj.testing.*;
+import com.matthewmitchell.nubitsj.wallet.*;
+import com.google.common.io.Files;
+import org.junit.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static com.matthewmitchell.nubitsj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class WalletJournalTest extends TestWithWallet {
+    private File file;
+    private File journalFile;
+    private WalletFiles files;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("nubitsj-unit-test", null);
+        file.deleteOnExit();
+        journalFile = WalletJournal.journalFile(file);
+        journalFile.deleteOnExit();
+        // A long delay, so only the immediate saves happen during the test.
+        files = wallet.autosaveToFile(file, 1, TimeUnit.HOURS, null, true);
+        files.saveNow();
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        wallet.shutdownAutosaveAndWait();
+        super.tearDown();
+    }
+
+    private static Set<Protos.Transaction> transactions(Wallet wallet) {
+        return new HashSet<Protos.Transaction>(new WalletProtobufSerializer().walletToProto(wallet).getTransactionList());
+    }
+
+    private void assertReloads() throws Exception {
+        Wallet loaded = Wallet.loadFromFile(file, null);
+        assertEquals(transactions(wallet), transactions(loaded));
+        assertEquals(wallet.getLastBlockSeenHash(), loaded.getLastBlockSeenHash());
+        if (wallet.getLastBlockSeenHash() != null)
+            assertEquals(wallet.getLastBlockSeenHeight(), loaded.getLastBlockSeenHeight());
+        assertEquals(wallet.getBalance(), loaded.getBalance());
+        assertEquals(wallet.getBalance(Wallet.BalanceType.ESTIMATED), loaded.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(new HashSet<Address>(wallet.getIssuedReceiveAddresses()),
+                new HashSet<Address>(loaded.getIssuedReceiveAddresses()));
+    }
+
+    @Test
+    public void appendsInsteadOfRewriting() throws Exception {
+        byte[] saved = Files.toByteArray(file);
+        Transaction t1 = sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        sendMoneyToWallet(valueOf(2, 0), null);
+        sendMoneyToWallet(valueOf(0, 50), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        Transaction spend = wallet.createSend(new ECKey().toAddress(params), valueOf(0, 70));
+        wallet.commitTx(spend);
+        files.saveNow();
+        assertEquals(2, wallet.getTransaction(t1.getHash()).getConfidence().getDepthInBlocks());
+        // Only the journal was written to.
+        assertArrayEquals(saved, Files.toByteArray(file));
+        assertTrue(journalFile.length() > 0);
+        assertReloads();
+    }
+
+    @Test
+    public void journalsIssuedKeys() throws Exception {
+        byte[] saved = Files.toByteArray(file);
+        Address address = wallet.freshReceiveAddress();
+        assertArrayEquals(saved, Files.toByteArray(file));
+        Wallet loaded = Wallet.loadFromFile(file, null);
+        assertTrue(loaded.getIssuedReceiveAddresses().contains(address));
+        assertReloads();
+    }
+
+    @Test
+    public void journalsWalletFieldsOnlyWhenChanged() throws Exception {
+        byte[] saved = Files.toByteArray(file);
+        sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        long length = journalFile.length();
+        wallet.setDescription("journaled");
+        files.saveNow();
+        int headerSize = new WalletProtobufSerializer().walletToProto(wallet,
+                Collections.<WalletTransaction>emptyList()).getSerializedSize();
+        assertTrue(journalFile.length() - length > headerSize);
+        // Nothing but transactions changed since, so the keys and other wallet wide fields aren't written again.
+        length = journalFile.length();
+        sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertTrue(journalFile.length() - length < headerSize);
+        files.saveNow();
+        assertArrayEquals(saved, Files.toByteArray(file));
+        assertEquals("journaled", Wallet.loadFromFile(file, null).getDescription());
+        assertReloads();
+    }
+
+    // An extension whose state changes without telling the wallet.
+    private static class CounterExtension implements WalletExtension {
+        int count;
+
+        @Override
+        public String getWalletExtensionID() {
+            return "com.matthewmitchell.nubitsj.test.counter";
+        }
+
+        @Override
+        public boolean isWalletExtensionMandatory() {
+            return false;
+        }
+
+        @Override
+        public byte[] serializeWalletExtension() {
+            return new byte[] {(byte) count};
+        }
+
+        @Override
+        public void deserializeWalletExtension(Wallet containingWallet, byte[] data) {
+            count = data[0];
+        }
+    }
+
+    @Test
+    public void journalsExtensionsChangedInPlace() throws Exception {
+        CounterExtension counter = new CounterExtension();
+        wallet.addExtension(counter);
+        files.saveNow();
+        byte[] saved = Files.toByteArray(file);
+        counter.count = 42;
+        files.saveNow();
+        assertArrayEquals(saved, Files.toByteArray(file));
+        CounterExtension loaded = new CounterExtension();
+        Wallet.loadFromFile(file, null, loaded);
+        assertEquals(42, loaded.count);
+        assertReloads();
+    }
+
+    @Test
+    public void removingTransactionsRewritesFile() throws Exception {
+        sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        byte[] saved = Files.toByteArray(file);
+        wallet.clearTransactions(0);
+        files.saveNow();
+        assertFalse(Arrays.equals(saved, Files.toByteArray(file)));
+        assertReloads();
+        assertEquals(0, Wallet.loadFromFile(file, null).getTransactions(true).size());
+    }
+
+    @Test
+    public void ignoresJournalOfOtherFile() throws Exception {
+        sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        // The file is replaced as if the process died during compaction, after renaming the new wallet file.
+        new Wallet(params, null).saveToFile(file);
+        assertEquals(0, Wallet.loadFromFile(file, null).getTransactions(true).size());
+    }
+
+    @Test
+    public void ignoresPartlyWrittenRecord() throws Exception {
+        sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        byte[] journal = Files.toByteArray(journalFile);
+        sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        byte[] longer = Files.toByteArray(journalFile);
+        assertTrue(longer.length > journal.length + 10);
+        // Cut the second record short.
+        Files.write(Arrays.copyOf(longer, longer.length - 10), journalFile);
+        Wallet loaded = Wallet.loadFromFile(file, null);
+        assertEquals(1, loaded.getTransactions(true).size());
+        assertEquals(COIN, loaded.getBalance());
+    }
+}
@@ -152,6 +152,30 @@ public class WalletProtobufSerializerTest {
         // assertEquals(doubleSpends.t2, t1.getConfidence().getOverridingTransaction());
     }
     
+    @Test
+    public void manyTransactions() throws Exception {
+        // Enough transactions and keys for them to be decoded on several threads.
+        for (int i = 0; i < 300; i++)
+            myWallet.importKey(new ECKey());
+        for (int i = 0; i < 600; i++)
+            myWallet.receivePending(createFakeTx(params, CENT, myAddress), null);
+        myWallet.allowSpendingUnconfirmedTransactions();
+        Transaction spend = myWallet.createSend(new ECKey().toAddress(params), COIN);
+        myWallet.commitTx(spend);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(myWallet, output);
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        serializer.setDecodingThreads(4);
+        Wallet wallet1 = serializer.readWallet(new ByteArrayInputStream(output.toByteArray()), null);
+        assertEquals(myWallet.getTransactions(true), wallet1.getTransactions(true));
+        assertEquals(myWallet.getBalance(Wallet.BalanceType.ESTIMATED), wallet1.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(myWallet.getImportedKeys(), wallet1.getImportedKeys());
+        assertTrue(wallet1.isConsistent());
+        Transaction spendCopy = wallet1.getTransaction(spend.getHash());
+        for (TransactionInput input : spendCopy.getInputs())
+            assertEquals(spendCopy, input.getConnectedOutput().getSpentBy().getParentTransaction());
+    }
+
     @Test
     public void testKeys() throws Exception {
         for (int i = 0 ; i < 20 ; i++) {
@@ -0,0 +1,194 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.utils;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.Assert.*;
+
+public class KeyedOrderedExecutorTest {
+    @Test
+    public void keepsOrderPerKey() throws Exception {
+        KeyedOrderedExecutor executor = new KeyedOrderedExecutor("test", 4, 1000, 1, TimeUnit.SECONDS);
+        List<List<Integer>> results = new ArrayList<List<Integer>>();
+        List<Object> keys = new ArrayList<Object>();
+        for (int k = 0; k < 10; k++) {
+            final List<Integer> result = Collections.synchronizedList(new ArrayList<Integer>());
+            results.add(result);
+            Object key = new Object();
+            keys.add(key);
+            Executor keyed = executor.forKey(key);
+            for (int i = 0; i < 100; i++) {
+                final int n = i;
+                keyed.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        result.add(n);
+                    }
+                });
+            }
+        }
+        executor.waitForQueued();
+        for (int k = 0; k < 10; k++) {
+            for (int i = 0; i < 100; i++)
+                assertEquals(i, (int) results.get(k).get(i));
+            KeyedOrderedExecutor.Stats stats = executor.getStats(keys.get(k));
+            assertEquals(100, stats.getTasks());
+            assertEquals(0, stats.getPending());
+        }
+        assertEquals(0, executor.getQueueDepth());
+    }
+
+    @Test
+    public void slowKeyDoesNotBlockOthers() throws Exception {
+        KeyedOrderedExecutor executor = new KeyedOrderedExecutor("test", 2, 1000, 1, TimeUnit.SECONDS);
+        // Find two keys that land on different threads.
+        Object slowKey = new Object();
+        final Thread[] slowThread = new Thread[1];
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.forKey(slowKey).execute(new Runnable() {
+            @Override
+            public void run() {
+                slowThread[0] = Thread.currentThread();
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        started.await();
+        final CountDownLatch ran = new CountDownLatch(1);
+        for (int i = 0; i < 100 && ran.getCount() > 0; i++) {
+            executor.forKey(new Object()).execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (Thread.currentThread() != slowThread[0])
+                        ran.countDown();
+                }
+            });
+        }
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        release.countDown();
+        executor.waitForQueued();
+    }
+
+    @Test
+    public void queuesPastCapacityAfterWaiting() throws Exception {
+        KeyedOrderedExecutor executor = new KeyedOrderedExecutor("test", 1, 2, 10, TimeUnit.MILLISECONDS);
+        final CountDownLatch release = new CountDownLatch(1);
+        Object key = new Object();
+        Executor keyed = executor.forKey(key);
+        keyed.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        Runnable nothing = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        for (int i = 0; i < 5; i++)
+            keyed.execute(nothing);
+        assertTrue(executor.getQueueDepth() >= 5);
+        assertEquals(6, executor.getStats(key).getPending());
+        release.countDown();
+        executor.waitForQueued();
+        assertEquals(6, executor.getStats(key).getTasks());
+    }
+
+    // Queues a task that runs until the returned latch is counted down.
+    private static CountDownLatch block(Executor executor) {
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Uninterruptibles.awaitUninterruptibly(release);
+            }
+        });
+        return release;
+    }
+
+    private static final Runnable NOTHING = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    @Test
+    public void waitsOnceUntilCaughtUp() throws Exception {
+        KeyedOrderedExecutor executor = new KeyedOrderedExecutor("test", 1, 1, 200, TimeUnit.MILLISECONDS);
+        CountDownLatch release = block(executor);
+        executor.execute(NOTHING);
+        long start = System.nanoTime();
+        executor.execute(NOTHING);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+        // Full and already given up on, so nobody waits again.
+        start = System.nanoTime();
+        for (int i = 0; i < 10; i++)
+            executor.execute(NOTHING);
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(200));
+        release.countDown();
+        executor.waitForQueued();
+        assertEquals(0, executor.getQueueDepth());
+
+        // Caught up, so it waits again when full.
+        release = block(executor);
+        executor.execute(NOTHING);
+        start = System.nanoTime();
+        executor.execute(NOTHING);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+        release.countDown();
+        executor.waitForQueued();
+    }
+
+    @Test
+    public void neverWaitsHoldingLocks() throws Exception {
+        KeyedOrderedExecutor executor = new KeyedOrderedExecutor("test", 1, 1, 10, TimeUnit.SECONDS);
+        CountDownLatch release = block(executor);
+        executor.execute(NOTHING);
+        ReentrantLock lock = Threading.lock("test");
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            executor.execute(NOTHING);
+        } finally {
+            lock.unlock();
+        }
+        synchronized (this) {
+            executor.execute(NOTHING);
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        release.countDown();
+        executor.waitForQueued();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.utils;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+public class ParallelTransformTest {
+    private static final int SIZE = ParallelTransform.MIN_PARALLEL_SIZE * 10 + 3;
+
+    private static List<Integer> numbers(int size) {
+        List<Integer> numbers = new ArrayList<Integer>(size);
+        for (int i = 0; i < size; i++)
+            numbers.add(i);
+        return numbers;
+    }
+
+    @Test
+    public void keepsOrder() throws Exception {
+        final Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+        List<String> results = ParallelTransform.transform(numbers(SIZE),
+                new ParallelTransform.Function<Integer, String, IOException>() {
+                    @Override
+                    public String apply(Integer input) {
+                        threads.add(Thread.currentThread());
+                        return Integer.toString(input * 2);
+                    }
+                }, IOException.class, 4);
+        assertEquals(SIZE, results.size());
+        for (int i = 0; i < SIZE; i++)
+            assertEquals(Integer.toString(i * 2), results.get(i));
+        assertTrue(threads.size() > 1);
+    }
+
+    @Test
+    public void shortListsStayOnCallingThread() throws Exception {
+        final Thread caller = Thread.currentThread();
+        List<Integer> results = ParallelTransform.transform(numbers(10),
+                new ParallelTransform.Function<Integer, Integer, IOException>() {
+                    @Override
+                    public Integer apply(Integer input) {
+                        assertSame(caller, Thread.currentThread());
+                        return input;
+                    }
+                }, IOException.class, 4);
+        assertEquals(numbers(10), results);
+    }
+
+    @Test(expected = IOException.class)
+    public void rethrowsCheckedException() throws Exception {
+        ParallelTransform.transform(numbers(SIZE), new ParallelTransform.Function<Integer, Integer, IOException>() {
+            @Override
+            public Integer apply(Integer input) throws IOException {
+                if (input == SIZE - 1)
+                    throw new IOException("last");
+                return input;
+            }
+        }, IOException.class, 4);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rethrowsUncheckedException() throws Exception {
+        ParallelTransform.transform(numbers(SIZE), new ParallelTransform.Function<Integer, Integer, IOException>() {
+            @Override
+            public Integer apply(Integer input) {
+                if (input == SIZE / 2)
+                    throw new IllegalStateException();
+                return input;
+            }
+        }, IOException.class, 4);
+    }
+}
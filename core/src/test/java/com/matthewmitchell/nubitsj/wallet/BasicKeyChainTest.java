@@ -32,6 +32,7 @@ import com.matthewmitchell.nubitsj.wallet.KeyChain;
 import com.matthewmitchell.nubitsj.wallet.Protos;
 import org.junit.Before;
 import org.junit.Test;
+import org.spongycastle.crypto.params.KeyParameter;
 
 import java.util.ArrayList;
 import java.util.Date;
@@ -170,6 +171,27 @@ public class BasicKeyChainTest {
         key.getPrivKeyBytes();
     }
 
+    @Test
+    public void encryptDecryptManyKeys() {
+        // Enough keys to be encrypted and decrypted on several threads.
+        List<ECKey> keys = new ArrayList<ECKey>();
+        for (int i = 0; i < 100; i++)
+            keys.add(new ECKey());
+        chain.importKeys(keys);
+        KeyCrypterScrypt scrypt = new KeyCrypterScrypt(2);
+        KeyParameter aesKey = scrypt.deriveKey("foobar");
+        BasicKeyChain encrypted = chain.toEncrypted(scrypt, aesKey);
+        assertEquals(keys.size(), encrypted.numKeys());
+        BasicKeyChain decrypted = encrypted.toDecrypted(aesKey);
+        assertEquals(keys.size(), decrypted.numKeys());
+        for (ECKey key : keys) {
+            assertTrue(encrypted.findKeyFromPubKey(key.getPubKey()).isEncrypted());
+            assertArrayEquals(key.getPrivKeyBytes(), decrypted.findKeyFromPubKey(key.getPubKey()).getPrivKeyBytes());
+        }
+        // Keys come out in the order they were imported.
+        assertEquals(keys, decrypted.getKeys());
+    }
+
     @Test(expected = KeyCrypterException.class)
     public void cannotImportEncryptedKey() {
         final ECKey key1 = new ECKey();
@@ -0,0 +1,139 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.wallet;
+
+import com.matthewmitchell.nubitsj.core.*;
+import com.matthewmitchell.nubitsj.params.*;
+import org.junit.*;
+
+import java.util.*;
+
+import static com.matthewmitchell.nubitsj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class BranchAndBoundCoinSelectorTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    @Before
+    public void setUp() throws Exception {
+        new Context(params);
+    }
+
+    private TransactionOutput output(Coin value, TransactionConfidence.ConfidenceType type) {
+        // Each to its own address, as transactions with the same hash would share their confidence.
+        Transaction tx = new Transaction(params);
+        TransactionOutput output = tx.addOutput(value, new ECKey().toAddress(params));
+        tx.getConfidence().setConfidenceType(type);
+        return output;
+    }
+
+    private List<TransactionOutput> outputs(Coin... values) {
+        List<TransactionOutput> outputs = new ArrayList<TransactionOutput>();
+        for (Coin value : values)
+            outputs.add(output(value, TransactionConfidence.ConfidenceType.BUILDING));
+        return outputs;
+    }
+
+    @Test
+    public void changeFree() throws Exception {
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(ZERO, 100000, null, ZERO, ZERO, 0);
+        List<TransactionOutput> candidates = outputs(COIN.multiply(5), COIN.multiply(3), COIN.multiply(3),
+                COIN.multiply(2), CENT);
+        CoinSelection selection = selector.select(COIN.multiply(8).add(CENT), candidates);
+        assertEquals(COIN.multiply(8).add(CENT), selection.valueGathered);
+        assertEquals(3, selection.gathered.size());
+    }
+
+    @Test
+    public void excessWithinCostOfChange() throws Exception {
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(CENT, 100000, null, ZERO, ZERO, 0);
+        List<TransactionOutput> candidates = outputs(COIN.multiply(4), COIN.multiply(2), COIN);
+        CoinSelection selection = selector.select(COIN.multiply(3).subtract(CENT.divide(2)), candidates);
+        assertEquals(COIN.multiply(3), selection.valueGathered);
+    }
+
+    @Test
+    public void excessOfCostOfChangeNeedsChange() throws Exception {
+        // The wallet keeps change of MIN_OUTPUT_VALUE, so a selection that far over the target isn't change-free.
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector();
+        Coin target = COIN;
+        assertNull(selector.branchAndBound(new long[] {target.add(Transaction.MIN_OUTPUT_VALUE).value}, target.value));
+        long[] values = {target.add(Transaction.MIN_OUTPUT_VALUE).subtract(SATOSHI).value};
+        assertArrayEquals(new boolean[] {true}, selector.branchAndBound(values, target.value));
+    }
+
+    @Test
+    public void fallsBackToKnapsack() throws Exception {
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(ZERO, 100000, null, ZERO, ZERO, 0);
+        // Nothing adds up to 5 exactly. The smaller values don't reach it, so the smallest larger one is taken.
+        CoinSelection selection = selector.select(COIN.multiply(5), outputs(COIN.multiply(10), COIN.multiply(7),
+                COIN.multiply(4)));
+        assertEquals(COIN.multiply(7), selection.valueGathered);
+        // Here the smaller values reach it for less than the larger one.
+        selection = selector.select(COIN.multiply(5), outputs(COIN.multiply(10), COIN.multiply(4), COIN.multiply(2),
+                COIN.multiply(2)));
+        assertEquals(COIN.multiply(6), selection.valueGathered);
+    }
+
+    @Test
+    public void noMatchAmongMany() throws Exception {
+        // Even values can't add up to an odd target, so the search ends without a match and change is left.
+        List<TransactionOutput> candidates = new ArrayList<TransactionOutput>();
+        for (int i = 0; i < 40; i++)
+            candidates.add(output(Coin.valueOf(2 * i + 100), TransactionConfidence.ConfidenceType.BUILDING));
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(ZERO, 1000, null, ZERO, ZERO, 0);
+        assertNull(selector.branchAndBound(new long[] {178, 176, 174, 172, 170, 168, 166, 164, 162, 160, 158, 156,
+                154, 152, 150, 148, 146, 144, 142, 140}, 1001));
+        CoinSelection selection = selector.select(Coin.valueOf(1001), candidates);
+        assertTrue(selection.valueGathered.value > 1001);
+    }
+
+    @Test
+    public void insufficient() throws Exception {
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector();
+        List<TransactionOutput> candidates = outputs(COIN, COIN);
+        candidates.add(output(COIN, TransactionConfidence.ConfidenceType.PENDING));  // Not ours, so not selectable.
+        CoinSelection selection = selector.select(COIN.multiply(3), candidates);
+        assertEquals(COIN.multiply(2), selection.valueGathered);
+    }
+
+    @Test
+    public void consolidatesWhenFeesAreLow() throws Exception {
+        List<TransactionOutput> candidates = outputs(COIN.multiply(3), COIN.multiply(2), CENT, CENT, CENT);
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(ZERO, 100000, null,
+                Transaction.REFERENCE_DEFAULT_MIN_TX_FEE, COIN, 2);
+        CoinSelection selection = selector.select(COIN.multiply(4), candidates);
+        assertEquals(4, selection.gathered.size());
+        assertEquals(COIN.multiply(5).add(CENT.multiply(2)), selection.valueGathered);
+        // Fees are never this low, so there is no consolidation.
+        selector = new BranchAndBoundCoinSelector(ZERO, 100000, null, ZERO, COIN, 2);
+        selection = selector.select(COIN.multiply(4), candidates);
+        assertEquals(COIN.multiply(5), selection.valueGathered);
+    }
+
+    @Test
+    public void indexFollowsCandidates() throws Exception {
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(ZERO, 100000, null, ZERO, ZERO, 0);
+        List<TransactionOutput> candidates = outputs(COIN.multiply(5), COIN.multiply(3), COIN);
+        assertEquals(COIN.multiply(4), selector.select(COIN.multiply(4), candidates).valueGathered);
+        // Spend one and receive another.
+        candidates.remove(2);
+        candidates.add(output(COIN.multiply(2), TransactionConfidence.ConfidenceType.BUILDING));
+        assertEquals(COIN.multiply(5), selector.select(COIN.multiply(5), candidates).valueGathered);
+        CoinSelection selection = selector.select(COIN.multiply(10), candidates);
+        assertEquals(COIN.multiply(10), selection.valueGathered);
+        assertEquals(3, selection.gathered.size());
+    }
+}
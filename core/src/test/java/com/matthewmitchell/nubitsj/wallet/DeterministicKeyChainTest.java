@@ -81,6 +81,34 @@ public class DeterministicKeyChainTest {
         assertEquals(2, chain.getKeys(false).size());
     }
 
+    @Test
+    public void largeLookahead() throws Exception {
+        chain.setLookaheadSize(300);
+        DeterministicKeyChain watching = DeterministicKeyChain.watch(chain.getWatchingKey().dropPrivateBytes().dropParent());
+        watching.setLookaheadSize(300);
+        chain.maybeLookAhead();
+        watching.maybeLookAhead();
+        // The lookahead keys are derived on several threads, but must be the ones derived one after the other.
+        for (ImmutableList<ChildNumber> parentPath : ImmutableList.of(DeterministicKeyChain.EXTERNAL_PATH,
+                DeterministicKeyChain.INTERNAL_PATH)) {
+            DeterministicKey parent = chain.getKeyByPath(parentPath);
+            for (int i = 0; i < 300 + 100; i++) {
+                ImmutableList<ChildNumber> path = HDUtils.append(parentPath, new ChildNumber(i, false));
+                DeterministicKey expected = HDKeyDerivation.deriveChildKey(parent, i);
+                DeterministicKey key = chain.getKeyByPath(path);
+                assertArrayEquals(expected.getPubKey(), key.getPubKey());
+                assertEquals(key, chain.findKeyFromPubHash(expected.getPubKeyHash()));
+                assertArrayEquals(expected.getPubKey(), watching.getKeyByPath(path).getPubKey());
+            }
+            assertNull(chain.findKeyFromPubHash(HDKeyDerivation.deriveChildKey(parent, 300 + 100).getPubKeyHash()));
+        }
+        // Issued keys can still sign.
+        ECKey key = chain.getKey(KeyChain.KeyPurpose.RECEIVE_FUNDS);
+        assertFalse(key.isPubKeyOnly());
+        assertArrayEquals(chain.getKeyByPath(HDUtils.append(DeterministicKeyChain.EXTERNAL_PATH, ChildNumber.ZERO)).getPubKey(),
+                key.getPubKey());
+    }
+
     @Test
     public void deriveAccountOne() throws Exception {
         long secs = 1389353062L;
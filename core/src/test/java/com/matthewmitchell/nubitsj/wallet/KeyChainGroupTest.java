@@ -164,6 +164,40 @@ public class KeyChainGroupTest {
         assertNull(group.findKeyFromPubHash(d.getPubKeyHash()));
     }
 
+    @Test
+    public void findKeyAcrossChains() throws Exception {
+        ECKey a = group.freshKey(KeyChain.KeyPurpose.RECEIVE_FUNDS);
+        group.createAndActivateNewHDChain();
+        ECKey b = group.freshKey(KeyChain.KeyPurpose.RECEIVE_FUNDS);
+        ECKey c = new ECKey();
+        group.importKeys(c);
+        assertEquals(a, group.findKeyFromPubHash(a.getPubKeyHash()));
+        assertEquals(b, group.findKeyFromPubHash(b.getPubKeyHash()));
+        assertEquals(c, group.findKeyFromPubKey(c.getPubKey()));
+        // The same key with the other encoding of the public key has a different hash and isn't found.
+        ECKey uncompressed = c.decompress();
+        assertNull(group.findKeyFromPubKey(uncompressed.getPubKey()));
+        assertNull(group.findKeyFromPubHash(uncompressed.getPubKeyHash()));
+
+        // Encrypting replaces every key, and lookups must return the replacements.
+        KeyCrypterScrypt scrypt = new KeyCrypterScrypt(2);
+        KeyParameter aesKey = scrypt.deriveKey("password");
+        group.encrypt(scrypt, aesKey);
+        for (ECKey key : ImmutableList.of(a, b, c)) {
+            assertTrue(group.findKeyFromPubHash(key.getPubKeyHash()).isEncrypted());
+            assertTrue(group.findKeyFromPubKey(key.getPubKey()).isEncrypted());
+        }
+        // Keys derived after encryption are found too.
+        ECKey d = group.freshKey(KeyChain.KeyPurpose.CHANGE);
+        assertEquals(d, group.findKeyFromPubHash(d.getPubKeyHash()));
+        group.decrypt(aesKey);
+        assertFalse(group.findKeyFromPubKey(d.getPubKey()).isEncrypted());
+
+        assertTrue(group.removeImportedKey(c));
+        assertNull(group.findKeyFromPubHash(c.getPubKeyHash()));
+        assertFalse(group.hasKey(c));
+    }
+
     @Test
     public void currentP2SHAddress() throws Exception {
         group = createMarriedKeyChainGroup();
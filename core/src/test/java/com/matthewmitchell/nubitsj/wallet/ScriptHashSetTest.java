@@ -0,0 +1,77 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.nubitsj.wallet;
+
+import com.matthewmitchell.nubitsj.core.*;
+import com.matthewmitchell.nubitsj.params.*;
+import com.matthewmitchell.nubitsj.script.*;
+import org.junit.*;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ScriptHashSetTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private static List<byte[]> addressScripts(int count) {
+        Random random = new Random(1);
+        List<byte[]> scripts = new ArrayList<byte[]>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] hash = new byte[20];
+            random.nextBytes(hash);
+            scripts.add(ScriptBuilder.createOutputScript(new Address(params, hash)).getProgram());
+        }
+        return scripts;
+    }
+
+    @Test
+    public void addContainsRemove() throws Exception {
+        ScriptHashSet set = new ScriptHashSet();
+        List<byte[]> scripts = addressScripts(5000);
+        for (byte[] script : scripts)
+            assertTrue(set.add(script));
+        assertFalse(set.add(scripts.get(0)));
+        assertEquals(5000, set.size());
+        for (byte[] script : scripts)
+            assertTrue(set.contains(script));
+        // Remove every other one; the rest must still be found even if they were probed past the removed ones.
+        for (int i = 0; i < scripts.size(); i += 2)
+            assertTrue(set.remove(scripts.get(i)));
+        assertFalse(set.remove(scripts.get(0)));
+        assertEquals(2500, set.size());
+        for (int i = 0; i < scripts.size(); i++)
+            assertEquals(i % 2 == 1, set.contains(scripts.get(i)));
+    }
+
+    @Test
+    public void kindsAreKeptApart() throws Exception {
+        byte[] hash = new byte[20];
+        new Random().nextBytes(hash);
+        byte[] payToAddress = ScriptBuilder.createOutputScript(new Address(params, hash)).getProgram();
+        byte[] payToScriptHash = ScriptBuilder.createP2SHOutputScript(hash).getProgram();
+        byte[] payToKey = ScriptBuilder.createOutputScript(new ECKey()).getProgram();
+        ScriptHashSet set = new ScriptHashSet();
+        set.add(payToAddress);
+        assertTrue(set.contains(payToAddress));
+        assertFalse(set.contains(payToScriptHash));
+        set.add(payToKey);
+        assertTrue(set.contains(payToKey));
+        assertFalse(set.contains(ScriptBuilder.createOutputScript(new ECKey()).getProgram()));
+        set.clear();
+        assertEquals(0, set.size());
+        assertFalse(set.contains(payToAddress));
+    }
+}
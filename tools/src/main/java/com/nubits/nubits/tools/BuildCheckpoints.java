@@ -25,9 +25,9 @@ import com.matthewmitchell.nubitsj.utils.BriefLogFormatter;
 import com.matthewmitchell.nubitsj.utils.Threading;
 import com.google.common.base.Charsets;
 
+import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
@@ -50,6 +50,7 @@ public class BuildCheckpoints {
     private static final NetworkParameters PARAMS = MainNetParams.get();
     private static final File PLAIN_CHECKPOINTS_FILE = new File("checkpoints");
     private static final File TEXTUAL_CHECKPOINTS_FILE = new File("checkpoints.txt");
+    private static final File INDEXED_CHECKPOINTS_FILE = new File("checkpoints.indexed");
 
     public static void main(String[] args) throws Exception {
         BriefLogFormatter.initWithSilentNubitsJ();
@@ -90,6 +91,7 @@ public class BuildCheckpoints {
         // Write checkpoint data out.
         writeBinaryCheckpoints(checkpoints, PLAIN_CHECKPOINTS_FILE);
         writeTextualCheckpoints(checkpoints, TEXTUAL_CHECKPOINTS_FILE);
+        writeIndexedCheckpoints(checkpoints, INDEXED_CHECKPOINTS_FILE);
 
         peerGroup.stop();
         store.close();
@@ -97,6 +99,7 @@ public class BuildCheckpoints {
         // Sanity check the created files.
         sanityCheck(PLAIN_CHECKPOINTS_FILE, checkpoints.size());
         sanityCheck(TEXTUAL_CHECKPOINTS_FILE, checkpoints.size());
+        sanityCheck(INDEXED_CHECKPOINTS_FILE, checkpoints.size());
     }
 
     private static void writeBinaryCheckpoints(TreeMap<Integer, StoredBlock> checkpoints, File file) throws Exception {
@@ -138,8 +141,20 @@ public class BuildCheckpoints {
         System.out.println("Checkpoints written to '" + file.getCanonicalPath() + "'.");
     }
 
+    private static void writeIndexedCheckpoints(TreeMap<Integer, StoredBlock> checkpoints, File file) throws IOException {
+        FileOutputStream fileOutputStream = new FileOutputStream(file, false);
+        try {
+            Sha256Hash checkpointsHash = CheckpointManager.writeIndexed(checkpoints.values(),
+                    new BufferedOutputStream(fileOutputStream));
+            System.out.println("Hash of checkpoints data is " + checkpointsHash);
+        } finally {
+            fileOutputStream.close();
+        }
+        System.out.println("Checkpoints written to '" + file.getCanonicalPath() + "'.");
+    }
+
     private static void sanityCheck(File file, int expectedSize) throws IOException {
-        CheckpointManager manager = new CheckpointManager(PARAMS, new FileInputStream(file));
+        CheckpointManager manager = new CheckpointManager(PARAMS, file);
         checkState(manager.numCheckpoints() == expectedSize);
 
         if (PARAMS.getId().equals(NetworkParameters.ID_MAINNET)) {
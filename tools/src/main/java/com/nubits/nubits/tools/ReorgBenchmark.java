@@ -0,0 +1,90 @@
+package com.matthewmitchell.nubitsj.tools;
+
+import com.matthewmitchell.nubitsj.core.*;
+import com.matthewmitchell.nubitsj.params.UnitTestParams;
+import com.matthewmitchell.nubitsj.store.MemoryBlockStore;
+import com.matthewmitchell.nubitsj.testing.FakeTxBuilder;
+import com.matthewmitchell.nubitsj.utils.BriefLogFormatter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures how long {@link Wallet#reorganize(StoredBlock, List, List)} takes to swap the top blocks of the chain on a
+ * wallet with many transactions, for re-orgs of a few depths. The wallet receives a number of transactions into each
+ * block of a chain, then the top blocks are swapped for empty ones and back again, which sends their transactions to
+ * the pending pool and brings them back.
+ *
+ * Usage: ReorgBenchmark [transactions] [transactions per block] [rounds]
+ */
+public class ReorgBenchmark {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private static final int[] DEPTHS = {1, 6, 50};
+
+    public static void main(String[] args) throws Exception {
+        BriefLogFormatter.initWithSilentNubitsJ();
+        new Context(params);
+        int transactions = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int perBlock = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        Wallet wallet = new Wallet(params, null);
+        List<StoredBlock> chain = buildChain(wallet, transactions, perBlock);
+        System.out.printf("%d transactions in %d blocks%n", transactions, chain.size() - 1);
+
+        for (int depth : DEPTHS) {
+            StoredBlock split = chain.get(chain.size() - 1 - depth);
+            // Top first, as the block chain hands them over.
+            List<StoredBlock> main = new ArrayList<StoredBlock>(chain.subList(chain.size() - depth, chain.size()));
+            Collections.reverse(main);
+            List<StoredBlock> side = new ArrayList<StoredBlock>();
+            StoredBlock prev = split;
+            for (int i = 0; i <= depth; i++) {
+                prev = prev.build(FakeTxBuilder.makeSolvedTestBlock(prev.getHeader()));
+                side.add(0, prev);
+            }
+            long away = 0, back = 0;
+            for (int round = 0; round <= rounds; round++) {
+                long start = System.nanoTime();
+                wallet.reorganize(split, new ArrayList<StoredBlock>(main), new ArrayList<StoredBlock>(side));
+                long middle = System.nanoTime();
+                wallet.reorganize(split, new ArrayList<StoredBlock>(side), new ArrayList<StoredBlock>(main));
+                long end = System.nanoTime();
+                // The first round warms up.
+                if (round > 0) {
+                    away += middle - start;
+                    back += end - middle;
+                }
+            }
+            System.out.printf("%2d blocks: to empty chain %8.1f ms   back %8.1f ms%n", depth,
+                    away / 1e6 / rounds, back / 1e6 / rounds);
+        }
+    }
+
+    // Returns the blocks from the genesis block up, with perBlock wallet transactions in each after the genesis block.
+    private static List<StoredBlock> buildChain(Wallet wallet, int transactions, int perBlock) throws Exception {
+        MemoryBlockStore blockStore = new MemoryBlockStore(params);
+        Address address = wallet.currentReceiveAddress();
+        List<StoredBlock> chain = new ArrayList<StoredBlock>();
+        chain.add(blockStore.getChainHead());
+        for (int i = 0; i < transactions; i += perBlock) {
+            Transaction[] txns = new Transaction[Math.min(perBlock, transactions - i)];
+            List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+            Map<Sha256Hash, Transaction> byHash = new HashMap<Sha256Hash, Transaction>();
+            for (int j = 0; j < txns.length; j++) {
+                // Distinct values, so the made up transactions they spend differ and they don't double spend.
+                txns[j] = FakeTxBuilder.createFakeTx(params, Coin.CENT.add(Coin.valueOf(i + j)), address);
+                hashes.add(txns[j].getHash());
+                byHash.put(txns[j].getHash(), txns[j]);
+            }
+            StoredBlock block = FakeTxBuilder.createFakeBlock(blockStore, txns).storedBlock;
+            wallet.receiveBlockTransactions(block, AbstractBlockChain.NewBlockType.BEST_CHAIN, hashes, byHash, false);
+            wallet.notifyNewBestBlock(block);
+            chain.add(block);
+        }
+        return chain;
+    }
+}
@@ -0,0 +1,92 @@
+package com.matthewmitchell.nubitsj.tools;
+
+import com.matthewmitchell.nubitsj.core.*;
+import com.matthewmitchell.nubitsj.params.MainNetParams;
+import com.matthewmitchell.nubitsj.utils.BriefLogFormatter;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures contention on the {@link TxConfidenceTable} by simulating many peers announcing overlapping sets of
+ * transactions, as happens with a busy mempool. Compares a single segment (equivalent to one global lock) with the
+ * default segmented table, both for per-item and per-inv {@code seen} calls.
+ *
+ * Usage: TxConfidenceTableBenchmark [peers] [invs per peer] [items per inv]
+ */
+public class TxConfidenceTableBenchmark {
+    public static void main(String[] args) throws Exception {
+        BriefLogFormatter.initWithSilentNubitsJ();
+        new Context(MainNetParams.get());
+        final int peers = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        final int invs = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        final int itemsPerInv = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        // A shared pool of hashes so that peers announce the same transactions, like they do on the real network.
+        Random random = new Random(1);
+        final Sha256Hash[] pool = new Sha256Hash[20000];
+        for (int i = 0; i < pool.length; i++) {
+            byte[] bytes = new byte[32];
+            random.nextBytes(bytes);
+            pool[i] = Sha256Hash.wrap(bytes);
+        }
+
+        for (int round = 0; round < 2; round++) {
+            boolean warmup = round == 0;
+            for (int concurrency : new int[] { 1, TxConfidenceTable.DEFAULT_CONCURRENCY_LEVEL }) {
+                for (boolean batched : new boolean[] { false, true }) {
+                    TxConfidenceTable table = new TxConfidenceTable(TxConfidenceTable.MAX_SIZE * 10, concurrency);
+                    long nanos = run(table, pool, peers, invs, itemsPerInv, batched);
+                    if (warmup)
+                        continue;
+                    long items = (long) peers * invs * itemsPerInv;
+                    System.out.printf("segments=%-3d batched=%-5s %8d ms  %10.0f items/sec  table size %d%n",
+                            concurrency, batched, nanos / 1000000, items * 1e9 / nanos, table.size());
+                }
+            }
+        }
+    }
+
+    private static long run(final TxConfidenceTable table, final Sha256Hash[] pool, int peers, final int invs,
+                            final int itemsPerInv, final boolean batched) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(peers);
+        for (int p = 0; p < peers; p++) {
+            final PeerAddress address = new PeerAddress(InetAddress.getByAddress(new byte[] { 10, 0, (byte) (p >> 8), (byte) p }));
+            final Random random = new Random(p);
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        List<Sha256Hash> inv = new ArrayList<Sha256Hash>(itemsPerInv);
+                        for (int i = 0; i < invs; i++) {
+                            inv.clear();
+                            for (int j = 0; j < itemsPerInv; j++)
+                                inv.add(pool[random.nextInt(pool.length)]);
+                            if (batched) {
+                                table.seen(inv, address);
+                            } else {
+                                for (Sha256Hash hash : inv)
+                                    table.seen(hash, address);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+        long startTime = System.nanoTime();
+        start.countDown();
+        done.await();
+        return System.nanoTime() - startTime;
+    }
+}
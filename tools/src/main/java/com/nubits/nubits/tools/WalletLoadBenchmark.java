@@ -0,0 +1,73 @@
+package com.matthewmitchell.nubitsj.tools;
+
+import com.matthewmitchell.nubitsj.core.*;
+import com.matthewmitchell.nubitsj.params.UnitTestParams;
+import com.matthewmitchell.nubitsj.store.WalletProtobufSerializer;
+import com.matthewmitchell.nubitsj.testing.FakeTxBuilder;
+import com.matthewmitchell.nubitsj.utils.BriefLogFormatter;
+import com.matthewmitchell.nubitsj.utils.ParallelTransform;
+import com.matthewmitchell.nubitsj.wallet.Protos;
+import com.matthewmitchell.nubitsj.wallet.WalletTransaction;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how long {@link WalletProtobufSerializer#readWallet(NetworkParameters, WalletExtension[], Protos.Wallet,
+ * ValidHashStore)} takes to turn a parsed wallet protobuf with many transactions and imported keys into a
+ * {@link Wallet}, decoding transactions on a single thread and on one thread per processor. Imported keys are
+ * decoded on one thread per processor either way.
+ *
+ * Usage: WalletLoadBenchmark [transactions] [imported keys] [rounds]
+ */
+public class WalletLoadBenchmark {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    public static void main(String[] args) throws Exception {
+        BriefLogFormatter.initWithSilentNubitsJ();
+        new Context(params);
+        int transactions = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int keys = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        Protos.Wallet proto = buildWallet(transactions, keys);
+        System.out.printf("%d transactions, %d imported keys, %d bytes%n", transactions, keys, proto.getSerializedSize());
+
+        int threads = ParallelTransform.defaultThreads();
+        for (int round = 0; round <= rounds; round++) {
+            boolean warmup = round == 0;
+            long serial = time(proto, 1);
+            long parallel = time(proto, threads);
+            if (!warmup)
+                System.out.printf("1 thread %8.1f ms   %d threads %8.1f ms%n", serial / 1e6, threads, parallel / 1e6);
+        }
+    }
+
+    private static Protos.Wallet buildWallet(int transactions, int keys) throws Exception {
+        Wallet wallet = new Wallet(params, null);
+        List<ECKey> imported = new ArrayList<ECKey>(keys);
+        for (int i = 0; i < keys; i++)
+            imported.add(new ECKey());
+        wallet.importKeys(imported);
+        Address address = wallet.currentReceiveAddress();
+        for (int i = 0; i < transactions; i++) {
+            Transaction tx = FakeTxBuilder.createFakeTx(params, Coin.CENT, address);
+            wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, tx));
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(wallet, output);
+        return WalletProtobufSerializer.parseToProto(new ByteArrayInputStream(output.toByteArray()));
+    }
+
+    private static long time(Protos.Wallet proto, int threads) throws Exception {
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        serializer.setDecodingThreads(threads);
+        // Don't count collecting the wallet loaded before.
+        System.gc();
+        long start = System.nanoTime();
+        serializer.readWallet(params, null, proto, null);
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,146 @@
+package com.matthewmitchell.nubitsj.tools;
+
+import com.matthewmitchell.nubitsj.core.*;
+import com.matthewmitchell.nubitsj.params.UnitTestParams;
+import com.matthewmitchell.nubitsj.store.MemoryBlockStore;
+import com.matthewmitchell.nubitsj.testing.FakeTxBuilder;
+import com.matthewmitchell.nubitsj.utils.BriefLogFormatter;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures how long UI style queries ({@link Wallet#getTransactions(boolean)},
+ * {@link Wallet#getRecentTransactions(int, boolean)}, {@link Wallet#getBalance()} and {@link Wallet#toString()}) take
+ * while another thread feeds the wallet blocks as fast as it can, as happens during chain sync. Queries served from
+ * the wallet snapshot are compared with the same queries made while holding the wallet lock, which is how they used
+ * to wait behind block processing. Prints the latency distribution seen by the readers.
+ *
+ * Usage: WalletReadLatencyBenchmark [blocks] [transactions per block] [readers]
+ */
+public class WalletReadLatencyBenchmark {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    /** Lets the benchmark make the queries under the wallet lock. */
+    private static class LockedWallet extends Wallet {
+        LockedWallet() {
+            super(UnitTestParams.get(), null);
+        }
+
+        void query(int i, boolean locked) {
+            if (locked)
+                lock.lock();
+            try {
+                WalletReadLatencyBenchmark.query(this, i);
+            } finally {
+                if (locked)
+                    lock.unlock();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        BriefLogFormatter.initWithSilentNubitsJ();
+        new Context(params);
+        final int blocks = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        final int txPerBlock = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        final int readers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        Wallet.SendRequest.DEFAULT_FEE_PER_KB = Coin.ZERO;
+
+        for (int round = 0; round < 2; round++) {
+            boolean warmup = round == 0;
+            for (boolean locked : new boolean[] { true, false }) {
+                long[] latencies = run(blocks, txPerBlock, readers, locked);
+                if (warmup)
+                    continue;
+                System.out.printf("%-9s %8d queries  p50 %7.3f ms  p99 %7.3f ms  p99.9 %7.3f ms  max %8.3f ms%n",
+                        locked ? "locked" : "snapshot", latencies.length, percentile(latencies, 0.5),
+                        percentile(latencies, 0.99), percentile(latencies, 0.999), percentile(latencies, 1.0));
+            }
+        }
+    }
+
+    private static void query(Wallet wallet, int i) {
+        switch (i % 4) {
+            case 0: wallet.getTransactions(false); break;
+            case 1: wallet.getRecentTransactions(20, false); break;
+            case 2: wallet.getBalance(); break;
+            default: wallet.toString(false, false, false, null); break;
+        }
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0)
+            return 0;
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    private static long[] run(int blocks, int txPerBlock, int readers, final boolean locked) throws Exception {
+        final LockedWallet wallet = new LockedWallet();
+        final Address address = wallet.currentReceiveAddress();
+        final MemoryBlockStore blockStore = new MemoryBlockStore(params);
+        final AtomicBoolean syncing = new AtomicBoolean(true);
+        final CountDownLatch done = new CountDownLatch(readers);
+        final long[][] results = new long[readers][];
+        // Make sure the wallet isn't empty when the readers start.
+        feed(wallet, blockStore, address, 20, txPerBlock);
+        for (int r = 0; r < readers; r++) {
+            final int reader = r;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    long[] latencies = new long[1024];
+                    int count = 0;
+                    try {
+                        while (syncing.get()) {
+                            long start = System.nanoTime();
+                            wallet.query(count, locked);
+                            long elapsed = System.nanoTime() - start;
+                            if (count == latencies.length)
+                                latencies = Arrays.copyOf(latencies, count * 2);
+                            latencies[count++] = elapsed;
+                            // Poll like a dashboard would rather than spin.
+                            Thread.sleep(1);
+                        }
+                    } catch (InterruptedException e) {
+                        // Fall through.
+                    } finally {
+                        results[reader] = Arrays.copyOf(latencies, count);
+                        done.countDown();
+                    }
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+        feed(wallet, blockStore, address, blocks, txPerBlock);
+        syncing.set(false);
+        done.await();
+        int total = 0;
+        for (long[] result : results)
+            total += result.length;
+        long[] all = new long[total];
+        int pos = 0;
+        for (long[] result : results) {
+            System.arraycopy(result, 0, all, pos, result.length);
+            pos += result.length;
+        }
+        Arrays.sort(all);
+        return all;
+    }
+
+    private static void feed(Wallet wallet, MemoryBlockStore blockStore, Address address, int blocks, int txPerBlock)
+            throws Exception {
+        for (int b = 0; b < blocks; b++) {
+            Transaction[] txns = new Transaction[txPerBlock];
+            for (int t = 0; t < txPerBlock; t++)
+                txns[t] = FakeTxBuilder.createFakeTx(params, Coin.CENT, address);
+            FakeTxBuilder.BlockPair pair = FakeTxBuilder.createFakeBlock(blockStore, txns);
+            for (int t = 0; t < txPerBlock; t++)
+                wallet.receiveFromBlock(txns[t], pair.storedBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, t);
+            wallet.notifyNewBestBlock(pair.storedBlock);
+        }
+    }
+}